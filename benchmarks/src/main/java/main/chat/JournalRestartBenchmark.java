@@ -0,0 +1,90 @@
+package main.chat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.chat.Server.ChatMessage;
+import main.chat.Server.User;
+
+/**
+ * Opening of a {@link ChatMessageLog} backed by a {@link MessageJournal} with {@code messages} in
+ * it, i.e. the restart of the {@link Server}.
+ *
+ * <p>Every trial writes the messages to a journal in a temporary directory and checks the history
+ * is all there after opening it again, then it's opened and closed over and over.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JournalRestartBenchmark {
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    @Param({"2000000"})
+    public int messages;
+
+    @Param({"65536"})
+    public int inMemoryMessages;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void writeJournal() throws IOException {
+        directory = Files.createTempDirectory("journal");
+        try (var log = open()) {
+            var user = new User("[/127.0.0.1:40000]", "");
+            for (int i = 0; i < messages; i++) {
+                log.append(new ChatMessage("Message number %s".formatted(i).toCharArray(), user));
+            }
+        }
+
+        try (var log = open()) {
+            if (log.size() != messages
+                    || !"Message number 0".equals(new String(log.get(0).getMessage()))
+                    || log.readFrom(messages - 10).size() != 10) {
+                throw new IllegalStateException("The history wasn't restored: %s".formatted(log));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteJournal() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public long restart() throws IOException {
+        try (var log = open()) {
+            return log.size();
+        }
+    }
+
+    private ChatMessageLog open() throws IOException {
+        return new ChatMessageLog(
+                MessageJournal.open(directory, SEGMENT_SIZE, Integer.MAX_VALUE), inMemoryMessages);
+    }
+}
@@ -0,0 +1,605 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import main.chat.Server.HttpRequest;
+import main.chat.Server.HttpRequest.HttpMethod;
+
+/**
+ * The parser working on characters the {@link Server} used before {@link RequestParser}, kept as
+ * the reference to compare it with, see {@link ProtocolBenchmark}. It was fed a {@link
+ * BufferedReader} of the decoded bytes: the request line, then whatever the reader had ready.
+ */
+public class LegacyRequestParser {
+    private static final Logger LOG = Logger.getLogger(LegacyRequestParser.class.getName());
+
+    private final Set<String> targets;
+    private final Optional<Pattern> targetPattern;
+
+    /**
+     * @param targets accepted request targets
+     */
+    public LegacyRequestParser(Set<String> targets) {
+        this.targets = requireNonNull(targets);
+        this.targetPattern = Optional.empty();
+    }
+
+    /**
+     * @param targets accepted request targets
+     * @param targetPattern accepts other targets, e.g. with an id
+     */
+    public LegacyRequestParser(Set<String> targets, Pattern targetPattern) {
+        this.targets = requireNonNull(targets);
+        this.targetPattern = Optional.of(targetPattern);
+    }
+
+    /**
+     * Parses the request the {@code requestLine} starts, the rest of it is what the {@code reader}
+     * has ready
+     *
+     * <pre>
+     *
+     * first line = request method + " " + requestTarget
+     * headerName = "[a-Z][a-Z_-]*"
+     * headerValue = "[a-Z][a-Z_-]*"
+     * header = headerName + : + headerValue
+     * headers = header + CRLF + header
+     *
+     * request = headers + CRLF + CRLF + body
+     * </pre>
+     *
+     * @param requestLine should have two paramenters: {@link HttpMethod} and {@link
+     *     HttpRequest#target}
+     * @param reader to read other data from. Will NEVER be closed.
+     * @return parced request
+     * @throws IOException if there are an issue with reading the {@code reader}
+     * @throws IllegalArgumentException if there no two parameters separated by a space in the
+     *     {@code startLine}
+     * @throws IllegalArgumentException if the {@code requestTarget} doesn't exist
+     */
+    public HttpRequest parseRequest(
+            String socketName, String requestLine, BufferedReader reader) throws IOException {
+        requireNonNull(socketName, "Socket cannot be null");
+        requireNonNull(requestLine, "The startLine cannot be null");
+        requireNonNull(reader, "The reader cannot be null");
+
+        var splitStartLine = requestLine.split("[ ]", 2);
+
+        if (splitStartLine.length != 2) {
+            throw new IllegalArgumentException(
+                    "Didn't find two space separated parameters. Http Method and Http Target"
+                            .formatted(requestLine));
+        }
+
+        var headersOrRequestBody = readData(reader);
+        LOG.finest(
+                """
+                Received Data: Socket: %s
+                '%s
+                %s'\
+                """
+                        .formatted(
+                                socketName,
+                                requestLine,
+                                headersOrRequestBody.length != 0
+                                        ? Arrays.toString(headersOrRequestBody)
+                                        : ""));
+        // throws exception if it isn't a correct method
+        var httpMethod = HttpMethod.valueOf(splitStartLine[0].toUpperCase());
+        var requestTargetAndParameters = splitStartLine[1].split("\\?", 2);
+        var requestTarget = validateRequestTarget(requestTargetAndParameters[0]);
+        var parameters =
+                requestTargetAndParameters.length > 1
+                        ? Optional.of(parseParameters(requestTargetAndParameters[1]))
+                        : Optional.<Map<String, String>>empty();
+
+        var headerAndBody = getHeadersOrBody(headersOrRequestBody);
+
+        var httpRequestBuilder = new HttpRequest.Builder(socketName, httpMethod, requestTarget);
+
+        if (headerAndBody.v1.isPresent()) {
+            httpRequestBuilder.headers(headerAndBody.v1.get());
+        }
+        if (headerAndBody.v2.isPresent()) {
+            httpRequestBuilder.body(headerAndBody.v2.get());
+        }
+        if (parameters.isPresent()) {
+            httpRequestBuilder.parameters(parameters.get());
+        }
+
+        return httpRequestBuilder.build();
+    }
+
+    /**
+     * Splits the data following the request line into headers and body
+     *
+     * <pre>
+     * data = CRLF + [headers] + CRLF + CRLF + [body]
+     * </pre>
+     *
+     * <p>The leading {@code CRLF} is the end of the request line, see {@link
+     * #readData(BufferedReader)}
+     *
+     * @param data to split
+     * @return parsed headers and body, empty if there are none
+     * @throws IllegalArgumentException if the headers are malformed
+     */
+    public static Tuple<Optional<Map<String, String>>, Optional<char[]>> getHeadersOrBody(
+            char[] data) {
+        requireNonNull(data);
+
+        // headers and body are separated by "CRLFCRLF"
+        var headersLength = -1;
+        var bodyStartIndex = -1;
+
+        var crlfMatch = new boolean[4];
+        for (int i = 0; i < data.length; i++) {
+
+            if (data[i] == 13) { // is "CR"
+                // [!CR, !LF, !CR, !LF] || [CR, LF, !CR, !LF]
+                if (!crlfMatch[0] || (crlfMatch[1] && !crlfMatch[2])) {
+                    assert !crlfMatch[0] && !crlfMatch[1] && !crlfMatch[2] && !crlfMatch[3]
+                            || (crlfMatch[0] && crlfMatch[1] && !crlfMatch[2] && !crlfMatch[3]);
+
+                    crlfMatch[crlfMatch[1] ? 2 : 0] = true;
+                } else {
+                    crlfMatch = new boolean[4];
+                }
+            } else if (data[i] == 10) { // is "LF"
+                // [CR, !LF, !CR, !LF] || [CR, LF, CR, !LF]
+                if ((crlfMatch[0] && !crlfMatch[1]) || crlfMatch[2]) {
+                    assert (crlfMatch[0] && !crlfMatch[1] && !crlfMatch[2] && !crlfMatch[3])
+                            || (crlfMatch[0] && crlfMatch[1] && crlfMatch[2] && !crlfMatch[3]);
+
+                    if (crlfMatch[2]) { // last LF, mark headers, body
+                        headersLength = i - 3 == 0 ? -1 : i - 3;
+
+                        if (i + 1 < data.length) {
+                            bodyStartIndex = i + 1;
+                        }
+
+                        break;
+                    } else {
+                        crlfMatch[1] = true; // first LF
+                    }
+                } else {
+                    crlfMatch = new boolean[4];
+                }
+            } else {
+                crlfMatch = new boolean[4];
+            }
+        }
+
+        assert headersLength == -1 || headersLength > 0;
+        assert bodyStartIndex >= -1;
+        assert headersLength <= data.length;
+        assert bodyStartIndex < data.length;
+
+        var headers =
+                headersLength != -1
+                        ? convertHeaders(Arrays.copyOfRange(data, 2, headersLength))
+                        : null;
+        var body =
+                bodyStartIndex != -1 ? Arrays.copyOfRange(data, bodyStartIndex, data.length) : null;
+
+        return new Tuple<>(Optional.ofNullable(headers), Optional.ofNullable(body));
+    }
+
+    public static class Tuple<V1, V2> {
+        public final V1 v1;
+        public final V2 v2;
+
+        public Tuple(V1 v1, V2 v2) {
+            this.v1 = requireNonNull(v1);
+            this.v2 = requireNonNull(v2);
+        }
+    }
+
+    /**
+     * Parameters should have the followwing pattern [a-Z]+=[a-Z0-9]+&? Dublicated params will be
+     * silently ignored
+     *
+     * @param parameters
+     * @return
+     */
+    public static Map<String, String> parseParameters(String parameters) {
+        requireNonNull(parameters);
+
+        if (parameters.length() < 3) {
+            throw new IllegalArgumentException(
+                    "Length of parameters should be more than 2. Params: '%s'"
+                            .formatted(parameters));
+        }
+
+        var result = new HashMap<String, String>();
+        var params = parameters.toCharArray();
+
+        var isKey = true; // are we parsing a key of a parameter
+        var keyStartIndex = -1; // inclusive
+        var keyStopIndex = -1; // exclusive
+
+        var valueStartIndex = -1; // inclusive
+        var valueStopIndex = -1; // exclusive
+        for (int i = 0; i < params.length; i++) {
+            var ch = params[i];
+
+            if (isKey) {
+                assert valueStartIndex == -1;
+                assert valueStopIndex == -1;
+                assert keyStopIndex == -1;
+
+                if (!Character.isLetter(ch) && ch != '=') {
+                    throw new IllegalArgumentException(
+                            "Paremeter's key contains not a letter: letter='%s'".formatted(ch));
+                }
+
+                if (keyStartIndex == -1) {
+                    if (ch == '=') {
+                        throw new IllegalArgumentException(
+                                "Parameter's key starts with '=' letter");
+                    }
+
+                    keyStartIndex = i;
+                } else if (ch == '=') {
+                    isKey = false;
+                    keyStopIndex = i;
+                }
+                continue;
+            } else {
+                assert keyStartIndex != -1;
+                assert keyStopIndex != -1;
+                assert valueStopIndex == -1;
+
+                if (!Character.isLetter(ch) && !Character.isDigit(ch) && ch != '-'  && ch != '&') {
+                    throw new IllegalArgumentException(
+                            "Paremeter's value contains not a letter or digit: letter='%s'"
+                                    .formatted(ch));
+                }
+
+                if (valueStartIndex == -1) {
+                    if (ch == '&') {
+                        throw new IllegalArgumentException(
+                                "Parameter's value starts with '&' letter");
+                    }
+                    valueStartIndex = i;
+                }
+
+                if (ch == '&') {
+                    isKey = true;
+                    valueStopIndex = i;
+                } else if (i == params.length - 1) {
+                    valueStopIndex = i + 1;
+                } else {
+                    continue;
+                }
+            }
+
+            assert keyStartIndex >= 0;
+            assert keyStopIndex >= 1;
+            assert keyStartIndex < params.length - 2;
+            assert keyStopIndex < params.length - 1;
+            assert valueStartIndex >= 1;
+            assert valueStopIndex >= 2;
+            assert valueStartIndex < params.length;
+            assert valueStopIndex <= params.length;
+
+            assert keyStopIndex - keyStartIndex >= 1;
+            assert valueStopIndex - valueStartIndex >= 1;
+
+            var key = String.valueOf(params, keyStartIndex, keyStopIndex - keyStartIndex);
+            var value = String.valueOf(params, valueStartIndex, valueStopIndex - valueStartIndex);
+
+            keyStartIndex = -1;
+            keyStopIndex = -1;
+            valueStartIndex = -1;
+            valueStopIndex = -1;
+
+            result.putIfAbsent(key, value); // ignoring dublicated params
+        }
+
+        assert valueStopIndex == -1;
+
+        if (keyStartIndex != -1 || keyStopIndex != -1 || valueStartIndex != -1) {
+            throw new IllegalArgumentException(
+                    "Couldn't finish a parameter. Params: '%s'".formatted(Arrays.toString(params)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the data from {@code reader}. The {@code reader} will NEVER be closed after leaving the
+     * method.
+     *
+     * @param reader to read data from
+     * @return read data from {@code reader} into {@code char[]} array
+     * @throws IOException if there issues with reading from {@code reader}
+     */
+    private static char[] readData(BufferedReader reader) throws IOException {
+        requireNonNull(reader);
+
+        var buff = new char[1024];
+        var buffList = new LinkedList<char[]>();
+        buffList.add(new char[] {'\r', '\n'});
+        var totalSize = 2;
+
+        while (reader.ready()) {
+            var length = reader.read(buff);
+            if (length == -1) {
+                break;
+            }
+
+            buffList.add(Arrays.copyOf(buff, length));
+            totalSize = Math.addExact(totalSize, length);
+        }
+
+        var data = new char[totalSize];
+        var dataWritePositionIndex = 0;
+
+        for (char[] b : buffList) {
+            System.arraycopy(b, 0, data, dataWritePositionIndex, b.length);
+            dataWritePositionIndex = Math.addExact(dataWritePositionIndex, b.length);
+        }
+
+        assert totalSize == dataWritePositionIndex
+                : "The positon of last write isn't at the end of the array";
+
+        return data;
+    }
+
+    /**
+     *
+     *
+     * <pre>
+     * headerName = "[a-Z][a-Z_-]*"
+     * headerValue = "[a-Z][a-Z_-]*"
+     * header = headerName + : + headerValue
+     * headers = header + CRLF + header
+     * </pre>
+     *
+     * <p>NO trailing CRLF or any characters after a header
+     *
+     * @param data to parse the headers from
+     * @return converted {@code data}, if {@code data.length == 0}, an empty map is returned
+     * @throws NullPointerException if {@code data} is null
+     * @throws IllegalArgumentException if there are less than 3 character for a header
+     * @throws IllegalArgumentException if there are 1 or 2 characters after a header that aren't
+     *     equal to "CRLF"
+     * @throws IllegalArgumentException if there is a trailing CRLF
+     * @throws IllegalArgumentException if the first letter of a headerName isn't "[a-Z]"
+     * @throws IllegalArgumentException if the other letter of a headerName isn't "[a-Z-_]"
+     * @throws IllegalArgumentException if the first letter of a headerValue isn't "[a-Z]"
+     * @throws IllegalArgumentException if the other letter of a headerValue isn't "[a-Z-_]"
+     * @throws IllegalArgumentException if the other letter of a headerValue isn't "[a-Z-_]"
+     * @throws IllegalArgumentException if the end of the header data stream was reached but the
+     *     header wasn't finished completely
+     * @throws IllegalArgumentException if the parsed header was already present
+     */
+    public static Map<String, String> convertHeaders(char[] data) {
+        requireNonNull(data);
+
+        var headers = new HashMap<String, String>();
+
+        for (int i = 0; i < data.length; i += 2) {
+            if (data.length - i < 3) {
+                throw new IllegalArgumentException("There are less than 3 characters for a header");
+            }
+
+            i = convertHeader(data, i, headers);
+
+            if (i == data.length) {
+                break;
+            }
+
+            if (data.length - i <= 1) {
+                throw new IllegalArgumentException(
+                        "There are only 1 character after a header: '%s'".formatted(data[i]));
+            }
+
+            // not CRLF
+            if (data[i] != 13 || data[i + 1] != 10) {
+                throw new IllegalArgumentException(
+                        "There is an incorrect character after a header: '%s'".formatted(data[i]));
+            }
+
+            if (i + 2 == data.length) {
+                throw new IllegalArgumentException("There is a trailing CRLF");
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Reads header data from the {@code data} at {@code startIndex} and untill "CR" or the end of
+     * the {@code data} and then adds the header to the {@code headers}
+     *
+     * <pre>
+     * headerName = "[a-Z][a-Z_-]*"
+     * headerValue = "[a-Z][a-Z_-]*"
+     * header = headerName + : + headerValue
+     * </pre>
+     *
+     * @param data to read header data from
+     * @param startIndex to start reading {@code data} at, should be non negative and {@code
+     *     data.length - startIndex >= 3}
+     * @param headers to store a header
+     * @return the index of the "CR" ending the header or {@code data.length}. It is guaranteed that
+     *     the returned value will be >= starIndex + 3
+     * @throws IllegalArgumentException if {@code startIndex < 0}
+     * @throws IllegalArgumentException if {@code data.length - startIndex < 3} }
+     * @throws IllegalArgumentException if the first letter of the headerName isn't "[a-Z]"
+     * @throws IllegalArgumentException if the other letter of the headerName isn't "[a-Z-_]"
+     * @throws IllegalArgumentException if the first letter of the headerValue isn't "[a-Z]"
+     * @throws IllegalArgumentException if the other letter of the headerValue isn't "[a-Z-_]"
+     * @throws IllegalArgumentException if the other letter of the headerValue isn't "[a-Z-_]"
+     * @throws IllegalArgumentException if the end of the {@code data} was reached but the header
+     *     wasn't finished completely
+     * @throws IllegalArgumentException if the parsed header was already present in the {@code
+     *     headers}
+     */
+    private static int convertHeader(char[] data, int startIndex, HashMap<String, String> headers) {
+        requireNonNull(data);
+        requireNonNull(headers);
+
+        if (startIndex < 0) {
+            throw new IllegalArgumentException("start index is negative: %s".formatted(startIndex));
+        }
+
+        if (data.length - startIndex < 3) {
+            throw new IllegalArgumentException(
+                    "The remaining amount of data to read is smaller than 3. i = %s, data.length = %s"
+                            .formatted(startIndex, data.length));
+        }
+
+        int stopIndex = startIndex;
+
+        // 1. Search for the start of a header name
+        // 2. Parse the header name and search for its end
+        // 3. Search for the start of a header value
+        // 4. Parse the header value and search for its end
+        var headerNameStartIndex = -1;
+        var headerNameEndIndex = -1;
+        var headerValueStartIndex = -1;
+        var headerValueEndIndex = -1;
+        for (int j = startIndex; j < data.length; j++, stopIndex = j) {
+            var ch = data[j];
+
+            // 1. Search for header's name start character
+            if (headerNameStartIndex == -1) {
+                if (!Character.isLetter(ch)) {
+                    throw new IllegalArgumentException(
+                            "Incorrect character: '%s' in a first letter of the header name."
+                                            .formatted(ch)
+                                    + " Allowed 'a-zA-Z'");
+                }
+
+                headerNameStartIndex = j;
+                continue;
+            }
+
+            assert headerNameStartIndex != -1;
+
+            // 2. Parse the header name and search for its end
+            if (headerNameEndIndex == -1) {
+                assert headerNameStartIndex < j;
+
+                // reached the end of the header name;
+                if (ch == ':') {
+                    headerNameEndIndex = j - 1;
+                    continue;
+                }
+
+                if (!Character.isLetter(ch) && ch != '-' && ch != '_') {
+                    throw new IllegalArgumentException(
+                            "Incorrect character: '%s' in a header name. Allowed 'a-zA-Z-_'"
+                                    .formatted(ch));
+                }
+
+                continue;
+            }
+
+            assert headerNameEndIndex != -1;
+
+            // 3. Search for the start of a header value
+            if (headerValueStartIndex == -1) {
+                if (!Character.isLetter(ch)) {
+                    throw new IllegalArgumentException(
+                            "Incorrect character: '%s' in a first letter of the header value."
+                                            .formatted(ch)
+                                    + " Allowed 'a-zA-Z'");
+                }
+
+                headerValueStartIndex = j;
+                if (j == data.length - 1) { // it's the end of the data array
+                    headerValueEndIndex = j;
+                    stopIndex = j + 1;
+                }
+                continue;
+            }
+
+            assert headerValueStartIndex != -1;
+
+            // 4. Parse the header value and search for its end
+            assert headerValueStartIndex < j;
+
+            // reached the end of the header value;
+            if (ch == 13) { // it's CR
+                headerValueEndIndex = j - 1;
+                break;
+            }
+
+            if (!Character.isLetter(ch) && ch != '-' && ch != '_') {
+                throw new IllegalArgumentException(
+                        "Incorrect character: '%s' in a header value. Allowed 'a-zA-Z-_'"
+                                .formatted(ch));
+            }
+
+            if (j == data.length - 1) { // it's the end of the data array
+                headerValueEndIndex = j;
+                stopIndex = j + 1;
+                break;
+            }
+        }
+
+        assert headerNameStartIndex != -1;
+
+        if (headerNameEndIndex == -1 || headerValueStartIndex == -1 || headerValueEndIndex == -1) {
+            throw new IllegalArgumentException(
+                    "Reached the end of header data stream but couldn't finish the header.");
+        }
+
+        assert headerNameEndIndex - headerNameStartIndex >= 0;
+        assert headerValueEndIndex - headerValueStartIndex >= 0;
+        assert headerValueStartIndex - headerNameEndIndex == 2;
+
+        var headerName =
+                String.valueOf(
+                        data, headerNameStartIndex, headerNameEndIndex - headerNameStartIndex + 1);
+        var headerValue =
+                String.valueOf(
+                        data,
+                        headerValueStartIndex,
+                        headerValueEndIndex - headerValueStartIndex + 1);
+
+        if (headers.containsKey(headerName)) {
+            throw new IllegalArgumentException(
+                    "Header: %s already is present".formatted(headerName));
+        }
+
+        headers.put(headerName, headerValue);
+
+        assert stopIndex - startIndex >= 3;
+        assert stopIndex <= data.length;
+
+        return stopIndex;
+    }
+
+    /**
+     * @param requestTarget to check if exists in the set of {@link #targets} or matches the
+     *     {@link #targetPattern}
+     * @return passed {@code requestTarget}
+     * @throws NullPointerException if the {@code requestTarget} is {@code null}
+     * @throws IllegalArgumentException if the {@code requestTarget} doesn't exist
+     */
+    private String validateRequestTarget(String requestTarget) {
+        requireNonNull(requestTarget, "The requestTarget cannot be null");
+        if (!targets.contains(requestTarget)
+                && targetPattern.filter(p -> p.matcher(requestTarget).matches()).isEmpty()) {
+            throw new IllegalArgumentException(
+                    "The requestTarget doesn't exist: '%s'".formatted(requestTarget));
+        }
+
+        return requestTarget;
+    }
+}
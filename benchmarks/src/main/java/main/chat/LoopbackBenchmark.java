@@ -0,0 +1,218 @@
+package main.chat;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.chat.Client.HttpRequest.HttpMethod;
+import main.chat.Client.HttpResponse;
+import main.chat.Client.ServerConnector.WireFormat;
+import main.chat.Server.Config;
+import main.chat.Server.ConnectionMode;
+
+/**
+ * A POST of a message and a GET of the history, each a round trip over a loopback socket to a
+ * {@link Server} started in the same JVM, sent and read the way the {@link Client} does it.
+ *
+ * <p>Every trial starts its own server with a journal in a temporary directory and {@value
+ * #HISTORY} messages in it, the POSTs don't change what a GET of another trial reads. The server
+ * writes the chat logs of its shards and requests.log to the working directory.
+ *
+ * <p>With {@code idleConnections} the round trips are measured while that many more keep-alive
+ * connections stay open and idle, what each of them costs depends on the {@link ConnectionMode}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    private static final int HISTORY = 100;
+
+    /** Keeps the level of the package logger, which is referenced weakly otherwise */
+    private static final Logger CHAT_LOG = Logger.getLogger("main.chat");
+
+    @Param({"NIO", "VIRTUAL_THREADS"})
+    public ConnectionMode mode;
+
+    @Param({"BINARY", "SERIALIZED"})
+    public WireFormat format;
+
+    /** Opened before the measurement and left idle, shorter than the idle timeout of the server */
+    @Param({"0", "1000"})
+    public int idleConnections;
+
+    private Server server;
+    private int port;
+    private List<Socket> idleSockets;
+    private Path journal;
+    private PrintStream systemOut;
+
+    @Setup(org.openjdk.jmh.annotations.Level.Trial)
+    public void startServer() throws Exception {
+        // the server echoes every message
+        systemOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        journal = Files.createTempDirectory("journal");
+
+        // the server logs its lifecycle and failed requests
+        quietLogs();
+        server =
+                new Server(
+                        new Config.Builder()
+                                .port(port)
+                                .connectionMode(mode)
+                                .journalDirectory(journal)
+                                .auditDirectory(journal.resolve("audit"))
+                                .build());
+        server.start();
+
+        try (var connection = new Connection()) {
+            connection.connect(this);
+            for (int i = 0; i < HISTORY; i++) {
+                connection.post();
+            }
+
+            // messages are appended by the chat.log writer, after the POST is answered
+            while (connection.get().getBody().map(List::size).orElse(0) < HISTORY) {
+                Thread.sleep(10);
+            }
+        }
+
+        idleSockets = new ArrayList<>(idleConnections);
+        for (int i = 0; i < idleConnections; i++) {
+            idleSockets.add(new Socket("127.0.0.1", port));
+        }
+    }
+
+    @TearDown(org.openjdk.jmh.annotations.Level.Trial)
+    public void stopServer() throws Exception {
+        try {
+            for (var socket : idleSockets) {
+                socket.close();
+            }
+            server.close();
+        } finally {
+            System.setOut(systemOut);
+            delete(journal);
+        }
+    }
+
+    /** A keep-alive connection of a benchmark thread */
+    @State(Scope.Thread)
+    public static class Connection implements AutoCloseable {
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private byte[] postRequest;
+        private byte[] getRequest;
+
+        @Setup(org.openjdk.jmh.annotations.Level.Trial)
+        public void connect(LoopbackBenchmark benchmark) throws IOException {
+            socket = new Socket("127.0.0.1", benchmark.port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream());
+
+            var socketName = socket.toString();
+            var headers =
+                    benchmark.format == WireFormat.BINARY
+                            ? Map.of(BinaryWireFormat.ACCEPT_HEADER, BinaryWireFormat.BINARY)
+                            : Map.<String, String>of();
+            postRequest =
+                    bytes(
+                            new Client.HttpRequest(
+                                    socketName,
+                                    HttpMethod.POST,
+                                    "/messages",
+                                    headers,
+                                    "Message about as long as a chat message, 50 bytes."
+                                            .toCharArray()));
+            getRequest =
+                    bytes(
+                            new Client.HttpRequest(
+                                    socketName, HttpMethod.GET, "/messages", headers));
+        }
+
+        private static byte[] bytes(Client.HttpRequest request) {
+            return Client.ServerConnector.getRequestMsg(request).getBytes(StandardCharsets.UTF_8);
+        }
+
+        HttpResponse<String> post() throws IOException {
+            out.write(postRequest);
+            out.flush();
+            return Client.ServerConnector.readResponse(in, String.class);
+        }
+
+        @SuppressWarnings("rawtypes")
+        HttpResponse<List> get() throws IOException {
+            out.write(getRequest);
+            out.flush();
+            return Client.ServerConnector.readResponse(in, List.class);
+        }
+
+        @TearDown(org.openjdk.jmh.annotations.Level.Trial)
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public HttpResponse<String> post(Connection connection) throws IOException {
+        return connection.post();
+    }
+
+    @Benchmark
+    @SuppressWarnings("rawtypes")
+    public HttpResponse<List> get(Connection connection) throws IOException {
+        return connection.get();
+    }
+
+    private static void quietLogs() {
+        CHAT_LOG.setLevel(Level.WARNING);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
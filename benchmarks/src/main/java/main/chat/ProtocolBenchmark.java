@@ -0,0 +1,156 @@
+package main.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.chat.Client.HttpRequest.HttpMethod;
+import main.chat.LegacyRequestParser.Tuple;
+import main.chat.Server.HttpRequest;
+
+/**
+ * Parsing of the requests by the {@link Server} and building them by the {@link Client}, for the
+ * requests the client sends: a long polling GET and a POST of a message.
+ *
+ * <p>{@link RequestParser} is measured as a whole, with and without creating the {@link
+ * HttpRequest}. The {@link LegacyRequestParser} the server used before is measured as a whole,
+ * fed the way the NIO mode fed it: the bytes decoded into a {@link String} and read line by line,
+ * and by its parts. Run with {@code -prof gc} to compare their allocation rates too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    private static final String SOCKET_NAME = "[/127.0.0.1:40000]";
+    private static final String MESSAGE = "Message about as long as a chat message, 50 bytes.";
+
+    /** {@link LegacyRequestParser#convertHeaders(char[])} expects no leading and trailing CRLF */
+    private final char[] headers = "Accept:binary\r\nUser-Agent:chat-client".toCharArray();
+
+    private final String parameters = "lastId=100&wait=30000";
+
+    /** Without a length, {@link LegacyRequestParser} doesn't allow digits in the headers */
+    private final String legacyPost = "POST /messages\r\nAccept:binary\r\n\r\n" + MESSAGE;
+
+    /** What follows the request line, see {@link LegacyRequestParser#getHeadersOrBody(char[])} */
+    private final char[] headersAndBody =
+            ("\r\nAccept:binary\r\nUser-Agent:chat-client\r\n\r\n" + MESSAGE).toCharArray();
+
+    private Client.HttpRequest getRequest;
+    private Client.HttpRequest postRequest;
+
+    private ByteBuffer getBytes;
+    private ByteBuffer postBytes;
+    private RequestParser parser;
+    private LegacyRequestParser legacyParser;
+    private byte[] legacyPostBytes;
+
+    @Setup
+    public void setUp() {
+        getRequest =
+                new Client.HttpRequest(
+                        SOCKET_NAME,
+                        HttpMethod.GET,
+                        "/messages?lastId=100&wait=30000",
+                        Map.of("Accept", "binary"));
+        postRequest =
+                new Client.HttpRequest(
+                        SOCKET_NAME,
+                        HttpMethod.POST,
+                        "/messages",
+                        Map.of("Accept", "binary"),
+                        MESSAGE.toCharArray());
+
+        getBytes = bytes(getRequest);
+        postBytes = bytes(postRequest);
+        parser = new RequestParser(Set.of("/messages", "/messages/stream"));
+        legacyParser = new LegacyRequestParser(Set.of("/messages", "/messages/stream"));
+        legacyPostBytes = legacyPost.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer bytes(Client.HttpRequest request) {
+        return ByteBuffer.wrap(
+                Client.ServerConnector.getRequestMsg(request).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Map<String, String> convertHeaders() {
+        return LegacyRequestParser.convertHeaders(headers);
+    }
+
+    @Benchmark
+    public Map<String, String> parseParameters() {
+        return LegacyRequestParser.parseParameters(parameters);
+    }
+
+    @Benchmark
+    public Tuple<Optional<Map<String, String>>, Optional<char[]>> getHeadersOrBody() {
+        return LegacyRequestParser.getHeadersOrBody(headersAndBody);
+    }
+
+    @Benchmark
+    public HttpRequest legacyParserGet() throws IOException {
+        return parseWithReader(getBytes.array());
+    }
+
+    @Benchmark
+    public HttpRequest legacyParserPost() throws IOException {
+        return parseWithReader(legacyPostBytes);
+    }
+
+    private HttpRequest parseWithReader(byte[] bytes) throws IOException {
+        try (var reader =
+                new BufferedReader(new StringReader(new String(bytes, StandardCharsets.UTF_8)))) {
+            return legacyParser.parseRequest(SOCKET_NAME, reader.readLine(), reader);
+        }
+    }
+
+    @Benchmark
+    public String getRequestMsgGet() {
+        return Client.ServerConnector.getRequestMsg(getRequest);
+    }
+
+    @Benchmark
+    public String getRequestMsgPost() {
+        return Client.ServerConnector.getRequestMsg(postRequest);
+    }
+
+    /** Parsing only, the request is read through the flyweight getters */
+    @Benchmark
+    public String requestParserGet() {
+        parser.parse(getBytes.rewind(), true);
+        return parser.getTarget();
+    }
+
+    @Benchmark
+    public HttpRequest requestParserGetToRequest() {
+        parser.parse(getBytes.rewind(), true);
+        return parser.toHttpRequest(SOCKET_NAME);
+    }
+
+    @Benchmark
+    public HttpRequest requestParserPostToRequest() {
+        parser.parse(postBytes.rewind(), true);
+        return parser.toHttpRequest(SOCKET_NAME);
+    }
+}
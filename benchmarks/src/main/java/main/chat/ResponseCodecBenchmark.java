@@ -0,0 +1,79 @@
+package main.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.chat.Server.ChatMessage;
+import main.chat.Server.HttpResponse;
+import main.chat.Server.HttpResponse.HttpStatus;
+import main.chat.Server.ResponseFormat;
+import main.chat.Server.User;
+
+/**
+ * Encoding of a messages response by the {@link Server} and decoding of it by the {@link Client},
+ * in both {@link ResponseFormat}s.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseCodecBenchmark {
+
+    /** A {@link ResponseFormat}, which is package-private so the generated code can't take it */
+    @Param({"SERIALIZED", "BINARY"})
+    public String format;
+
+    @Param({"1", "100"})
+    public int messages;
+
+    private ResponseFormat responseFormat;
+    private HttpResponse response;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        responseFormat = ResponseFormat.valueOf(format);
+        var start = Instant.now().toEpochMilli();
+        var chatMessages = new ArrayList<ChatMessage>(messages);
+        for (int i = 0; i < messages; i++) {
+            chatMessages.add(
+                    new ChatMessage(
+                            i,
+                            "Message number %s, about as long as a chat message".formatted(i)
+                                    .toCharArray(),
+                            new User("[/127.0.0.1:%s]".formatted(40_000 + i % 16), ""),
+                            Instant.ofEpochMilli(start + i * 250L)));
+        }
+
+        response = new HttpResponse(HttpStatus.OK, chatMessages);
+        encoded = Server.encode(response, responseFormat);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return Server.encode(response, responseFormat);
+    }
+
+    @Benchmark
+    public Client.HttpResponse<List> decode() throws IOException {
+        return Client.ServerConnector.readResponse(new ByteArrayInputStream(encoded), List.class);
+    }
+}
@@ -0,0 +1,275 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread pool with a bounded queue which sizes itself by the measured queue wait: every {@code
+ * targetQueueWaitMillis} the oldest queued task is checked, and if it has waited longer than that,
+ * the core size grows by the number of queued tasks, up to {@code maxThreads}. After {@link
+ * #SHRINK_AFTER_CHECKS} checks in a row with idle threads and nothing queued, the core size shrinks
+ * by one, down to {@code minThreads}, the extra threads end after being idle for {@link
+ * #KEEP_ALIVE_SECONDS}.
+ *
+ * <p>A full queue starts threads above the core size up to {@code maxThreads} right away, a task
+ * that doesn't fit even then is rejected with a {@link RejectedExecutionException}, so the caller
+ * can answer the overload instead of waiting.
+ *
+ * <p>Exceptions escaping the submitted tasks are logged.
+ *
+ * @ThreadSafe
+ */
+public class AdaptiveThreadPool extends ThreadPoolExecutor {
+    private static final Logger LOG = Logger.getLogger(AdaptiveThreadPool.class.getName());
+
+    private static final int SHRINK_AFTER_CHECKS = 10;
+    private static final int KEEP_ALIVE_SECONDS = 60;
+
+    private final String name;
+    private final int minThreads;
+    private final int maxThreads;
+    private final long targetQueueWaitNanos;
+
+    /** From the submit of a task to the start of its execution */
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /** Runs {@link #adjust()}, stops when the pool terminates */
+    private final ScheduledExecutorService adjuster;
+
+    /** Accessed only by the adjuster thread */
+    private int idleChecks;
+
+    /**
+     * @param name of the pool, for the logs
+     * @param minThreads the least core threads
+     * @param maxThreads the most threads
+     * @param queueCapacity the most tasks waiting for a thread, {@code 0} hands tasks to threads
+     *     directly
+     * @param targetQueueWaitMillis the longest a task should wait for a thread
+     * @throws IllegalArgumentException if {@code minThreads < 1}, {@code maxThreads <
+     *     minThreads}, {@code queueCapacity < 0} or {@code targetQueueWaitMillis < 1}
+     */
+    public AdaptiveThreadPool(
+            String name,
+            int minThreads,
+            int maxThreads,
+            int queueCapacity,
+            long targetQueueWaitMillis) {
+        super(
+                minThreads,
+                maxThreads,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                createQueue(queueCapacity),
+                new CountingAbortPolicy());
+
+        if (minThreads < 1) {
+            throw new IllegalArgumentException(
+                    "Min threads should be positive: %s".formatted(minThreads));
+        }
+        if (targetQueueWaitMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Target queue wait should be positive: %s".formatted(targetQueueWaitMillis));
+        }
+
+        this.name = requireNonNull(name);
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.targetQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(targetQueueWaitMillis);
+
+        var adjusterPool =
+                new ScheduledThreadPoolExecutor(
+                        1,
+                        task -> {
+                            var thread = new Thread(task, name + "-adjuster");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        adjusterPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        adjusterPool.scheduleWithFixedDelay(
+                this::adjust, targetQueueWaitMillis, targetQueueWaitMillis, TimeUnit.MILLISECONDS);
+        this.adjuster = adjusterPool;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code queueCapacity < 0}
+     */
+    private static BlockingQueue<Runnable> createQueue(int queueCapacity) {
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException(
+                    "Queue capacity cannot be negative: %s".formatted(queueCapacity));
+        }
+
+        return queueCapacity == 0
+                ? new SynchronousQueue<>()
+                : new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /** Grows or shrinks the core size by the wait of the oldest queued task */
+    private void adjust() {
+        var oldest = getQueue().peek();
+        var oldestWait = oldest instanceof QueuedTask<?> task ? task.getWaitNanos() : 0;
+        var coreSize = getCorePoolSize();
+
+        if (oldestWait > targetQueueWaitNanos && coreSize < maxThreads) {
+            idleChecks = 0;
+            var newCoreSize = Math.min(maxThreads, coreSize + Math.max(1, getQueue().size()));
+            LOG.fine(
+                    "%s | Queued task waits %sms, growing %s -> %s threads"
+                            .formatted(
+                                    name,
+                                    TimeUnit.NANOSECONDS.toMillis(oldestWait),
+                                    coreSize,
+                                    newCoreSize));
+            // starts the threads, they take the queued tasks
+            setCorePoolSize(newCoreSize);
+        } else if (oldest == null && getActiveCount() < coreSize && coreSize > minThreads) {
+            if (++idleChecks >= SHRINK_AFTER_CHECKS) {
+                idleChecks = 0;
+                LOG.fine(
+                        "%s | Idle, shrinking %s -> %s threads"
+                                .formatted(name, coreSize, coreSize - 1));
+                setCorePoolSize(coreSize - 1);
+            }
+        } else {
+            idleChecks = 0;
+        }
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new QueuedTask<>(runnable, value);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new QueuedTask<>(callable);
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof QueuedTask<?> task) {
+            queueWait.record(task.getWaitNanos());
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (t == null && r instanceof Future<?> future && future.isDone()) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                t = e.getCause();
+            } catch (Exception e) {
+                // cancelled or interrupted, nothing escaped
+            }
+        }
+        if (t != null) {
+            LOG.log(Level.SEVERE, "%s | Task failed".formatted(name), t);
+        }
+    }
+
+    @Override
+    protected void terminated() {
+        adjuster.shutdownNow();
+        super.terminated();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return latencies from the submit of a task to the start of its execution in nanoseconds
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * @return the number of tasks rejected as the pool and the queue were full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return one line summary of the occupancy, the queue and the rejections
+     */
+    public String getStats() {
+        return ("%s [threads: active=%s size=%s core=%s max=%s, queued=%s, completed=%s,"
+                        + " rejected=%s, queueWait: %s]")
+                .formatted(
+                        name,
+                        getActiveCount(),
+                        getPoolSize(),
+                        getCorePoolSize(),
+                        maxThreads,
+                        getQueueDepth(),
+                        getCompletedTaskCount(),
+                        getRejectedCount(),
+                        queueWait.summary());
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveThreadPool [" + getStats() + "]";
+    }
+
+    /** Remembers when it was submitted */
+    private static class QueuedTask<T> extends FutureTask<T> {
+        private final long submitted = System.nanoTime();
+
+        QueuedTask(Runnable runnable, T value) {
+            super(runnable, value);
+        }
+
+        QueuedTask(Callable<T> callable) {
+            super(callable);
+        }
+
+        long getWaitNanos() {
+            return System.nanoTime() - submitted;
+        }
+    }
+
+    /** Counts the rejections before throwing {@link RejectedExecutionException} */
+    private static class CountingAbortPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            var pool = (AdaptiveThreadPool) executor;
+            pool.rejected.increment();
+            throw new RejectedExecutionException(
+                    "%s is full: %s threads are busy and %s tasks are queued"
+                            .formatted(pool.name, pool.getPoolSize(), pool.getQueueDepth()));
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Hands log records to a daemon thread, which formats and publishes them with the {@code
+ * delegate}, so a logging thread only enqueues a record and never waits for the formatting and the
+ * console.
+ *
+ * <p>Records below {@link Level#WARNING} are sampled: each level passes at most {@code
+ * maxRecordsPerSecond} records a second, the rest are dropped and counted. A record that doesn't
+ * fit into the full queue is dropped and counted too, whatever its level, the logging thread is
+ * never blocked. The number of dropped records is logged by the drainer once a second.
+ *
+ * <p>The records are published by another thread, so their source is the name of the logger
+ * instead of the calling class and method, walking the stack of the caller would cost more than
+ * the record itself.
+ *
+ * <p>Call sites should pass a {@link java.util.function.Supplier} or parameters to the logger, so
+ * nothing is formatted for a disabled level, and parameters are formatted by the drainer.
+ *
+ * @ThreadSafe
+ */
+public class AsyncLogHandler extends Handler {
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long DROPPED_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Handler delegate;
+    private final BlockingQueue<LogRecord> records;
+    private final int maxRecordsPerSecond;
+
+    /** Sampling windows of the levels below {@link Level#WARNING}, by {@link Level#intValue()} */
+    private final Map<Integer, Window> windows = new ConcurrentHashMap<>();
+
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final Thread drainer;
+
+    /**
+     * @param delegate to publish the records with, closed with this handler
+     * @param capacity the most records waiting for the drainer
+     * @param maxRecordsPerSecond the most records a second of each level below {@link
+     *     Level#WARNING}
+     * @throws IllegalArgumentException if {@code capacity < 1} or {@code maxRecordsPerSecond < 1}
+     */
+    public AsyncLogHandler(Handler delegate, int capacity, int maxRecordsPerSecond) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "Capacity should be positive: %s".formatted(capacity));
+        }
+        if (maxRecordsPerSecond < 1) {
+            throw new IllegalArgumentException(
+                    "Max records per second should be positive: %s"
+                            .formatted(maxRecordsPerSecond));
+        }
+
+        this.delegate = requireNonNull(delegate);
+        this.records = new ArrayBlockingQueue<>(capacity);
+        this.maxRecordsPerSecond = maxRecordsPerSecond;
+
+        this.drainer = new Thread(this::drain, "log-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Replaces the handlers of the root logger with an {@link AsyncLogHandler} publishing to a
+     * {@link ConsoleHandler}, both at the {@code level}
+     *
+     * @param level of the root logger and the handlers
+     * @param capacity see {@link #AsyncLogHandler(Handler, int, int)}
+     * @param maxRecordsPerSecond see {@link #AsyncLogHandler(Handler, int, int)}
+     * @return the installed handler
+     */
+    public static AsyncLogHandler installOnRoot(
+            Level level, int capacity, int maxRecordsPerSecond) {
+        requireNonNull(level);
+
+        var root = Logger.getLogger("");
+        for (var handler : root.getHandlers()) {
+            root.removeHandler(handler);
+            handler.close();
+        }
+
+        var console = new ConsoleHandler();
+        console.setLevel(level);
+        var handler = new AsyncLogHandler(console, capacity, maxRecordsPerSecond);
+        handler.setLevel(level);
+
+        root.setLevel(level);
+        root.addHandler(handler);
+        return handler;
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+
+        if (record.getLevel().intValue() < Level.WARNING.intValue()
+                && !sample(record.getLevel())) {
+            sampledOut.increment();
+            return;
+        }
+
+        // prevents the drainer from inferring the caller from its own stack
+        record.setSourceClassName(record.getLoggerName());
+        record.setSourceMethodName(null);
+        if (!records.offer(record)) {
+            overflowed.increment();
+        }
+    }
+
+    /**
+     * @return {@code true} if the {@code level} hasn't passed {@link #maxRecordsPerSecond} records
+     *     in the current second
+     */
+    private boolean sample(Level level) {
+        var window =
+                windows.computeIfAbsent(level.intValue(), k -> new Window(System.nanoTime()));
+        return window.tryAcquire(System.nanoTime(), maxRecordsPerSecond);
+    }
+
+    private void drain() {
+        var batch = new ArrayList<LogRecord>(MAX_BATCH_SIZE);
+        var lastReport = System.nanoTime();
+        var reportedDropped = 0L;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                var first = records.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    records.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    publishBatch(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            var now = System.nanoTime();
+            if (now - lastReport >= DROPPED_REPORT_INTERVAL_NANOS) {
+                lastReport = now;
+                var dropped = getDroppedCount();
+                if (dropped != reportedDropped) {
+                    delegate.publish(droppedRecord(dropped - reportedDropped));
+                    reportedDropped = dropped;
+                }
+            }
+        }
+
+        // what was logged before the close
+        records.drainTo(batch);
+        publishBatch(batch);
+    }
+
+    private void publishBatch(ArrayList<LogRecord> batch) {
+        for (var record : batch) {
+            try {
+                delegate.publish(record);
+            } catch (RuntimeException e) {
+                reportError("Couldn't publish a record", e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+        batch.clear();
+        delegate.flush();
+    }
+
+    private LogRecord droppedRecord(long dropped) {
+        var record =
+                new LogRecord(
+                        Level.WARNING,
+                        "Dropped {0} log records, sampled out in total: {1}, overflowed in total:"
+                                + " {2}");
+        record.setParameters(new Object[] {dropped, sampledOut.sum(), overflowed.sum()});
+        record.setLoggerName(AsyncLogHandler.class.getName());
+        record.setSourceClassName(AsyncLogHandler.class.getName());
+        return record;
+    }
+
+    /**
+     * @return the number of records sampled out or not fitting into the queue
+     */
+    public long getDroppedCount() {
+        return sampledOut.sum() + overflowed.sum();
+    }
+
+    /**
+     * @return the number of records waiting for the drainer
+     */
+    public int getQueueDepth() {
+        return records.size();
+    }
+
+    @Override
+    public void flush() {
+        delegate.flush();
+    }
+
+    /** Publishes what was logged before, then closes the {@code delegate} */
+    @Override
+    public void close() {
+        drainer.interrupt();
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    /** Counts the records of a level passed in the current second */
+    private static class Window {
+        private final AtomicLong start;
+        private final AtomicLong passed = new AtomicLong();
+
+        Window(long startNanos) {
+            this.start = new AtomicLong(startNanos);
+        }
+
+        boolean tryAcquire(long nowNanos, int maxPerSecond) {
+            var windowStart = start.get();
+            if (nowNanos - windowStart >= TimeUnit.SECONDS.toNanos(1)
+                    && start.compareAndSet(windowStart, nowNanos)) {
+                passed.set(0);
+            }
+
+            return passed.incrementAndGet() <= maxPerSecond;
+        }
+    }
+}
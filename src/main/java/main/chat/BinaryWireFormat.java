@@ -0,0 +1,433 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import main.chat.Server.ChatMessage;
+import main.chat.Server.User;
+
+/**
+ * Compact binary encoding of responses, used instead of Java serialization when a request has the
+ * {@code Accept:binary} header.
+ *
+ * <pre>
+ * frame    = MAGIC varint(payload length) payload
+ * payload  = varint(status code) body
+ * body     = MESSAGE string
+ *          | MESSAGES varint(count) message* varint(next cursor + 1)
+ * message  = varint(id - previous id) zigzag(created millis - previous created millis)
+ *            string(username) string(text)
+ * string   = varint(length) UTF-8 bytes
+ * </pre>
+ *
+ * <p>The author and the text of a message are copied from {@link ChatMessage#getBinaryEncoding()},
+ * encoded once per message whatever the number of frames it is sent in.
+ *
+ * <p>The next cursor of a page of messages is {@code 0} when there are no more messages.
+ *
+ * <p>{@link #MAGIC} can't be the first byte of a Java serialization stream (it starts with {@code
+ * 0xACED}), so a client can tell which format the server responded with, i.e. when the request
+ * was too broken for the server to see its headers.
+ */
+final class BinaryWireFormat {
+    static final int MAGIC = 0xB1;
+
+    static final String ACCEPT_HEADER = "Accept";
+    static final String BINARY = "binary";
+
+    private static final int MESSAGE = 1;
+    private static final int MESSAGES = 2;
+
+    /** The biggest accepted payload, protects from allocating whatever a broken length says */
+    private static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+    private BinaryWireFormat() {}
+
+    /**
+     * A decoded response, has either a message or a list of chat messages with the cursor of the
+     * next page
+     *
+     * @Immutable
+     */
+    static class Frame {
+        private final int statusCode;
+        private final Optional<String> message;
+        private final Optional<List<ChatMessage>> messages;
+        private final OptionalLong nextCursor;
+
+        private Frame(int statusCode, String message) {
+            this.statusCode = statusCode;
+            this.message = Optional.of(message);
+            this.messages = Optional.empty();
+            this.nextCursor = OptionalLong.empty();
+        }
+
+        private Frame(int statusCode, List<ChatMessage> messages, OptionalLong nextCursor) {
+            this.statusCode = statusCode;
+            this.message = Optional.empty();
+            this.messages = Optional.of(messages);
+            this.nextCursor = nextCursor;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        Optional<String> getMessage() {
+            return message;
+        }
+
+        Optional<List<ChatMessage>> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return the 'lastId' to request the next page of messages with, empty if there are no
+         *     more messages or the frame has a message
+         */
+        OptionalLong getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /**
+     * @param statusCode of the response
+     * @param message body of the response
+     * @return encoded frame
+     */
+    static byte[] encodeMessage(int statusCode, String message) {
+        requireNonNull(message);
+
+        var payload = new Output(16 + message.length());
+        payload.writeVarLong(statusCode);
+        payload.writeByte(MESSAGE);
+        payload.writeString(message);
+
+        return payload.toFrame();
+    }
+
+    /**
+     * Same as {@link #encodeMessages(int, List, OptionalLong)} for the last page
+     */
+    static byte[] encodeMessages(int statusCode, List<ChatMessage> messages) {
+        return encodeMessages(statusCode, messages, OptionalLong.empty());
+    }
+
+    /**
+     * @param statusCode of the response
+     * @param messages body of the response, ids should be non-decreasing
+     * @param nextCursor the 'lastId' to request the next page with, empty if there are no more
+     *     messages
+     * @return encoded frame
+     * @throws IllegalArgumentException if message ids decrease or {@code nextCursor} is negative
+     */
+    static byte[] encodeMessages(
+            int statusCode, List<ChatMessage> messages, OptionalLong nextCursor) {
+        requireNonNull(messages);
+        requireNonNull(nextCursor);
+        if (nextCursor.orElse(0) < 0) {
+            throw new IllegalArgumentException(
+                    "Next cursor cannot be negative: %s".formatted(nextCursor.getAsLong()));
+        }
+
+        var payload = new Output(16 + messages.size() * 32);
+        payload.writeVarLong(statusCode);
+        payload.writeByte(MESSAGES);
+        payload.writeVarLong(messages.size());
+
+        var previousId = 0L;
+        var previousMillis = 0L;
+        for (var chatMessage : messages) {
+            var id = chatMessage.getId();
+            if (id < previousId) {
+                throw new IllegalArgumentException(
+                        "Message ids should be non-decreasing: %s after %s"
+                                .formatted(id, previousId));
+            }
+            var millis = chatMessage.getCreatedDate().toEpochMilli();
+
+            payload.writeVarLong(id - previousId);
+            payload.writeZigZag(millis - previousMillis);
+            payload.writeRaw(chatMessage.getBinaryEncoding());
+
+            previousId = id;
+            previousMillis = millis;
+        }
+        payload.writeVarLong(nextCursor.isPresent() ? nextCursor.getAsLong() + 1 : 0);
+
+        return payload.toFrame();
+    }
+
+    /**
+     * @param username author of a message
+     * @param text UTF-8 text of the message
+     * @return {@code string(username) string(text)} of a message
+     */
+    static byte[] encodeUserAndText(String username, byte[] text) {
+        requireNonNull(username);
+        requireNonNull(text);
+
+        var out = new Output(16 + username.length() + text.length);
+        out.writeString(username);
+        out.writeBytes(text);
+
+        return out.toBytes();
+    }
+
+    /**
+     * Reads a frame, the {@link #MAGIC} byte should've been already read from the {@code in}
+     *
+     * @param in to read from, only the bytes of the frame are read
+     * @return decoded frame
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    static Frame readFrame(InputStream in) throws IOException {
+        requireNonNull(in);
+
+        var length = readVarLong(in);
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Frame is too big: %s bytes".formatted(length));
+        }
+
+        var payload = in.readNBytes((int) length);
+        if (payload.length != length) {
+            throw new EOFException("Frame ended after %s bytes of %s".formatted(payload.length, length));
+        }
+
+        return decodePayload(payload);
+    }
+
+    /**
+     * @param frame encoded frame including the {@link #MAGIC}
+     * @return decoded frame
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    static Frame decode(byte[] frame) {
+        requireNonNull(frame);
+
+        var in = new Input(frame, 0);
+        if (in.readByte() != MAGIC) {
+            throw new IllegalArgumentException("Not a binary frame");
+        }
+
+        var length = in.readVarLong();
+        if (length != frame.length - in.position) {
+            throw new IllegalArgumentException(
+                    "Frame length %s doesn't match the data: %s"
+                            .formatted(length, frame.length - in.position));
+        }
+
+        return decodePayload(Arrays.copyOfRange(frame, in.position, frame.length));
+    }
+
+    private static Frame decodePayload(byte[] payload) {
+        var in = new Input(payload, 0);
+        var statusCode = (int) in.readVarLong();
+
+        var frame =
+                switch (in.readByte()) {
+                    case MESSAGE -> new Frame(statusCode, in.readString());
+                    case MESSAGES -> {
+                        var messages = readMessages(in);
+                        var nextCursor = in.readVarLong();
+                        yield new Frame(
+                                statusCode,
+                                messages,
+                                nextCursor == 0
+                                        ? OptionalLong.empty()
+                                        : OptionalLong.of(nextCursor - 1));
+                    }
+                    default -> throw new IllegalArgumentException("Unknown body type");
+                };
+
+        if (in.position != payload.length) {
+            throw new IllegalArgumentException(
+                    "%s trailing bytes after the body".formatted(payload.length - in.position));
+        }
+
+        return frame;
+    }
+
+    private static List<ChatMessage> readMessages(Input in) {
+        var count = in.readVarLong();
+        if (count > in.remaining()) { // every message takes at least a byte
+            throw new IllegalArgumentException("Incorrect number of messages: %s".formatted(count));
+        }
+
+        var messages = new ArrayList<ChatMessage>((int) count);
+        var id = 0L;
+        var millis = 0L;
+        for (int i = 0; i < count; i++) {
+            id += in.readVarLong();
+            millis += in.readZigZag();
+            var username = in.readString();
+            var text = in.readBytes();
+
+            messages.add(
+                    ChatMessage.ofUtf8(
+                            id, text, new User(username, ""), Instant.ofEpochMilli(millis)));
+        }
+
+        return messages;
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        var value = 0L;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            var b = in.read();
+            if (b == -1) {
+                throw new EOFException("Stream ended inside a varint");
+            }
+
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Varint is too long");
+    }
+
+    /** Growable byte array, the first bytes are reserved for the frame header */
+    private static class Output {
+        /** MAGIC + the longest varint of an int length */
+        private static final int HEADER = 1 + 5;
+
+        private byte[] bytes;
+        private int position = HEADER;
+
+        Output(int capacity) {
+            this.bytes = new byte[HEADER + capacity];
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            bytes[position++] = (byte) b;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[position++] = (byte) value;
+        }
+
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeBytes(byte[] value) {
+            writeVarLong(value.length);
+            writeRaw(value);
+        }
+
+        /** Writes the {@code value} as it is, without a length */
+        void writeRaw(byte[] value) {
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, bytes, position, value.length);
+            position += value.length;
+        }
+
+        private void ensureCapacity(int length) {
+            if (bytes.length - position < length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + length));
+            }
+        }
+
+        /** Writes the header right before the payload and returns the frame */
+        byte[] toFrame() {
+            var payloadLength = position - HEADER;
+
+            var header = new byte[HEADER];
+            var headerLength = 0;
+            header[headerLength++] = (byte) MAGIC;
+            var length = payloadLength;
+            while ((length & ~0x7F) != 0) {
+                header[headerLength++] = (byte) ((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            header[headerLength++] = (byte) length;
+
+            var start = HEADER - headerLength;
+            System.arraycopy(header, 0, bytes, start, headerLength);
+            return Arrays.copyOfRange(bytes, start, position);
+        }
+
+        /** Returns the written bytes without a frame header */
+        byte[] toBytes() {
+            return Arrays.copyOfRange(bytes, HEADER, position);
+        }
+    }
+
+    private static class Input {
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        int remaining() {
+            return bytes.length - position;
+        }
+
+        int readByte() {
+            if (position >= bytes.length) {
+                throw new IllegalArgumentException("Unexpected end of the frame");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        long readVarLong() {
+            var value = 0L;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                var b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IllegalArgumentException("Varint is too long");
+        }
+
+        long readZigZag() {
+            var value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            return new String(readBytes(), StandardCharsets.UTF_8);
+        }
+
+        byte[] readBytes() {
+            var length = readVarLong();
+            if (length > remaining()) {
+                throw new IllegalArgumentException(
+                        "String length %s is bigger than the rest of the frame".formatted(length));
+            }
+
+            var value = Arrays.copyOfRange(bytes, position, position + (int) length);
+            position += (int) length;
+            return value;
+        }
+    }
+}
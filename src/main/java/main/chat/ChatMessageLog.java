@@ -0,0 +1,390 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.chat.Server.ChatMessage;
+
+/**
+ * Append-only log of {@link ChatMessage}s where the id of a message is its position in the log.
+ *
+ * <p>Messages are stored in fixed size chunks referenced from a chunk directory, so seeking by id
+ * is O(1) and growing never copies the messages, only the directory. Ids are 64-bit, the log is
+ * full only when the directory can't grow, after {@link #MAX_SIZE} messages.
+ *
+ * <p>Single writer, many readers: {@link #append(ChatMessage)} must be called by one thread at a
+ * time, reads can be done by any thread without locking. The writer fills a slot first and only
+ * then publishes it with a volatile write of {@link #size}, so a reader seeing a size sees every
+ * message below it.
+ *
+ * <p>Readers that have seen everything can wait for the next append with {@link
+ * #awaitNewerThan(long)} instead of polling.
+ *
+ * <p>Backed by a {@link MessageJournal}, the log starts with the history of the journal and
+ * writes every appended message to it. Only the newest {@code inMemoryMessages} are kept in the
+ * chunks, older ones are read from the journal.
+ *
+ * @ThreadSafe for readers, NOT for concurrent writers
+ */
+public class ChatMessageLog implements AutoCloseable {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** The most messages the chunk directory can reference */
+    public static final long MAX_SIZE = (long) (Integer.MAX_VALUE - 8) << CHUNK_BITS;
+
+    /** Replaced (never modified in place) when it runs out of chunk slots */
+    private volatile ChatMessage[][] chunks = new ChatMessage[16][];
+
+    /** The number of published messages, is also the id of the next appended message */
+    private volatile long size;
+
+    /**
+     * Readers waiting for a message newer than the id they map to, completed by the writer. A
+     * waiter leaves the map once completed by anyone, e.g. by a timeout, so idle waits don't pile
+     * up
+     */
+    private final Map<CompletableFuture<Void>, Long> waiters = new ConcurrentHashMap<>();
+
+    private final Optional<MessageJournal> journal;
+    private final int inMemoryMessages;
+
+    /**
+     * Messages below it are read from the {@link #journal}, only moves forward a chunk at a time.
+     * A reader can still find the chunk of a bigger id evicted, then it reads the journal too
+     */
+    private volatile long firstInMemoryId;
+
+    /** Creates an empty log kept in memory only */
+    public ChatMessageLog() {
+        this.journal = Optional.empty();
+        this.inMemoryMessages = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Creates a log continuing the history of the {@code journal}, loading its newest {@code
+     * inMemoryMessages}
+     *
+     * @param journal to write the appended messages to, closed with the log
+     * @param inMemoryMessages the least number of the newest messages kept in memory
+     * @throws IllegalArgumentException if {@code inMemoryMessages < 1}
+     */
+    public ChatMessageLog(MessageJournal journal, int inMemoryMessages) {
+        requireNonNull(journal);
+        if (inMemoryMessages < 1) {
+            throw new IllegalArgumentException(
+                    "In memory messages should be positive: %s".formatted(inMemoryMessages));
+        }
+        this.journal = Optional.of(journal);
+        this.inMemoryMessages = inMemoryMessages;
+
+        var nextId = journal.getNextId();
+        var firstLoaded = Math.max(journal.getFirstId(), nextId - inMemoryMessages);
+        // keeping whole chunks, the evictions happen at chunk boundaries
+        firstInMemoryId = firstLoaded & ~CHUNK_MASK;
+
+        var directoryLength = chunks.length;
+        while (directoryLength <= chunkIndex(nextId)) {
+            directoryLength *= 2;
+        }
+        var directory = new ChatMessage[directoryLength][];
+
+        var loaded = new ArrayList<ChatMessage>((int) (nextId - firstLoaded));
+        journal.readRange(firstInMemoryId, nextId, loaded);
+        for (var message : loaded) {
+            var id = message.getId();
+            if (directory[chunkIndex(id)] == null) {
+                directory[chunkIndex(id)] = new ChatMessage[CHUNK_SIZE];
+            }
+            directory[chunkIndex(id)][chunkOffset(id)] = message;
+        }
+        firstInMemoryId = Math.max(firstInMemoryId, journal.getFirstId());
+
+        chunks = directory;
+        size = nextId;
+    }
+
+    /**
+     * Assigns the next id to the {@code message}, writes it to the journal if there is one and
+     * publishes it to readers. Must be called only by the writer thread.
+     *
+     * @param message to append, its id is ignored
+     * @return the appended message with the assigned id
+     * @throws IllegalStateException if the log is full
+     * @throws IllegalArgumentException if the message doesn't fit in a segment of the journal
+     */
+    public ChatMessage append(ChatMessage message) {
+        requireNonNull(message);
+
+        var id = size;
+        if (id == MAX_SIZE) {
+            throw new IllegalStateException("The log is full");
+        }
+
+        var stored = store(message, id);
+        publish(id + 1);
+        return stored;
+    }
+
+    /**
+     * Same as {@link #append(ChatMessage)} for all the {@code messages}, they get consecutive ids
+     * and are published to readers at once, waking the waiting ones once. Must be called only by
+     * the writer thread.
+     *
+     * @param messages to append, their ids are ignored
+     * @return the appended messages with the assigned ids
+     * @throws IllegalStateException if the log doesn't have room for all the messages, none of
+     *     them is appended
+     * @throws IllegalArgumentException if a message doesn't fit in a segment of the journal, the
+     *     messages before it are appended
+     */
+    public List<ChatMessage> appendAll(List<ChatMessage> messages) {
+        requireNonNull(messages);
+
+        var first = size;
+        if (first > MAX_SIZE - messages.size()) {
+            throw new IllegalStateException(
+                    "The log doesn't have room for %s messages".formatted(messages.size()));
+        }
+
+        var stored = new ArrayList<ChatMessage>(messages.size());
+        try {
+            for (var message : messages) {
+                stored.add(store(requireNonNull(message), first + stored.size()));
+            }
+        } finally {
+            if (!stored.isEmpty()) {
+                publish(first + stored.size());
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Writes the {@code message} with the {@code id} to the journal and the chunks, without
+     * publishing it
+     */
+    private ChatMessage store(ChatMessage message, long id) {
+        var chunkIndex = chunkIndex(id);
+        var directory = chunks;
+        if (chunkIndex == directory.length) {
+            directory =
+                    Arrays.copyOf(
+                            directory, (int) Math.min(Integer.MAX_VALUE - 8, directory.length * 2L));
+            chunks = directory;
+        }
+        if (directory[chunkIndex] == null) {
+            directory[chunkIndex] = new ChatMessage[CHUNK_SIZE];
+            evictChunks(directory, id);
+        }
+
+        var stored = message.withId(id);
+        journal.ifPresent(j -> j.append(stored));
+        directory[chunkIndex][chunkOffset(id)] = stored;
+        return stored;
+    }
+
+    /** Publishes the stored messages below {@code newSize} and wakes up the waiting readers */
+    private void publish(long newSize) {
+        size = newSize;
+
+        // a waiter registered meanwhile can be waiting for a message after these already
+        waiters.forEach(
+                (waiter, lastId) -> {
+                    if (newSize > lastId + 1 && waiters.remove(waiter) != null) {
+                        waiter.complete(null);
+                    }
+                });
+    }
+
+    /**
+     * Drops the chunks older than the {@link #inMemoryMessages} before {@code id}, their messages
+     * stay in the journal
+     */
+    private void evictChunks(ChatMessage[][] directory, long id) {
+        if (journal.isEmpty()) {
+            return;
+        }
+
+        var keepFrom = Math.max(0, id - inMemoryMessages) & ~CHUNK_MASK;
+        var first = firstInMemoryId;
+        if (keepFrom <= first) {
+            return;
+        }
+
+        firstInMemoryId = keepFrom; // publishing before dropping, readers go to the journal
+        for (int chunk = chunkIndex(first); chunk < chunkIndex(keepFrom); chunk++) {
+            directory[chunk] = null;
+        }
+    }
+
+    /**
+     * Returns a future completed as soon as the log has a message with id bigger than {@code
+     * lastId}, immediately if it already has one.
+     *
+     * <p>Every call gets its own future, completed by the writer thread, so readers shouldn't run
+     * expensive work on it synchronously, use {@code *Async} methods to continue. A reader giving
+     * up should complete or cancel the future, e.g. with {@link
+     * CompletableFuture#completeOnTimeout}, that unregisters it from the log.
+     *
+     * @param lastId the biggest message id seen by the reader, {@code -1} if none
+     * @return future completed when a message newer than {@code lastId} is appended
+     */
+    public CompletableFuture<Void> awaitNewerThan(long lastId) {
+        if (size > lastId + 1) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // registering before checking the size again: if an append happens in between, the size
+        // check sees it, otherwise the writer sees the waiter
+        var waiter = new CompletableFuture<Void>();
+        waiters.put(waiter, lastId);
+        waiter.whenComplete((v, e) -> waiters.remove(waiter));
+        if (size > lastId + 1) {
+            waiter.complete(null);
+        }
+        return waiter;
+    }
+
+    /**
+     * @return the number of the readers waiting for the next append
+     */
+    int getWaiters() {
+        return waiters.size();
+    }
+
+    /**
+     * @return the number of messages in the log
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the id of the oldest message, older ones were deleted by the retention of the
+     *     journal
+     */
+    public long getFirstId() {
+        return journal.map(MessageJournal::getFirstId).orElse(0L);
+    }
+
+    /**
+     * @param id of the message
+     * @return the message with the {@code id}
+     * @throws IndexOutOfBoundsException if there is no message with {@code id}
+     */
+    public ChatMessage get(long id) {
+        var currentSize = size;
+        if (id < 0 || id >= currentSize) {
+            throw new IndexOutOfBoundsException(
+                    "No message with id: %s, size: %s".formatted(id, currentSize));
+        }
+
+        var chunk = id >= firstInMemoryId ? chunks[chunkIndex(id)] : null;
+        if (chunk == null) {
+            return journal.get().read(id);
+        }
+
+        return chunk[chunkOffset(id)];
+    }
+
+    /**
+     * Same as {@link #readFrom(long, int)} limited only by the size of a list
+     *
+     * @throws IllegalArgumentException if {@code fromId < 0}
+     */
+    public ArrayList<ChatMessage> readFrom(long fromId) {
+        return readFrom(fromId, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a snapshot of at most {@code limit} messages starting at {@code fromId}, messages
+     * appended while reading aren't included. Messages deleted by the retention of the journal
+     * are skipped
+     *
+     * @param fromId id of the first message to read, inclusive
+     * @param limit the most messages to read
+     * @return messages with ids {@code [max(fromId, firstId), min(size, max(fromId, firstId) +
+     *     limit))}, empty if there are none
+     * @throws IllegalArgumentException if {@code fromId < 0} or {@code limit < 1}
+     */
+    public ArrayList<ChatMessage> readFrom(long fromId, int limit) {
+        if (fromId < 0) {
+            throw new IllegalArgumentException("fromId cannot be negative: %s".formatted(fromId));
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit should be positive: %s".formatted(limit));
+        }
+
+        var currentSize = size;
+        var directory = chunks; // read after size, has all the chunks up to size
+        fromId = Math.max(fromId, getFirstId());
+        currentSize = Math.min(currentSize, fromId + limit);
+        if (fromId >= currentSize) {
+            return new ArrayList<>(0);
+        }
+
+        var messages = new ArrayList<ChatMessage>((int) (currentSize - fromId));
+        var id = fromId;
+        while (id < currentSize) {
+            var chunk = id >= firstInMemoryId ? directory[chunkIndex(id)] : null;
+            var from = chunkOffset(id);
+            var to = (int) Math.min(CHUNK_SIZE, from + currentSize - id);
+
+            if (chunk == null) { // evicted, reading the rest of the chunk from the journal
+                journal.get().readRange(id, id + to - from, messages);
+            } else {
+                messages.addAll(Arrays.asList(chunk).subList(from, to));
+            }
+            id += to - from;
+        }
+
+        return messages;
+    }
+
+    /**
+     * Removes all the messages. Must be called only when there is no writer running
+     *
+     * @throws IllegalStateException if the log is backed by a journal, which keeps the history
+     */
+    public void clear() {
+        if (journal.isPresent()) {
+            throw new IllegalStateException("Cannot clear a log backed by a journal");
+        }
+
+        chunks = new ChatMessage[16][];
+        size = 0;
+    }
+
+    /** Closes the journal if there is one. Must be called only when there is no writer running */
+    @Override
+    public void close() {
+        journal.ifPresent(MessageJournal::close);
+    }
+
+    /** Forces the journal to the disk if there is one, called by the writer thread */
+    public void force() {
+        journal.ifPresent(MessageJournal::force);
+    }
+
+    @Override
+    public String toString() {
+        return "ChatMessageLog [size=" + size + "]";
+    }
+
+    private static int chunkIndex(long id) {
+        return (int) (id >>> CHUNK_BITS);
+    }
+
+    private static int chunkOffset(long id) {
+        return (int) id & CHUNK_MASK;
+    }
+}
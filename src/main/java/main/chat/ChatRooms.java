@@ -0,0 +1,435 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import main.chat.GroupCommitWriter.Formatter;
+import main.chat.Server.Backpressure;
+import main.chat.Server.ChatMessage;
+import main.chat.Server.Config;
+
+/**
+ * Named chat rooms hashed onto shards. Every shard has its own queue and {@link GroupCommitWriter},
+ * the only writer of the {@link ChatMessageLog}s of its rooms, so the posts to the rooms of
+ * different shards are appended in parallel, while the posts to one room keep their order.
+ *
+ * <p>Every room has its own log and {@link MessageJournal}. The {@link #DEFAULT_ROOM} keeps the
+ * journal in the {@link Config#getJournalDirectory()}, where the server kept its only room before,
+ * the other rooms keep theirs in {@code rooms/<id>} under it. A room is opened when it is used the
+ * first time, continuing the history of its journal if there is one.
+ *
+ * <p>Unless {@link Config#getSearchMaxBytes()} is {@code 0}, every room has a {@link SearchIndex}
+ * too, updated by the writer of the shard after every append. A room opened with history indexes
+ * its messages kept in memory.
+ *
+ * <p>The queue of a shard is bounded by {@link Config#getQueueCapacity()}, a post it has no room
+ * for is rejected as the {@link Config#getBackpressure()} says.
+ *
+ * <p>The writers are {@link Runnable}s, see {@link #getWriters()}, run by the owner till it
+ * interrupts them.
+ *
+ * @ThreadSafe
+ */
+public class ChatRooms implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(ChatRooms.class.getName());
+
+    /** The room of the targets outside of {@code /rooms}, always open */
+    public static final String DEFAULT_ROOM = "main";
+
+    /** What an id of a room should match */
+    public static final String ROOM_ID_REGEX = "[A-Za-z0-9_-]{1,64}";
+
+    private static final Pattern ROOM_ID = Pattern.compile(ROOM_ID_REGEX);
+
+    private final Config config;
+    private final Shard[] shards;
+
+    /** Opened rooms, added to under the lock of {@code this}, read without locking */
+    private final ConcurrentHashMap<String, ChatMessageLog> rooms = new ConcurrentHashMap<>();
+
+    /** Of the opened rooms, put before the room is added to the {@link #rooms} */
+    private final ConcurrentHashMap<String, SearchIndex> indexes = new ConcurrentHashMap<>();
+
+    /** Called with the id of every opened room, under the lock of {@code this} */
+    private final List<Consumer<String>> openListeners = new CopyOnWriteArrayList<>();
+
+    private boolean isClosed;
+
+    /**
+     * Creates the shards and opens the {@link #DEFAULT_ROOM}
+     *
+     * @param config with the number of shards, the limit of rooms, the journal and the log settings
+     * @param formatter of the messages written to the log files of the shards
+     * @throws UncheckedIOException if the journal of the {@link #DEFAULT_ROOM} couldn't be opened
+     */
+    public ChatRooms(Config config, Formatter<ChatMessage> formatter) {
+        this.config = requireNonNull(config);
+        requireNonNull(formatter);
+
+        this.shards = new Shard[config.getShards()];
+        for (int i = 0; i < shards.length; i++) {
+            // a single shard writes the log file of the server before the rooms
+            var file = shards.length == 1 ? "./chat.log" : "./chat-%s.log".formatted(i);
+            shards[i] = new Shard(i, Path.of(file), formatter);
+        }
+
+        getRoom(DEFAULT_ROOM);
+    }
+
+    /**
+     * Returns the log of the {@code room} to post the messages to, opening the room if it's used
+     * for the first time
+     *
+     * @param room id
+     * @return log of the room
+     * @throws IllegalArgumentException if the id doesn't match {@link #ROOM_ID_REGEX} or the room
+     *     would be one more than {@link Config#getMaxRooms()}
+     * @throws IllegalStateException if the rooms are closed
+     * @throws UncheckedIOException if the journal of the room couldn't be opened
+     */
+    public ChatMessageLog getRoom(String room) {
+        var log = rooms.get(requireNonNull(room));
+        return log != null ? log : openRoom(room);
+    }
+
+    /**
+     * Returns the log of the {@code room} to read the messages from, if it's open or has a journal
+     * from before, which is opened then. Never creates a room, so the reads of any ids don't use
+     * up the {@link Config#getMaxRooms()} and the disk, except on a follower: it only learns the
+     * rooms of the leader from the reads, so opening a room starts its replication
+     *
+     * @param room id
+     * @return log of the room, empty if the room doesn't exist
+     * @throws IllegalArgumentException if the room would be one more than {@link
+     *     Config#getMaxRooms()}
+     * @throws IllegalStateException if the rooms are closed
+     * @throws UncheckedIOException if the journal of the room couldn't be opened
+     */
+    public Optional<ChatMessageLog> findRoom(String room) {
+        var log = rooms.get(requireNonNull(room));
+        if (log != null) {
+            return Optional.of(log);
+        }
+        if (!ROOM_ID.matcher(room).matches()) {
+            return Optional.empty();
+        }
+        if (config.getLeader().isEmpty() && !Files.isDirectory(getJournalDirectory(room))) {
+            return Optional.empty();
+        }
+        return Optional.of(openRoom(room));
+    }
+
+    private synchronized ChatMessageLog openRoom(String room) {
+        var log = rooms.get(room);
+        if (log != null) {
+            return log;
+        }
+
+        if (isClosed) {
+            throw new IllegalStateException("The rooms are closed");
+        }
+        if (!ROOM_ID.matcher(room).matches()) {
+            throw new IllegalArgumentException(
+                    "Room id should match %s: '%s'".formatted(ROOM_ID_REGEX, room));
+        }
+        if (rooms.size() >= config.getMaxRooms()) {
+            throw new IllegalArgumentException(
+                    "Couldn't open room '%s', there are %s rooms already"
+                            .formatted(room, rooms.size()));
+        }
+
+        var directory = getJournalDirectory(room);
+        try {
+            log =
+                    new ChatMessageLog(
+                            MessageJournal.open(
+                                    directory,
+                                    config.getJournalSegmentSize(),
+                                    config.getJournalRetainedSegments()),
+                            config.getInMemoryMessages());
+        } catch (IOException e) {
+            throw new UncheckedIOException(
+                    "Couldn't open the journal: %s".formatted(directory), e);
+        }
+
+        if (config.getSearchMaxBytes() > 0) {
+            indexes.put(room, createIndex(log));
+        }
+
+        var shard = getShard(room);
+        shard.logs.add(log);
+        rooms.put(room, log);
+
+        var opened = log;
+        LOG.info(() -> "Opened room '%s' on shard %s: %s".formatted(room, shard.index, opened));
+        openListeners.forEach(listener -> listener.accept(room));
+        return log;
+    }
+
+    /**
+     * Calls the {@code listener} with the id of every open room, and then of every room opened
+     * later, e.g. to replicate all of them
+     *
+     * @param listener called under the lock opening the rooms, shouldn't block
+     */
+    public synchronized void addOpenListener(Consumer<String> listener) {
+        requireNonNull(listener);
+
+        rooms.keySet().forEach(listener);
+        openListeners.add(listener);
+    }
+
+    /**
+     * @return index of the messages of the {@code log} kept in memory
+     */
+    private SearchIndex createIndex(ChatMessageLog log) {
+        var index = new SearchIndex(config.getSearchMaxBytes());
+        var fromId = Math.max(log.getFirstId(), log.size() - config.getInMemoryMessages());
+        while (fromId < log.size()) {
+            var messages = log.readFrom(fromId, config.getMaxPageSize());
+            if (messages.isEmpty()) {
+                break;
+            }
+            messages.forEach(index::add);
+            fromId = messages.get(messages.size() - 1).getId() + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the search index of the {@code room}, never creates the room, see {@link
+     * #findRoom(String)}
+     *
+     * @param room id
+     * @return index of the room, empty if the room doesn't exist or the search is disabled
+     * @throws IllegalArgumentException see {@link #findRoom(String)}
+     */
+    public Optional<SearchIndex> getSearchIndex(String room) {
+        return findRoom(room).flatMap(log -> Optional.ofNullable(indexes.get(room)));
+    }
+
+    private Path getJournalDirectory(String room) {
+        return room.equals(DEFAULT_ROOM)
+                ? config.getJournalDirectory()
+                : config.getJournalDirectory().resolve("rooms").resolve(room);
+    }
+
+    private Shard getShard(String room) {
+        return shards[Math.floorMod(room.hashCode(), shards.length)];
+    }
+
+    /**
+     * Queues the {@code message} to be appended to the {@code room} by the writer of its shard
+     *
+     * @param room to post to, opened if it's used for the first time
+     * @param message to append, its id is ignored
+     * @throws IllegalArgumentException see {@link #getRoom(String)}
+     * @throws RejectedExecutionException if the queue of the shard is full
+     */
+    public void post(String room, ChatMessage message) {
+        requireNonNull(message);
+
+        var log = getRoom(room);
+        enqueue(new Post(room, log, indexes.get(room), List.of(message)));
+    }
+
+    /**
+     * Queues the {@code messages} to be appended to the {@code room} at once, with consecutive
+     * ids, see {@link ChatMessageLog#appendAll(List)}
+     *
+     * @param room to post to, opened if it's used for the first time
+     * @param messages to append, their ids are ignored
+     * @throws IllegalArgumentException see {@link #getRoom(String)}, or if there are no {@code
+     *     messages}
+     * @throws RejectedExecutionException if the queue of the shard is full
+     */
+    public void postAll(String room, List<ChatMessage> messages) {
+        requireNonNull(messages);
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException("There are no messages to post");
+        }
+
+        var log = getRoom(room);
+        enqueue(new Post(room, log, indexes.get(room), List.copyOf(messages)));
+    }
+
+    /**
+     * Queues the {@code post} to the writer of the shard of its room, waiting for room unless the
+     * {@link Config#getBackpressure()} is {@link Backpressure#FAIL} or the connections are {@link
+     * Server.ConnectionMode#NIO}, the posts are never dropped
+     */
+    private void enqueue(Post post) {
+        var posts = getShard(post.room).posts;
+        var isQueued =
+                config.getBackpressure() == Backpressure.FAIL
+                        ? posts.offer(post)
+                        : Server.offer(posts, post, config);
+        if (!isQueued) {
+            throw new RejectedExecutionException(Server.OVERLOADED_MESSAGE);
+        }
+    }
+
+    /**
+     * @return the writers of the shards, one each, to be run on their own threads
+     */
+    public List<Runnable> getWriters() {
+        var writers = new ArrayList<Runnable>(shards.length);
+        for (var shard : shards) {
+            writers.add(shard.writer);
+        }
+        return writers;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Appends the number of rooms, the queue, the rooms and the writer of every shard, and the
+     * memory and the cost of the search indexes of all the rooms, a {@code name value} line each
+     *
+     * @param out to append to
+     */
+    public void appendMetrics(StringBuilder out) {
+        requireNonNull(out);
+
+        ServerMetrics.appendLine(out, "rooms", rooms.size());
+        for (var shard : shards) {
+            var prefix = "shard." + shard.index;
+            ServerMetrics.appendLine(out, prefix + ".queue", shard.posts.size());
+            ServerMetrics.appendLine(out, prefix + ".queue.bytes", shard.posts.getWeight());
+            ServerMetrics.appendLine(out, prefix + ".rooms", shard.logs.size());
+            ServerMetrics.appendLine(out, prefix + ".writer", shard.writer.getStats());
+        }
+
+        long bytes = 0, terms = 0, messages = 0, nanos = 0;
+        for (var index : indexes.values()) {
+            bytes += index.getBytes();
+            terms += index.getTerms();
+            messages += index.getIndexedMessages();
+            nanos += index.getIndexNanos();
+        }
+        ServerMetrics.appendLine(out, "search.bytes", bytes);
+        ServerMetrics.appendLine(out, "search.terms", terms);
+        ServerMetrics.appendLine(out, "search.messages", messages);
+        ServerMetrics.appendLine(
+                out, "search.nanosPerMessage", messages == 0 ? 0 : nanos / messages);
+    }
+
+    /**
+     * Drops the queued posts and closes the logs of the rooms. Must be called only when the
+     * writers have stopped
+     */
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        for (var shard : shards) {
+            shard.posts.clear();
+        }
+        rooms.values().forEach(ChatMessageLog::close);
+    }
+
+    @Override
+    public String toString() {
+        return "ChatRooms [shards=" + shards.length + ", rooms=" + rooms.size() + "]";
+    }
+
+    private class Shard {
+        private final int index;
+        private final MpscRingBuffer<Post> posts =
+                new MpscRingBuffer<>(
+                        config.getQueueCapacity(), config.getQueueMaxBytes(), Post::getBytes);
+
+        /** Of the rooms hashed onto the shard, forced by its writer */
+        private final List<ChatMessageLog> logs = new CopyOnWriteArrayList<>();
+
+        private final GroupCommitWriter<Post> writer;
+
+        Shard(int index, Path file, Formatter<ChatMessage> formatter) {
+            this.index = index;
+            this.writer =
+                    new GroupCommitWriter.Builder<Post>()
+                            .name(file.getFileName().toString())
+                            .source(posts)
+                            .file(file)
+                            .append(true) // the history is kept by the journals
+                            .echo(System.out)
+                            .onForce(() -> logs.forEach(ChatMessageLog::force))
+                            .durability(config.getLogDurability())
+                            .flushIntervalMillis(config.getLogFlushIntervalMillis())
+                            .maxBatchSize(config.getLogMaxBatchSize())
+                            .beforeWrite(Post::append)
+                            .formatter(
+                                    (post, out) -> {
+                                        for (var message : post.messages) {
+                                            if (!post.room.equals(DEFAULT_ROOM)) {
+                                                out.append('#').append(post.room).append(" | ");
+                                            }
+                                            formatter.format(message, out);
+                                        }
+                                    })
+                            .build();
+        }
+    }
+
+    /**
+     * Messages queued for a room together, the appended ones after {@link #append()}
+     *
+     * @Immutable
+     */
+    private static class Post {
+        private final String room;
+        private final ChatMessageLog log;
+        private final Optional<SearchIndex> index;
+        private final List<ChatMessage> messages;
+
+        /**
+         * @param index of the room, {@code null} if the search is disabled
+         */
+        Post(String room, ChatMessageLog log, SearchIndex index, List<ChatMessage> messages) {
+            this.room = room;
+            this.log = log;
+            this.index = Optional.ofNullable(index);
+            this.messages = messages;
+        }
+
+        /** Called by the writer of the shard of the room only, indexes the appended messages */
+        Post append() {
+            var appended =
+                    messages.size() == 1
+                            ? List.of(log.append(messages.get(0)))
+                            : log.appendAll(messages);
+            index.ifPresent(searchIndex -> appended.forEach(searchIndex::add));
+
+            return new Post(room, log, index.orElse(null), appended);
+        }
+
+        /**
+         * @return the bytes of the texts of the messages
+         */
+        long getBytes() {
+            var bytes = 0L;
+            for (var message : messages) {
+                bytes += message.getUtf8Text().length;
+            }
+            return bytes;
+        }
+    }
+}
@@ -2,21 +2,26 @@ package main.chat;
 
 import static java.util.Objects.requireNonNull;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.OptionalDataException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.io.StreamCorruptedException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -24,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
@@ -36,7 +42,9 @@ import main.chat.Client.HttpRequest.HttpMethod;
 import main.chat.Client.HttpResponse.HttpStatus;
 import main.chat.Client.InputManager.InputMessage;
 import main.chat.Client.InputManager.InputMessageResponse;
+import main.chat.Client.ServerConnector.ReceiveMode;
 import main.chat.Client.ServerConnector.ServerMessage;
+import main.chat.Client.ServerConnector.WireFormat;
 import main.chat.Client.UIManager.UIMessage;
 
 import main.chat.Server.ChatMessage;
@@ -55,6 +63,7 @@ public class Client {
                     .withZone(ZoneId.systemDefault());
 
     private final BlockingQueue<UIMessage> toUIMessageQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<UIMessage> toUIChatMessagesQueue = new LinkedBlockingQueue<>();
     private final BlockingQueue<ServerMessage> toServerMessageQueue = new LinkedBlockingQueue<>();
 
     private BlockingQueue<InputMessage> inputToUImanager = new LinkedBlockingQueue<>();
@@ -63,25 +72,51 @@ public class Client {
     private final InputManager inputManager = new InputManager(inputToUImanager, uiManagerToInput);
     private final UIManager ui =
             new UIManager(
-                    toServerMessageQueue, toUIMessageQueue, inputToUImanager, uiManagerToInput);
+                    toServerMessageQueue,
+                    toUIMessageQueue,
+                    toUIChatMessagesQueue,
+                    inputToUImanager,
+                    uiManagerToInput);
     private final ServerConnector serverConnector =
-            new ServerConnector("127.0.0.1", 8800, toServerMessageQueue, toUIMessageQueue);
+            new ServerConnector(
+                    "127.0.0.1",
+                    8800,
+                    toServerMessageQueue,
+                    toUIMessageQueue,
+                    toUIChatMessagesQueue,
+                    ReceiveMode.valueOf(
+                            System.getProperty("chat.client.receiveMode", "STREAM")
+                                    .toUpperCase()),
+                    WireFormat.valueOf(
+                            System.getProperty("chat.client.wireFormat", "BINARY")
+                                    .toUpperCase()));
 
-    public static void main(String[] args) {
-        new Client().start();
+    /**
+     * Starts the interactive client, or the headless {@link LoadGenerator} with {@code
+     * -Dchat.client.mode=LOAD}
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if ("LOAD".equalsIgnoreCase(System.getProperty("chat.client.mode"))) {
+            LoadGenerator.main(args);
+        } else {
+            new Client().start();
+        }
     }
 
     private void start() {
         var uiManager = new Thread(ui);
         var tServerConnector = new Thread(serverConnector);
+        var tMessagesReceiver = new Thread(serverConnector::receiveMessages);
         var tInputManager = new Thread(inputManager);
 
         uiManager.start();
         tServerConnector.start();
+        tMessagesReceiver.start();
         tInputManager.start();
         try {
             uiManager.join();
             tServerConnector.join();
+            tMessagesReceiver.join();
             tInputManager.join();
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -228,17 +263,21 @@ public class Client {
     public static class UIManager implements Runnable {
         private final BlockingQueue<ServerMessage> serverMessageQueue;
         private final BlockingQueue<UIMessage> toUIManagerQueue;
+        /** Chat messages received from the server, separate from responses to posted messages */
+        private final BlockingQueue<UIMessage> chatMessagesQueue;
         private BlockingQueue<InputMessage> inputToUImanager;
         private BlockingQueue<InputMessageResponse> toInputManagerQueue;
 
         public UIManager(
                 BlockingQueue<ServerMessage> toServerMessageQueue,
                 BlockingQueue<UIMessage> toUIManager,
+                BlockingQueue<UIMessage> chatMessagesQueue,
                 BlockingQueue<InputMessage> inputToUImanager,
                 BlockingQueue<InputMessageResponse> uiManagerToInput) {
 
             this.serverMessageQueue = requireNonNull(toServerMessageQueue);
             this.toUIManagerQueue = requireNonNull(toUIManager);
+            this.chatMessagesQueue = requireNonNull(chatMessagesQueue);
             this.inputToUImanager = requireNonNull(inputToUImanager);
             this.toInputManagerQueue = requireNonNull(uiManagerToInput);
         }
@@ -307,11 +346,13 @@ public class Client {
                 System.out.printf("%n:> ");
                 while (!Thread.currentThread().isInterrupted()) {
 
-                    var inputMessage = inputToUImanager.poll(1, TimeUnit.SECONDS);
+                    var inputMessage = inputToUImanager.poll(100, TimeUnit.MILLISECONDS);
                     if (inputMessage != null) {
                         sendServerConnectorMessage(inputMessage);
                         System.out.printf(" %n:> ");
                     }
+
+                    printChatMessages();
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -495,6 +536,31 @@ public class Client {
             return future;
         }
 
+        /** Prints all the chat messages received from the server so far, doesn't block */
+        private void printChatMessages() {
+            UIMessage uiMessage;
+            while ((uiMessage = chatMessagesQueue.poll()) != null) {
+                var response = uiMessage.getChatMessagesResponse();
+                if (response.isEmpty() || response.get().getBody().isEmpty()) {
+                    continue;
+                }
+
+                var lines = new LinkedList<String>();
+                for (var chatMessage : response.get().getBody().get()) {
+                    lines.add(
+                            "%s | %s:> %s"
+                                    .formatted(
+                                            chatMessage.getUser().getUsername(),
+                                            dateFormatter.format(chatMessage.getCreatedDate()),
+                                            String.valueOf(chatMessage.getMessage())));
+                }
+
+                if (!lines.isEmpty()) {
+                    print(lines);
+                }
+            }
+        }
+
         private synchronized void print(List<String> msgs) {
             System.out.printf("%n\t<: %s%n", msgs.remove(0));
             for (String msg : msgs) {
@@ -511,21 +577,78 @@ public class Client {
 
     public static class ServerConnector implements Runnable {
 
+        /** For how long a long polling GET asks the server to wait for new messages */
+        private static final int LONG_POLL_WAIT_MILLIS = 30_000;
+
+        /** The server sends a heartbeat every 10 seconds, missing a few means it is gone */
+        private static final int STREAM_READ_TIMEOUT_MILLIS = 35_000;
+
+        private static final int RECONNECT_DELAY_MILLIS = 2_000;
+
+        /** The most queued messages posted with one request to the batch target */
+        private static final int MAX_BATCHED_POSTS = 64;
+
+        /** For how long more messages are waited for after the first one, to post them at once */
+        private static final int BATCH_LINGER_MILLIS = 5;
+
         private final String ipAddress;
         private final int port;
         private final BlockingQueue<ServerMessage> toServerMessageQueue;
         private final BlockingQueue<UIMessage> toUIMessageQueue;
+        private final BlockingQueue<UIMessage> toUIChatMessagesQueue;
+        private final ReceiveMode receiveMode;
+        private final WireFormat wireFormat;
+
+        /** Id of the last received chat message, accessed only by the receiving thread */
+        private long lastReceivedId = -1;
+
+        /**
+         * How new chat messages are received from the server:
+         *
+         * <ul>
+         *   <li>{@link #STREAM} - one request, then the server pushes responses as messages appear
+         *   <li>{@link #LONG_POLL} - a GET that the server holds until new messages appear or it
+         *       times out, repeated after every response
+         * </ul>
+         */
+        public static enum ReceiveMode {
+            STREAM,
+            LONG_POLL;
+        }
+
+        /**
+         * Which response format is asked from the server:
+         *
+         * <ul>
+         *   <li>{@link #SERIALIZED} - Java serialization
+         *   <li>{@link #BINARY} - {@link BinaryWireFormat}, asked with the {@code Accept:binary}
+         *       header
+         * </ul>
+         *
+         * Both are read whatever is asked, see {@link ServerConnector#readResponse(InputStream,
+         * Class)}
+         */
+        public static enum WireFormat {
+            SERIALIZED,
+            BINARY;
+        }
 
         public ServerConnector(
                 String ipAddress,
                 int port,
                 BlockingQueue<ServerMessage> toServerMessageQueue,
-                BlockingQueue<UIMessage> toUiMessageQeueu) {
+                BlockingQueue<UIMessage> toUiMessageQeueu,
+                BlockingQueue<UIMessage> toUIChatMessagesQueue,
+                ReceiveMode receiveMode,
+                WireFormat wireFormat) {
 
             this.ipAddress = Objects.requireNonNull(ipAddress);
             this.port = port;
             this.toServerMessageQueue = Objects.requireNonNull(toServerMessageQueue);
             this.toUIMessageQueue = Objects.requireNonNull(toUiMessageQeueu);
+            this.toUIChatMessagesQueue = Objects.requireNonNull(toUIChatMessagesQueue);
+            this.receiveMode = Objects.requireNonNull(receiveMode);
+            this.wireFormat = Objects.requireNonNull(wireFormat);
         }
 
         /** Immutable class */
@@ -563,15 +686,26 @@ public class Client {
 
                         while (!Thread.currentThread().isInterrupted() && !serverSocket.isClosed()) {
                             var msg = toServerMessageQueue.poll(2, TimeUnit.SECONDS);
+                            if (msg == null && serverSocket.getInputStream().available() > 0) {
+                                // the server says goodbye to an idle connection, reconnecting
+                                break;
+                            }
 
                             if (msg != null) {
-                                var uiMessage = UIMessage.createPostChatMessageResponse(postChatMessage(serverSocket, msg));
+                                // a burst of messages is posted at once instead of a request each
+                                var msgs = new ArrayList<ServerMessage>();
+                                msgs.add(msg);
+                                pollBatch(msgs);
+
+                                for (var response : postChatMessages(serverSocket, msgs)) {
+                                    var uiMessage = UIMessage.createPostChatMessageResponse(response);
 
-                                LOG.log(
-                                        Level.FINEST,
-                                        "Sending Message: '%s' to '%s'"
-                                                .formatted(uiMessage, UIManager.class));
-                                toUIMessageQueue.put(uiMessage);
+                                    LOG.log(
+                                            Level.FINEST,
+                                            "Sending Message: '%s' to '%s'"
+                                                    .formatted(uiMessage, UIManager.class));
+                                    toUIMessageQueue.put(uiMessage);
+                                }
                             }
                         }
 
@@ -588,40 +722,202 @@ public class Client {
         }
 
         /**
-         * Sends the {@code msg} to the server and waits for the response
+         * Receives new chat messages from the server on a separate connection, using the {@link
+         * ReceiveMode}, and sends them to the {@link UIManager}. Reconnects if the connection
+         * fails, continuing from the last received message. Returns only when interrupted.
+         */
+        public void receiveMessages() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try (var serverSocket = new Socket(ipAddress, port)) {
+                        LOG.info("[%s] | Receiving messages: %s".formatted(serverSocket, receiveMode));
+
+                        switch (receiveMode) {
+                            case STREAM -> {
+                                serverSocket.setSoTimeout(STREAM_READ_TIMEOUT_MILLIS);
+                                streamMessages(serverSocket);
+                            }
+                            case LONG_POLL -> {
+                                serverSocket.setSoTimeout(LONG_POLL_WAIT_MILLIS + 5_000);
+                                longPollMessages(serverSocket);
+                            }
+                        }
+                    } catch (IOException | IllegalArgumentException e) {
+                        LOG.log(Level.WARNING, "Receiving messages failed, reconnecting", e);
+                        Thread.sleep(RECONNECT_DELAY_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warning("%s was interrupted".formatted(Thread.currentThread()));
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Exception was thrown", e);
+            }
+        }
+
+        private void streamMessages(Socket serverSocket) throws IOException, InterruptedException {
+            var httpRequest =
+                    new HttpRequest(
+                            serverSocket.toString(),
+                            HttpMethod.GET,
+                            "/messages/stream?lastId=%s".formatted(lastReceivedId),
+                            getRequestHeaders());
+            writeRequest(serverSocket, httpRequest);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                deliverMessages(readMessagesResponse(serverSocket));
+            }
+        }
+
+        private void longPollMessages(Socket serverSocket)
+                throws IOException, InterruptedException {
+            while (!Thread.currentThread().isInterrupted()) {
+                var httpRequest =
+                        new HttpRequest(
+                                serverSocket.toString(),
+                                HttpMethod.GET,
+                                "/messages?lastId=%s&wait=%s"
+                                        .formatted(lastReceivedId, LONG_POLL_WAIT_MILLIS),
+                                getRequestHeaders());
+                writeRequest(serverSocket, httpRequest);
+
+                deliverMessages(readMessagesResponse(serverSocket));
+            }
+        }
+
+        /**
+         * @throws IllegalArgumentException if the server responded with an error
+         */
+        private void deliverMessages(HttpResponse<List<ChatMessage>> response)
+                throws InterruptedException {
+            requireNonNull(response);
+
+            if (response.getStatus() != HttpStatus.OK || response.getBody().isEmpty()) {
+                throw new IllegalArgumentException(
+                        "Server couldn't send messages: %s".formatted(response));
+            }
+
+            var messages = response.getBody().get();
+            if (messages.isEmpty()) {
+                return;
+            }
+
+            lastReceivedId = messages.get(messages.size() - 1).getId();
+            toUIChatMessagesQueue.put(UIMessage.createGetChatMessagesResponse(response));
+        }
+
+        @SuppressWarnings("unchecked")
+        private static HttpResponse<List<ChatMessage>> readMessagesResponse(Socket socket)
+                throws IOException {
+            requireNonNull(socket);
+
+            return (HttpResponse<List<ChatMessage>>)
+                    (HttpResponse<?>) readResponse(socket.getInputStream(), List.class);
+        }
+
+        /**
+         * @return headers asking the server for the {@link #wireFormat}
+         */
+        private Map<String, String> getRequestHeaders() {
+            return switch (wireFormat) {
+                case SERIALIZED -> Map.of();
+                case BINARY -> Map.of(BinaryWireFormat.ACCEPT_HEADER, BinaryWireFormat.BINARY);
+            };
+        }
+
+        /**
+         * Adds the messages queued within {@link #BATCH_LINGER_MILLIS} to the {@code msgs}, till
+         * there are {@link #MAX_BATCHED_POSTS}
+         *
+         * @param msgs with the first message of the batch
+         */
+        private void pollBatch(List<ServerMessage> msgs) throws InterruptedException {
+            var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_LINGER_MILLIS);
+            while (msgs.size() < MAX_BATCHED_POSTS) {
+                toServerMessageQueue.drainTo(msgs, MAX_BATCHED_POSTS - msgs.size());
+                var remaining = deadline - System.nanoTime();
+                if (msgs.size() == MAX_BATCHED_POSTS || remaining <= 0) {
+                    return;
+                }
+
+                var msg = toServerMessageQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (msg == null) {
+                    return;
+                }
+                msgs.add(msg);
+            }
+        }
+
+        /**
+         * Sends the {@code msgs} to the server, more than one with a single POST to {@code
+         * /messages/batch}, unless one of them is empty, then they are pipelined, all the requests
+         * are written at once, and then the responses are read
          *
          * @param serverSocket to establish the communication with the server
-         * @param msg that will be send to the server
-         * @return {@link HttpResponse} from the server to the message
+         * @param msgs that will be send to the server
+         * @return {@link HttpResponse} from the server to every message, in the same order
          */
-        private HttpResponse<String> postChatMessage(Socket serverSocket, ServerMessage msg) {
+        private List<HttpResponse<String>> postChatMessages(
+                Socket serverSocket, List<ServerMessage> msgs) {
             requireNonNull(serverSocket);
-            requireNonNull(msg);
+            requireNonNull(msgs);
 
             var socketName =
                     "%s:%s".formatted(serverSocket.getInetAddress(), serverSocket.getPort());
 
-            var httpRequest =
-                    new HttpRequest(socketName, HttpMethod.POST, "/messages", msg.getData());
+            var texts = new ArrayList<char[]>(msgs.size());
+            for (var msg : msgs) {
+                texts.add(msg.getData());
+            }
+            var isBatch = texts.size() > 1 && texts.stream().allMatch(text -> text.length > 0);
+
+            var httpRequests = new ArrayList<HttpRequest>(msgs.size());
+            if (isBatch) {
+                httpRequests.add(
+                        new HttpRequest(
+                                socketName,
+                                HttpMethod.POST,
+                                "/messages/batch",
+                                getRequestHeaders(),
+                                Server.encodeBatch(texts)));
+            } else {
+                for (var text : texts) {
+                    httpRequests.add(
+                            new HttpRequest(
+                                    socketName,
+                                    HttpMethod.POST,
+                                    "/messages",
+                                    getRequestHeaders(),
+                                    text));
+                }
+            }
 
-            Optional<HttpResponse<String>> optResponse = Optional.empty();
+            var responses = new ArrayList<HttpResponse<String>>(msgs.size());
             try {
                 LOG.log(
                         Level.INFO,
-                        "Sending Request: '%s' to socket '%s'".formatted(httpRequest, socketName));
+                        "Sending Requests: '%s' to socket '%s'"
+                                .formatted(httpRequests, socketName));
 
-                optResponse = Optional.of(sendRequest(serverSocket, httpRequest, String.class));
+                sendRequests(serverSocket, httpRequests, String.class, responses);
+                // the messages of a batch are posted or failed together
+                while (isBatch && responses.size() < msgs.size()) {
+                    responses.add(responses.get(0));
+                }
                 LOG.log(
                         Level.INFO,
-                        "Received Response: '%s' from socket '%s'"
-                                .formatted(optResponse.get(), socketName));
+                        "Received Responses: '%s' from socket '%s'"
+                                .formatted(responses, socketName));
             } catch (Exception e) {
                 LOG.log(
                         Level.SEVERE,
                         "ServerSocket:[ip:%s | port:%s] | Exception".formatted(ipAddress, port),
                         e);
 
-                optResponse = Optional.of(HttpResponse.createWithMessage(HttpStatus.BAD, e.getMessage()));
+                // the messages without a response are failed
+                while (responses.size() < msgs.size()) {
+                    responses.add(HttpResponse.createWithMessage(HttpStatus.BAD, e.getMessage()));
+                }
                 try {
                     serverSocket.close();
                 } catch (IOException e1) {
@@ -629,46 +925,76 @@ public class Client {
                 }
             }
 
-            return optResponse.get();
+            return responses;
         }
 
-        private static <Body> HttpResponse<Body> sendRequest(Socket socket, HttpRequest httpRequest, Class<Body> bodyType)
+        /**
+         * Writes the {@code httpRequests} back to back and reads their responses, which the server
+         * sends in the order of the requests
+         *
+         * @param responses to add the read responses to, as they are read
+         */
+        private static <Body> void sendRequests(
+                Socket socket,
+                List<HttpRequest> httpRequests,
+                Class<Body> bodyType,
+                List<HttpResponse<Body>> responses)
                 throws IOException {
             requireNonNull(socket);
-            requireNonNull(httpRequest);
+            requireNonNull(httpRequests);
             requireNonNull(bodyType);
+            requireNonNull(responses);
 
-            LOG.finest("Sending Request: %s".formatted(httpRequest));
-            var requestMsg = getRequestMsg(httpRequest);
-            LOG.finest("Sending Message:%n'%s'".formatted(requestMsg));
+            writeRequests(socket, httpRequests);
 
-            var writer = new PrintWriter(socket.getOutputStream());
-            writer.print(requestMsg);
-            writer.flush();
-
-            ObjectInputStream in = null;
-            try {
-                in = new ObjectInputStream(socket.getInputStream());
-            } catch (SocketTimeoutException e) {
-                throw new RuntimeException("Server response timed out", e);
-            } catch (IOException e) {
-                throw new IOException("Failed receiving response from the server", e);
+            for (var httpRequest : httpRequests) {
+                try {
+                    HttpResponse<Body> response = readResponse(socket.getInputStream(), bodyType);
+                    LOG.finest("Received Response: %s".formatted(response));
+                    responses.add(response);
+                } catch (SocketTimeoutException e) {
+                    throw new RuntimeException("Server response timed out", e);
+                } catch (IllegalArgumentException e) {
+                    LOG.log(Level.SEVERE, 
+                            """
+                            Failed to parse Server's ([%s]) response.
+                            Response to te request: '%s'
+                            Because: '%s'\
+                            """ .formatted(socket, httpRequest, e.getMessage()), e);;
+
+                    throw new IllegalArgumentException("Couldn't parse Server's response");
+                }
             }
+        }
 
-            try {
-                HttpResponse<Body> response = parseResponse(in, bodyType);
-                LOG.finest("Received Response: %s".formatted(response));
-                return response;
-            } catch (IllegalArgumentException e) {
-                LOG.log(Level.SEVERE, 
-                        """
-                        Failed to parse Server's ([%s]) response.
-                        Response to te request: '%s'
-                        Because: '%s'\
-                        """ .formatted(socket, httpRequest, e.getMessage()), e);;
+        private static void writeRequest(Socket socket, HttpRequest httpRequest)
+                throws IOException {
+            writeRequests(socket, List.of(httpRequest));
+        }
 
-                throw new IllegalArgumentException("Couldn't parse Server's response");
+        /**
+         * Writes the {@code httpRequests} with one flush, so pipelined requests don't cost a round
+         * trip each
+         */
+        private static void writeRequests(Socket socket, List<HttpRequest> httpRequests)
+                throws IOException {
+            requireNonNull(socket);
+            requireNonNull(httpRequests);
+
+            var requestMsgs = new StringBuilder();
+            for (var httpRequest : httpRequests) {
+                LOG.finest("Sending Request: %s".formatted(httpRequest));
+                var requestMsg = getRequestMsg(httpRequest);
+                LOG.finest("Sending Message:%n'%s'".formatted(requestMsg));
+                requestMsgs.append(requestMsg);
             }
+
+            var writer =
+                    new PrintWriter(
+                            new OutputStreamWriter(
+                                    socket.getOutputStream(), StandardCharsets.UTF_8));
+            writer.print(requestMsgs);
+            writer.flush();
         }
 
         /**
@@ -680,32 +1006,46 @@ public class Client {
          * multiple of them separated by {@code CRLF}
          *
          * <pre>
-         * httpMethod target\r\n
-         * headerKey:headerValue\r\n
-         * <\r\nbody>
+         * httpMethod target
+         * <\r\nheaderKey:headerValue>*
+         * <\r\nContent-Length:bodyLength\r\n\r\nbody>
          * </pre
          *
+         * A request without a body ends with {@code CRLF}, so the server can read its first line,
+         * or with {@code CRLFCRLF} if it has headers. The length of a body is its size in UTF-8,
+         * so the server doesn't depend on the whole request arriving at once
+         *
          * @param httpRequest
          * @return
          */
-        private static String getRequestMsg(HttpRequest httpRequest) {
+        static String getRequestMsg(HttpRequest httpRequest) {
             requireNonNull(httpRequest);
 
             var headers = new StringBuilder();
-            if (httpRequest.getHeaders().isPresent()) {
-                httpRequest
-                        .getHeaders()
-                        .get()
-                        .forEach(
-                                (k, v) -> {
-                                    headers.append(k).append(":").append(v).append("\r\n");
-                                });
-            }
+            httpRequest
+                    .getHeaders()
+                    .ifPresent(
+                            h ->
+                                    h.forEach(
+                                            (k, v) -> {
+                                                headers.append("\r\n")
+                                                        .append(k)
+                                                        .append(":")
+                                                        .append(v);
+                                            }));
+
+            var optBody = httpRequest.getBody().map(String::valueOf);
+            optBody.ifPresent(
+                    b ->
+                            headers.append("\r\n")
+                                    .append(RequestParser.CONTENT_LENGTH_HEADER)
+                                    .append(":")
+                                    .append(b.getBytes(StandardCharsets.UTF_8).length));
 
             var body =
-                    httpRequest.getBody().isPresent()
-                            ? "\r\n\r\n" + String.valueOf(httpRequest.getBody().get())
-                            : "";
+                    optBody.isPresent()
+                            ? "\r\n\r\n" + optBody.get()
+                            : headers.isEmpty() ? "\r\n" : "\r\n\r\n";
 
             var requestMsg =
                     """
@@ -722,9 +1062,58 @@ public class Client {
             return requestMsg;
         }
 
+        /**
+         * Reads a response in either of the {@link WireFormat}s, telling them apart by the first
+         * byte
+         *
+         * @param in to read the response from
+         * @param bodyClass expected type of the body
+         * @return parsed response
+         * @throws IOException if there are issues reading {@code in}
+         * @throws IllegalArgumentException if the input contains incorrect format
+         */
+        static <Body> HttpResponse<Body> readResponse(InputStream in, Class<Body> bodyClass)
+                throws IOException {
+            requireNonNull(in);
+            requireNonNull(bodyClass);
+
+            var first = in.read();
+            if (first == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+
+            if (first != BinaryWireFormat.MAGIC) {
+                var serialized =
+                        new SequenceInputStream(new ByteArrayInputStream(new byte[] {(byte) first}), in);
+                return parseResponse(new ObjectInputStream(serialized), bodyClass);
+            }
+
+            var frame = BinaryWireFormat.readFrame(in);
+            var status = HttpStatus.valueOf(frame.getStatusCode());
+            if (status.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "Server send an incorrect status value: '%s'".formatted(frame.getStatusCode()));
+            }
+
+            if (frame.getMessage().isPresent()) {
+                return HttpResponse.createWithMessage(status.get(), frame.getMessage().get());
+            }
+
+            try {
+                return HttpResponse.createWithBody(
+                        status.get(),
+                        bodyClass.cast(frame.getMessages().get()),
+                        frame.getNextCursor());
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(
+                        "Server responded with incorrect data format", e);
+            }
+        }
+
         /**
          * Reads and Parses into http response. First should be an int primitive that can be
-         * converted to {@link HttpStatus#} then object of type {@code Body}"
+         * converted to {@link HttpStatus#} then object of type {@code Body}, a list followed by the
+         * next cursor"
          *
          * @param in to read data from
          * @param bodyClass 
@@ -745,12 +1134,19 @@ public class Client {
                             "Server send an incorrect status value: '%s'".formatted(statusInt));
                 }
 
-                var body = bodyClass.cast(in.readObject());
+                var body = in.readObject();
 
+                // errors come as messages whatever the expected body is
                 if (body instanceof String) {
                     return HttpResponse.createWithMessage(status.get(), (String) body);
+                } else if (body instanceof List) { // a page of messages
+                    var nextCursor = in.readLong();
+                    return HttpResponse.createWithBody(
+                            status.get(),
+                            bodyClass.cast(body),
+                            nextCursor == -1 ? OptionalLong.empty() : OptionalLong.of(nextCursor));
                 } else {
-                    return HttpResponse.createWithBody(status.get(), body);
+                    return HttpResponse.createWithBody(status.get(), bodyClass.cast(body));
                 }
 
             } catch (EOFException
@@ -883,8 +1279,10 @@ public class Client {
         private final HttpStatus status;
         private final Optional<String> message;
         private final Optional<Body> body;
+        private final OptionalLong nextCursor;
 
-        private HttpResponse(HttpStatus status, Body body, String infoMessage) {
+        private HttpResponse(
+                HttpStatus status, Body body, String infoMessage, OptionalLong nextCursor) {
             if (body != null && infoMessage != null) {
                 throw new IllegalAccessError("Only one argument can be non null");
             }
@@ -896,20 +1294,33 @@ public class Client {
             this.status = requireNonNull(status);
             this.body = Optional.ofNullable(body);
             this.message = Optional.ofNullable(infoMessage);
+            this.nextCursor = requireNonNull(nextCursor);
         }
 
         public static <Body> HttpResponse<Body> createWithBody(HttpStatus status, Body body) {
-            return new HttpResponse<>(status, requireNonNull(body), null);
+            return createWithBody(status, body, OptionalLong.empty());
+        }
+
+        /**
+         * @param nextCursor the 'lastId' to request the next page of messages with, empty if there
+         *     are no more
+         */
+        public static <Body> HttpResponse<Body> createWithBody(
+                HttpStatus status, Body body, OptionalLong nextCursor) {
+            return new HttpResponse<>(status, requireNonNull(body), null, nextCursor);
         }
 
         public static <Body> HttpResponse<Body> createWithMessage(
                 HttpStatus status, String infoMessage) {
-            return new HttpResponse<>(status, null, requireNonNull(infoMessage));
+            return new HttpResponse<>(
+                    status, null, requireNonNull(infoMessage), OptionalLong.empty());
         }
 
         public static enum HttpStatus {
             OK(100),
-            BAD(500);
+            BAD(500),
+            /** The server is overloaded, the request wasn't handled */
+            BUSY(503);
 
             public final int statusCode;
 
@@ -940,9 +1351,23 @@ public class Client {
             return body;
         }
 
+        /**
+         * @return the 'lastId' to request the next page of messages with, empty if there are no
+         *     more messages or the response has none
+         */
+        public OptionalLong getNextCursor() {
+            return nextCursor;
+        }
+
         @Override
         public String toString() {
-            return "HttpResponse [status=" + status + ", body=" + body + "]";
+            return "HttpResponse [status="
+                    + status
+                    + ", body="
+                    + body
+                    + ", nextCursor="
+                    + nextCursor
+                    + "]";
         }
     }
 }
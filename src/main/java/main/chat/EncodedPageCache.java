@@ -0,0 +1,185 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Size-bounded LRU cache of encoded responses with a page of messages, keyed by the format, the
+ * room and the id range of the page, so the pollers asking for the same tail of the history of a
+ * room share one encoding.
+ *
+ * <p>Messages are immutable and their ids are never reused, so an entry never gets stale and
+ * nothing is invalidated: an append only makes the pollers ask for new ranges, the pages they
+ * don't ask for anymore are evicted as the least recently used ones once the encoded bytes exceed
+ * {@code maxBytes}.
+ *
+ * <p>Encoding happens outside of the lock, so the threads missing the same page at once encode it
+ * each, the last one is kept. A page bigger than a quarter of {@code maxBytes} isn't cached, so
+ * one long history doesn't evict all the tails.
+ *
+ * @ThreadSafe
+ */
+public class EncodedPageCache {
+    private final long maxBytes;
+
+    /** In access order, guarded by {@code this} */
+    private final LinkedHashMap<Key, byte[]> pages = new LinkedHashMap<>(64, 0.75f, true);
+
+    /** Of the {@link #pages}, guarded by {@code this} */
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes the most encoded bytes kept
+     * @throws IllegalArgumentException if {@code maxBytes < 1}
+     */
+    public EncodedPageCache(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException(
+                    "Max bytes should be positive: %s".formatted(maxBytes));
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached encoding of the page, encoding and caching it if there is none
+     *
+     * @param format the page is encoded in
+     * @param room the messages of the page were read from
+     * @param firstId id of the first message of the page
+     * @param lastId id of the last message of the page
+     * @param nextCursor of the page, {@code -1} if there is none
+     * @param encoder encodes the page on a miss
+     * @return encoded page, shared, must not be modified
+     */
+    public byte[] get(
+            Enum<?> format,
+            String room,
+            long firstId,
+            long lastId,
+            long nextCursor,
+            Supplier<byte[]> encoder) {
+        requireNonNull(format);
+        requireNonNull(room);
+        requireNonNull(encoder);
+
+        var key = new Key(format, room, firstId, lastId, nextCursor);
+        synchronized (this) {
+            var encoded = pages.get(key);
+            if (encoded != null) {
+                hits.increment();
+                return encoded;
+            }
+        }
+
+        misses.increment();
+        var encoded = requireNonNull(encoder.get());
+        if (encoded.length > maxBytes / 4) {
+            return encoded;
+        }
+
+        synchronized (this) {
+            var previous = pages.put(key, encoded);
+            bytes += encoded.length - (previous == null ? 0 : previous.length);
+
+            Iterator<Map.Entry<Key, byte[]>> eldest = pages.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().length;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+
+        return encoded;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the share of the lookups that were hits, {@code 0} if there were none
+     */
+    public double getHitRate() {
+        var hitCount = hits.sum();
+        var total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return one line summary of the size, the hit rate and the evictions
+     */
+    public String getStats() {
+        int entries;
+        long currentBytes;
+        synchronized (this) {
+            entries = pages.size();
+            currentBytes = bytes;
+        }
+
+        return "[pages=%s, bytes=%s/%s, hits=%s, misses=%s, hitRate=%.3f, evictions=%s]"
+                .formatted(
+                        entries,
+                        currentBytes,
+                        maxBytes,
+                        hits.sum(),
+                        misses.sum(),
+                        getHitRate(),
+                        evictions.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedPageCache " + getStats();
+    }
+
+    /**
+     * @Immutable
+     */
+    private static class Key {
+        private final Enum<?> format;
+        private final String room;
+        private final long firstId;
+        private final long lastId;
+        private final long nextCursor;
+
+        Key(Enum<?> format, String room, long firstId, long lastId, long nextCursor) {
+            this.format = format;
+            this.room = room;
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.nextCursor = nextCursor;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key other
+                    && format == other.format
+                    && room.equals(other.room)
+                    && firstId == other.firstId
+                    && lastId == other.lastId
+                    && nextCursor == other.nextCursor;
+        }
+
+        @Override
+        public int hashCode() {
+            var hash = format.hashCode();
+            hash = 31 * hash + room.hashCode();
+            hash = 31 * hash + Long.hashCode(firstId);
+            hash = 31 * hash + Long.hashCode(lastId);
+            return 31 * hash + Long.hashCode(nextCursor);
+        }
+    }
+}
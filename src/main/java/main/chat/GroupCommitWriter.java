@@ -0,0 +1,379 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drains a queue in batches and appends the formatted items to a file with one {@link FileChannel}
+ * write per batch, instead of a write and a flush per item. The more items are queued while a
+ * batch is written, the bigger the next batch is, so the number of syscalls stays flat under load.
+ *
+ * <p>When written data reaches the disk depends on the {@link Durability}.
+ *
+ * <p>Has to be run by a single thread, stops when the thread is interrupted, writing out what it
+ * has already taken from the queue. An item whose {@code beforeWrite} or {@link Formatter} throws
+ * is skipped and counted, only a failed write to the file stops the writer.
+ *
+ * @ThreadSafe for reading the metrics, NOT for running
+ */
+public class GroupCommitWriter<T> implements Runnable {
+    private static final Logger LOG = Logger.getLogger(GroupCommitWriter.class.getName());
+
+    /** Pending text of {@link Durability#FLUSH_INTERVAL} is written earlier if it gets this big */
+    private static final int MAX_PENDING_CHARS = 1 << 20;
+
+    private final String name;
+    private final BlockingQueue<T> source;
+    private final Path file;
+    private final Formatter<T> formatter;
+    private final UnaryOperator<T> beforeWrite;
+    private final Optional<PrintStream> echo;
+    private final Optional<Runnable> onForce;
+    private final boolean append;
+    private final Durability durability;
+    private final long flushIntervalNanos;
+    private final int maxBatchSize;
+
+    /** Sizes of the drained batches, the histogram is used for plain counts here */
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+    /** Time of a write, plus a force for {@link Durability#FSYNC_PER_BATCH} */
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    /** Items skipped because their {@code beforeWrite} or {@link Formatter} threw */
+    private final AtomicLong failedItems = new AtomicLong();
+
+    /**
+     * When the written data is handed to the OS and to the disk:
+     *
+     * <ul>
+     *   <li>{@link #FLUSH_PER_BATCH} - written after every batch, reaches the disk when the OS
+     *       decides to, survives a crash of the server but not of the machine
+     *   <li>{@link #FLUSH_INTERVAL} - batches are accumulated and written at most every {@code
+     *       flushIntervalMillis}, a crash loses up to the interval of data
+     *   <li>{@link #FSYNC_PER_BATCH} - written and forced to the disk after every batch, the
+     *       slowest, survives a crash of the machine
+     * </ul>
+     */
+    public static enum Durability {
+        FLUSH_PER_BATCH,
+        FLUSH_INTERVAL,
+        FSYNC_PER_BATCH;
+    }
+
+    /** Appends an item as text, called by the writer thread only */
+    @FunctionalInterface
+    public static interface Formatter<T> {
+        void format(T item, StringBuilder out);
+    }
+
+    private GroupCommitWriter(Builder<T> builder) {
+        this.name = builder.name;
+        this.source = requireNonNull(builder.source, "The source cannot be null");
+        this.file = requireNonNull(builder.file, "The file cannot be null");
+        this.formatter = requireNonNull(builder.formatter, "The formatter cannot be null");
+        this.beforeWrite = builder.beforeWrite;
+        this.echo = builder.echo;
+        this.onForce = builder.onForce;
+        this.append = builder.append;
+        this.durability = builder.durability;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.flushIntervalMillis);
+        this.maxBatchSize = builder.maxBatchSize;
+    }
+
+    public static class Builder<T> {
+        private String name = "GroupCommitWriter";
+        private BlockingQueue<T> source;
+        private Path file;
+        private Formatter<T> formatter;
+        private UnaryOperator<T> beforeWrite = UnaryOperator.identity();
+        private Optional<PrintStream> echo = Optional.empty();
+        private Optional<Runnable> onForce = Optional.empty();
+        private boolean append;
+        private Durability durability = Durability.FLUSH_PER_BATCH;
+        private long flushIntervalMillis = 100;
+        private int maxBatchSize = 1024;
+
+        /**
+         * @param name used in the logs and the metrics
+         */
+        public Builder<T> name(String name) {
+            this.name = requireNonNull(name);
+            return this;
+        }
+
+        /**
+         * @param source queue to drain
+         */
+        public Builder<T> source(BlockingQueue<T> source) {
+            this.source = requireNonNull(source);
+            return this;
+        }
+
+        /**
+         * @param file to write to, truncated when the writer starts unless {@link
+         *     #append(boolean)}
+         */
+        public Builder<T> file(Path file) {
+            this.file = requireNonNull(file);
+            return this;
+        }
+
+        /**
+         * @param append {@code true} to keep the content of the file
+         */
+        public Builder<T> append(boolean append) {
+            this.append = append;
+            return this;
+        }
+
+        public Builder<T> formatter(Formatter<T> formatter) {
+            this.formatter = requireNonNull(formatter);
+            return this;
+        }
+
+        /**
+         * @param beforeWrite called for every drained item before it is formatted, its result is
+         *     what gets formatted
+         */
+        public Builder<T> beforeWrite(UnaryOperator<T> beforeWrite) {
+            this.beforeWrite = requireNonNull(beforeWrite);
+            return this;
+        }
+
+        /**
+         * @param echo stream the written text is also printed to
+         */
+        public Builder<T> echo(PrintStream echo) {
+            this.echo = Optional.of(echo);
+            return this;
+        }
+
+        /**
+         * @param onForce called after the file is forced with {@link Durability#FSYNC_PER_BATCH},
+         *     to force what {@code beforeWrite} has written elsewhere
+         */
+        public Builder<T> onForce(Runnable onForce) {
+            this.onForce = Optional.of(onForce);
+            return this;
+        }
+
+        public Builder<T> durability(Durability durability) {
+            this.durability = requireNonNull(durability);
+            return this;
+        }
+
+        /**
+         * @param flushIntervalMillis how often {@link Durability#FLUSH_INTERVAL} writes
+         * @throws IllegalArgumentException if {@code flushIntervalMillis < 1}
+         */
+        public Builder<T> flushIntervalMillis(long flushIntervalMillis) {
+            if (flushIntervalMillis < 1) {
+                throw new IllegalArgumentException(
+                        "Flush interval should be positive: %s".formatted(flushIntervalMillis));
+            }
+            this.flushIntervalMillis = flushIntervalMillis;
+            return this;
+        }
+
+        /**
+         * @param maxBatchSize the most items drained at once
+         * @throws IllegalArgumentException if {@code maxBatchSize < 1}
+         */
+        public Builder<T> maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException(
+                        "Max batch size should be positive: %s".formatted(maxBatchSize));
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * @throws NullPointerException if the source, the file or the formatter isn't set
+         */
+        public GroupCommitWriter<T> build() {
+            return new GroupCommitWriter<>(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        var batch = new ArrayList<T>(Math.min(maxBatchSize, 1024));
+        var pending = new StringBuilder();
+        var lastFlush = System.nanoTime();
+
+        try (var channel =
+                FileChannel.open(
+                        file,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        append
+                                ? StandardOpenOption.APPEND
+                                : StandardOpenOption.TRUNCATE_EXISTING)) {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    var first = takeNext(pending, lastFlush);
+                    if (first != null) {
+                        batch.add(first);
+                        source.drainTo(batch, maxBatchSize - 1);
+                        batchSizes.record(batch.size());
+
+                        for (var item : batch) {
+                            process(item, pending);
+                        }
+                        batch.clear();
+                    }
+
+                    if (durability != Durability.FLUSH_INTERVAL
+                            || System.nanoTime() - lastFlush >= flushIntervalNanos
+                            || pending.length() >= MAX_PENDING_CHARS) {
+                        flush(channel, pending);
+                        lastFlush = System.nanoTime();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warning("%s | %s was interrupted".formatted(name, Thread.currentThread()));
+            }
+
+            // the interrupted status closes the channel on a write, writing without it
+            var interrupted = Thread.interrupted();
+            try {
+                flush(channel, pending);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "%s | Exception was thrown".formatted(name), e);
+        }
+
+        LOG.info("%s | Stopped: %s".formatted(name, getStats()));
+    }
+
+    /**
+     * Waits for the next item, with pending {@link Durability#FLUSH_INTERVAL} text only till it's
+     * due to be written
+     *
+     * @return the next item, {@code null} if the pending text is due
+     */
+    private T takeNext(StringBuilder pending, long lastFlush) throws InterruptedException {
+        if (pending.length() == 0) {
+            return source.take();
+        }
+
+        var waitNanos = flushIntervalNanos - (System.nanoTime() - lastFlush);
+        return source.poll(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Applies the {@code beforeWrite} to the {@code item} and appends it to the {@code pending}
+     * text, a failing item is logged and skipped, with the text it appended partially
+     */
+    private void process(T item, StringBuilder pending) {
+        var length = pending.length();
+        try {
+            formatter.format(beforeWrite.apply(item), pending);
+        } catch (RuntimeException e) {
+            pending.setLength(length);
+            failedItems.incrementAndGet();
+            LOG.log(Level.SEVERE, "%s | Skipped an item: %s".formatted(name, item), e);
+        }
+    }
+
+    private void flush(FileChannel channel, StringBuilder pending) throws IOException {
+        if (pending.length() == 0) {
+            return;
+        }
+
+        var start = System.nanoTime();
+        var bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pending));
+        var length = bytes.remaining();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        if (durability == Durability.FSYNC_PER_BATCH) {
+            channel.force(false);
+            onForce.ifPresent(Runnable::run);
+        }
+        flushLatency.recordSince(start);
+        writtenBytes.addAndGet(length);
+
+        echo.ifPresent(out -> out.append(pending).flush());
+        pending.setLength(0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return sizes of the drained batches
+     */
+    public LatencyHistogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * @return latencies of the writes to the file in nanoseconds
+     */
+    public LatencyHistogram getFlushLatency() {
+        return flushLatency;
+    }
+
+    /**
+     * @return the number of items skipped because their {@code beforeWrite} or {@link Formatter}
+     *     threw
+     */
+    public long getFailedItems() {
+        return failedItems.get();
+    }
+
+    /**
+     * @return one line summary of the batches, the writes and the skipped items
+     */
+    public String getStats() {
+        return ("%s [durability=%s, batches=%s, batchSize: mean=%.1f p99=%s max=%s, bytes=%s,"
+                        + " failed=%s, flush: %s]")
+                .formatted(
+                        name,
+                        durability,
+                        batchSizes.getCount(),
+                        batchSizes.getMean(),
+                        batchSizes.getValueAtPercentile(99),
+                        batchSizes.getMax(),
+                        writtenBytes.get(),
+                        failedItems.get(),
+                        flushLatency.summary());
+    }
+
+    @Override
+    public String toString() {
+        return "GroupCommitWriter [name="
+                + name
+                + ", file="
+                + file
+                + ", durability="
+                + durability
+                + "]";
+    }
+}
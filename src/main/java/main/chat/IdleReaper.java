@@ -0,0 +1,341 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Expires the connections that were idle longer than their deadline, tracking all of them with a
+ * hashed timer wheel run by one thread.
+ *
+ * <p>The wheel is an array of {@code wheelSize} buckets, one per tick of {@code tickMillis}. A
+ * connection is put into the bucket of the tick its deadline falls on, with the number of full
+ * rotations to wait for, so scheduling costs O(1) whatever the deadline. Every tick the reaper
+ * visits only the entries of the current bucket.
+ *
+ * <p>The activity of a connection mostly doesn't touch the wheel: the owner only moves the
+ * deadline of its {@link Handle} later, a volatile write. When the bucket of the old deadline comes
+ * up, the reaper finds the new one and puts the entry where it falls, so an active connection is
+ * rescheduled about once per its timeout, not once per request. Only a deadline earlier than the
+ * bucket, e.g. after the handle was suspended, queues the handle to be moved by the reaper.
+ *
+ * <p>Expiring and moving a deadline race with a compare and set on the deadline: either the owner
+ * moves it and the connection lives on, or the reaper expires it and the owner learns from every
+ * following {@link Handle#expireAfter(long)} or {@link Handle#suspend()}. The reaper only calls
+ * the {@code onExpired} callback of a handle, which shouldn't block, e.g. it wakes up the owner
+ * blocked reading the connection to close it.
+ *
+ * @ThreadSafe
+ */
+public class IdleReaper implements Runnable {
+    private static final Logger LOG = Logger.getLogger(IdleReaper.class.getName());
+
+    /** Deadline of a suspended handle, it isn't in the wheel till the deadline is set again */
+    private static final long SUSPENDED = Long.MAX_VALUE;
+
+    /** Deadline of an expired or cancelled handle, never moves anymore */
+    private static final long EXPIRED = Long.MIN_VALUE;
+
+    /** {@link Handle#checkAt} of a handle that isn't in the wheel */
+    private static final long NOT_SCHEDULED = Long.MIN_VALUE;
+
+    private final long tickNanos;
+
+    /** Heads of the doubly linked lists of the buckets, accessed only by the reaper thread */
+    private final Handle[] wheel;
+
+    private final int mask;
+
+    /**
+     * Handles to (re)schedule: new ones, ones whose deadline moved before the tick they're
+     * scheduled for, and cancelled ones to drop
+     */
+    private final ConcurrentLinkedQueue<Handle> queued = new ConcurrentLinkedQueue<>();
+
+    /** Accessed only by the reaper thread */
+    private long tick;
+
+    private final LongAdder tracked = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param tickMillis resolution of the deadlines, a connection is expired at most one tick late
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @throws IllegalArgumentException if {@code tickMillis < 1} or {@code wheelSize} isn't in
+     *     the range [1, 2^20]
+     */
+    public IdleReaper(long tickMillis, int wheelSize) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Tick millis should be positive: %s".formatted(tickMillis));
+        }
+        if (wheelSize < 1 || wheelSize > 1 << 20) {
+            throw new IllegalArgumentException(
+                    "Wheel size should be from 1 to 2^20: %s".formatted(wheelSize));
+        }
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Handle[wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1];
+        this.mask = wheel.length - 1;
+    }
+
+    /**
+     * Starts tracking a connection, suspended till its owner sets a deadline
+     *
+     * @param onExpired called by the reaper thread once the deadline passed, shouldn't block
+     * @return handle to move the deadline of the connection with
+     */
+    public Handle register(Runnable onExpired) {
+        tracked.increment();
+        return new Handle(this, requireNonNull(onExpired));
+    }
+
+    /** Runs the wheel till interrupted */
+    @Override
+    public void run() {
+        var nextTick = System.nanoTime() + tickNanos;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                var sleepNanos = nextTick - System.nanoTime();
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            var now = System.nanoTime();
+            Handle handle;
+            while ((handle = queued.poll()) != null) {
+                handle.isQueued.set(false);
+                schedule(handle, now);
+            }
+
+            expireBucket(now);
+            tick++;
+            nextTick += tickNanos;
+        }
+        LOG.fine("Stopped: " + this);
+    }
+
+    /**
+     * Puts the {@code handle} into the bucket of its deadline, or takes it out of the wheel if it
+     * was suspended or cancelled, O(1)
+     */
+    private void schedule(Handle handle, long now) {
+        unlink(handle);
+        // before reading the deadline, so an owner moving it meanwhile sees it has to queue it
+        handle.checkAt = NOT_SCHEDULED;
+
+        var deadline = handle.deadline.get();
+        if (deadline == EXPIRED) {
+            if (!handle.isDropped) {
+                handle.isDropped = true;
+                tracked.decrement();
+            }
+            return;
+        }
+        if (deadline == SUSPENDED) {
+            return;
+        }
+
+        // rounded up, never in the bucket being expired
+        var ticks = Math.max(1, (deadline - now + tickNanos - 1) / tickNanos);
+        var bucket = (int) ((tick + ticks) & mask);
+        handle.rounds = (ticks - 1) / wheel.length;
+        handle.bucket = bucket;
+        handle.next = wheel[bucket];
+        if (handle.next != null) {
+            handle.next.prev = handle;
+        }
+        wheel[bucket] = handle;
+        handle.checkAt = now + ticks * tickNanos;
+    }
+
+    private void unlink(Handle handle) {
+        if (handle.bucket == -1) {
+            return;
+        }
+
+        if (handle.prev != null) {
+            handle.prev.next = handle.next;
+        } else {
+            wheel[handle.bucket] = handle.next;
+        }
+        if (handle.next != null) {
+            handle.next.prev = handle.prev;
+        }
+        handle.prev = null;
+        handle.next = null;
+        handle.bucket = -1;
+    }
+
+    private void expireBucket(long now) {
+        var handle = wheel[(int) (tick & mask)];
+        while (handle != null) {
+            var next = handle.next;
+
+            if (handle.rounds > 0) {
+                handle.rounds--;
+            } else {
+                var deadline = handle.deadline.get();
+                if (deadline != EXPIRED
+                        && deadline != SUSPENDED
+                        && deadline - now <= 0
+                        && handle.deadline.compareAndSet(deadline, EXPIRED)) {
+                    unlink(handle);
+                    handle.isDropped = true;
+                    tracked.decrement();
+                    expired.increment();
+                    try {
+                        handle.onExpired.run();
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Couldn't expire a connection", e);
+                    }
+                } else {
+                    // moved later, suspended or cancelled meanwhile
+                    schedule(handle, now);
+                }
+            }
+
+            handle = next;
+        }
+    }
+
+    /**
+     * @return the number of connections being tracked, the cancelled ones are counted till the
+     *     reaper drops them
+     */
+    public long getTracked() {
+        return tracked.sum();
+    }
+
+    /**
+     * @return the number of connections expired so far
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * @return one line summary of the wheel and the connections
+     */
+    public String getStats() {
+        return "[tickMillis=%s, wheelSize=%s, tracked=%s, expired=%s]"
+                .formatted(
+                        TimeUnit.NANOSECONDS.toMillis(tickNanos),
+                        wheel.length,
+                        tracked.sum(),
+                        expired.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "IdleReaper " + getStats();
+    }
+
+    /**
+     * The deadline of a connection, moved by its owner, see {@link IdleReaper}
+     *
+     * @ThreadSafe
+     */
+    public static class Handle {
+        private final IdleReaper reaper;
+        private final Runnable onExpired;
+
+        /** {@link System#nanoTime()} to expire at, {@link #SUSPENDED} or {@link #EXPIRED} */
+        private final AtomicLong deadline = new AtomicLong(SUSPENDED);
+
+        /** When the bucket the handle is in comes up, {@link #NOT_SCHEDULED} if it isn't in one */
+        private volatile long checkAt = NOT_SCHEDULED;
+
+        /** Whether the handle is in the {@link IdleReaper#queued} */
+        private final AtomicBoolean isQueued = new AtomicBoolean();
+
+        /** Links of the bucket, the rotations to wait for, accessed by the reaper thread only */
+        private Handle prev;
+        private Handle next;
+        private int bucket = -1;
+        private long rounds;
+        private boolean isDropped;
+
+        private Handle(IdleReaper reaper, Runnable onExpired) {
+            this.reaper = reaper;
+            this.onExpired = onExpired;
+        }
+
+        /**
+         * Moves the deadline to {@code timeoutMillis} from now
+         *
+         * @param timeoutMillis for how long the connection can be idle
+         * @return {@code false} if the connection has been expired already
+         * @throws IllegalArgumentException if {@code timeoutMillis < 1}
+         */
+        public boolean expireAfter(long timeoutMillis) {
+            if (timeoutMillis < 1) {
+                throw new IllegalArgumentException(
+                        "Timeout millis should be positive: %s".formatted(timeoutMillis));
+            }
+
+            var newDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            if (!move(newDeadline)) {
+                return false;
+            }
+
+            // a later deadline is found when the bucket comes up, only an earlier one is queued
+            var scheduledAt = checkAt;
+            if (scheduledAt == NOT_SCHEDULED || newDeadline - scheduledAt < 0) {
+                enqueue();
+            }
+            return true;
+        }
+
+        /**
+         * Removes the deadline, e.g. while a request is handled or messages are streamed
+         *
+         * @return {@code false} if the connection has been expired already
+         */
+        public boolean suspend() {
+            return move(SUSPENDED);
+        }
+
+        /** Stops tracking the connection, e.g. when it's closed */
+        public void cancel() {
+            if (deadline.getAndSet(EXPIRED) != EXPIRED) {
+                enqueue();
+            }
+        }
+
+        /**
+         * @return {@code true} if the connection was expired or the handle cancelled
+         */
+        public boolean isExpired() {
+            return deadline.get() == EXPIRED;
+        }
+
+        private boolean move(long newDeadline) {
+            while (true) {
+                var current = deadline.get();
+                if (current == EXPIRED) {
+                    return false;
+                }
+                if (deadline.compareAndSet(current, newDeadline)) {
+                    return true;
+                }
+            }
+        }
+
+        private void enqueue() {
+            if (isQueued.compareAndSet(false, true)) {
+                reaper.queued.add(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package main.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds with log-linear buckets: every power of two range
+ * is split into {@link #SUB_BUCKETS} linear buckets, so a reported percentile is at most ~6% off
+ * the recorded value. Recording is a couple of atomic increments and never allocates.
+ *
+ * <p>Values and percentiles are snapshots, recording threads may change them while they are read.
+ *
+ * @ThreadSafe
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos latency to record, negative values are recorded as {@code 0}
+     */
+    public void record(long nanos) {
+        var value = Math.max(0, nanos);
+
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while ((currentMax = max.get()) < value && !max.compareAndSet(currentMax, value)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Records the time passed since {@code startNanos}
+     *
+     * @param startNanos taken from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        var c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * @param percentile in the range [0, 100]
+     * @return the upper bound of the bucket that contains the {@code percentile}, {@code 0} if
+     *     nothing has been recorded
+     * @throws IllegalArgumentException if {@code percentile} isn't in the range [0, 100]
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "Percentile should be in the range [0, 100]: %s".formatted(percentile));
+        }
+
+        var total = 0L;
+        var snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        var seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /** Not atomic relative to concurrent recordings */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return one line summary in microseconds: count, mean, p50, p99, p999, max
+     */
+    public String summary() {
+        return "count=%s mean=%.1fus p50=%sus p99=%sus p999=%sus max=%sus"
+                .formatted(
+                        getCount(),
+                        getMean() / 1000,
+                        micros(getValueAtPercentile(50)),
+                        micros(getValueAtPercentile(99)),
+                        micros(getValueAtPercentile(99.9)),
+                        micros(getMax()));
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram [" + summary() + "]";
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} map linearly, above that the position of the highest bit
+     * picks the range and the next {@link #SUB_BUCKET_BITS} bits pick a bucket in it
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        var highestBit = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        var shift = highestBit - SUB_BUCKET_BITS;
+        var subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        var shift = index / SUB_BUCKETS - 1;
+        var subBucket = index % SUB_BUCKETS;
+        var lowerBound = ((long) (SUB_BUCKETS | subBucket)) << shift;
+
+        return lowerBound + (1L << shift) - 1;
+    }
+}
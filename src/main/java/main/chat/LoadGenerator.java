@@ -0,0 +1,613 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import main.chat.Client.HttpRequest;
+import main.chat.Client.HttpRequest.HttpMethod;
+import main.chat.Client.HttpResponse.HttpStatus;
+import main.chat.Client.ServerConnector;
+import main.chat.Client.ServerConnector.WireFormat;
+import main.chat.Server.ChatMessage;
+
+/**
+ * Headless load mode of the {@link Client}: simulates {@code users} chat users, each on its own
+ * virtual thread with its own keep-alive connection, posting messages and polling for new ones at
+ * fixed intervals. Requests are sent and read the way {@link ServerConnector} does it.
+ *
+ * <p>A user can post a burst of messages at a time, pipelined: all the POSTs are written at once
+ * and then their responses are read, every one of them is measured from the scheduled time.
+ *
+ * <p>Every request has a scheduled time, and its latency is measured from that time, not from
+ * when it was actually sent. A server that falls behind delays the following requests of a user,
+ * and those delays are counted too instead of being hidden by the waiting user.
+ *
+ * <p>Prints the totals every {@code reportIntervalSeconds} and a final report with the throughput
+ * and the latency histograms.
+ *
+ * <pre>
+ * java -Dchat.client.mode=LOAD -Dchat.client.load.users=1000 main.chat.Client
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final Logger LOG = Logger.getLogger(LoadGenerator.class.getName());
+
+    private static final int SOCKET_TIMEOUT_MILLIS = 10_000;
+    private static final int RECONNECT_DELAY_MILLIS = 500;
+
+    private final Config config;
+
+    /** From the scheduled time of a POST to its response */
+    private final LatencyHistogram postLatency = new LatencyHistogram();
+
+    /** From the scheduled time of a GET to its response */
+    private final LatencyHistogram pollLatency = new LatencyHistogram();
+
+    private final LongAdder posts = new LongAdder();
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder receivedMessages = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /** Requests answered with {@link HttpStatus#BUSY}, not counted as errors */
+    private final LongAdder busy = new LongAdder();
+
+    public LoadGenerator(Config config) {
+        this.config = requireNonNull(config);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator(Config.fromSystemProperties()).run();
+    }
+
+    /**
+     * Runs the users for {@code durationSeconds} and prints the report
+     *
+     * @throws InterruptedException if interrupted while waiting for the users, they are stopped
+     */
+    public void run() throws InterruptedException {
+        System.out.println("Load: " + config);
+
+        var start = System.nanoTime();
+        var end = start + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        var users = new ArrayList<Future<?>>(config.users);
+
+        var executor = Server.createVirtualThreadExecutor();
+        try {
+            for (int i = 0; i < config.users; i++) {
+                var user = i;
+                users.add(executor.submit(() -> simulateUser(user, start, end)));
+            }
+
+            var reportNanos = TimeUnit.SECONDS.toNanos(config.reportIntervalSeconds);
+            var nextReport = start + reportNanos;
+            while (nextReport < end) {
+                TimeUnit.NANOSECONDS.sleep(nextReport - System.nanoTime());
+                System.out.println(progress(System.nanoTime() - start));
+                nextReport += reportNanos;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, end - System.nanoTime()));
+        } finally {
+            // users stop on their own at the end, a blocked read is cut off by the interrupt
+            users.forEach(user -> user.cancel(true));
+            executor.shutdownNow();
+            executor.awaitTermination(SOCKET_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        System.out.println(report(System.nanoTime() - start));
+    }
+
+    /**
+     * Posts and polls on the schedule of the user till {@code end}, reconnecting after failures
+     *
+     * @param user index of the user
+     * @param start of the load in nanos
+     * @param end of the load in nanos
+     */
+    private void simulateUser(int user, long start, long end) {
+        var random = ThreadLocalRandom.current();
+        var postInterval = TimeUnit.MILLISECONDS.toNanos(config.postIntervalMillis);
+        var pollInterval = TimeUnit.MILLISECONDS.toNanos(config.pollIntervalMillis);
+
+        // spreading the users over the first interval
+        var nextPost = postInterval > 0 ? start + random.nextLong(postInterval) : Long.MAX_VALUE;
+        var nextPoll = pollInterval > 0 ? start + random.nextLong(pollInterval) : Long.MAX_VALUE;
+        var posted = 0;
+        var lastId = -1L;
+
+        Connection connection = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                var isPost = nextPost <= nextPoll;
+                var scheduled = isPost ? nextPost : nextPoll;
+                if (scheduled >= end) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.sleep(scheduled - System.nanoTime());
+
+                try {
+                    if (connection == null) {
+                        connection = new Connection(config);
+                    }
+
+                    if (isPost) {
+                        var burst = new ArrayList<char[]>(config.postBurst);
+                        for (int i = 0; i < config.postBurst; i++) {
+                            burst.add(createMessage(user, posted++));
+                        }
+                        connection.post(
+                                burst,
+                                () -> {
+                                    postLatency.recordSince(scheduled);
+                                    posts.increment();
+                                });
+                    } else {
+                        var messages = connection.poll(lastId);
+                        pollLatency.recordSince(scheduled);
+                        polls.increment();
+                        if (!messages.isEmpty()) {
+                            lastId = messages.get(messages.size() - 1).getId();
+                            receivedMessages.add(messages.size());
+                        }
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    (e instanceof ServerBusyException ? busy : errors).increment();
+                    LOG.log(
+                            Level.FINE,
+                            "User %s | Request failed, reconnecting".formatted(user),
+                            e);
+                    closeQuietly(connection);
+                    connection = null;
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                }
+
+                if (isPost) {
+                    nextPost += postInterval;
+                } else {
+                    nextPoll += pollInterval;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * @return message of the {@code messageSize} characters
+     */
+    private char[] createMessage(int user, int number) {
+        var message = new StringBuilder(config.messageSize);
+        message.append("user-").append(user).append(" message-").append(number).append(' ');
+        while (message.length() < config.messageSize) {
+            message.append('x');
+        }
+        message.setLength(config.messageSize);
+
+        var chars = new char[message.length()];
+        message.getChars(0, chars.length, chars, 0);
+        return chars;
+    }
+
+    private String progress(long elapsedNanos) {
+        return ("%6.1fs | posts=%s polls=%s received=%s errors=%s busy=%s"
+                        + " | post p99=%sus poll p99=%sus")
+                .formatted(
+                        elapsedNanos / 1e9,
+                        posts.sum(),
+                        polls.sum(),
+                        receivedMessages.sum(),
+                        errors.sum(),
+                        busy.sum(),
+                        TimeUnit.NANOSECONDS.toMicros(postLatency.getValueAtPercentile(99)),
+                        TimeUnit.NANOSECONDS.toMicros(pollLatency.getValueAtPercentile(99)));
+    }
+
+    private String report(long elapsedNanos) {
+        var seconds = elapsedNanos / 1e9;
+        return """
+
+                Users: %s, duration: %.1fs
+                Throughput: %.1f requests/s (posts %.1f/s, polls %.1f/s), \
+                received %.1f messages/s, errors: %s, busy: %s
+                POST %s
+                GET  %s\
+                """
+                .formatted(
+                        config.users,
+                        seconds,
+                        (posts.sum() + polls.sum()) / seconds,
+                        posts.sum() / seconds,
+                        polls.sum() / seconds,
+                        receivedMessages.sum() / seconds,
+                        errors.sum(),
+                        busy.sum(),
+                        postLatency.summary(),
+                        pollLatency.summary());
+    }
+
+    public LatencyHistogram getPostLatency() {
+        return postLatency;
+    }
+
+    public LatencyHistogram getPollLatency() {
+        return pollLatency;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Couldn't close a connection", e);
+            }
+        }
+    }
+
+    /** A keep-alive connection of a user, not thread safe */
+    private static class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final Map<String, String> headers;
+
+        Connection(Config config) throws IOException {
+            this.socket = new Socket();
+            try {
+                socket.connect(
+                        new InetSocketAddress(config.host, config.port), SOCKET_TIMEOUT_MILLIS);
+                socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                this.out = socket.getOutputStream();
+                this.in = new BufferedInputStream(socket.getInputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+
+            this.headers =
+                    switch (config.wireFormat) {
+                        case SERIALIZED -> Map.of();
+                        case BINARY ->
+                                Map.of(BinaryWireFormat.ACCEPT_HEADER, BinaryWireFormat.BINARY);
+                    };
+        }
+
+        /**
+         * Posts the {@code messages} pipelined, written at once before reading the responses
+         *
+         * @param onPosted called after every successful response
+         * @throws ServerBusyException if the server is overloaded, it closes the connection
+         * @throws IllegalArgumentException if the server didn't accept a message
+         */
+        void post(List<char[]> messages, Runnable onPosted) throws IOException {
+            var requests = new StringBuilder();
+            for (var message : messages) {
+                requests.append(
+                        ServerConnector.getRequestMsg(
+                                new HttpRequest(
+                                        socket.toString(),
+                                        HttpMethod.POST,
+                                        "/messages",
+                                        headers,
+                                        message)));
+            }
+            out.write(requests.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            for (int i = 0; i < messages.size(); i++) {
+                var response = ServerConnector.readResponse(in, String.class);
+                if (response.getStatus() == HttpStatus.BUSY) {
+                    throw new ServerBusyException(response.toString());
+                }
+                if (response.getStatus() != HttpStatus.OK) {
+                    throw new IllegalArgumentException("POST failed: %s".formatted(response));
+                }
+                onPosted.run();
+            }
+        }
+
+        /**
+         * @return messages newer than {@code lastId}
+         * @throws ServerBusyException if the server is overloaded, it closes the connection
+         * @throws IllegalArgumentException if the server responded with an error
+         */
+        @SuppressWarnings("unchecked")
+        List<ChatMessage> poll(long lastId) throws IOException {
+            send(
+                    new HttpRequest(
+                            socket.toString(),
+                            HttpMethod.GET,
+                            "/messages?lastId=%s".formatted(lastId),
+                            headers));
+
+            var response = ServerConnector.readResponse(in, List.class);
+            if (response.getStatus() == HttpStatus.BUSY) {
+                throw new ServerBusyException(response.toString());
+            }
+            if (response.getStatus() != HttpStatus.OK || response.getBody().isEmpty()) {
+                throw new IllegalArgumentException("GET failed: %s".formatted(response));
+            }
+            return (List<ChatMessage>) response.getBody().get();
+        }
+
+        private void send(HttpRequest httpRequest) throws IOException {
+            out.write(ServerConnector.getRequestMsg(httpRequest).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** The server answered with {@link HttpStatus#BUSY} */
+    private static class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ServerBusyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @Immutable
+     */
+    public static class Config {
+        private final String host;
+        private final int port;
+        private final int users;
+        private final long postIntervalMillis;
+        private final long pollIntervalMillis;
+        private final int messageSize;
+        private final int postBurst;
+        private final int durationSeconds;
+        private final int reportIntervalSeconds;
+        private final WireFormat wireFormat;
+
+        private Config(Builder builder) {
+            this.host = builder.host;
+            this.port = builder.port;
+            this.users = builder.users;
+            this.postIntervalMillis = builder.postIntervalMillis;
+            this.pollIntervalMillis = builder.pollIntervalMillis;
+            this.messageSize = builder.messageSize;
+            this.postBurst = builder.postBurst;
+            this.durationSeconds = builder.durationSeconds;
+            this.reportIntervalSeconds = builder.reportIntervalSeconds;
+            this.wireFormat = builder.wireFormat;
+        }
+
+        /**
+         * Reads the configuration from system properties, using defaults of the {@link Builder}
+         * for missing ones:
+         *
+         * <pre>
+         * chat.client.host                       = 127.0.0.1
+         * chat.client.port                       = 8800
+         * chat.client.wireFormat                 = BINARY | SERIALIZED
+         * chat.client.load.users                 = 100
+         * chat.client.load.postIntervalMillis    = 1000, 0 to not post
+         * chat.client.load.pollIntervalMillis    = 1000, 0 to not poll
+         * chat.client.load.messageSize           = 64 characters
+         * chat.client.load.postBurst             = 1 message pipelined per POST time
+         * chat.client.load.durationSeconds       = 30
+         * chat.client.load.reportIntervalSeconds = 5
+         * </pre>
+         *
+         * @return read configuration
+         * @throws IllegalArgumentException if a property has an incorrect value
+         */
+        public static Config fromSystemProperties() {
+            var builder = new Builder();
+            var defaults = builder.build();
+
+            builder.host(System.getProperty("chat.client.host", defaults.host));
+            builder.port(Integer.getInteger("chat.client.port", defaults.port));
+            builder.users(Integer.getInteger("chat.client.load.users", defaults.users));
+            builder.postIntervalMillis(
+                    Long.getLong(
+                            "chat.client.load.postIntervalMillis", defaults.postIntervalMillis));
+            builder.pollIntervalMillis(
+                    Long.getLong(
+                            "chat.client.load.pollIntervalMillis", defaults.pollIntervalMillis));
+            builder.messageSize(
+                    Integer.getInteger("chat.client.load.messageSize", defaults.messageSize));
+            builder.postBurst(
+                    Integer.getInteger("chat.client.load.postBurst", defaults.postBurst));
+            builder.durationSeconds(
+                    Integer.getInteger(
+                            "chat.client.load.durationSeconds", defaults.durationSeconds));
+            builder.reportIntervalSeconds(
+                    Integer.getInteger(
+                            "chat.client.load.reportIntervalSeconds",
+                            defaults.reportIntervalSeconds));
+
+            var wireFormat = System.getProperty("chat.client.wireFormat");
+            if (wireFormat != null) {
+                builder.wireFormat(WireFormat.valueOf(wireFormat.toUpperCase()));
+            }
+
+            return builder.build();
+        }
+
+        public static class Builder {
+            private String host = "127.0.0.1";
+            private int port = 8800;
+            private int users = 100;
+            private long postIntervalMillis = 1000;
+            private long pollIntervalMillis = 1000;
+            private int messageSize = 64;
+            private int postBurst = 1;
+            private int durationSeconds = 30;
+            private int reportIntervalSeconds = 5;
+            private WireFormat wireFormat = WireFormat.BINARY;
+
+            public Builder host(String host) {
+                this.host = requireNonNull(host);
+                return this;
+            }
+
+            /**
+             * @throws IllegalArgumentException if {@code port} isn't in the range [1, 65535]
+             */
+            public Builder port(int port) {
+                if (port < 1 || port > 0xFFFF) {
+                    throw new IllegalArgumentException("Incorrect port: %s".formatted(port));
+                }
+                this.port = port;
+                return this;
+            }
+
+            /**
+             * @param users number of simulated users, each with its own connection
+             * @throws IllegalArgumentException if {@code users < 1}
+             */
+            public Builder users(int users) {
+                if (users < 1) {
+                    throw new IllegalArgumentException(
+                            "The number of users should be positive: %s".formatted(users));
+                }
+                this.users = users;
+                return this;
+            }
+
+            /**
+             * @param postIntervalMillis between the POSTs of a user, {@code 0} to not post
+             * @throws IllegalArgumentException if {@code postIntervalMillis < 0}
+             */
+            public Builder postIntervalMillis(long postIntervalMillis) {
+                if (postIntervalMillis < 0) {
+                    throw new IllegalArgumentException(
+                            "Post interval cannot be negative: %s".formatted(postIntervalMillis));
+                }
+                this.postIntervalMillis = postIntervalMillis;
+                return this;
+            }
+
+            /**
+             * @param pollIntervalMillis between the GETs of new messages of a user, {@code 0} to
+             *     not poll
+             * @throws IllegalArgumentException if {@code pollIntervalMillis < 0}
+             */
+            public Builder pollIntervalMillis(long pollIntervalMillis) {
+                if (pollIntervalMillis < 0) {
+                    throw new IllegalArgumentException(
+                            "Poll interval cannot be negative: %s".formatted(pollIntervalMillis));
+                }
+                this.pollIntervalMillis = pollIntervalMillis;
+                return this;
+            }
+
+            /**
+             * @param messageSize of a posted message in characters
+             * @throws IllegalArgumentException if {@code messageSize < 1}
+             */
+            public Builder messageSize(int messageSize) {
+                if (messageSize < 1) {
+                    throw new IllegalArgumentException(
+                            "Message size should be positive: %s".formatted(messageSize));
+                }
+                this.messageSize = messageSize;
+                return this;
+            }
+
+            /**
+             * @param postBurst messages posted pipelined at every scheduled POST of a user
+             * @throws IllegalArgumentException if {@code postBurst < 1}
+             */
+            public Builder postBurst(int postBurst) {
+                if (postBurst < 1) {
+                    throw new IllegalArgumentException(
+                            "Post burst should be positive: %s".formatted(postBurst));
+                }
+                this.postBurst = postBurst;
+                return this;
+            }
+
+            /**
+             * @throws IllegalArgumentException if {@code durationSeconds < 1}
+             */
+            public Builder durationSeconds(int durationSeconds) {
+                if (durationSeconds < 1) {
+                    throw new IllegalArgumentException(
+                            "Duration should be positive: %s".formatted(durationSeconds));
+                }
+                this.durationSeconds = durationSeconds;
+                return this;
+            }
+
+            /**
+             * @throws IllegalArgumentException if {@code reportIntervalSeconds < 1}
+             */
+            public Builder reportIntervalSeconds(int reportIntervalSeconds) {
+                if (reportIntervalSeconds < 1) {
+                    throw new IllegalArgumentException(
+                            "Report interval should be positive: %s"
+                                    .formatted(reportIntervalSeconds));
+                }
+                this.reportIntervalSeconds = reportIntervalSeconds;
+                return this;
+            }
+
+            public Builder wireFormat(WireFormat wireFormat) {
+                this.wireFormat = requireNonNull(wireFormat);
+                return this;
+            }
+
+            /**
+             * @throws IllegalArgumentException if both the post and the poll intervals are
+             *     {@code 0}
+             */
+            public Config build() {
+                if (postIntervalMillis == 0 && pollIntervalMillis == 0) {
+                    throw new IllegalArgumentException(
+                            "The users should post, poll or both, both intervals are 0");
+                }
+                return new Config(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Config [host="
+                    + host
+                    + ", port="
+                    + port
+                    + ", users="
+                    + users
+                    + ", postIntervalMillis="
+                    + postIntervalMillis
+                    + ", pollIntervalMillis="
+                    + pollIntervalMillis
+                    + ", messageSize="
+                    + messageSize
+                    + ", postBurst="
+                    + postBurst
+                    + ", durationSeconds="
+                    + durationSeconds
+                    + ", reportIntervalSeconds="
+                    + reportIntervalSeconds
+                    + ", wireFormat="
+                    + wireFormat
+                    + "]";
+        }
+    }
+}
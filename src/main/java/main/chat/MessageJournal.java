@@ -0,0 +1,620 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import main.chat.Server.ChatMessage;
+import main.chat.Server.User;
+
+/**
+ * Durable journal of {@link ChatMessage}s split into memory-mapped segment files.
+ *
+ * <p>A segment {@code <base id>.seg} holds the records of consecutive ids starting at its base id,
+ * its {@code <base id>.idx} maps {@code id - base id} to the offset of the record. When a segment
+ * is full a new one is started, and the oldest ones are deleted once there are more than {@code
+ * retainedSegments}.
+ *
+ * <pre>
+ * segment = MAGIC(int) VERSION(int) baseId(long) record* 0(int)
+ * record  = length(int) crc32(int) body
+ * body    = id(long) createdMillis(long) usernameLength(int) username text
+ * index   = offset(int)*
+ * </pre>
+ *
+ * <p>Opening the journal maps the segments and finds the number of records of each with a binary
+ * search of its index, nothing is parsed but the last few records, so it takes milliseconds
+ * whatever the size of the history. The record length is written last, and records are checked
+ * with their crc, so records torn by a crash are dropped.
+ *
+ * <p>Single writer, many readers: {@link #append(ChatMessage)} must be called by one thread at a
+ * time. Readers have to learn the ids they read through a happens-before edge with the writer,
+ * e.g. the {@code size} of the {@link ChatMessageLog}.
+ *
+ * @ThreadSafe for readers, NOT for concurrent writers
+ */
+public class MessageJournal implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(MessageJournal.class.getName());
+
+    private static final int MAGIC = 0x43484A4C; // "CHJL"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER = 16;
+
+    private static final int RECORD_HEADER = 8;
+    private static final int MIN_BODY = 8 + 8 + 4;
+
+    /**
+     * Smallest accepted segment, fits the record of a message with the biggest request body: its
+     * text takes up to 3 times the bytes of the body, a malformed byte is decoded into a 3 byte
+     * replacement character, and the username and the headers take much less than the rest
+     */
+    public static final int MIN_SEGMENT_SIZE = 4 * RequestParser.MAX_BODY_LENGTH;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int retainedSegments;
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    /** Replaced (never modified in place) on a roll or a deletion, the last one is written */
+    private volatile Segment[] segments;
+
+    /** The id of the next appended message */
+    private volatile long nextId;
+
+    /** Reused by the writer only */
+    private final CRC32 crc = new CRC32();
+
+    private MessageJournal(
+            Path directory,
+            int segmentSize,
+            int retainedSegments,
+            FileChannel lockChannel,
+            FileLock lock) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retainedSegments = retainedSegments;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens the journal in the {@code directory}, creating it if it doesn't exist, and recovers
+     * the segments written before
+     *
+     * @param directory to keep the segments in
+     * @param segmentSize of a new segment in bytes, existing segments keep their size
+     * @param retainedSegments the most segments kept, including the written one
+     * @return opened journal
+     * @throws IOException if the segments couldn't be read or created
+     * @throws IllegalArgumentException if {@code segmentSize < MIN_SEGMENT_SIZE} or {@code
+     *     retainedSegments < 2}
+     * @throws IllegalStateException if the journal is used by another server or its segments
+     *     aren't consecutive
+     */
+    public static MessageJournal open(Path directory, int segmentSize, int retainedSegments)
+            throws IOException {
+        requireNonNull(directory);
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException(
+                    "Segment size should be at least %s: %s"
+                            .formatted(MIN_SEGMENT_SIZE, segmentSize));
+        }
+        if (retainedSegments < 2) {
+            throw new IllegalArgumentException(
+                    "At least 2 segments should be retained: %s".formatted(retainedSegments));
+        }
+
+        Files.createDirectories(directory);
+        var lockChannel =
+                FileChannel.open(
+                        directory.resolve("journal.lock"),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) { // locked by this process
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IllegalStateException(
+                    "The journal is used by another process: %s".formatted(directory));
+        }
+
+        var journal =
+                new MessageJournal(directory, segmentSize, retainedSegments, lockChannel, lock);
+        try {
+            journal.recover();
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        var start = System.nanoTime();
+
+        var baseIds = new ArrayList<Long>();
+        try (var files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.matches("\\d{10,19}\\" + SEGMENT_SUFFIX))
+                    .forEach(
+                            name ->
+                                    baseIds.add(
+                                            Long.parseLong(
+                                                    name.substring(
+                                                            0,
+                                                            name.length()
+                                                                    - SEGMENT_SUFFIX.length()))));
+        }
+        baseIds.sort(null);
+
+        var recovered = new ArrayList<Segment>(baseIds.size());
+        for (var baseId : baseIds) {
+            var segment = Segment.open(directory, baseId, segmentSize);
+            segment.recover();
+
+            if (!recovered.isEmpty()) {
+                var previous = recovered.get(recovered.size() - 1);
+                if (previous.baseId + previous.count != baseId) {
+                    segment.close();
+                    recovered.forEach(Segment::close);
+                    throw new IllegalStateException(
+                            "The journal is corrupted: segment %s should start at id %s"
+                                    .formatted(baseId, previous.baseId + previous.count));
+                }
+            }
+            recovered.add(segment);
+        }
+
+        if (recovered.isEmpty()) {
+            recovered.add(Segment.create(directory, 0, segmentSize));
+        }
+
+        segments = recovered.toArray(Segment[]::new);
+        var last = segments[segments.length - 1];
+        nextId = last.baseId + last.count;
+
+        LOG.info(
+                "Recovered the journal %s: segments=%s, ids=[%s, %s) in %sms"
+                        .formatted(
+                                directory,
+                                segments.length,
+                                getFirstId(),
+                                nextId,
+                                (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * Writes the {@code message}, starting a new segment if the current one is full. The message
+     * becomes durable when the OS writes the mapped pages or after {@link #force()}
+     *
+     * @param message to write, its id should be {@link #getNextId()}
+     * @throws IllegalArgumentException if the id of the {@code message} isn't the next one or it
+     *     doesn't fit in a segment
+     * @throws UncheckedIOException if a new segment couldn't be created
+     */
+    public void append(ChatMessage message) {
+        requireNonNull(message);
+        if (message.getId() != nextId) {
+            throw new IllegalArgumentException(
+                    "Expected a message with id %s: %s".formatted(nextId, message.getId()));
+        }
+
+        var username = message.getUser().getUsername().getBytes(StandardCharsets.UTF_8);
+        var text = message.getUtf8Text();
+        var bodyLength = MIN_BODY + username.length + text.length;
+
+        var segment = segments[segments.length - 1];
+        if (!segment.fits(bodyLength)) {
+            if (SEGMENT_HEADER + RECORD_HEADER + bodyLength + 4 > segmentSize) {
+                throw new IllegalArgumentException(
+                        "The message of %s bytes doesn't fit in a segment".formatted(bodyLength));
+            }
+            segment = roll();
+        }
+
+        var data = segment.data;
+        var position = segment.position;
+        var body = position + RECORD_HEADER;
+
+        data.putLong(body, message.getId());
+        data.putLong(body + 8, message.getCreatedDate().toEpochMilli());
+        data.putInt(body + 16, username.length);
+        data.put(body + MIN_BODY, username);
+        data.put(body + MIN_BODY + username.length, text);
+
+        crc.reset();
+        crc.update(data.slice(body, bodyLength));
+        data.putInt(position + 4, (int) crc.getValue());
+        data.putInt(position, bodyLength); // the record is complete once it has a length
+
+        segment.index.putInt(segment.count * 4, position);
+        segment.count++;
+        segment.position = body + bodyLength;
+
+        nextId = message.getId() + 1;
+    }
+
+    /** Writes the mapped pages of the current segment to the disk */
+    public void force() {
+        segments[segments.length - 1].force();
+    }
+
+    /**
+     * @return the id of the oldest retained message, equals to {@link #getNextId()} if there are
+     *     none
+     */
+    public long getFirstId() {
+        return segments[0].baseId;
+    }
+
+    public long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * @param id of the message
+     * @return read message
+     * @throws IndexOutOfBoundsException if there is no message with the {@code id}, i.e. it was
+     *     deleted by the retention
+     */
+    public ChatMessage read(long id) {
+        var current = segments;
+        var segment = findSegment(current, id);
+        if (segment == null || id - segment.baseId >= segment.count) {
+            throw new IndexOutOfBoundsException(
+                    "No message with id: %s, ids: [%s, %s)"
+                            .formatted(id, current[0].baseId, nextId));
+        }
+
+        return segment.read(id);
+    }
+
+    /**
+     * Reads the messages with ids {@code [fromId, toId)} skipping the deleted ones
+     *
+     * @param fromId id of the first message, inclusive
+     * @param toId id of the last message, exclusive
+     * @param out to add the messages to
+     */
+    public void readRange(long fromId, long toId, List<ChatMessage> out) {
+        requireNonNull(out);
+
+        var current = segments;
+        var id = Math.max(fromId, current[0].baseId);
+        while (id < toId) {
+            var segment = findSegment(current, id);
+            if (segment == null || id - segment.baseId >= segment.count) {
+                throw new IndexOutOfBoundsException(
+                        "No message with id: %s, ids: [%s, %s)"
+                                .formatted(id, current[0].baseId, nextId));
+            }
+
+            var end = Math.min(toId, segment.baseId + segment.count);
+            for (; id < end; id++) {
+                out.add(segment.read(id));
+            }
+        }
+    }
+
+    private static Segment findSegment(Segment[] segments, long id) {
+        var low = 0;
+        var high = segments.length - 1;
+        while (low <= high) {
+            var middle = (low + high) >>> 1;
+            if (segments[middle].baseId <= id) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high < 0 ? null : segments[high];
+    }
+
+    /** Seals the current segment, starts a new one and deletes the ones out of the retention */
+    private Segment roll() {
+        var current = segments;
+        var sealed = current[current.length - 1];
+        sealed.force();
+
+        Segment next;
+        try {
+            next = Segment.create(directory, nextId, segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(
+                    "Couldn't create a segment starting at %s".formatted(nextId), e);
+        }
+
+        var rolled = Arrays.copyOf(current, current.length + 1);
+        rolled[current.length] = next;
+
+        var deleted = Math.max(0, rolled.length - retainedSegments);
+        segments = Arrays.copyOfRange(rolled, deleted, rolled.length);
+        for (int i = 0; i < deleted; i++) {
+            rolled[i].delete();
+        }
+
+        LOG.fine("Rolled the journal to %s, deleted %s segments".formatted(next, deleted));
+        return next;
+    }
+
+    /** Forces the current segment and releases the journal, should be called after the writer */
+    @Override
+    public void close() {
+        var current = segments;
+        if (current != null) {
+            current[current.length - 1].force();
+            Arrays.stream(current).forEach(Segment::close);
+        }
+
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't release the journal lock", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MessageJournal [directory="
+                + directory
+                + ", segments="
+                + (segments == null ? 0 : segments.length)
+                + ", nextId="
+                + nextId
+                + "]";
+    }
+
+    /**
+     * Record and index buffers of a segment file. {@link #count} and {@link #position} are
+     * changed only by the writer
+     */
+    private static class Segment {
+        private final Path dataFile;
+        private final Path indexFile;
+        private final FileChannel dataChannel;
+        private final FileChannel indexChannel;
+
+        private final long baseId;
+        private final MappedByteBuffer data;
+        private final MappedByteBuffer index;
+
+        private int count;
+        private int position = SEGMENT_HEADER;
+
+        private Segment(
+                Path dataFile,
+                Path indexFile,
+                FileChannel dataChannel,
+                FileChannel indexChannel,
+                long baseId,
+                MappedByteBuffer data,
+                MappedByteBuffer index) {
+            this.dataFile = dataFile;
+            this.indexFile = indexFile;
+            this.dataChannel = dataChannel;
+            this.indexChannel = indexChannel;
+            this.baseId = baseId;
+            this.data = data;
+            this.index = index;
+        }
+
+        static Segment create(Path directory, long baseId, int size) throws IOException {
+            var segment = map(directory, baseId, size);
+            segment.data.putInt(0, MAGIC);
+            segment.data.putInt(4, VERSION);
+            segment.data.putLong(8, baseId);
+            return segment;
+        }
+
+        /**
+         * @throws IllegalStateException if the file isn't a segment
+         */
+        static Segment open(Path directory, long baseId, int newSegmentSize) throws IOException {
+            var dataFile = directory.resolve(fileName(baseId, SEGMENT_SUFFIX));
+            var size = (int) Math.min(Integer.MAX_VALUE, Files.size(dataFile));
+            if (size == 0) { // crashed right after creating the file
+                return create(directory, baseId, newSegmentSize);
+            }
+
+            var segment = map(directory, baseId, size);
+            if (segment.data.getInt(0) != MAGIC
+                    || segment.data.getInt(4) != VERSION
+                    || segment.data.getLong(8) != baseId) {
+                segment.close();
+                throw new IllegalStateException("Not a journal segment: %s".formatted(dataFile));
+            }
+
+            return segment;
+        }
+
+        private static Segment map(Path directory, long baseId, int size) throws IOException {
+            var dataFile = directory.resolve(fileName(baseId, SEGMENT_SUFFIX));
+            var indexFile = directory.resolve(fileName(baseId, INDEX_SUFFIX));
+
+            var dataChannel =
+                    FileChannel.open(
+                            dataFile,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+            var indexChannel =
+                    FileChannel.open(
+                            indexFile,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+
+            // every record takes at least a header and a body
+            var maxRecords = (size - SEGMENT_HEADER) / (RECORD_HEADER + MIN_BODY);
+            return new Segment(
+                    dataFile,
+                    indexFile,
+                    dataChannel,
+                    indexChannel,
+                    baseId,
+                    dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, size),
+                    indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, maxRecords * 4L));
+        }
+
+        private static String fileName(long baseId, String suffix) {
+            return "%010d%s".formatted(baseId, suffix);
+        }
+
+        /**
+         * Finds the number of records with a binary search of the index, then drops the records
+         * failing the check from the end and indexes valid records written after the last indexed
+         * one
+         */
+        void recover() {
+            var low = 0;
+            var high = index.capacity() / 4;
+            while (low < high) { // the first zero offset
+                var middle = (low + high) >>> 1;
+                if (index.getInt(middle * 4) != 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            count = low;
+
+            while (count > 0 && recordEnd(index.getInt((count - 1) * 4), baseId + count - 1) < 0) {
+                count--;
+            }
+            position =
+                    count == 0
+                            ? SEGMENT_HEADER
+                            : recordEnd(index.getInt((count - 1) * 4), baseId + count - 1);
+
+            var maxRecords = index.capacity() / 4;
+            int end;
+            while (count < maxRecords && (end = recordEnd(position, baseId + count)) > 0) {
+                index.putInt(count * 4, position);
+                count++;
+                position = end;
+            }
+
+            for (int i = count; i < index.capacity() / 4 && index.getInt(i * 4) != 0; i++) {
+                index.putInt(i * 4, 0);
+            }
+            if (position + 4 <= data.capacity()) {
+                data.putInt(position, 0);
+            }
+        }
+
+        /**
+         * @param position of the record
+         * @param expectedId of the record
+         * @return the position after the record, {@code -1} if there is no valid record
+         */
+        private int recordEnd(int position, long expectedId) {
+            if (position < SEGMENT_HEADER || position + RECORD_HEADER > data.capacity()) {
+                return -1;
+            }
+
+            var length = data.getInt(position);
+            var body = position + RECORD_HEADER;
+            if (length < MIN_BODY || length > data.capacity() - body) {
+                return -1;
+            }
+
+            if (data.getLong(body) != expectedId) {
+                return -1;
+            }
+
+            var crc = new CRC32();
+            crc.update(data.slice(body, length));
+            if ((int) crc.getValue() != data.getInt(position + 4)) {
+                return -1;
+            }
+
+            return body + length;
+        }
+
+        /**
+         * @return {@code true} if a record with the body of {@code bodyLength} fits with the end
+         *     marker after it
+         */
+        boolean fits(int bodyLength) {
+            return (long) position + RECORD_HEADER + bodyLength + 4 <= data.capacity()
+                    && count < index.capacity() / 4;
+        }
+
+        ChatMessage read(long id) {
+            var position = index.getInt((int) (id - baseId) * 4);
+            var body = position + RECORD_HEADER;
+            var length = data.getInt(position);
+
+            var created = data.getLong(body + 8);
+            var usernameLength = data.getInt(body + 16);
+            var username = new byte[usernameLength];
+            data.get(body + MIN_BODY, username);
+            var text = new byte[length - MIN_BODY - usernameLength];
+            data.get(body + MIN_BODY + usernameLength, text);
+
+            return ChatMessage.ofUtf8(
+                    id,
+                    text,
+                    new User(new String(username, StandardCharsets.UTF_8), ""),
+                    Instant.ofEpochMilli(created));
+        }
+
+        void force() {
+            data.force();
+            index.force();
+        }
+
+        void close() {
+            try {
+                dataChannel.close();
+                indexChannel.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't close the segment %s".formatted(dataFile), e);
+            }
+        }
+
+        /** The mapping stays readable till it is garbage collected */
+        void delete() {
+            close();
+            try {
+                Files.deleteIfExists(dataFile);
+                Files.deleteIfExists(indexFile);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't delete the segment %s".formatted(dataFile), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Segment [baseId=" + baseId + ", count=" + count + "]";
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded queue of many producers and a single consumer, e.g. the handlers of the requests and a
+ * {@link GroupCommitWriter}, on an array of slots reused round the ring.
+ *
+ * <p>Every slot has a sequence number telling whose turn it is: a producer claims the next slot
+ * with a compare and set of the tail and publishes its item by advancing the sequence of the slot,
+ * the consumer takes the item and advances the sequence by a lap, handing the slot back to the
+ * producers. Producers contend only on the tail and never with the consumer, there is no lock and
+ * no node allocated per item.
+ *
+ * <p>The items can also be weighed, e.g. by their bytes, the buffer is full then when either the
+ * slots or the {@code maxWeight} run out. The weight is reserved by a compare and set before the
+ * slot is claimed and given back by the consumer, an item heavier than the {@code maxWeight}
+ * still fits an empty buffer.
+ *
+ * <p>A full buffer rejects {@link #offer(Object)}, the producers waiting for room in {@link
+ * #offer(Object, long, TimeUnit)} and {@link #put(Object)} back off parking for growing intervals.
+ * A consumer waiting for an item is unparked by the producer publishing it.
+ *
+ * <p>The methods removing items, {@link #poll()}, {@link #take()}, {@link #drainTo(Collection)}
+ * and the like, and {@link #peek()} must be called by one thread at a time. The buffer can't be
+ * iterated.
+ *
+ * @ThreadSafe for producers, NOT for concurrent consumers
+ */
+public class MpscRingBuffer<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+
+    /** The longest a producer parks between the checks of a full buffer */
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final Object[] items;
+
+    /**
+     * Of every slot: its index plus the laps of the ring while it's free for the producer of that
+     * position, one more once the item is published
+     */
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    /** Position of the next slot claimed by a producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Position of the next slot taken by the consumer, written by the consumer only */
+    private volatile long head;
+
+    /** The consumer parked waiting for an item, {@code null} if it isn't */
+    private volatile Thread consumer;
+
+    private final long maxWeight;
+
+    /** Of an item, {@code null} if the items aren't weighed */
+    private final ToLongFunction<? super T> weigher;
+
+    /** Of the items in the buffer and the ones being offered */
+    private final AtomicLong weight = new AtomicLong();
+
+    /**
+     * @param capacity the most items, rounded up to a power of two, at least 2
+     * @throws IllegalArgumentException if {@code capacity} isn't in the range [1, 2^30]
+     */
+    public MpscRingBuffer(int capacity) {
+        this(capacity, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param capacity the most items, rounded up to a power of two, at least 2
+     * @param maxWeight the most weight of the items
+     * @param weigher of an item, must weigh it the same every time and not be negative
+     * @throws IllegalArgumentException if {@code capacity} isn't in the range [1, 2^30] or {@code
+     *     maxWeight < 1}
+     */
+    public MpscRingBuffer(int capacity, long maxWeight, ToLongFunction<? super T> weigher) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "Capacity should be from 1 to 2^30: %s".formatted(capacity));
+        }
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException(
+                    "Max weight should be positive: %s".formatted(maxWeight));
+        }
+
+        // with one slot a published item would look free to the producer of the next lap
+        var size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.items = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return {@code false} if the buffer is full
+     */
+    @Override
+    public boolean offer(T item) {
+        requireNonNull(item);
+
+        var itemWeight = weigher == null ? 0 : weigher.applyAsLong(item);
+        if (itemWeight > 0 && !reserve(itemWeight)) {
+            return false;
+        }
+
+        while (true) {
+            var position = tail.get();
+            var index = (int) (position & mask);
+            var turn = sequences.get(index) - position;
+            if (turn < 0) {
+                // the consumer hasn't taken the item of the previous lap
+                if (itemWeight > 0) {
+                    weight.addAndGet(-itemWeight);
+                }
+                return false;
+            }
+            if (turn == 0 && tail.compareAndSet(position, position + 1)) {
+                items[index] = item;
+                sequences.set(index, position + 1);
+
+                var waiting = consumer;
+                if (waiting != null) {
+                    LockSupport.unpark(waiting);
+                }
+                return true;
+            }
+            // another producer claimed the slot
+        }
+    }
+
+    /**
+     * @return {@code false} if the {@code itemWeight} doesn't fit the {@link #maxWeight}, unless
+     *     the buffer has no weight at all
+     */
+    private boolean reserve(long itemWeight) {
+        while (true) {
+            var current = weight.get();
+            if (current > 0 && current + itemWeight > maxWeight) {
+                return false;
+            }
+            if (weight.compareAndSet(current, current + itemWeight)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return {@code false} if the buffer stayed full for the {@code timeout}
+     */
+    @Override
+    public boolean offer(T item, long timeout, TimeUnit unit) throws InterruptedException {
+        requireNonNull(item);
+
+        var deadline = System.nanoTime() + unit.toNanos(timeout);
+        var backoffNanos = MIN_BACKOFF_NANOS;
+        while (!offer(item)) {
+            var remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, backoffNanos));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            backoffNanos = Math.min(2 * backoffNanos, MAX_BACKOFF_NANOS);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(T item) throws InterruptedException {
+        offer(item, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /** Must be called by the consumer only */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        var position = head;
+        var index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null; // not published yet
+        }
+
+        var item = (T) items[index];
+        items[index] = null;
+        head = position + 1;
+        sequences.set(index, position + items.length);
+        if (weigher != null) {
+            weight.addAndGet(-weigher.applyAsLong(item));
+        }
+        return item;
+    }
+
+    /** Must be called by the consumer only */
+    @Override
+    public T take() throws InterruptedException {
+        T item;
+        while ((item = poll()) == null) {
+            await(Long.MAX_VALUE);
+        }
+        return item;
+    }
+
+    /** Must be called by the consumer only */
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        var deadline = System.nanoTime() + unit.toNanos(timeout);
+        T item;
+        while ((item = poll()) == null) {
+            var remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            await(remaining);
+        }
+        return item;
+    }
+
+    /**
+     * Parks the consumer till a producer publishes an item, for at most {@code nanos}
+     */
+    private void await(long nanos) throws InterruptedException {
+        consumer = Thread.currentThread();
+        try {
+            // checked after the consumer is set, a producer publishing meanwhile unparks it
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        } finally {
+            consumer = null;
+        }
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /** Must be called by the consumer only */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        var position = head;
+        var index = (int) (position & mask);
+        return sequences.get(index) == position + 1 ? (T) items[index] : null;
+    }
+
+    /**
+     * @return whether the next item isn't published yet
+     */
+    @Override
+    public boolean isEmpty() {
+        var position = head;
+        return sequences.get((int) (position & mask)) != position + 1;
+    }
+
+    /**
+     * @return the number of claimed slots, including the ones being published
+     */
+    @Override
+    public int size() {
+        var size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, items.length));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return items.length - size();
+    }
+
+    /**
+     * @return the most items the buffer holds
+     */
+    public int getCapacity() {
+        return items.length;
+    }
+
+    /**
+     * @return the weight of the items, including the ones being offered
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /** Must be called by the consumer only */
+    @Override
+    public int drainTo(Collection<? super T> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    /** Must be called by the consumer only */
+    @Override
+    public int drainTo(Collection<? super T> target, int maxItems) {
+        requireNonNull(target);
+        if (target == this) {
+            throw new IllegalArgumentException("Cannot drain a buffer to itself");
+        }
+
+        var drained = 0;
+        T item;
+        while (drained < maxItems && (item = poll()) != null) {
+            target.add(item);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, the buffer is only drained
+     */
+    @Override
+    public Iterator<T> iterator() {
+        throw new UnsupportedOperationException("A ring buffer can't be iterated");
+    }
+
+    @Override
+    public String toString() {
+        return "MpscRingBuffer [size="
+                + size()
+                + ", capacity="
+                + items.length
+                + ", weight="
+                + weight.get()
+                + "]";
+    }
+}
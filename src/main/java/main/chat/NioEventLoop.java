@@ -0,0 +1,518 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking connection handling for the {@link Server}. One acceptor thread accepts sockets on a
+ * {@link ServerSocketChannel} and hands them out round-robin to a small, fixed number of event loop
+ * threads, each of them multiplexing its connections over its own {@link Selector}.
+ *
+ * <p>A connection doesn't own a thread, so an idle keep-alive client costs only its {@link
+ * Connection} buffers.
+ *
+ * <p>Every connection has its own {@link RequestHandler}, which is given the bytes read from the
+ * socket without blocking, together with what it left unconsumed before, and does the framing.
+ * Responses are sent through the connection's {@link Responder}, which queues them and writes them out as
+ * soon as the socket is writable. A request can be answered later, or more than once, from any
+ * thread (i.e. long polling and streaming). The responses sent while the handler runs, i.e. to
+ * pipelined requests read at once, are written together with one gathering write after it returns.
+ *
+ * <p>A connection whose client doesn't read its responses, so more than {@code maxPendingBytes}
+ * of them are queued, is closed, a slow consumer mustn't hold the memory of the server.
+ */
+class NioEventLoop implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(NioEventLoop.class.getName());
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    /**
+     * Handles requests read from a connection. Runs on an event loop thread, must NOT block.
+     *
+     * @NotThreadSafe, one per connection
+     */
+    @FunctionalInterface
+    interface RequestHandler {
+        /**
+         * @param socketName of the connection
+         * @param data read bytes between the position and the limit, the handler moves the
+         *     position past the requests it has consumed, the rest is given to it again with the
+         *     next read bytes. Valid only during the call
+         * @param responder to send the responses with
+         */
+        void handle(String socketName, ByteBuffer data, Responder responder);
+
+        /**
+         * Called once the connection is accepted, before any data is read from it
+         *
+         * @param socketName of the connection
+         * @param responder of the connection
+         */
+        default void onOpen(String socketName, Responder responder) {}
+
+        /** Called once the connection is closed, by either side */
+        default void onClose() {}
+    }
+
+    /**
+     * Sends responses to a connection. Tasks passed to {@link #execute(Runnable)} run on the event
+     * loop thread of the connection.
+     *
+     * @ThreadSafe
+     */
+    interface Responder extends Executor {
+        /**
+         * Queues the encoded {@code response} to be written, silently dropped if the connection is
+         * closed
+         */
+        void send(byte[] response);
+
+        /**
+         * Writes what the socket accepts right away of the queued responses and closes the
+         * connection, on its event loop
+         */
+        void disconnect();
+
+        boolean isOpen();
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final Thread acceptor;
+    private final Loop[] loops;
+    private final Supplier<RequestHandler> handlers;
+    private final long maxPendingBytes;
+    private final Runnable onSlowConsumer;
+
+    private int nextLoop;
+    private volatile boolean isClosed;
+
+    /**
+     * @param port to listen on
+     * @param loopsNumber of event loop threads serving connections, should be positive
+     * @param handlers creates the handler of the requests of every connection
+     * @param maxPendingBytes the most bytes of responses queued to a connection, it's closed when
+     *     more are sent
+     * @param onSlowConsumer called on the event loop thread when a connection is closed for
+     *     exceeding the {@code maxPendingBytes}
+     * @throws IOException if the port couldn't be bound
+     * @throws IllegalArgumentException if {@code loopsNumber < 1} or {@code maxPendingBytes < 1}
+     */
+    NioEventLoop(
+            int port,
+            int loopsNumber,
+            Supplier<RequestHandler> handlers,
+            long maxPendingBytes,
+            Runnable onSlowConsumer)
+            throws IOException {
+        if (loopsNumber < 1) {
+            throw new IllegalArgumentException(
+                    "The number of event loops should be positive: %s".formatted(loopsNumber));
+        }
+        if (maxPendingBytes < 1) {
+            throw new IllegalArgumentException(
+                    "Max pending bytes should be positive: %s".formatted(maxPendingBytes));
+        }
+        this.handlers = requireNonNull(handlers);
+        this.maxPendingBytes = maxPendingBytes;
+        this.onSlowConsumer = requireNonNull(onSlowConsumer);
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.socket().setReuseAddress(true);
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+
+        this.acceptSelector = Selector.open();
+        this.serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        this.loops = new Loop[loopsNumber];
+        for (int i = 0; i < loopsNumber; i++) {
+            loops[i] = new Loop(i);
+        }
+
+        this.acceptor = new Thread(this::accept, "nio-acceptor");
+    }
+
+    void start() {
+        for (var loop : loops) {
+            loop.thread.start();
+        }
+        acceptor.start();
+        LOG.info("Started: %s with %s event loops".formatted(serverChannel, loops.length));
+    }
+
+    private void accept() {
+        try {
+            while (!isClosed && !Thread.currentThread().isInterrupted()) {
+                acceptSelector.select();
+
+                var keys = acceptSelector.selectedKeys();
+                for (var key : keys) {
+                    if (!key.isValid() || !key.isAcceptable()) {
+                        continue;
+                    }
+
+                    SocketChannel channel;
+                    while ((channel = serverChannel.accept()) != null) {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+
+                        loops[nextLoop].register(channel);
+                        nextLoop = nextLoop + 1 == loops.length ? 0 : nextLoop + 1;
+                    }
+                }
+                keys.clear();
+            }
+        } catch (ClosedSelectorException e) {
+            LOG.info("Acceptor was closed");
+        } catch (IOException e) {
+            if (!isClosed) {
+                LOG.log(Level.SEVERE, "Acceptor failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes all the open ones and waits for event loop threads to
+     * terminate.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+
+        try {
+            acceptSelector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            LOG.warning(e.toString());
+        }
+        acceptor.interrupt();
+        acceptor.join(TimeUnit.SECONDS.toMillis(2));
+
+        for (var loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (var loop : loops) {
+            loop.thread.join(TimeUnit.SECONDS.toMillis(2));
+            if (loop.thread.isAlive()) {
+                LOG.warning("Couldn't stop event loop: " + loop.thread);
+            }
+        }
+    }
+
+    private class Loop {
+        private final Selector selector;
+        private final Thread thread;
+        /** Channels accepted by the acceptor, but not yet registered with the {@link #selector} */
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        /** Submitted by other threads to run on this loop */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        Loop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this::run, "nio-event-loop-" + index);
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(requireNonNull(task));
+            selector.wakeup();
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Task failed", e);
+                }
+            }
+        }
+
+        private void run() {
+            try {
+                while (!isClosed) {
+                    selector.select();
+                    registerPending();
+                    runTasks();
+
+                    var keys = selector.selectedKeys();
+                    for (var key : keys) {
+                        var connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            LOG.log(
+                                    Level.FINE,
+                                    e,
+                                    () -> "%s | IOException".formatted(connection.name));
+                            connection.close();
+                        }
+                    }
+                    keys.clear();
+                }
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Event loop failed", e);
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    var key = channel.register(selector, SelectionKey.OP_READ);
+                    var connection = new Connection(this, channel, key);
+                    key.attach(connection);
+                    LOG.fine(() -> "Connected: " + connection.name);
+                    connection.handler.onOpen(connection.name, connection);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Couldn't register: " + channel, e);
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void closeAll() {
+            pending.forEach(NioEventLoop::closeQuietly);
+            try {
+                for (var key : selector.keys()) {
+                    if (key.attachment() instanceof Connection connection) {
+                        connection.close();
+                    } else {
+                        closeQuietly(key.channel());
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                LOG.warning(e.toString());
+            }
+        }
+    }
+
+    /** Not thread safe, accessed only by its event loop thread except for the {@link Responder} */
+    private class Connection implements Responder {
+        private final Loop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String name;
+        private final RequestHandler handler;
+        private volatile boolean isOpen = true;
+
+        /** {@code true} while the {@link #handler} runs, its responses are written after it */
+        private boolean isHandling;
+
+        /** Read bytes not yet consumed by the {@link #handler}, between position and limit */
+        private ByteBuffer request = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+        private final Queue<ByteBuffer> responses = new ArrayDeque<>();
+
+        /** Bytes of the {@link #responses} not yet written */
+        private long pendingBytes;
+
+        Connection(Loop loop, SocketChannel channel, SelectionKey key) throws IOException {
+            this.loop = requireNonNull(loop);
+            this.channel = requireNonNull(channel);
+            this.key = requireNonNull(key);
+            var address = (InetSocketAddress) channel.getRemoteAddress();
+            this.name = "[%s:%s]".formatted(address.getAddress(), address.getPort());
+            this.handler = requireNonNull(handlers.get());
+        }
+
+        /**
+         * Reads everything that is available from the {@link #channel}, if something was read,
+         * passes it to the {@link #handler}
+         *
+         * @param buffer to use for reading, shared by all connections of the loop
+         * @throws IOException if reading fails
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            int length;
+            var wasRead = false;
+            while ((length = channel.read(buffer.clear())) > 0) {
+                append(buffer.flip());
+                wasRead = true;
+            }
+
+            if (wasRead) {
+                isHandling = true;
+                try {
+                    handler.handle(name, request, this);
+                } finally {
+                    isHandling = false;
+                }
+                if (isOpen && !responses.isEmpty()) {
+                    write();
+                }
+                if (!request.hasRemaining()) {
+                    // an idle connection keeps only a small buffer after a big request
+                    request =
+                            request.capacity() > READ_BUFFER_SIZE
+                                    ? ByteBuffer.allocate(READ_BUFFER_SIZE).flip()
+                                    : request.clear().flip();
+                }
+            }
+
+            if (length == -1) {
+                LOG.fine(() -> "Disconnected: " + name);
+                close();
+            }
+        }
+
+        /** Appends {@code data} after the limit of the {@link #request}, compacting or growing it */
+        private void append(ByteBuffer data) {
+            if (request.capacity() - request.limit() < data.remaining()) {
+                var unconsumed = request.remaining();
+                if (request.capacity() - unconsumed >= data.remaining()) {
+                    request.compact().flip();
+                } else {
+                    request =
+                            ByteBuffer.allocate(
+                                            Math.max(
+                                                    request.capacity() * 2,
+                                                    unconsumed + data.remaining()))
+                                    .put(request)
+                                    .flip();
+                }
+            }
+
+            var position = request.position();
+            request.position(request.limit()).limit(request.limit() + data.remaining());
+            request.put(data).position(position);
+        }
+
+        /**
+         * Writes queued responses with one gathering write, if the socket's send buffer gets full
+         * the connection starts waiting for {@link SelectionKey#OP_WRITE}
+         */
+        void write() throws IOException {
+            if (!responses.isEmpty()) {
+                pendingBytes -= channel.write(responses.toArray(ByteBuffer[]::new));
+                while (!responses.isEmpty() && !responses.peek().hasRemaining()) {
+                    responses.poll();
+                }
+            }
+
+            if (key.isValid()) {
+                key.interestOps(
+                        responses.isEmpty()
+                                ? SelectionKey.OP_READ
+                                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        public void send(byte[] response) {
+            requireNonNull(response);
+
+            if (Thread.currentThread() != loop.thread) {
+                execute(() -> send(response));
+                return;
+            }
+
+            if (!isOpen) {
+                return;
+            }
+
+            responses.add(ByteBuffer.wrap(response));
+            pendingBytes += response.length;
+            if (pendingBytes > maxPendingBytes) {
+                LOG.warning(
+                        "%s | Closing a slow consumer, pending bytes: %s"
+                                .formatted(name, pendingBytes));
+                close();
+                onSlowConsumer.run();
+                return;
+            }
+            if (isHandling) {
+                return;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, e, () -> "%s | IOException".formatted(name));
+                close();
+            }
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            loop.execute(task);
+        }
+
+        @Override
+        public void disconnect() {
+            if (Thread.currentThread() != loop.thread) {
+                execute(this::disconnect);
+                return;
+            }
+
+            if (!isOpen) {
+                return;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, e, () -> "%s | IOException".formatted(name));
+            }
+            close();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        void close() {
+            if (!isOpen) {
+                return;
+            }
+            isOpen = false;
+            responses.clear();
+            key.cancel();
+            closeQuietly(channel);
+            handler.onClose();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warning(e.toString());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Token buckets keyed by client, e.g. by the socket name a {@link Server.User} is named after,
+ * taken from without locking.
+ *
+ * <p>A bucket holds up to {@code burst} tokens and gains {@code permitsPerSecond} of them. It's
+ * kept as one number, the time it will be full again, moved forward with a compare and set by
+ * every taken permit (the generic cell rate algorithm), so there is no refill thread and a racing
+ * client only retries its own CAS.
+ *
+ * <p>Taking more permits than the {@code burst} needs a full bucket and leaves it in debt for the
+ * rest, so a client taking big batches gets no more than the rate on average either.
+ *
+ * <p>A full bucket is the same as a missing one, so once there are more than {@code maxKeys}
+ * buckets the full ones are dropped, which keeps the map as big as the set of recently active
+ * clients.
+ *
+ * @ThreadSafe
+ */
+public class RateLimiter {
+    private final long intervalNanos;
+    private final int burst;
+    private final long toleranceNanos;
+    private final int maxKeys;
+
+    /** {@link System#nanoTime()}, or a fake one in the tests */
+    private final LongSupplier nanoTime;
+
+    /** The {@link #nanoTime} each bucket is full at */
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    /** Size of the {@link #buckets} to drop the full ones at, grows if most are in use */
+    private volatile int purgeAt;
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param permitsPerSecond the rate the buckets refill at
+     * @param burst the most permits a bucket holds
+     * @param maxKeys the number of buckets to start dropping the full ones at
+     * @throws IllegalArgumentException if {@code permitsPerSecond} isn't in the range (0, 10^9],
+     *     {@code burst < 1} or {@code maxKeys < 1}
+     */
+    public RateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+        this(permitsPerSecond, burst, maxKeys, System::nanoTime);
+    }
+
+    /**
+     * @param nanoTime the time source used instead of {@link System#nanoTime()}, for the tests
+     */
+    RateLimiter(double permitsPerSecond, int burst, int maxKeys, LongSupplier nanoTime) {
+        if (!(permitsPerSecond > 0 && permitsPerSecond <= 1e9)) {
+            throw new IllegalArgumentException(
+                    "Permits per second should be in (0, 10^9]: %s".formatted(permitsPerSecond));
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst should be positive: %s".formatted(burst));
+        }
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException(
+                    "Max keys should be positive: %s".formatted(maxKeys));
+        }
+
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burst = burst;
+        this.toleranceNanos = intervalNanos * burst;
+        this.maxKeys = maxKeys;
+        this.purgeAt = maxKeys;
+        this.nanoTime = requireNonNull(nanoTime);
+    }
+
+    /**
+     * Takes {@code permits} tokens from the bucket of the {@code key}, if it has them
+     *
+     * @param key of the client
+     * @param permits to take, more than the {@code burst} take a full bucket and the rest is
+     *     owed, the bucket refills only after the debt is paid
+     * @return {@code false} if the bucket doesn't have enough tokens, none are taken then
+     * @throws IllegalArgumentException if {@code permits < 1}
+     */
+    public boolean tryAcquire(String key, int permits) {
+        requireNonNull(key);
+        if (permits < 1) {
+            throw new IllegalArgumentException("Permits should be positive: %s".formatted(permits));
+        }
+
+        var bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= purgeAt) {
+                purge();
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(nanoTime.getAsLong()));
+        }
+
+        var cost = permits * intervalNanos;
+        // a request is let in if the bucket has what it can hold of the cost
+        var requiredNanos = Math.min(permits, burst) * intervalNanos;
+        while (true) {
+            var now = nanoTime.getAsLong();
+            var fullAt = bucket.get();
+            var from = fullAt - now < 0 ? now : fullAt;
+            if (from + requiredNanos - now > toleranceNanos) {
+                rejected.increment();
+                return false;
+            }
+            if (bucket.compareAndSet(fullAt, from + cost)) {
+                return true;
+            }
+        }
+    }
+
+    /** Drops the full buckets, raises {@link #purgeAt} if most of them aren't */
+    private synchronized void purge() {
+        if (buckets.size() < purgeAt) {
+            return; // purged by another thread
+        }
+
+        var now = nanoTime.getAsLong();
+        buckets.values().removeIf(fullAt -> fullAt.get() - now <= 0);
+        // not purging on every new key when most of the clients are active
+        purgeAt = Math.max(maxKeys, 2 * buckets.size());
+    }
+
+    /**
+     * @return the number of rejected {@link #tryAcquire(String, int)} calls
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return one line summary of the limits, the buckets and the rejections
+     */
+    public String getStats() {
+        return "[permitsPerSecond=%.1f, burst=%s, keys=%s, rejected=%s]"
+                .formatted(
+                        (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos,
+                        burst,
+                        buckets.size(),
+                        rejected.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter " + getStats();
+    }
+}
@@ -0,0 +1,283 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import main.chat.Client.HttpRequest;
+import main.chat.Client.HttpRequest.HttpMethod;
+import main.chat.Client.HttpResponse.HttpStatus;
+import main.chat.Client.ServerConnector;
+import main.chat.Server.ChatMessage;
+
+/**
+ * Keeps the {@link ChatRooms} of a follower server a copy of the rooms of the leader server. Every
+ * room opened on the follower is tailed with a {@code GET /rooms/<id>/messages/stream} to the
+ * leader, on its own connection and thread, and the received messages are posted to the room,
+ * getting the ids they have on the leader. A room is opened on the follower by its first read,
+ * see {@link ChatRooms#findRoom(String)}, the leader streams heartbeats till it has the room.
+ *
+ * <p>The leader pushes a page of messages as soon as the previous one is sent, without waiting
+ * for the follower, so a follower catching up gets pages of up to {@link
+ * Server.Config#getMaxPageSize()} messages back to back, in the {@link BinaryWireFormat}.
+ *
+ * <p>A lost connection is reopened after {@link #RECONNECT_DELAY_MILLIS}, continuing from the
+ * last received message. A room whose next messages were deleted by the retention of the leader's
+ * journal can't be continued, it stops being replicated.
+ *
+ * @ThreadSafe
+ */
+public class ReplicationFollower implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(ReplicationFollower.class.getName());
+
+    /** The leader sends a heartbeat every 10 seconds, missing a few means it is gone */
+    private static final int READ_TIMEOUT_MILLIS = 35_000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+
+    static final int RECONNECT_DELAY_MILLIS = 1_000;
+
+    private final InetSocketAddress leader;
+    private final ChatRooms chatRooms;
+
+    /** A thread per tailed room */
+    private final ExecutorService tailers = Executors.newCachedThreadPool();
+
+    private final Map<String, Tailer> rooms = new ConcurrentHashMap<>();
+
+    /** Of the tailers, closed to stop their blocking reads */
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean isClosed;
+
+    /**
+     * @param leader address of the leader server
+     * @param chatRooms to copy the rooms of the leader to, written only by this follower
+     */
+    public ReplicationFollower(InetSocketAddress leader, ChatRooms chatRooms) {
+        this.leader = requireNonNull(leader);
+        this.chatRooms = requireNonNull(chatRooms);
+    }
+
+    /** Starts tailing the open rooms and every room opened later */
+    public void start() {
+        chatRooms.addOpenListener(this::follow);
+    }
+
+    private void follow(String room) {
+        if (isClosed) {
+            return;
+        }
+
+        rooms.computeIfAbsent(
+                room,
+                id -> {
+                    var tailer = new Tailer(id, chatRooms.getRoom(id).size());
+                    tailers.submit(tailer);
+                    return tailer;
+                });
+    }
+
+    /**
+     * Appends the replication state of every room: whether it's connected, the next expected id,
+     * the received messages not yet appended, and the lag between a message was created on the
+     * leader and received, a {@code name value} line each
+     *
+     * @param out to append to
+     */
+    public void appendMetrics(StringBuilder out) {
+        requireNonNull(out);
+
+        ServerMetrics.appendLine(out, "replication.leader", leader);
+        var maxLagMillis = 0L;
+        for (var tailer : rooms.values()) {
+            maxLagMillis = Math.max(maxLagMillis, tailer.lagMillis);
+        }
+        ServerMetrics.appendLine(out, "replication.lagMillis", maxLagMillis);
+        rooms.forEach(
+                (room, tailer) ->
+                        ServerMetrics.appendLine(out, "replication." + room, tailer.getStats()));
+    }
+
+    /** Stops tailing the rooms, the received messages may still be queued to the rooms */
+    @Override
+    public void close() throws InterruptedException {
+        isClosed = true;
+        tailers.shutdownNow();
+        for (var socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Couldn't close a replication connection", e);
+            }
+        }
+
+        if (!tailers.awaitTermination(5, TimeUnit.SECONDS)) {
+            LOG.warning("Couldn't stop the replication of the rooms. Timeout");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationFollower [leader=" + leader + ", rooms=" + rooms.size() + "]";
+    }
+
+    private class Tailer implements Runnable {
+        private final String room;
+
+        /** Id of the next message expected from the leader, written by the tailer only */
+        private volatile long nextId;
+
+        private volatile boolean isConnected;
+        private volatile boolean isStopped;
+        private volatile long received;
+        private volatile long reconnects;
+
+        /** Between the creation of the last received message and receiving it */
+        private volatile long lagMillis;
+
+        /** Whether the last page from the leader said there are more messages */
+        private volatile boolean isBehind;
+
+        Tailer(String room, long nextId) {
+            this.room = room;
+            this.nextId = nextId;
+        }
+
+        @Override
+        public void run() {
+            while (!isClosed && !Thread.currentThread().isInterrupted()) {
+                try {
+                    tail();
+                } catch (IllegalStateException e) {
+                    LOG.log(Level.SEVERE, "Stopped replicating room '%s'".formatted(room), e);
+                    isStopped = true;
+                    return;
+                } catch (Exception e) {
+                    if (isClosed) {
+                        return;
+                    }
+                    LOG.log(
+                            Level.WARNING,
+                            "Lost the replication of room '%s' from %s".formatted(room, leader),
+                            e);
+                } finally {
+                    isConnected = false;
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reconnects++;
+            }
+        }
+
+        /**
+         * Streams the messages of the room from the leader and posts them to the room, till the
+         * connection fails
+         *
+         * @throws IllegalStateException if the leader doesn't have the next message anymore
+         */
+        @SuppressWarnings("unchecked")
+        private void tail() throws IOException {
+            try (var socket = new Socket()) {
+                sockets.add(socket);
+                try {
+                    socket.connect(leader, CONNECT_TIMEOUT_MILLIS);
+                    socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+
+                    var request =
+                            new HttpRequest(
+                                    socket.toString(),
+                                    HttpMethod.GET,
+                                    "/rooms/%s/messages/stream?lastId=%s"
+                                            .formatted(room, nextId - 1),
+                                    Map.of(
+                                            BinaryWireFormat.ACCEPT_HEADER,
+                                            BinaryWireFormat.BINARY));
+                    var out = socket.getOutputStream();
+                    out.write(
+                            ServerConnector.getRequestMsg(request)
+                                    .getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+
+                    var in = new BufferedInputStream(socket.getInputStream());
+                    isConnected = true;
+                    LOG.info(
+                            "Replicating room '%s' from %s, next id: %s"
+                                    .formatted(room, leader, nextId));
+
+                    while (!isClosed) {
+                        var response = ServerConnector.readResponse(in, List.class);
+                        if (response.getStatus() != HttpStatus.OK
+                                || response.getBody().isEmpty()) {
+                            throw new IOException(
+                                    "The leader responded with an error: %s".formatted(response));
+                        }
+
+                        append((List<ChatMessage>) response.getBody().get());
+                        isBehind = response.getNextCursor().isPresent();
+                    }
+                } finally {
+                    sockets.remove(socket);
+                }
+            }
+        }
+
+        private void append(List<ChatMessage> messages) {
+            if (messages.isEmpty()) {
+                lagMillis = 0; // a heartbeat, sent only when there is nothing to replicate
+                return;
+            }
+
+            var firstId = messages.get(0).getId();
+            if (firstId != nextId) {
+                throw new IllegalStateException(
+                        "Expected message %s of room '%s' from the leader, received %s"
+                                .formatted(nextId, room, firstId));
+            }
+
+            // the room is written only by this tailer, the ids it assigns are the leader's ones
+            chatRooms.postAll(room, messages);
+
+            var last = messages.get(messages.size() - 1);
+            nextId = last.getId() + 1;
+            received += messages.size();
+            lagMillis =
+                    Math.max(
+                            0,
+                            Instant.now().toEpochMilli() - last.getCreatedDate().toEpochMilli());
+        }
+
+        String getStats() {
+            return ("[connected=%s, stopped=%s, nextId=%s, pending=%s, behind=%s, received=%s,"
+                            + " lagMillis=%s, reconnects=%s]")
+                    .formatted(
+                            isConnected,
+                            isStopped,
+                            nextId,
+                            nextId - chatRooms.getRoom(room).size(),
+                            isBehind,
+                            received,
+                            lagMillis,
+                            reconnects);
+        }
+    }
+}
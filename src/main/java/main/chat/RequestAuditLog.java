@@ -0,0 +1,674 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import main.chat.Server.HttpRequest;
+import main.chat.Server.HttpRequest.HttpMethod;
+
+/**
+ * Audit trail of the handled {@link HttpRequest}s: the newest {@code inMemoryRequests} are kept in
+ * a ring, older ones are spilled in batches to an append-only file with an index of the offsets
+ * and the times of the records, so the heap stays bounded whatever the number of requests.
+ *
+ * <pre>
+ * requests.audit     = MAGIC(int) VERSION(int) record*
+ * record             = length(int) socketName method(byte) target parameters headers body
+ * parameters/headers = count(int) (string string)*, count is -1 if absent
+ * body               = string, length is -1 if absent
+ * string             = length(int) UTF-8 bytes
+ * requests.audit.idx = (offset(long) receivedMillis(long))*
+ * </pre>
+ *
+ * <p>The id of a request is its position in the log, the time it was received is the time it
+ * was appended, never earlier than the time of the previous one. The queries decode only the
+ * matching records, reading the file a block of {@link #READ_BLOCK} records at a time.
+ *
+ * <p>The records reach the disk when the OS writes them, a record not completely written before
+ * a crash is dropped when the log is opened.
+ *
+ * <p>There is no retention: only the memory is bounded, the files keep every request ever
+ * appended and grow until they are deleted while the server is stopped.
+ *
+ * <p>Single writer, many readers: {@link #append(HttpRequest)} must be called by one thread at a
+ * time. The writer writes a spilled batch to the file first and only then publishes it with a
+ * volatile write of {@link #spilled}, a reader finding a slot of the ring overwritten reads the
+ * request from the file instead.
+ *
+ * @ThreadSafe for readers, NOT for concurrent writers
+ */
+public class RequestAuditLog implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(RequestAuditLog.class.getName());
+
+    private static final int MAGIC = 0x41554454; // "AUDT"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int INDEX_ENTRY = 16;
+    private static final int ABSENT = -1;
+
+    /** The most records spilled at once */
+    private static final int MAX_SPILL_BATCH = 1024;
+
+    /** The most records read from the file at once by a query */
+    private static final int READ_BLOCK = 256;
+
+    private static final String RECORDS_FILE = "requests.audit";
+    private static final String INDEX_FILE = "requests.audit.idx";
+
+    private final Path directory;
+    private final FileChannel records;
+    private final FileChannel index;
+    private final FileLock lock;
+
+    /** The slot of a request is {@code id % window.length} */
+    private final Entry[] window;
+
+    private final int spillBatch;
+
+    /** The number of appended requests, is also the id of the next one */
+    private volatile long size;
+
+    /** The requests below it are in the file */
+    private volatile long spilled;
+
+    /** Accessed only by the writer */
+    private long recordsEnd;
+
+    /** Accessed only by the writer */
+    private long lastMillis;
+
+    private RequestAuditLog(
+            Path directory,
+            FileChannel records,
+            FileChannel index,
+            FileLock lock,
+            int inMemoryRequests)
+            throws IOException {
+        this.directory = directory;
+        this.records = records;
+        this.index = index;
+        this.lock = lock;
+        this.window = new Entry[inMemoryRequests];
+        this.spillBatch = Math.max(1, Math.min(inMemoryRequests / 2, MAX_SPILL_BATCH));
+
+        recover();
+    }
+
+    /**
+     * Opens the log in the {@code directory}, creating it if it doesn't exist, and continues the
+     * requests spilled before
+     *
+     * @param directory to keep the files in
+     * @param inMemoryRequests the most requests kept in memory
+     * @return opened log
+     * @throws IOException if the files couldn't be read or created
+     * @throws IllegalArgumentException if {@code inMemoryRequests < 1}
+     * @throws IllegalStateException if the log is used by another server or the file isn't an
+     *     audit log
+     */
+    public static RequestAuditLog open(Path directory, int inMemoryRequests) throws IOException {
+        requireNonNull(directory);
+        if (inMemoryRequests < 1) {
+            throw new IllegalArgumentException(
+                    "In memory requests should be positive: %s".formatted(inMemoryRequests));
+        }
+
+        Files.createDirectories(directory);
+        var records =
+                FileChannel.open(
+                        directory.resolve(RECORDS_FILE),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        FileChannel index = null;
+        try {
+            FileLock lock;
+            try {
+                lock = records.tryLock();
+            } catch (OverlappingFileLockException e) { // locked by this process
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IllegalStateException(
+                        "The audit log is used by another server: %s".formatted(directory));
+            }
+
+            index =
+                    FileChannel.open(
+                            directory.resolve(INDEX_FILE),
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+            return new RequestAuditLog(directory, records, index, lock, inMemoryRequests);
+        } catch (IOException | RuntimeException e) {
+            records.close();
+            if (index != null) {
+                index.close();
+            }
+            throw e;
+        }
+    }
+
+    /** Drops the index entries of the records not completely written and the unindexed records */
+    private void recover() throws IOException {
+        if (records.size() < HEADER) {
+            var header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(records, header, 0);
+            records.truncate(HEADER);
+            index.truncate(0);
+        } else {
+            var header = ByteBuffer.allocate(HEADER);
+            readFully(records, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IllegalStateException(
+                        "Not an audit log: %s".formatted(directory.resolve(RECORDS_FILE)));
+            }
+        }
+
+        var count = index.size() / INDEX_ENTRY;
+        var end = (long) HEADER;
+        var entry = ByteBuffer.allocate(INDEX_ENTRY);
+        var length = ByteBuffer.allocate(4);
+        for (; count > 0; count--) {
+            readFully(index, entry.clear(), (count - 1) * INDEX_ENTRY);
+            var offset = entry.getLong(0);
+            if (offset < HEADER || offset + 4 > records.size()) {
+                continue;
+            }
+
+            readFully(records, length.clear(), offset);
+            if (offset + 4 + length.getInt(0) <= records.size()) {
+                end = offset + 4 + length.getInt(0);
+                lastMillis = entry.getLong(8);
+                break;
+            }
+        }
+
+        index.truncate(count * INDEX_ENTRY);
+        records.truncate(end);
+        recordsEnd = end;
+        spilled = count;
+        size = count;
+
+        LOG.info(
+                "Recovered the audit log %s: requests=%s, bytes=%s"
+                        .formatted(directory, count, end));
+    }
+
+    /**
+     * Appends the {@code httpRequest} received now, spilling the oldest requests in memory to the
+     * file if there is no room for it. Must be called only by the writer thread.
+     *
+     * @param httpRequest to append
+     * @return the appended entry
+     * @throws UncheckedIOException if spilling failed
+     */
+    public Entry append(HttpRequest httpRequest) {
+        requireNonNull(httpRequest);
+
+        var id = size;
+        if (id - spilled == window.length) {
+            spill(spillBatch);
+        }
+
+        lastMillis = Math.max(lastMillis, System.currentTimeMillis());
+        var entry = new Entry(id, Instant.ofEpochMilli(lastMillis), httpRequest);
+        window[slot(id)] = entry;
+        size = id + 1;
+
+        return entry;
+    }
+
+    /**
+     * Writes the oldest {@code count} requests in memory to the file with a write to each file,
+     * their slots can be reused afterwards
+     */
+    private void spill(long count) {
+        var from = spilled;
+        var to = Math.min(size, from + count);
+        if (from == to) {
+            return;
+        }
+
+        var indexEntries = ByteBuffer.allocate((int) (to - from) * INDEX_ENTRY);
+        var out = new Output();
+        for (var id = from; id < to; id++) {
+            var entry = window[slot(id)];
+            indexEntries
+                    .putLong(recordsEnd + out.buffer.position())
+                    .putLong(entry.received.toEpochMilli());
+            out.writeRecord(entry.request);
+        }
+
+        try {
+            var data = out.buffer.flip();
+            var length = data.remaining();
+            // the records first, an index entry never points past the written records
+            writeFully(records, data, recordsEnd);
+            writeFully(index, indexEntries.flip(), from * INDEX_ENTRY);
+            recordsEnd += length;
+        } catch (IOException e) {
+            throw new UncheckedIOException(
+                    "Couldn't spill the requests [%s, %s) of %s".formatted(from, to, directory),
+                    e);
+        }
+
+        spilled = to;
+    }
+
+    /**
+     * Finds the newest requests of a socket, reading the file only if there are not enough of
+     * them in memory
+     *
+     * @param socketName of the requests, as in {@link HttpRequest#getSocketName()}
+     * @param limit the most requests returned
+     * @return up to {@code limit} newest requests of the {@code socketName}, oldest first
+     * @throws IllegalArgumentException if {@code limit < 1}
+     * @throws UncheckedIOException if the file couldn't be read
+     */
+    public List<Entry> findBySocketName(String socketName, int limit) {
+        requireNonNull(socketName);
+        checkLimit(limit);
+
+        var found = new ArrayList<Entry>();
+        var id = size - 1;
+        // the newest requests are in memory
+        for (; id >= spilled && found.size() < limit; id--) {
+            var entry = window[slot(id)];
+            if (entry == null || entry.id != id) {
+                break; // spilled and overwritten since, the rest is in the file
+            }
+            if (entry.request.getSocketName().equals(socketName)) {
+                found.add(entry);
+            }
+        }
+
+        try {
+            var socketNameBytes = socketName.getBytes(StandardCharsets.UTF_8);
+            for (var to = Math.min(id + 1, spilled); to > 0 && found.size() < limit; ) {
+                var from = Math.max(0, to - READ_BLOCK);
+                var block = readBlock(from, to);
+                for (var i = block.size() - 1; i >= 0 && found.size() < limit; i--) {
+                    if (block.hasSocketName(i, socketNameBytes)) {
+                        found.add(block.decode(i));
+                    }
+                }
+                to = from;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read the audit log %s".formatted(directory), e);
+        }
+
+        Collections.reverse(found);
+        return found;
+    }
+
+    /**
+     * Finds the requests received in a time range, the first one in the file is found with a
+     * binary search of the index
+     *
+     * @param from the earliest time, inclusive
+     * @param to the latest time, exclusive
+     * @param limit the most requests returned
+     * @return up to {@code limit} oldest requests received in the range, oldest first
+     * @throws IllegalArgumentException if {@code limit < 1}
+     * @throws UncheckedIOException if the file couldn't be read
+     */
+    public List<Entry> findByTime(Instant from, Instant to, int limit) {
+        requireNonNull(from);
+        requireNonNull(to);
+        checkLimit(limit);
+
+        var fromMillis = from.toEpochMilli();
+        var toMillis = to.toEpochMilli();
+        var found = new ArrayList<Entry>();
+        try {
+            var inFile = spilled;
+            var id = findFirstNotBefore(fromMillis, inFile);
+            var isPast = false;
+            for (; id < inFile && found.size() < limit && !isPast; ) {
+                var block = readBlock(id, Math.min(inFile, id + READ_BLOCK));
+                for (var i = 0; i < block.size() && found.size() < limit; i++) {
+                    if (block.millis[i] >= toMillis) {
+                        isPast = true;
+                        break;
+                    }
+                    found.add(block.decode(i));
+                }
+                id += block.size();
+            }
+
+            var end = size;
+            for (id = Math.max(id, inFile); id < end && found.size() < limit && !isPast; id++) {
+                var entry = window[slot(id)];
+                if (entry == null || entry.id != id) {
+                    entry = readBlock(id, id + 1).decode(0); // spilled and overwritten since
+                }
+                var millis = entry.received.toEpochMilli();
+                if (millis >= toMillis) {
+                    break;
+                }
+                if (millis >= fromMillis) {
+                    found.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read the audit log %s".formatted(directory), e);
+        }
+
+        return found;
+    }
+
+    /**
+     * @return the id of the first request in the file received at {@code millis} or later, {@code
+     *     inFile} if there is none
+     */
+    private long findFirstNotBefore(long millis, long inFile) throws IOException {
+        var entry = ByteBuffer.allocate(INDEX_ENTRY);
+        var low = 0L;
+        var high = inFile;
+        while (low < high) {
+            var middle = (low + high) >>> 1;
+            readFully(index, entry.clear(), middle * INDEX_ENTRY);
+            if (entry.getLong(8) < millis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Reads the records [{@code fromId}, {@code toId}) of the file with a read of the index and a
+     * read of the records
+     */
+    private Block readBlock(long fromId, long toId) throws IOException {
+        var count = (int) (toId - fromId);
+        var entries = ByteBuffer.allocate(count * INDEX_ENTRY);
+        readFully(index, entries, fromId * INDEX_ENTRY);
+
+        var offsets = new int[count];
+        var millis = new long[count];
+        var start = entries.getLong(0);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = (int) (entries.getLong(i * INDEX_ENTRY) - start);
+            millis[i] = entries.getLong(i * INDEX_ENTRY + 8);
+        }
+
+        // the last record ends after its length
+        var lastOffset = start + offsets[count - 1];
+        var lastLength = ByteBuffer.allocate(4);
+        readFully(records, lastLength, lastOffset);
+        var data = ByteBuffer.allocate((int) (lastOffset + 4 + lastLength.getInt(0) - start));
+        readFully(records, data, start);
+
+        return new Block(fromId, offsets, millis, data);
+    }
+
+    private int slot(long id) {
+        return (int) (id % window.length);
+    }
+
+    private static void checkLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit should be positive: %s".formatted(limit));
+        }
+    }
+
+    /**
+     * @return the number of appended requests
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of requests written to the file
+     */
+    public long getSpilledCount() {
+        return spilled;
+    }
+
+    /**
+     * @return the number of requests kept only in memory
+     */
+    public long getInMemoryCount() {
+        return size - spilled;
+    }
+
+    /** Spills the requests in memory and releases the files, should be called after the writer */
+    @Override
+    public void close() {
+        try {
+            spill(size - spilled);
+        } catch (UncheckedIOException e) {
+            LOG.log(Level.WARNING, "Couldn't spill the audit log on close", e);
+        }
+
+        try {
+            lock.release();
+            index.close();
+            records.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't close the audit log", e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            var read = channel.read(buffer, position + buffer.position());
+            if (read == -1) {
+                throw new IOException(
+                        "Unexpected end of the file at %s".formatted(position + buffer.position()));
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        var start = buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestAuditLog [directory="
+                + directory
+                + ", size="
+                + size
+                + ", spilled="
+                + spilled
+                + "]";
+    }
+
+    /**
+     * @Immutable
+     */
+    public static class Entry {
+        private final long id;
+        private final Instant received;
+        private final HttpRequest request;
+
+        private Entry(long id, Instant received, HttpRequest request) {
+            this.id = id;
+            this.received = received;
+            this.request = request;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Instant getReceived() {
+            return received;
+        }
+
+        public HttpRequest getRequest() {
+            return request;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [id=" + id + ", received=" + received + ", request=" + request + "]";
+        }
+    }
+
+    /** Consecutive records read from the file, decoded on demand */
+    private static class Block {
+        private final long fromId;
+        private final int[] offsets;
+        private final long[] millis;
+        private final ByteBuffer data;
+
+        Block(long fromId, int[] offsets, long[] millis, ByteBuffer data) {
+            this.fromId = fromId;
+            this.offsets = offsets;
+            this.millis = millis;
+            this.data = data;
+        }
+
+        int size() {
+            return offsets.length;
+        }
+
+        /** Compares the bytes of the socket name without decoding the record */
+        boolean hasSocketName(int i, byte[] socketName) {
+            var position = offsets[i] + 4;
+            if (data.getInt(position) != socketName.length) {
+                return false;
+            }
+            return data.slice(position + 4, socketName.length)
+                    .equals(ByteBuffer.wrap(socketName));
+        }
+
+        Entry decode(int i) {
+            var in = data.duplicate().position(offsets[i] + 4);
+            var socketName = readString(in);
+            var method = HttpMethod.values()[in.get()];
+            var target = readString(in);
+            var parameters = readMap(in);
+            var headers = readMap(in);
+            var body = readString(in);
+
+            return new Entry(
+                    fromId + i,
+                    Instant.ofEpochMilli(millis[i]),
+                    HttpRequest.ofParsed(
+                            socketName,
+                            method,
+                            target,
+                            headers,
+                            parameters,
+                            body == null ? null : body.toCharArray()));
+        }
+
+        private static String readString(ByteBuffer in) {
+            var length = in.getInt();
+            if (length == ABSENT) {
+                return null;
+            }
+
+            var string =
+                    new String(
+                            in.array(),
+                            in.arrayOffset() + in.position(),
+                            length,
+                            StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return string;
+        }
+
+        private static Map<String, String> readMap(ByteBuffer in) {
+            var count = in.getInt();
+            if (count == ABSENT) {
+                return null;
+            }
+
+            var map = new HashMap<String, String>();
+            for (int i = 0; i < count; i++) {
+                map.put(readString(in), readString(in));
+            }
+            return map;
+        }
+    }
+
+    /** Encodes records into a growing buffer, used by the writer only */
+    private static class Output {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        void writeRecord(HttpRequest request) {
+            var start = buffer.position();
+            ensure(4);
+            buffer.putInt(0); // the length, written once known
+
+            writeString(request.getSocketName());
+            ensure(1);
+            buffer.put((byte) request.getMethod().ordinal());
+            writeString(request.getTarget());
+            writeMap(request.getParameters().orElse(null));
+            writeMap(request.getHeaders().orElse(null));
+            writeString(request.getBody().map(String::new).orElse(null));
+
+            buffer.putInt(start, buffer.position() - start - 4);
+        }
+
+        private void writeString(String string) {
+            if (string == null) {
+                ensure(4);
+                buffer.putInt(ABSENT);
+                return;
+            }
+
+            var bytes = string.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+
+        private void writeMap(Map<String, String> map) {
+            ensure(4);
+            if (map == null) {
+                buffer.putInt(ABSENT);
+                return;
+            }
+
+            buffer.putInt(map.size());
+            map.forEach(
+                    (key, value) -> {
+                        writeString(key);
+                        writeString(value);
+                    });
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                var grown =
+                        ByteBuffer.allocate(
+                                Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer = grown.put(buffer.flip());
+            }
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import main.chat.Server.HttpRequest;
+import main.chat.Server.HttpRequest.HttpMethod;
+
+/**
+ * Incremental parser of requests working directly on the bytes of a {@link ByteBuffer}.
+ *
+ * <pre>
+ * request     = requestLine [headers] [CRLF body]
+ * requestLine = method SP target ["?" parameters] CRLF
+ * parameters  = key "=" value *("&amp;" key "=" value)
+ * key         = "[a-zA-Z]+"
+ * value       = "[a-zA-Z0-9-]+"
+ * headers     = *(name ":" text CRLF)
+ * name        = "[a-zA-Z][a-zA-Z_-]*"
+ * text        = "[a-zA-Z0-9_-]+"
+ * </pre>
+ *
+ * <p>The length of the body is taken from the {@value #CONTENT_LENGTH_HEADER} header. Without it
+ * the body is everything buffered once the input is drained, the way the server framed all
+ * requests before.
+ *
+ * <p>{@link #parse(ByteBuffer, boolean)} can be called again with more data whenever it returns
+ * {@code false}, scanning continues where it stopped. Positions are kept relative to the start of
+ * the request, so the caller may compact or grow the buffer in between.
+ *
+ * <p>Once a request is parsed, the getters are flyweight views reading it from the buffer and
+ * don't allocate, till the next {@link #parse(ByteBuffer, boolean)}. Only {@link
+ * #toHttpRequest(String)} copies, and of the body, only once.
+ *
+ * @NotThreadSafe, one per connection
+ */
+final class RequestParser {
+    static final String CONTENT_LENGTH_HEADER = "Content-Length";
+
+    /** The most bytes of a request line and headers */
+    static final int MAX_HEAD_LENGTH = 8 * 1024;
+
+    static final int MAX_BODY_LENGTH = 1024 * 1024;
+    static final int MAX_HEADERS = 16;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private static enum State {
+        REQUEST_LINE,
+        HEADERS,
+        BODY,
+        COMPLETE;
+    }
+
+    private final String[] targets;
+
+    /** Accepts the targets that aren't one of the {@link #targets} */
+    private final Optional<Pattern> targetPattern;
+    private final CharsetDecoder decoder =
+            StandardCharsets.UTF_8
+                    .newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer buffer;
+    private State state = State.REQUEST_LINE;
+
+    /** Absolute position of the request in the {@link #buffer} */
+    private int start;
+
+    /** Relative position of the next byte to scan */
+    private int scan;
+
+    private HttpMethod method;
+    private String target;
+
+    /** Relative positions, {@code parametersStart == -1} if there are none */
+    private int parametersStart = -1;
+
+    private int parametersEnd;
+
+    /** Relative positions of the name start, name end, value start and value end of every header */
+    private final int[] headers = new int[MAX_HEADERS * 4];
+
+    private int headerCount;
+    private int contentLength = -1;
+
+    /** Relative positions of the body, equal if there is none */
+    private int bodyStart;
+
+    private int bodyEnd;
+
+    /**
+     * @param targets accepted request targets
+     */
+    RequestParser(Set<String> targets) {
+        this.targets = requireNonNull(targets).toArray(String[]::new);
+        this.targetPattern = Optional.empty();
+    }
+
+    /**
+     * @param targets accepted request targets, returned without a copy
+     * @param targetPattern accepts other targets, e.g. with an id, these are decoded into a new
+     *     string
+     */
+    RequestParser(Set<String> targets, Pattern targetPattern) {
+        this.targets = requireNonNull(targets).toArray(String[]::new);
+        this.targetPattern = Optional.of(targetPattern);
+    }
+
+    /**
+     * Parses the request starting at the position of the {@code buffer}. When a request is
+     * complete, the position is moved to the byte after it and the getters can be used
+     *
+     * @param buffer with the request between its position and limit
+     * @param inputDrained {@code true} if there is no more data to read for now, which completes
+     *     a body without the {@value #CONTENT_LENGTH_HEADER} header
+     * @return {@code true} if the request is complete, {@code false} if more data is needed
+     * @throws IllegalArgumentException if the request is malformed or too big, the parser is
+     *     reset then
+     */
+    boolean parse(ByteBuffer buffer, boolean inputDrained) {
+        requireNonNull(buffer);
+        if (state == State.COMPLETE) {
+            reset();
+        }
+
+        this.buffer = buffer;
+        this.start = buffer.position();
+        var length = buffer.limit() - start;
+
+        try {
+            if (state == State.REQUEST_LINE && !parseRequestLine(length)) {
+                return false;
+            }
+            if (state == State.HEADERS && !parseHeaders(length, inputDrained)) {
+                return false;
+            }
+            if (state == State.BODY && !parseBody(length, inputDrained)) {
+                return false;
+            }
+        } catch (IllegalArgumentException e) {
+            reset();
+            throw e;
+        }
+
+        state = State.COMPLETE;
+        buffer.position(start + bodyEnd);
+        return true;
+    }
+
+    /** Forgets the partially parsed request */
+    void reset() {
+        state = State.REQUEST_LINE;
+        scan = 0;
+        method = null;
+        target = null;
+        parametersStart = -1;
+        headerCount = 0;
+        contentLength = -1;
+        bodyStart = 0;
+        bodyEnd = 0;
+    }
+
+    private boolean parseRequestLine(int length) {
+        var lineEnd = findLineEnd(length, "request line");
+        if (lineEnd == -1) {
+            return false;
+        }
+
+        var methodEnd = indexOf((byte) ' ', 0, lineEnd);
+        if (methodEnd == -1) {
+            throw new IllegalArgumentException(
+                    "Didn't find two space separated parameters. Http Method and Http Target");
+        }
+        method = matchMethod(methodEnd);
+
+        var targetStart = methodEnd + 1;
+        var contentEnd = lineEnd > 0 && byteAt(lineEnd - 1) == CR ? lineEnd - 1 : lineEnd;
+        var targetEnd = indexOf((byte) '?', targetStart, contentEnd);
+        if (targetEnd == -1) {
+            targetEnd = contentEnd;
+        } else {
+            parametersStart = targetEnd + 1;
+            parametersEnd = contentEnd;
+            validateParameters();
+        }
+        target = matchTarget(targetStart, targetEnd);
+
+        scan = lineEnd + 1;
+        state = State.HEADERS;
+        return true;
+    }
+
+    /**
+     * A request without headers and body may end right after the request line, i.e. {@code GET
+     * /messages CRLF}
+     */
+    private boolean parseHeaders(int length, boolean inputDrained) {
+        while (true) {
+            if (scan == length && inputDrained && headerCount == 0) {
+                bodyStart = bodyEnd = scan;
+                return true;
+            }
+
+            if (length - scan >= 1 && byteAt(scan) == LF
+                    || length - scan >= 2 && byteAt(scan) == CR && byteAt(scan + 1) == LF) {
+                scan += byteAt(scan) == LF ? 1 : 2;
+                bodyStart = scan;
+                state = State.BODY;
+                return true;
+            }
+
+            var lineEnd = findLineEnd(length, "headers");
+            if (lineEnd == -1) {
+                return false;
+            }
+
+            var contentEnd = byteAt(lineEnd - 1) == CR ? lineEnd - 1 : lineEnd;
+            parseHeader(scan, contentEnd);
+            scan = lineEnd + 1;
+        }
+    }
+
+    private void parseHeader(int from, int to) {
+        if (headerCount == MAX_HEADERS) {
+            throw new IllegalArgumentException("More than %s headers".formatted(MAX_HEADERS));
+        }
+
+        var colon = indexOf((byte) ':', from, to);
+        if (colon == -1) {
+            throw new IllegalArgumentException("A header without ':'");
+        }
+        validateToken(from, colon, false, "-_", "header name");
+        validateToken(colon + 1, to, true, "-_", "header value");
+
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(headers[i * 4], headers[i * 4 + 1], from, colon)) {
+                throw new IllegalArgumentException(
+                        "Header: %s already is present".formatted(string(from, colon)));
+            }
+        }
+
+        var offset = headerCount * 4;
+        headers[offset] = from;
+        headers[offset + 1] = colon;
+        headers[offset + 2] = colon + 1;
+        headers[offset + 3] = to;
+        headerCount++;
+
+        if (equalsIgnoreCase(from, colon, CONTENT_LENGTH_HEADER)) {
+            contentLength = parseContentLength(colon + 1, to);
+        }
+    }
+
+    private boolean parseBody(int length, boolean inputDrained) {
+        if (contentLength >= 0) {
+            if (length - bodyStart < contentLength) {
+                return false;
+            }
+            bodyEnd = bodyStart + contentLength;
+            return true;
+        }
+
+        if (!inputDrained) {
+            return false;
+        }
+        if (length - bodyStart > MAX_BODY_LENGTH) {
+            throw new IllegalArgumentException(
+                    "The body is bigger than %s bytes".formatted(MAX_BODY_LENGTH));
+        }
+        bodyEnd = length;
+        return true;
+    }
+
+    /**
+     * @return relative position of the next LF starting from {@link #scan}, {@code -1} if there
+     *     is none yet
+     * @throws IllegalArgumentException if the head of the request is too long
+     */
+    private int findLineEnd(int length, String part) {
+        var lineEnd = indexOf(LF, scan, length);
+        if (lineEnd == -1 && length > MAX_HEAD_LENGTH) {
+            throw new IllegalArgumentException(
+                    "The %s is longer than %s bytes".formatted(part, MAX_HEAD_LENGTH));
+        }
+        return lineEnd;
+    }
+
+    private HttpMethod matchMethod(int methodEnd) {
+        for (var candidate : HttpMethod.values()) {
+            if (equalsIgnoreCase(0, methodEnd, candidate.name())) {
+                return candidate;
+            }
+        }
+
+        throw new IllegalArgumentException(
+                "No enum constant %s.%s".formatted(HttpMethod.class.getName(), string(0, methodEnd)));
+    }
+
+    private String matchTarget(int from, int to) {
+        for (var candidate : targets) {
+            if (equals(from, to, candidate)) {
+                return candidate;
+            }
+        }
+
+        if (targetPattern.isPresent()) {
+            var target = string(from, to);
+            if (targetPattern.get().matcher(target).matches()) {
+                return target;
+            }
+        }
+
+        throw new IllegalArgumentException(
+                "The requestTarget doesn't exist: '%s'".formatted(string(from, to)));
+    }
+
+    /** Same rules as the character parser the server used before, see LegacyRequestParser */
+    private void validateParameters() {
+        if (parametersEnd - parametersStart < 3) {
+            throw new IllegalArgumentException(
+                    "Length of parameters should be more than 2. Params: '%s'"
+                            .formatted(string(parametersStart, parametersEnd)));
+        }
+
+        var pairStart = parametersStart;
+        while (pairStart < parametersEnd) {
+            var pairEnd = indexOf((byte) '&', pairStart, parametersEnd);
+            if (pairEnd == -1) {
+                pairEnd = parametersEnd;
+            }
+
+            var equals = indexOf((byte) '=', pairStart, pairEnd);
+            if (equals == -1) {
+                throw new IllegalArgumentException(
+                        "Couldn't finish a parameter. Params: '%s'"
+                                .formatted(string(parametersStart, parametersEnd)));
+            }
+            validateToken(pairStart, equals, false, "", "parameter's key");
+            validateToken(equals + 1, pairEnd, true, "-", "parameter's value");
+
+            pairStart = pairEnd + 1;
+        }
+    }
+
+    /**
+     * @param withDigits {@code true} for values, which can have digits and start with any of the
+     *     {@code others}, names start with a letter
+     * @param others allowed characters besides letters and digits
+     */
+    private void validateToken(int from, int to, boolean withDigits, String others, String name) {
+        if (from == to) {
+            throw new IllegalArgumentException("The %s is empty".formatted(name));
+        }
+
+        for (int i = from; i < to; i++) {
+            var ch = byteAt(i);
+            var isLetter = (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+            var isDigit = ch >= '0' && ch <= '9';
+            var isAllowed =
+                    isLetter
+                            || (withDigits && isDigit)
+                            || ((withDigits || i != from) && others.indexOf(ch) != -1);
+            if (!isAllowed) {
+                throw new IllegalArgumentException(
+                        "Incorrect character: '%s' in the %s".formatted((char) (ch & 0xFF), name));
+            }
+        }
+    }
+
+    private int parseContentLength(int from, int to) {
+        var value = 0L;
+        for (int i = from; i < to; i++) {
+            var ch = byteAt(i);
+            if (ch < '0' || ch > '9' || (value = value * 10 + ch - '0') > MAX_BODY_LENGTH) {
+                throw new IllegalArgumentException(
+                        "%s should be a number up to %s"
+                                .formatted(CONTENT_LENGTH_HEADER, MAX_BODY_LENGTH));
+            }
+        }
+
+        return (int) value;
+    }
+
+    HttpMethod getMethod() {
+        checkComplete();
+        return method;
+    }
+
+    /**
+     * @return one of the accepted targets, not a copy, or a target matching the pattern
+     */
+    String getTarget() {
+        checkComplete();
+        return target;
+    }
+
+    /**
+     * @param name of the header, case insensitive
+     * @param value expected value, case sensitive
+     * @return {@code true} if the request has the header with the {@code value}
+     */
+    boolean hasHeader(String name, String value) {
+        checkComplete();
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            if (equalsIgnoreCase(headers[i], headers[i + 1], name)
+                    && equals(headers[i + 2], headers[i + 3], value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getBodyLength() {
+        checkComplete();
+        return bodyEnd - bodyStart;
+    }
+
+    /**
+     * Creates the request, copying only what the {@link HttpRequest} keeps. The body is decoded
+     * once into an array that is shared with the request, not copied again
+     *
+     * @param socketName of the request
+     * @return parsed request
+     */
+    HttpRequest toHttpRequest(String socketName) {
+        requireNonNull(socketName);
+        checkComplete();
+
+        Map<String, String> parameters = null;
+        if (parametersStart != -1) {
+            parameters = new HashMap<>();
+            var pairStart = parametersStart;
+            while (pairStart < parametersEnd) {
+                var pairEnd = indexOf((byte) '&', pairStart, parametersEnd);
+                pairEnd = pairEnd == -1 ? parametersEnd : pairEnd;
+                var equals = indexOf((byte) '=', pairStart, pairEnd);
+
+                // ignoring duplicated params
+                parameters.putIfAbsent(string(pairStart, equals), string(equals + 1, pairEnd));
+                pairStart = pairEnd + 1;
+            }
+        }
+
+        Map<String, String> headersMap = null;
+        if (headerCount > 0) {
+            headersMap = new HashMap<>();
+            for (int i = 0; i < headerCount * 4; i += 4) {
+                headersMap.put(
+                        string(headers[i], headers[i + 1]), string(headers[i + 2], headers[i + 3]));
+            }
+        }
+
+        var body = bodyEnd > bodyStart ? decodeBody() : null;
+        return HttpRequest.ofParsed(socketName, method, target, headersMap, parameters, body);
+    }
+
+    /** ASCII bodies are widened straight into the result, others go through the decoder */
+    private char[] decodeBody() {
+        var length = bodyEnd - bodyStart;
+        var chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            var b = byteAt(bodyStart + i);
+            if (b < 0) {
+                return decodeUtf8();
+            }
+            chars[i] = (char) b;
+        }
+        return chars;
+    }
+
+    private char[] decodeUtf8() {
+        var length = bodyEnd - bodyStart;
+        var chars = CharBuffer.allocate(length); // UTF-8 never has more chars than bytes
+        decoder.reset();
+        try {
+            decoder.decode(buffer.slice(start + bodyStart, length), chars, true);
+            decoder.flush(chars);
+        } catch (IllegalStateException e) {
+            throw new IllegalArgumentException("Couldn't decode the body", e);
+        }
+
+        return chars.position() == length
+                ? chars.array()
+                : Arrays.copyOf(chars.array(), chars.position());
+    }
+
+    private void checkComplete() {
+        if (state != State.COMPLETE) {
+            throw new IllegalStateException("The request isn't parsed yet");
+        }
+    }
+
+    private byte byteAt(int position) {
+        return buffer.get(start + position);
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (byteAt(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(int from, int to, String value) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (byteAt(from + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int from, int to, String value) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.toLowerCase(byteAt(from + i)) != Character.toLowerCase(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int from, int to, int otherFrom, int otherTo) {
+        if (to - from != otherTo - otherFrom) {
+            return false;
+        }
+        for (int i = 0; i < to - from; i++) {
+            if (Character.toLowerCase(byteAt(from + i))
+                    != Character.toLowerCase(byteAt(otherFrom + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Names and values are ASCII, see {@link #validateToken(int, int, boolean, String, String)} */
+    private String string(int from, int to) {
+        var bytes = new byte[to - from];
+        buffer.get(start + from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Makes room for reading more data after the limit of {@code buffer}, compacting it or
+     * growing it twice
+     *
+     * @param buffer with the unread data between its position and limit
+     * @return the buffer to read into, after its limit, and to parse from, between its position
+     *     and limit
+     * @throws IllegalArgumentException if the buffered request would be bigger than a head and a
+     *     body together
+     */
+    static ByteBuffer ensureWritable(ByteBuffer buffer) {
+        requireNonNull(buffer);
+        if (buffer.limit() < buffer.capacity()) {
+            return buffer;
+        }
+
+        if (buffer.position() > 0) {
+            return buffer.compact().flip();
+        }
+
+        if (buffer.capacity() >= MAX_HEAD_LENGTH + MAX_BODY_LENGTH) {
+            throw new IllegalArgumentException(
+                    "The request is bigger than %s bytes"
+                            .formatted(MAX_HEAD_LENGTH + MAX_BODY_LENGTH));
+        }
+        var grown =
+                ByteBuffer.allocate(
+                        Math.min(buffer.capacity() * 2, MAX_HEAD_LENGTH + MAX_BODY_LENGTH));
+        return grown.put(buffer).flip();
+    }
+}
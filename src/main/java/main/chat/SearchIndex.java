@@ -0,0 +1,405 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import main.chat.Server.ChatMessage;
+
+/**
+ * Incremental inverted index of the messages of a room, mapping every term to the ids of the
+ * messages that have it.
+ *
+ * <p>A term is a run of letters and digits, lower cased, so {@code Hello, world!} has the terms
+ * {@code hello} and {@code world}. Terms longer than {@link #MAX_TERM_LENGTH} aren't indexed, and
+ * only the first {@link #MAX_TERMS_PER_MESSAGE} distinct terms of a message are, which bounds the
+ * cost of indexing a message.
+ *
+ * <p>The index is split into segments of {@link #SEGMENT_MESSAGES} consecutive ids. Within a
+ * segment the ids of a term are kept as varint encoded deltas in a byte array, 1 or 2 bytes an id.
+ * Once the index takes more than {@code maxBytes}, its oldest segments are dropped, so only the
+ * newest history can be found, as much of it as fits.
+ *
+ * <p>Single writer, many searchers: {@link #add(ChatMessage)} must be called by one thread at a
+ * time, with increasing ids.
+ *
+ * @ThreadSafe for searchers, NOT for concurrent writers
+ */
+public class SearchIndex {
+
+    /** Longer terms aren't indexed */
+    public static final int MAX_TERM_LENGTH = 32;
+
+    /** The most distinct terms of a message that are indexed, the other ones are ignored */
+    public static final int MAX_TERMS_PER_MESSAGE = 64;
+
+    /** The most terms of a query */
+    public static final int MAX_QUERY_TERMS = 8;
+
+    /** Ids of a segment, the unit of dropping the oldest history */
+    static final int SEGMENT_MESSAGES = 4096;
+
+    /** Estimated bytes of a term in a segment besides its characters and postings */
+    private static final int TERM_OVERHEAD_BYTES = 128;
+
+    private final long maxBytes;
+
+    /** Oldest first, the last one is appended to, guarded by {@link #lock} */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Estimated memory of the {@link #segments}, guarded by {@link #lock} */
+    private long bytes;
+
+    private volatile long terms;
+    private volatile long indexedMessages;
+    private volatile long droppedSegments;
+    private volatile long indexNanos;
+
+    /**
+     * @param maxBytes the most estimated memory of the index, exceeded only by the segment being
+     *     appended to
+     * @throws IllegalArgumentException if {@code maxBytes < 1}
+     */
+    public SearchIndex(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException(
+                    "Max bytes should be positive: %s".formatted(maxBytes));
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Splits the {@code text} into terms, see {@link SearchIndex}
+     *
+     * @param text to split
+     * @param maxTerms the most distinct terms returned
+     * @return distinct terms in the order of their first occurrence
+     */
+    static Set<String> terms(CharSequence text, int maxTerms) {
+        requireNonNull(text);
+
+        var terms = new LinkedHashSet<String>();
+        var term = new StringBuilder(MAX_TERM_LENGTH);
+        for (int i = 0; i <= text.length() && terms.size() < maxTerms; i++) {
+            var c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.append(Character.toLowerCase(c));
+                continue;
+            }
+
+            if (term.length() > 0 && term.length() <= MAX_TERM_LENGTH) {
+                terms.add(term.toString());
+            }
+            term.setLength(0);
+        }
+        return terms;
+    }
+
+    /**
+     * Indexes the terms of the {@code message}. Must be called only by the writer thread
+     *
+     * @param message appended to the log of the room, with a bigger id than the previous one
+     * @throws IllegalArgumentException if the id of the {@code message} isn't bigger than the id
+     *     of the previous one
+     */
+    public void add(ChatMessage message) {
+        requireNonNull(message);
+
+        var start = System.nanoTime();
+        var id = message.getId();
+        var messageTerms = terms(CharBuffer.wrap(message.getMessage()), MAX_TERMS_PER_MESSAGE);
+
+        lock.writeLock().lock();
+        try {
+            var segment = segments.peekLast();
+            if (segment != null && id <= segment.lastId) {
+                throw new IllegalArgumentException(
+                        "Id %s should be bigger than %s".formatted(id, segment.lastId));
+            }
+            if (segment == null || id >= segment.firstId + SEGMENT_MESSAGES) {
+                segment = new Segment(id - id % SEGMENT_MESSAGES);
+                segments.add(segment);
+            }
+
+            var addedTerms = 0;
+            for (var term : messageTerms) {
+                var postings = segment.postings.get(term);
+                if (postings == null) {
+                    postings = new Postings(segment.firstId);
+                    segment.postings.put(term, postings);
+                    bytes += TERM_OVERHEAD_BYTES + 2L * term.length() + postings.ids.length;
+                    addedTerms++;
+                }
+                bytes += postings.add(id);
+            }
+            segment.lastId = id;
+            terms += addedTerms;
+
+            // the segment being appended to is kept whatever its size
+            while (bytes > maxBytes && segments.size() > 1) {
+                var dropped = segments.poll();
+                bytes -= dropped.bytes();
+                terms -= dropped.postings.size();
+                droppedSegments++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        indexedMessages++;
+        indexNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Finds the messages that have all the terms of the {@code query}, newest first
+     *
+     * @param query with the terms to find, split like the messages
+     * @param beforeId only the messages with smaller ids are returned
+     * @param limit the most ids returned
+     * @return ids of the found messages, in descending order
+     * @throws IllegalArgumentException if the {@code query} has no terms or more than {@link
+     *     #MAX_QUERY_TERMS}, or {@code limit < 1}
+     */
+    public long[] search(CharSequence query, long beforeId, int limit) {
+        var queryTerms = terms(query, MAX_QUERY_TERMS + 1);
+        if (queryTerms.isEmpty() || queryTerms.size() > MAX_QUERY_TERMS) {
+            throw new IllegalArgumentException(
+                    "A query should have from 1 to %s terms: '%s'"
+                            .formatted(MAX_QUERY_TERMS, query));
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit should be positive: %s".formatted(limit));
+        }
+
+        var found = new long[Math.min(limit, 1024)];
+        var foundCount = 0;
+        lock.readLock().lock();
+        try {
+            var newestFirst = segments.descendingIterator();
+            while (foundCount < limit && newestFirst.hasNext()) {
+                var segment = newestFirst.next();
+                if (segment.firstId >= beforeId) {
+                    continue;
+                }
+
+                var ids = segment.find(queryTerms);
+                for (int i = ids.length - 1; i >= 0 && foundCount < limit; i--) {
+                    if (ids[i] < beforeId) {
+                        if (foundCount == found.length) {
+                            found = Arrays.copyOf(found, Math.min(2 * found.length, limit));
+                        }
+                        found[foundCount++] = ids[i];
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    /**
+     * @return the id of the oldest indexed message, older ones can't be found, {@code -1} if
+     *     there are none
+     */
+    public long getFirstId() {
+        lock.readLock().lock();
+        try {
+            return segments.isEmpty() ? -1 : segments.peekFirst().firstId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return estimated memory of the index
+     */
+    public long getBytes() {
+        lock.readLock().lock();
+        try {
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of terms of all the segments, a term of many segments counted in each
+     */
+    public long getTerms() {
+        return terms;
+    }
+
+    public long getIndexedMessages() {
+        return indexedMessages;
+    }
+
+    /**
+     * @return the time spent indexing the messages
+     */
+    public long getIndexNanos() {
+        return indexNanos;
+    }
+
+    /**
+     * @return one line summary of the memory, the size and the cost of indexing a message
+     */
+    public String getStats() {
+        int segmentCount;
+        long currentBytes;
+        lock.readLock().lock();
+        try {
+            segmentCount = segments.size();
+            currentBytes = bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        var messages = indexedMessages;
+        return "[segments=%s, bytes=%s/%s, terms=%s, messages=%s, nanosPerMessage=%s, dropped=%s]"
+                .formatted(
+                        segmentCount,
+                        currentBytes,
+                        maxBytes,
+                        terms,
+                        messages,
+                        messages == 0 ? 0 : indexNanos / messages,
+                        droppedSegments);
+    }
+
+    @Override
+    public String toString() {
+        return "SearchIndex " + getStats();
+    }
+
+    /** Postings of the terms of {@link #SEGMENT_MESSAGES} consecutive ids */
+    private static class Segment {
+        private final long firstId;
+        private final HashMap<String, Postings> postings = new HashMap<>();
+
+        /** Of the last indexed message */
+        private long lastId;
+
+        Segment(long firstId) {
+            this.firstId = firstId;
+            this.lastId = firstId - 1;
+        }
+
+        /**
+         * @return ids of the messages of the segment that have all the {@code terms}, ascending
+         */
+        long[] find(Set<String> terms) {
+            var termPostings = new ArrayList<Postings>(terms.size());
+            for (var term : terms) {
+                var found = postings.get(term);
+                if (found == null) {
+                    return new long[0];
+                }
+                termPostings.add(found);
+            }
+            // intersecting from the rarest term keeps the intermediate results small
+            termPostings.sort((a, b) -> Integer.compare(a.count, b.count));
+
+            var ids = termPostings.get(0).decode();
+            for (int i = 1; i < termPostings.size() && ids.length > 0; i++) {
+                ids = intersect(ids, termPostings.get(i).decode());
+            }
+            return ids;
+        }
+
+        long bytes() {
+            var total = 0L;
+            for (var entry : postings.entrySet()) {
+                total +=
+                        TERM_OVERHEAD_BYTES
+                                + 2L * entry.getKey().length()
+                                + entry.getValue().ids.length;
+            }
+            return total;
+        }
+
+        private static long[] intersect(long[] a, long[] b) {
+            var result = new long[Math.min(a.length, b.length)];
+            int count = 0, i = 0, j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    result[count++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+    }
+
+    /** Ascending ids of a term in a segment, as varint encoded deltas */
+    private static class Postings {
+        private final long segmentFirstId;
+        private byte[] ids = new byte[4];
+        private int length;
+        private int count;
+
+        /** The id the next delta is from, the first one is from the first id of the segment */
+        private long lastId;
+
+        Postings(long segmentFirstId) {
+            this.segmentFirstId = segmentFirstId;
+            this.lastId = segmentFirstId;
+        }
+
+        /**
+         * @return the number of bytes the postings grew by
+         */
+        int add(long id) {
+            var grownBy = 0;
+            if (length + 10 > ids.length) {
+                grownBy = ids.length;
+                ids = Arrays.copyOf(ids, 2 * ids.length);
+            }
+
+            var delta = id - lastId;
+            while ((delta & ~0x7FL) != 0) {
+                ids[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            ids[length++] = (byte) delta;
+
+            lastId = id;
+            count++;
+            return grownBy;
+        }
+
+        long[] decode() {
+            var decoded = new long[count];
+            var id = segmentFirstId;
+            var position = 0;
+            for (int i = 0; i < count; i++) {
+                var delta = 0L;
+                var shift = 0;
+                byte b;
+                do {
+                    b = ids[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                decoded[i] = id;
+            }
+            return decoded;
+        }
+    }
+}
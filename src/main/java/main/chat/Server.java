@@ -2,40 +2,55 @@ package main.chat;
 
 import static java.util.Objects.requireNonNull;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.ObjectOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.time.Duration;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
+import main.chat.GroupCommitWriter.Durability;
+import main.chat.NioEventLoop.Responder;
+import main.chat.ServerMetrics.Stage;
 import main.chat.Server.HttpRequest.HttpMethod;
 import main.chat.Server.HttpResponse.HttpStatus;
 
@@ -43,41 +58,156 @@ public class Server implements AutoCloseable {
     // Logging
     private static final Logger LOG = Logger.getLogger(Server.class.getName());
 
-    {
-        LOG.setLevel(Level.FINEST);
-        Logger.getLogger("").getHandlers()[0].setLevel(Level.FINEST);
-    }
+    /** The most log records waiting for the {@link AsyncLogHandler} installed by {@link #main} */
+    private static final int LOG_QUEUE_CAPACITY = 8192;
 
     private static final DateTimeFormatter dateFormatter =
             DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT).withZone(ZoneOffset.UTC);
 
     // Socket Management
-    private final int CLIENT_QUEUE_SIZE = 1;
-    private final int CLIENT_POOL_SIZE = 1;
-    private final int SERVICE_POOL_SIZE = 2;
-
     // TODO access pools only via an intrinsic lock
-    private ThreadPoolExecutor clientPool = createPool(CLIENT_POOL_SIZE, CLIENT_QUEUE_SIZE);
-    private ThreadPoolExecutor servicePool = createPool(SERVICE_POOL_SIZE, SERVICE_POOL_SIZE);
+    /**
+     * Runs {@link #handleConnection(Socket)}, depends on the {@link ConnectionMode}: an {@link
+     * AdaptiveThreadPool} for {@link ConnectionMode#BLOCKING}
+     */
+    private final ExecutorService clientPool;
+
+    /** Runs the request log writer and the writers of the {@link #chatRooms} shards */
+    private ThreadPoolExecutor servicePool;
+
+    private final Config config;
 
     private boolean isStarted;
     private boolean isClosed;
     private Optional<Thread> portListener = Optional.empty();
+    private Optional<NioEventLoop> eventLoop = Optional.empty();
     private Optional<Thread> dataWriter = Optional.empty();
 
     // db
-    private final BlockingQueue<ChatMessage> chatMessagesProcessor = new LinkedBlockingQueue<>();
-    private final BlockingQueue<HttpRequest> httpRequestsProcessor = new LinkedBlockingQueue<>();
+    /** Of the handled requests, drained by the {@link #requestLogWriter}, see {@link #audit} */
+    private final MpscRingBuffer<HttpRequest> httpRequestsProcessor;
+
+    /**
+     * The rooms with their logs, each written only by the writer of its shard, read without locking
+     * by the handlers. Backed by a {@link MessageJournal} each, so the history survives restarts
+     */
+    private final ChatRooms chatRooms;
+
+    /**
+     * Present if the server is a follower of a {@link Config#getLeader()}, then its rooms are
+     * written only by the follower and the POSTs are rejected
+     */
+    private final Optional<ReplicationFollower> follower;
+
+    /**
+     * Written only by the request log writer, the newest requests are kept in memory, older ones
+     * are spilled to a file
+     */
+    private final RequestAuditLog httpRequestsDatabase;
+
+    /** Encoded pages of messages shared by the pollers, empty if disabled */
+    private final Optional<EncodedPageCache> pageCache;
 
-    /** Not thread safe, access ONLY via its intrinsic look using synchronized */
-    private final LinkedList<ChatMessage> chatMessagesDatabase = new LinkedList<>();
+    /** Drains the processor into the database and the log file, run by the service pool */
+    private final GroupCommitWriter<HttpRequest> requestLogWriter;
 
-    private final LinkedBlockingQueue<HttpRequest> httpRequestsDatabase =
-            new LinkedBlockingQueue<>();
-    private final BlockingQueue<User> chatUsers = new LinkedBlockingQueue<>();
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * Expires the connections idle for longer than {@link Config#getIdleTimeoutMillis()}, or
+     * receiving a request for longer than {@link Config#getRequestTimeoutMillis()}
+     */
+    private final IdleReaper idleReaper =
+            new IdleReaper(IDLE_REAPER_TICK_MILLIS, IDLE_REAPER_WHEEL_SIZE);
+
+    /** Of the messages posted by every socket, empty if disabled */
+    private final Optional<RateLimiter> rateLimiter;
 
     // HTTP management
-    private static final Set<String> requestTargets = Set.of("/messages");
+    private static final String MESSAGES_TARGET = "/messages";
+
+    /** A GET to it keeps the connection and gets a response every time new messages appear */
+    private static final String MESSAGES_STREAM_TARGET = "/messages/stream";
+
+    /**
+     * A POST to it carries many messages in its body, see {@link #parseBatch(char[])}, appended
+     * at once with consecutive ids
+     */
+    private static final String MESSAGES_BATCH_TARGET = "/messages/batch";
+
+    /** The most messages in the body of a POST to {@link #MESSAGES_BATCH_TARGET} */
+    static final int MAX_BATCH_MESSAGES = 1024;
+
+    /**
+     * A GET to it finds the messages with all the terms of the 'q' parameter in the {@link
+     * SearchIndex} of the room, newest first, paged by the 'before' parameter
+     */
+    private static final String SEARCH_TARGET = "/search";
+
+    /**
+     * A GET to it gets the text of {@link #formatMetrics()}, readable with {@code Accept:binary}
+     * after the few bytes of the frame header, see {@link BinaryWireFormat}
+     */
+    private static final String METRICS_TARGET = "/metrics";
+
+    private static final Set<String> requestTargets =
+            Set.of(
+                    MESSAGES_TARGET,
+                    MESSAGES_STREAM_TARGET,
+                    MESSAGES_BATCH_TARGET,
+                    SEARCH_TARGET,
+                    METRICS_TARGET);
+
+    /**
+     * {@link #MESSAGES_TARGET}, {@link #MESSAGES_STREAM_TARGET}, {@link #MESSAGES_BATCH_TARGET}
+     * and {@link #SEARCH_TARGET} of a room other than the {@link ChatRooms#DEFAULT_ROOM}, e.g.
+     * {@code /rooms/42/messages}, the first group is the room, the second one is the target
+     */
+    private static final Pattern ROOM_TARGET =
+            Pattern.compile(
+                    "/rooms/(%s)(%s|%s|%s|%s)"
+                            .formatted(
+                                    ChatRooms.ROOM_ID_REGEX,
+                                    MESSAGES_TARGET,
+                                    MESSAGES_STREAM_TARGET,
+                                    MESSAGES_BATCH_TARGET,
+                                    SEARCH_TARGET));
+
+    /** The biggest 'wait' parameter of a long polling GET */
+    private static final int MAX_WAIT_MILLIS = 60_000;
+
+    /** Initial size of the buffer a blocking connection reads requests into */
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    /**
+     * Size of the buffer a blocking connection collects the responses to pipelined requests in,
+     * bigger responses are written directly
+     */
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    /** A stream sends an empty response if there were no new messages for this long */
+    private static final int STREAM_HEARTBEAT_MILLIS = 10_000;
+
+    /** Resolution of the deadlines of the {@link #idleReaper} */
+    private static final int IDLE_REAPER_TICK_MILLIS = 100;
+
+    /** Buckets of the {@link #idleReaper}, a rotation takes about 50 seconds */
+    private static final int IDLE_REAPER_WHEEL_SIZE = 512;
+
+    /** Sent to a connection expired by the {@link #idleReaper} before it's closed */
+    private static final String DISCONNECTING_MESSAGE = "Server is disconnecting, idle connection";
+
+    /** Sent in response to the posts over the limit of the {@link #rateLimiter} */
+    private static final String RATE_LIMITED_MESSAGE = "Rate limit exceeded, try again later";
+
+    /** Buckets of the {@link #rateLimiter} to start dropping the full ones at */
+    private static final int RATE_LIMITER_MAX_KEYS = 16 * 1024;
+
+    /** Sent in response to a request a full queue has no room for, see {@link Backpressure} */
+    static final String OVERLOADED_MESSAGE = "Server is overloaded, try again later";
+
+    /** Sent to a connection the {@link #clientPool} has no room for */
+    private static final String BUSY_MESSAGE = "Server is busy, try again later";
 
     private static ThreadPoolExecutor createPool(int threadPoolSize, int queueSize) {
         return new ThreadPoolExecutor(
@@ -102,7 +232,73 @@ public class Server implements AutoCloseable {
         };
     }
 
+    /**
+     * Creates an executor starting a virtual thread per task if the runtime supports them (Java
+     * 21+), otherwise falls back to an unbounded pool of platform threads, so the {@link
+     * ConnectionMode#VIRTUAL_THREADS} mode still serves a thread per connection.
+     *
+     * <p>Looked up reflectively as the project is compiled for Java 17.
+     */
+    static ExecutorService createVirtualThreadExecutor() {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOG.warning(
+                    "Virtual threads aren't supported by Java %s, using platform threads"
+                            .formatted(Runtime.version().feature()));
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     public Server() {
+        this(new Config.Builder().build());
+    }
+
+    public Server(Config config) {
+        this.config = requireNonNull(config);
+        this.clientPool =
+                config.getConnectionMode() == ConnectionMode.VIRTUAL_THREADS
+                        ? createVirtualThreadExecutor()
+                        : new AdaptiveThreadPool(
+                                "connections",
+                                config.getPoolMinThreads(),
+                                config.getPoolMaxThreads(),
+                                config.getPoolQueueCapacity(),
+                                config.getPoolTargetQueueWaitMillis());
+        this.servicePool = createPool(2 + config.getShards(), 2 + config.getShards());
+        this.httpRequestsProcessor =
+                new MpscRingBuffer<>(
+                        config.getQueueCapacity(),
+                        config.getQueueMaxBytes(),
+                        httpRequest ->
+                                httpRequest.getBody().map(body -> 2L * body.length).orElse(0L));
+        this.chatRooms = new ChatRooms(config, Server::formatChatMessage);
+        this.follower =
+                config.getLeader().map(leader -> new ReplicationFollower(leader, chatRooms));
+        try {
+            this.httpRequestsDatabase =
+                    RequestAuditLog.open(
+                            config.getAuditDirectory(), config.getAuditInMemoryRequests());
+        } catch (IOException e) {
+            throw new UncheckedIOException(
+                    "Couldn't open the audit log: %s".formatted(config.getAuditDirectory()), e);
+        }
+        this.pageCache =
+                config.getPageCacheMaxBytes() == 0
+                        ? Optional.empty()
+                        : Optional.of(new EncodedPageCache(config.getPageCacheMaxBytes()));
+        this.rateLimiter =
+                config.getRateLimitPostsPerSecond() == 0
+                        ? Optional.empty()
+                        : Optional.of(
+                                new RateLimiter(
+                                        config.getRateLimitPostsPerSecond(),
+                                        config.getRateLimitBurst(),
+                                        RATE_LIMITER_MAX_KEYS));
+        this.requestLogWriter =
+                getHttpRequestProcessor(httpRequestsProcessor, httpRequestsDatabase, config);
+
         Runtime.getRuntime()
                 .addShutdownHook(
                         new Thread(
@@ -121,16 +317,32 @@ public class Server implements AutoCloseable {
         }
 
         try {
-            var serverSocket = new ServerSocket(8800);
-            serverSocket.setReuseAddress(true);
-            LOG.info("Starting: " + serverSocket);
+            switch (config.getConnectionMode()) {
+                case BLOCKING, VIRTUAL_THREADS -> {
+                    var serverSocket = new ServerSocket(config.getPort());
+                    serverSocket.setReuseAddress(true);
+                    LOG.info("Starting: " + serverSocket);
+
+                    portListener = Optional.of(getPortListener(serverSocket));
+                    portListener.get().start();
+                }
+                case NIO -> {
+                    eventLoop =
+                            Optional.of(
+                                    new NioEventLoop(
+                                            config.getPort(),
+                                            config.getEventLoops(),
+                                            this::createRequestHandler,
+                                            config.getMaxPendingOutputBytes(),
+                                            metrics::countSlowConsumer));
+                    eventLoop.get().start();
+                }
+            }
 
-            portListener = Optional.of(getPortListener(serverSocket));
-            portListener.get().start();
-            servicePool.submit(
-                    getHttpRequestProcessor(httpRequestsProcessor, httpRequestsDatabase));
-            servicePool.submit(
-                    getChatMessageProcessor(chatMessagesProcessor, chatMessagesDatabase));
+            servicePool.submit(requestLogWriter);
+            servicePool.submit(idleReaper);
+            chatRooms.getWriters().forEach(servicePool::submit);
+            follower.ifPresent(ReplicationFollower::start);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -159,8 +371,13 @@ public class Server implements AutoCloseable {
         isClosed = true;
 
         System.out.println("Clean Up: " + this);
-        var isInterrupted = cleanUpPortListener();
+        var isInterrupted =
+                switch (config.getConnectionMode()) {
+                    case BLOCKING, VIRTUAL_THREADS -> cleanUpPortListener();
+                    case NIO -> cleanUpEventLoop();
+                };
         isInterrupted = cleanUpConnectionPool() ? true : isInterrupted;
+        isInterrupted = cleanUpFollower() ? true : isInterrupted;
         isInterrupted = cleanUpServicePool() ? true : isInterrupted;
         cleanUpQeueus();
         System.out.println("Cleaned Up: " + this);
@@ -200,6 +417,26 @@ public class Server implements AutoCloseable {
         return false;
     }
 
+    private synchronized boolean cleanUpEventLoop() {
+        if (eventLoop.isEmpty()) {
+            throw new IllegalStateException("The Event Loop is not present");
+        }
+
+        var loop = eventLoop.get();
+        eventLoop = Optional.empty();
+        System.out.println("Stopping Event Loop: " + loop);
+
+        try {
+            loop.close();
+        } catch (InterruptedException e) {
+            LOG.warning("Event Loop cleanup was interrupted");
+            return true;
+        }
+
+        System.out.println("Stopped Event Loop: " + loop);
+        return false;
+    }
+
     private synchronized boolean cleanUpConnectionPool() {
         System.out.println("Closing Connection Pool: " + clientPool);
 
@@ -226,10 +463,29 @@ public class Server implements AutoCloseable {
         return false;
     }
 
+    private synchronized boolean cleanUpFollower() {
+        if (follower.isEmpty()) {
+            return false;
+        }
+
+        System.out.println("Stopping the replication: " + follower.get());
+        try {
+            follower.get().close();
+        } catch (InterruptedException e) {
+            LOG.warning("Replication cleanup was interrupted");
+            return true;
+        }
+        System.out.println("Stopped the replication");
+
+        return false;
+    }
+
     private synchronized boolean cleanUpServicePool() {
         System.out.println("Closing Service Pool: " + servicePool);
         try {
-            assert servicePool.shutdownNow().isEmpty();
+            // not inside the assert, it would never be called with assertions disabled
+            var notStarted = servicePool.shutdownNow();
+            assert notStarted.isEmpty();
 
             if (!servicePool.awaitTermination(10, TimeUnit.SECONDS)) {
                 LOG.warning("Couldn't shutdown the Service Pool. Timeout");
@@ -246,10 +502,9 @@ public class Server implements AutoCloseable {
 
     private void cleanUpQeueus() {
         System.out.println("Cleaning up queues");
-        chatMessagesProcessor.clear();
         httpRequestsProcessor.clear();
-        chatMessagesDatabase.clear();
-        httpRequestsDatabase.clear();
+        chatRooms.close(); // the writers have stopped with the service pool
+        httpRequestsDatabase.close(); // the writer has stopped with the service pool
         System.out.println("Queues have been cleaned up");
     }
 
@@ -261,7 +516,11 @@ public class Server implements AutoCloseable {
                 while (!Thread.currentThread().isInterrupted()) {
                     try {
                         var clientSocket = serverSocket.accept();
-                        clientPool.submit(() -> handleConnection(clientSocket));
+                        try {
+                            clientPool.submit(() -> handleConnection(clientSocket));
+                        } catch (RejectedExecutionException e) {
+                            rejectConnection(clientSocket, e);
+                        }
                     } catch (SocketException e) {
                         if (Thread.currentThread().isInterrupted()) {
                             LOG.info("Socket was interrupted");
@@ -286,806 +545,2528 @@ public class Server implements AutoCloseable {
         };
     }
 
-    private static Runnable getHttpRequestProcessor(
-            BlockingQueue<HttpRequest> httpRequests, BlockingQueue<HttpRequest> dbHttpRequests) {
-        requireNonNull(httpRequests);
-        requireNonNull(dbHttpRequests);
-
-        var requestFile = "./requests.log";
-        return () -> {
-            try (var requestWriter = new BufferedWriter(new FileWriter(requestFile))) {
-
-                while (!Thread.currentThread().isInterrupted()) {
-                    var httpRequest = httpRequests.take();
-                    dbHttpRequests.add(httpRequest);
+    /**
+     * Answers a connection the {@link #clientPool} has no room for with {@link HttpStatus#BUSY}
+     * right away and closes it, instead of resetting it. The request isn't read, so the response
+     * is serialized, the client reads it in any {@link ResponseFormat}.
+     *
+     * @param clientSocket to reject
+     * @param e why it was rejected
+     */
+    private void rejectConnection(Socket clientSocket, RejectedExecutionException e) {
+        LOG.warning("Rejected: '%s'. %s".formatted(clientSocket, e.getMessage()));
+
+        try (var socket = clientSocket) {
+            sendResponse(
+                    socket.getOutputStream(),
+                    new HttpResponse(HttpStatus.BUSY, BUSY_MESSAGE),
+                    ResponseFormat.SERIALIZED);
+            socket.shutdownOutput();
+
+            // closing with unread data resets the connection, which may drop the response
+            var in = socket.getInputStream();
+            var available = 0;
+            while ((available = in.available()) > 0) {
+                in.skip(available);
+            }
+        } catch (IOException ioe) {
+            LOG.log(
+                    Level.FINE,
+                    ioe,
+                    () -> "Couldn't answer the rejected '%s'".formatted(clientSocket));
+        }
+    }
 
-                    var body = httpRequest.getBody();
-                    var headers = httpRequest.getHeaders();
+    /**
+     * @return one line summary of the connection pool, see {@link AdaptiveThreadPool#getStats()},
+     *     empty if the {@link ConnectionMode} doesn't use it
+     */
+    public Optional<String> getConnectionPoolStats() {
+        return clientPool instanceof AdaptiveThreadPool pool
+                ? Optional.of(pool.getStats())
+                : Optional.empty();
+    }
 
-                    var msg =
-                            "[%s] | %.5s | %s | %s%n"
-                                    .formatted(
-                                            httpRequest.getSocketName(),
-                                            httpRequest.getMethod(),
-                                            headers.isPresent() ? headers.get() : "[]",
-                                            body.isPresent() ? Arrays.toString(body.get()) : "[]");
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
 
-                    requestWriter.write(msg);
-                    requestWriter.flush();
-                }
+    /**
+     * @return the cache of the encoded pages of messages, empty if it is disabled
+     */
+    public Optional<EncodedPageCache> getPageCache() {
+        return pageCache;
+    }
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                LOG.warning("%s was interrupted".formatted(Thread.currentThread().getName()));
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, "Exception was thrown", e);
-            }
-        };
+    /**
+     * @return the rooms, to read their messages
+     */
+    public ChatRooms getChatRooms() {
+        return chatRooms;
     }
 
-    private static Runnable getChatMessageProcessor(
-            BlockingQueue<ChatMessage> chatMessages, LinkedList<ChatMessage> dbChatMessages) {
-        requireNonNull(chatMessages);
-        requireNonNull(dbChatMessages);
+    /**
+     * @return the handled requests, to query them by socket or time
+     */
+    public RequestAuditLog getRequestAuditLog() {
+        return httpRequestsDatabase;
+    }
 
-        var chatMessagesFile = "./chat.log";
-        return () -> {
-            try (var chatWriter =
-                    new BufferedWriter(
-                            new OutputStreamWriter(new FileOutputStream(chatMessagesFile)))) {
+    /**
+     * @return the {@link ServerMetrics}, the depths of the queues, the stats of the pools and the
+     *     log writers and the shards of the {@link ChatRooms}, a {@code name value} line each
+     */
+    public String formatMetrics() {
+        var out = new StringBuilder();
+        metrics.appendTo(out);
+        ServerMetrics.appendLine(out, "queue.capacity", httpRequestsProcessor.getCapacity());
+        ServerMetrics.appendLine(out, "queue.httpRequestsProcessor", httpRequestsProcessor.size());
+        ServerMetrics.appendLine(
+                out, "queue.httpRequestsProcessor.bytes", httpRequestsProcessor.getWeight());
+        ServerMetrics.appendLine(out, "audit.requests", httpRequestsDatabase.getSize());
+        ServerMetrics.appendLine(out, "audit.inMemory", httpRequestsDatabase.getInMemoryCount());
+        ServerMetrics.appendLine(out, "audit.spilled", httpRequestsDatabase.getSpilledCount());
+        getConnectionPoolStats()
+                .ifPresent(stats -> ServerMetrics.appendLine(out, "pool.connections", stats));
+        ServerMetrics.appendLine(out, "pool.service", servicePool);
+        ServerMetrics.appendLine(out, "writer.requests", requestLogWriter.getStats());
+        ServerMetrics.appendLine(out, "idle.reaper", idleReaper.getStats());
+        rateLimiter.ifPresent(
+                limiter -> ServerMetrics.appendLine(out, "rateLimit.posts", limiter.getStats()));
+        chatRooms.appendMetrics(out);
+        pageCache.ifPresent(
+                cache -> ServerMetrics.appendLine(out, "cache.pages", cache.getStats()));
+        follower.ifPresent(replication -> replication.appendMetrics(out));
+
+        return out.toString();
+    }
 
-                while (!Thread.currentThread().isInterrupted()) {
-                    var chatMessage = chatMessages.take();
+    /**
+     * The only writer of the {@code dbHttpRequests}
+     */
+    private static GroupCommitWriter<HttpRequest> getHttpRequestProcessor(
+            BlockingQueue<HttpRequest> httpRequests, RequestAuditLog dbHttpRequests, Config config) {
+        requireNonNull(httpRequests);
+        requireNonNull(dbHttpRequests);
+        requireNonNull(config);
+
+        return new GroupCommitWriter.Builder<HttpRequest>()
+                .name("requests.log")
+                .source(httpRequests)
+                .file(Path.of("./requests.log"))
+                .durability(config.getLogDurability())
+                .flushIntervalMillis(config.getLogFlushIntervalMillis())
+                .maxBatchSize(config.getLogMaxBatchSize())
+                .beforeWrite(
+                        httpRequest -> {
+                            dbHttpRequests.append(httpRequest);
+                            return httpRequest;
+                        })
+                .formatter(Server::formatHttpRequest)
+                .build();
+    }
 
-                    synchronized (dbChatMessages) {
-                        dbChatMessages.add(chatMessage);
-                    }
+    /**
+     * Appends {@code [socketName] | method | headers | body} line
+     *
+     * @param httpRequest to format
+     * @param out to append to
+     */
+    private static void formatHttpRequest(HttpRequest httpRequest, StringBuilder out) {
+        out.append(httpRequest.getSocketName())
+                .append(" | ")
+                .append(httpRequest.getMethod())
+                .append(" | ")
+                .append(httpRequest.getHeaders().map(Object::toString).orElse("{}"))
+                .append(" | ");
+        httpRequest.body.ifPresent(out::append);
+        out.append(System.lineSeparator());
+    }
 
-                    var username = chatMessage.getUser().getUsername();
-                    var header =
-                            "%s | %s:> "
-                                    .formatted(
-                                            username,
-                                            dateFormatter.format(chatMessage.getCreatedDate()));
-                    var indent = " ".repeat(header.length());
-                    var data =
-                            String.valueOf(chatMessage.getMessage())
-                                    .replaceAll("\n", System.lineSeparator() + indent);
-
-                    var message = "%s%s%n".formatted(header, data);
-
-                    System.out.print(message);
-                    chatWriter.write(message);
-                    chatWriter.flush();
+    /**
+     * Appends {@code username | date:> message} with the following lines of the message indented
+     * under the first one
+     *
+     * @param chatMessage to format
+     * @param out to append to
+     */
+    private static void formatChatMessage(ChatMessage chatMessage, StringBuilder out) {
+        var headerStart = out.length();
+        out.append(chatMessage.getUser().getUsername())
+                .append(" | ")
+                .append(dateFormatter.format(chatMessage.getCreatedDate()))
+                .append(":> ");
+        var headerLength = out.length() - headerStart;
+
+        for (var ch : chatMessage.getMessage()) {
+            if (ch == '\n') {
+                out.append(System.lineSeparator());
+                for (int i = 0; i < headerLength; i++) {
+                    out.append(' ');
                 }
-
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                LOG.warning("%s was interrupted".formatted(Thread.currentThread().getName()));
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, "Exception was thrown", e);
+            } else {
+                out.append(ch);
             }
-        };
+        }
+        out.append(System.lineSeparator());
     }
 
     private void handleConnection(Socket clientSocket) {
         requireNonNull(clientSocket);
         var socketName = "[%s:%s]".formatted(clientSocket.getInetAddress(), clientSocket.getPort());
 
-        try (var reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                var writer = new PrintWriter(clientSocket.getOutputStream());
+        // waking up the thread blocked reading, it says goodbye and closes the connection, or
+        // closing the connection of the thread blocked writing to a client not reading
+        var isWriting = new AtomicBoolean();
+        var idle =
+                idleReaper.register(
+                        () -> {
+                            if (isWriting.get()) {
+                                closeQuietly(clientSocket);
+                            } else {
+                                shutdownInput(clientSocket);
+                            }
+                        });
+        try (var in = clientSocket.getInputStream();
                 var sock = clientSocket) {
 
-            LOG.info("Connected: " + sock);
-
-            clientSocket.setSoTimeout((int) Duration.ofMinutes(15).toMillis());
-
-            String firstLine = null;
-            while (!Thread.currentThread().isInterrupted()
-                    && (firstLine = reader.readLine()) != null) {
+            LOG.fine(() -> "Connected: " + sock);
+
+            // the responses to pipelined requests are collected and flushed at once, before the
+            // connection blocks: to read the next request, to wait for new messages or to stream
+            var out =
+                    new BufferedOutputStream(
+                            new DeadlineOutputStream(
+                                    clientSocket.getOutputStream(),
+                                    idle,
+                                    isWriting,
+                                    config.getSendTimeoutMillis()),
+                            WRITE_BUFFER_SIZE);
+            // reused for all the requests of the connection, holds the unparsed bytes
+            var buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+            var parser = new RequestParser(requestTargets, ROOM_TARGET);
+            // when the first bytes of the request being received were read, -1 before that
+            var requestStart = -1L;
+            while (!Thread.currentThread().isInterrupted()) {
 
                 Optional<HttpResponse> optResponse = Optional.empty();
+                Optional<HttpRequest> streamRequest = Optional.empty();
+                var responseFormat = ResponseFormat.SERIALIZED;
+                var isParsed = false;
                 try {
-                    LOG.info("Received Request: from '%s'".formatted(clientSocket));
-                    var httpRequest = parseRequest(socketName, firstLine, reader);
-
-                    LOG.info("Parsed Request: '%s' from '%s'".formatted(httpRequest, clientSocket));
+                    var parseStart = System.nanoTime();
+                    var requestPosition = buffer.position();
+                    // a body without a length ends with what the client has sent so far
+                    if (!buffer.hasRemaining() || !parser.parse(buffer, in.available() == 0)) {
+                        // flushed with the send deadline, which is replaced by the read one
+                        out.flush();
+                        // a request being received has a shorter deadline than a new one
+                        if (!idle.expireAfter(
+                                requestStart == -1
+                                        ? config.getIdleTimeoutMillis()
+                                        : config.getRequestTimeoutMillis())) {
+                            break;
+                        }
+                        buffer = RequestParser.ensureWritable(buffer);
+                        var length =
+                                in.read(
+                                        buffer.array(),
+                                        buffer.limit(),
+                                        buffer.capacity() - buffer.limit());
+                        if (length == -1) {
+                            if (idle.isExpired()) {
+                                LOG.fine(() -> "%s | Expired idle".formatted(socketName));
+                                sendResponse(
+                                        out,
+                                        new HttpResponse(HttpStatus.BAD, DISCONNECTING_MESSAGE),
+                                        responseFormat);
+                                out.flush();
+                            }
+                            break;
+                        }
+                        buffer.limit(buffer.limit() + length);
+                        if (requestStart == -1) {
+                            requestStart = System.nanoTime();
+                        }
+                        continue;
+                    }
 
-                    optResponse = Optional.of(handleHttpRequest(httpRequest));
+                    isParsed = true;
+                    // the time of handling and streaming isn't the client's idleness
+                    if (!idle.suspend()) {
+                        break;
+                    }
+                    metrics.getStage(Stage.READ).record(parseStart - requestStart);
+                    // a pipelined request has been received already
+                    requestStart = buffer.hasRemaining() ? System.nanoTime() : -1;
+
+                    responseFormat = ResponseFormat.of(parser);
+                    var httpRequest = parser.toHttpRequest(socketName);
+                    metrics.recordSince(Stage.PARSE, parseStart);
+                    metrics.countRequest(
+                            httpRequest.getMethod(), buffer.position() - requestPosition);
+
+                    LOG.finest(
+                            () -> "%s | Parsed Request: '%s'".formatted(socketName, httpRequest));
+
+                    if (getBaseTarget(httpRequest.getTarget()).equals(MESSAGES_STREAM_TARGET)) {
+                        audit(httpRequest);
+                        streamRequest = Optional.of(httpRequest);
+                    } else {
+                        // waiting on this thread, which is blocked anyway, and reading the
+                        // messages on it too once the wait is over
+                        var handleStart = System.nanoTime();
+                        var wait = awaitLongPoll(httpRequest);
+                        if (wait.isPresent()) {
+                            out.flush();
+                            wait.get().get();
+                            optResponse = Optional.of(answerLongPoll(httpRequest));
+                        } else {
+                            optResponse = Optional.of(handleHttpRequest(httpRequest));
+                        }
+                        metrics.recordSince(Stage.HANDLE, handleStart);
+                    }
                 } catch (IllegalArgumentException e) {
-                    // cleaning socket, if we have an issue with parsing the data
-                    var skipped = reader.skip(Integer.MAX_VALUE);
+                    // cleaning socket, if we have an issue with parsing the data, skipping only
+                    // what was received, as skip() blocks till the client closes the socket
+                    var skipped = 0L;
+                    if (!isParsed) {
+                        requestStart = -1;
+                        skipped = buffer.remaining();
+                        buffer.position(buffer.limit());
+                        var available = 0;
+                        while ((available = in.available()) > 0) {
+                            skipped += in.skip(available);
+                        }
+                    }
 
+                    var skippedBytes = skipped;
                     LOG.log(
                             Level.WARNING,
-                            "Exception processing request. Skipped characters: " + skipped,
-                            e);
+                            e,
+                            () ->
+                                    "%s | Exception processing request. Skipped bytes: %s"
+                                            .formatted(socketName, skippedBytes));
                     optResponse = Optional.of(new HttpResponse(HttpStatus.BAD, e.getMessage()));
+                } catch (RejectedExecutionException e) {
+                    metrics.countOverloaded();
+                    LOG.fine(() -> "%s | Overloaded: %s".formatted(socketName, e.getMessage()));
+                    optResponse = Optional.of(new HttpResponse(HttpStatus.BUSY, e.getMessage()));
                 } finally {
-                    if (optResponse.isEmpty()) {
-                        optResponse = Optional.of(new HttpResponse(HttpStatus.BAD, "Error"));
+                    if (streamRequest.isEmpty() && (isParsed || optResponse.isPresent())) {
+                        if (optResponse.isEmpty()) {
+                            optResponse = Optional.of(new HttpResponse(HttpStatus.BAD, "Error"));
+                        }
+
+                        var response = optResponse.get();
+                        LOG.finest(
+                                () ->
+                                        "%s | Sending Response: '%s'"
+                                                .formatted(socketName, response));
+                        sendResponse(out, optResponse.get(), responseFormat);
                     }
+                }
 
-                    LOG.info(
-                            "Sending Response: '%s' to '%s'"
-                                    .formatted(optResponse.get(), clientSocket));
-                    sendResponse(clientSocket, optResponse.get());
+                if (streamRequest.isPresent()) {
+                    streamMessages(out, streamRequest.get());
+                    break;
                 }
             }
 
-        } catch (SocketTimeoutException e) {
-            LOG.log(Level.WARNING, "%s | Timeout".formatted(socketName), e);
-            // send reponse that server is disconnecting
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.fine(() -> "%s | Interrupted".formatted(socketName));
         } catch (IOException e) {
-            LOG.log(Level.SEVERE, "%s | IOException".formatted(socketName), e);
+            if (isWriting.get() && idle.isExpired()) {
+                metrics.countSlowConsumer();
+                LOG.warning("%s | Closed a slow consumer".formatted(socketName));
+            } else {
+                LOG.log(Level.SEVERE, "%s | IOException".formatted(socketName), e);
+            }
         } catch (Exception e) {
             LOG.log(Level.SEVERE, "%s | Exception".formatted(socketName), e);
         } finally {
-            LOG.info("%s Disconnected".formatted(socketName, clientSocket));
+            idle.cancel();
+            LOG.fine(() -> "%s | Disconnected".formatted(socketName));
         }
     }
 
-    private HttpResponse handleHttpRequest(HttpRequest httpRequest) {
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Couldn't close %s".formatted(socket), e);
+        }
+    }
+
+    /**
+     * The output of a blocking connection, every write has to be accepted by the client within the
+     * send timeout, or the {@link IdleReaper} closes the connection. A client not reading its
+     * responses can't hold the thread of its connection forever, once the socket's send buffer is
+     * full.
+     */
+    private static class DeadlineOutputStream extends FilterOutputStream {
+        private final IdleReaper.Handle idle;
+
+        /** Tells the {@code onExpired} of the {@link #idle} whether a write has expired */
+        private final AtomicBoolean isWriting;
+
+        private final long timeoutMillis;
+
+        DeadlineOutputStream(
+                OutputStream out,
+                IdleReaper.Handle idle,
+                AtomicBoolean isWriting,
+                long timeoutMillis) {
+            super(requireNonNull(out));
+            this.idle = requireNonNull(idle);
+            this.isWriting = requireNonNull(isWriting);
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start();
+            try {
+                out.write(b);
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start();
+            try {
+                out.write(b, off, len);
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            start();
+            try {
+                out.flush();
+            } finally {
+                finish();
+            }
+        }
+
+        /**
+         * An expired connection is written without a deadline, it's only saying goodbye before
+         * it's closed
+         */
+        private void start() {
+            isWriting.set(true);
+            idle.expireAfter(timeoutMillis);
+        }
+
+        /**
+         * The caller sets the next deadline, if it reads. An expired write stays marked, telling
+         * the failure of the connection came from the client not reading
+         */
+        private void finish() {
+            if (idle.suspend()) {
+                isWriting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Makes the thread blocked reading the {@code socket} read the end of the stream
+     */
+    private static void shutdownInput(Socket socket) {
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            // closed meanwhile
+            LOG.log(Level.FINE, "Couldn't shut down the input of %s".formatted(socket), e);
+        }
+    }
+
+    /**
+     * Sends all the messages newer than the 'lastId' parameter of the {@code httpRequest}, a page
+     * of at most 'limit' messages per response, and then keeps sending new ones as they are
+     * appended, or an empty list every {@link #STREAM_HEARTBEAT_MILLIS}. Returns only when the
+     * thread is interrupted or sending fails.
+     *
+     * @param out of the socket to stream messages to, flushed after every response
+     * @param httpRequest the stream was requested with
+     * @throws IOException if sending fails, i.e. the client has disconnected
+     * @throws InterruptedException if interrupted while waiting for new messages
+     */
+    private void streamMessages(OutputStream out, HttpRequest httpRequest)
+            throws IOException, InterruptedException {
+        requireNonNull(out);
         requireNonNull(httpRequest);
-        httpRequestsProcessor.add(httpRequest);
 
-        var body = httpRequest.getBody();
-        return switch (httpRequest.getMethod()) {
-            case POST -> {
-                if (body.isPresent()) {
-                    char[] data = body.get();
-                    var message = new ChatMessage(data, new User(httpRequest.getSocketName(), ""));
-                    chatMessagesProcessor.add(message);
-                } else {
+        var room = getRoom(httpRequest.getTarget());
+        var lastId = getLastIdParam(httpRequest);
+        var limit = getLimitParam(httpRequest);
+        var responseFormat = ResponseFormat.of(httpRequest);
+
+        // a room that doesn't exist gets heartbeats, till a post opens it
+        Optional<ChatMessageLog> optLog;
+        while ((optLog = chatRooms.findRoom(room)).isEmpty()) {
+            sendResponse(out, createEmptyResponse(room), responseFormat);
+            out.flush();
+            TimeUnit.MILLISECONDS.sleep(STREAM_HEARTBEAT_MILLIS);
+        }
+
+        var log = optLog.get();
+        while (!Thread.currentThread().isInterrupted()) {
+            var messages = log.readFrom(lastId + 1, limit);
+            var response = createMessagesResponse(room, log, lastId, messages);
+            if (!messages.isEmpty()) {
+                lastId = messages.get(messages.size() - 1).getId();
+            }
+            sendResponse(out, response, responseFormat);
+            out.flush();
+
+            var appended = log.awaitNewerThan(lastId);
+            try {
+                appended.get(STREAM_HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // sending a heartbeat, the wait is over
+                appended.cancel(false);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("The append future can't fail", e);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #streamMessages(OutputStream, HttpRequest)} but for a {@link NioEventLoop}
+     * connection. Every wait for new messages is a callback on the connection's event loop, the
+     * stream stops when the connection is closed.
+     *
+     * @param responder of the connection
+     * @param room to stream the messages of
+     * @param lastId of the last sent message
+     * @param limit the most messages in a response
+     * @param responseFormat to encode the responses with
+     */
+    private void streamMessages(
+            Responder responder,
+            String room,
+            long lastId,
+            int limit,
+            ResponseFormat responseFormat) {
+        if (!responder.isOpen()) {
+            return;
+        }
+
+        var optLog = chatRooms.findRoom(room);
+        if (optLog.isEmpty()) {
+            // a heartbeat, the room is looked up again after it till a post opens it
+            sendResponse(responder, createEmptyResponse(room), responseFormat);
+            CompletableFuture.runAsync(
+                    () -> streamMessages(responder, room, lastId, limit, responseFormat),
+                    CompletableFuture.delayedExecutor(
+                            STREAM_HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS, responder));
+            return;
+        }
+
+        var log = optLog.get();
+        var messages = log.readFrom(lastId + 1, limit);
+        var newLastId = messages.isEmpty() ? lastId : messages.get(messages.size() - 1).getId();
+        sendResponse(
+                responder, createMessagesResponse(room, log, lastId, messages), responseFormat);
+
+        log.awaitNewerThan(newLastId)
+                .completeOnTimeout(null, STREAM_HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS)
+                .thenRunAsync(
+                        () -> streamMessages(responder, room, newLastId, limit, responseFormat),
+                        responder)
+                .exceptionally(
+                        e -> {
+                            LOG.log(Level.SEVERE, "Streaming failed", e);
+                            return null;
+                        });
+    }
+
+    /**
+     * @return handler of the requests of a {@link NioEventLoop} connection, with its own {@link
+     *     RequestParser}. It tracks the connection with the {@link #idleReaper} the same way {@link
+     *     #handleConnection(Socket)} does, but never while a request waits for its response
+     */
+    private NioEventLoop.RequestHandler createRequestHandler() {
+        var parser = new RequestParser(requestTargets, ROOM_TARGET);
+        return new NioEventLoop.RequestHandler() {
+            /** When the first bytes of the request being received were read, -1 before that */
+            private long requestStart = -1;
+
+            private IdleReaper.Handle idle;
+
+            /** Requests waiting for new messages or streaming them */
+            private int unanswered;
+
+            /** Of the last request, the goodbye to an expired connection is sent in it */
+            private ResponseFormat responseFormat = ResponseFormat.SERIALIZED;
+
+            @Override
+            public void onOpen(String socketName, Responder responder) {
+                // the goodbye is sent and the connection closed by its event loop
+                idle =
+                        idleReaper.register(
+                                () -> responder.execute(() -> expire(socketName, responder)));
+                idle.expireAfter(config.getIdleTimeoutMillis());
+            }
+
+            @Override
+            public void onClose() {
+                idle.cancel();
+            }
+
+            private void expire(String socketName, Responder responder) {
+                if (!responder.isOpen()) {
+                    return;
+                }
+
+                LOG.fine(() -> "%s | Expired idle".formatted(socketName));
+                sendResponse(
+                        responder,
+                        new HttpResponse(HttpStatus.BAD, DISCONNECTING_MESSAGE),
+                        responseFormat);
+                responder.disconnect();
+            }
+
+            @Override
+            public void handle(String socketName, ByteBuffer data, Responder responder) {
+                if (requestStart == -1) {
+                    requestStart = System.nanoTime();
+                }
+
+                try {
+                    handleRequests(socketName, data, responder);
+                } finally {
+                    resetDeadline();
+                }
+            }
+
+            /** A request being received has a shorter deadline than a new one */
+            private void resetDeadline() {
+                if (unanswered == 0) {
+                    idle.expireAfter(
+                            requestStart == -1
+                                    ? config.getIdleTimeoutMillis()
+                                    : config.getRequestTimeoutMillis());
+                }
+            }
+
+            private void handleRequests(String socketName, ByteBuffer data, Responder responder) {
+                while (data.hasRemaining()) {
+                    var parseStart = System.nanoTime();
+                    var requestPosition = data.position();
+                    try {
+                        // everything readable was read, a body without a length ends here
+                        if (!parser.parse(data, true)) {
+                            return;
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // skipping what was received, the parser is reset
+                        LOG.log(
+                                Level.WARNING,
+                                "%s | Exception parsing request. Skipped bytes: %s"
+                                        .formatted(socketName, data.remaining()),
+                                e);
+                        data.position(data.limit());
+                        requestStart = -1;
+                        sendResponse(
+                                responder,
+                                new HttpResponse(HttpStatus.BAD, e.getMessage()),
+                                ResponseFormat.SERIALIZED);
+                        return;
+                    }
+
+                    metrics.getStage(Stage.READ).record(parseStart - requestStart);
+                    metrics.countRequest(parser.getMethod(), data.position() - requestPosition);
+                    // a pipelined request has been received already
+                    requestStart = data.hasRemaining() ? System.nanoTime() : -1;
+
+                    responseFormat = ResponseFormat.of(parser);
+                    var answered = processRequest(socketName, parser, responder, parseStart);
+                    if (!answered.isDone()) {
+                        unanswered++;
+                        idle.suspend();
+                        answered.whenCompleteAsync(
+                                (v, e) -> {
+                                    unanswered--;
+                                    resetDeadline();
+                                },
+                                responder);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Handles a request parsed from the data read by the {@link NioEventLoop}, the same way {@link
+     * #handleConnection(Socket)} does it for a blocking socket. Requests that wait for new
+     * messages are answered later on the connection's event loop.
+     *
+     * @param socketName of the socket the request was read from
+     * @param parser with a parsed request
+     * @param responder to send the encoded response with
+     * @param parseStart when the parsing of the request started, for the {@link ServerMetrics}
+     * @return future completed once the response is sent, never for a stream
+     */
+    private CompletableFuture<?> processRequest(
+            String socketName, RequestParser parser, Responder responder, long parseStart) {
+        requireNonNull(socketName);
+        requireNonNull(parser);
+        requireNonNull(responder);
+
+        CompletableFuture<HttpResponse> response;
+        var responseFormat = ResponseFormat.of(parser);
+        try {
+            var httpRequest = parser.toHttpRequest(socketName);
+            metrics.recordSince(Stage.PARSE, parseStart);
+            LOG.finest(() -> "%s | Parsed Request: '%s'".formatted(socketName, httpRequest));
+
+            if (getBaseTarget(httpRequest.getTarget()).equals(MESSAGES_STREAM_TARGET)) {
+                audit(httpRequest);
+                streamMessages(
+                        responder,
+                        getRoom(httpRequest.getTarget()),
+                        getLastIdParam(httpRequest),
+                        getLimitParam(httpRequest),
+                        responseFormat);
+                // a stream ends with the connection
+                return new CompletableFuture<>();
+            }
+
+            var handleStart = System.nanoTime();
+            response =
+                    handleHttpRequestAsync(httpRequest, responder)
+                            .whenComplete(
+                                    (httpResponse, e) ->
+                                            metrics.recordSince(Stage.HANDLE, handleStart));
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "%s | Exception processing request".formatted(socketName), e);
+            response =
+                    CompletableFuture.completedFuture(
+                            new HttpResponse(HttpStatus.BAD, e.getMessage()));
+        } catch (RejectedExecutionException e) {
+            metrics.countOverloaded();
+            LOG.fine(() -> "%s | Overloaded: %s".formatted(socketName, e.getMessage()));
+            response =
+                    CompletableFuture.completedFuture(
+                            new HttpResponse(HttpStatus.BUSY, e.getMessage()));
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "%s | Exception".formatted(socketName), e);
+            response = CompletableFuture.completedFuture(new HttpResponse(HttpStatus.BAD, "Error"));
+        }
+
+        return response.whenComplete(
+                (httpResponse, e) -> {
+                    if (e != null) {
+                        LOG.log(Level.SEVERE, "%s | Exception".formatted(socketName), e);
+                        httpResponse = new HttpResponse(HttpStatus.BAD, "Error");
+                    }
+                    sendResponse(responder, httpResponse, responseFormat);
+                });
+    }
+
+    /**
+     * Handles a request that may wait for new messages: a GET with the 'wait' parameter, when there
+     * are no messages newer than its 'lastId', is answered once a new message is appended, or with
+     * an empty list after 'wait' milliseconds. Other requests are handled right away by {@link
+     * #handleHttpRequest(HttpRequest)}.
+     *
+     * @param httpRequest to handle
+     * @param executor to prepare the delayed response with, the future is completed on it
+     * @return future of the response
+     * @throws IllegalArgumentException if the request is incorrect
+     */
+    private CompletableFuture<HttpResponse> handleHttpRequestAsync(
+            HttpRequest httpRequest, Executor executor) {
+        requireNonNull(executor);
+
+        var wait = awaitLongPoll(httpRequest);
+        if (wait.isEmpty()) {
+            return CompletableFuture.completedFuture(handleHttpRequest(httpRequest));
+        }
+
+        // never preparing the response on the thread completing the wait, that's the writer
+        // appending the messages or the timer
+        return wait.get().thenApplyAsync(v -> answerLongPoll(httpRequest), executor);
+    }
+
+    /**
+     * Starts the wait of a long poll, see {@link #handleHttpRequestAsync(HttpRequest, Executor)},
+     * once it's over the request is answered by {@link #answerLongPoll(HttpRequest)}
+     *
+     * @param httpRequest to handle
+     * @return the wait, completed when a new message is appended or after 'wait' milliseconds,
+     *     empty if the request should be handled right away by {@link
+     *     #handleHttpRequest(HttpRequest)}
+     * @throws IllegalArgumentException if the request is incorrect
+     * @throws RejectedExecutionException if the request can't be audited
+     */
+    private Optional<CompletableFuture<Void>> awaitLongPoll(HttpRequest httpRequest) {
+        requireNonNull(httpRequest);
+
+        var wait =
+                httpRequest.getMethod() == HttpMethod.GET
+                                && getBaseTarget(httpRequest.getTarget()).equals(MESSAGES_TARGET)
+                        ? getWaitParam(httpRequest)
+                        : 0;
+        if (wait == 0) {
+            return Optional.empty();
+        }
+
+        var lastId = getLastIdParam(httpRequest);
+        var optLog = chatRooms.findRoom(getRoom(httpRequest.getTarget()));
+        CompletableFuture<Void> appended;
+        if (optLog.isEmpty()) {
+            // nothing to wait on till a post opens the room, answered after the whole wait
+            appended = new CompletableFuture<>();
+        } else {
+            appended = optLog.get().awaitNewerThan(lastId);
+            if (appended.isDone()) {
+                return Optional.empty();
+            }
+        }
+
+        try {
+            audit(httpRequest);
+        } catch (RuntimeException e) {
+            appended.cancel(false); // unregistering the wait
+            throw e;
+        }
+        return Optional.of(appended.completeOnTimeout(null, wait, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @param httpRequest a long poll, which wait is over
+     * @return response with the messages newer than its 'lastId', if any
+     */
+    private HttpResponse answerLongPoll(HttpRequest httpRequest) {
+        return readMessages(
+                getRoom(httpRequest.getTarget()),
+                getLastIdParam(httpRequest),
+                getLimitParam(httpRequest));
+    }
+
+    /**
+     * Queues the {@code httpRequest} to the {@link #requestLogWriter}, waiting for room or not as
+     * the {@link Config#getBackpressure()} says
+     *
+     * @throws RejectedExecutionException if the queue is full, the request should be answered
+     *     with {@link HttpStatus#BUSY}
+     */
+    private void audit(HttpRequest httpRequest) {
+        requireNonNull(httpRequest);
+
+        var isQueued =
+                switch (config.getBackpressure()) {
+                    case BLOCK -> offer(httpRequestsProcessor, httpRequest, config);
+                    case FAIL -> httpRequestsProcessor.offer(httpRequest);
+                    case DROP_AUDIT -> {
+                        if (!httpRequestsProcessor.offer(httpRequest)) {
+                            metrics.countDroppedAudit();
+                        }
+                        yield true;
+                    }
+                };
+        if (!isQueued) {
+            throw new RejectedExecutionException(OVERLOADED_MESSAGE);
+        }
+    }
+
+    /**
+     * Offers the {@code item} to the {@code queue}, waiting for room for up to {@link
+     * Config#getQueueBlockTimeoutMillis()}, or not at all with {@link ConnectionMode#NIO}
+     *
+     * @return {@code false} if there was no room, or the thread was interrupted while waiting
+     */
+    static <T> boolean offer(BlockingQueue<T> queue, T item, Config config) {
+        if (config.getConnectionMode() == ConnectionMode.NIO) {
+            return queue.offer(item); // the event loop thread must not block
+        }
+        try {
+            return queue.offer(item, config.getQueueBlockTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private HttpResponse handleHttpRequest(HttpRequest httpRequest) {
+        requireNonNull(httpRequest);
+        audit(httpRequest);
+
+        if (httpRequest.getTarget().equals(METRICS_TARGET)) {
+            if (httpRequest.getMethod() != HttpMethod.GET) {
+                throw new IllegalArgumentException(
+                        "Only GET is supported by '%s'".formatted(METRICS_TARGET));
+            }
+            return new HttpResponse(HttpStatus.OK, formatMetrics());
+        }
+        if (follower.isPresent() && httpRequest.getMethod() == HttpMethod.POST) {
+            throw new IllegalArgumentException(
+                    "The server is a read-only follower of %s".formatted(config.getLeader().get()));
+        }
+
+        var room = getRoom(httpRequest.getTarget());
+        if (getBaseTarget(httpRequest.getTarget()).equals(MESSAGES_BATCH_TARGET)) {
+            return postBatch(httpRequest, room);
+        }
+        if (getBaseTarget(httpRequest.getTarget()).equals(SEARCH_TARGET)) {
+            return search(httpRequest, room);
+        }
+
+        // the body is owned by the request and never modified, so the message can share it
+        var body = httpRequest.body;
+        return switch (httpRequest.getMethod()) {
+            case POST -> {
+                if (body.isPresent()) {
+                    var message =
+                            new ChatMessage(
+                                    body.get(),
+                                    new User(httpRequest.getSocketName(), ""),
+                                    Instant.now());
+                    if (!isWithinRateLimit(httpRequest, 1)) {
+                        yield new HttpResponse(HttpStatus.BUSY, RATE_LIMITED_MESSAGE);
+                    }
+                    chatRooms.post(room, message);
+                } else {
+                    throw new IllegalArgumentException(
+                            "POST request to '%s' should have a body"
+                                    .formatted(httpRequest.getTarget()));
+                }
+
+                yield new HttpResponse(HttpStatus.OK, "Success");
+            }
+            case GET ->
+                    // returning a page of messages newer than the last id the client has,
+                    // -1 would mean we need all of them
+                    readMessages(room, getLastIdParam(httpRequest), getLimitParam(httpRequest));
+        };
+    }
+
+    /**
+     * @return response with a page of at most {@code limit} messages of the {@code room} newer
+     *     than {@code lastId}, an empty one if the room doesn't exist
+     */
+    private HttpResponse readMessages(String room, long lastId, int limit) {
+        var log = chatRooms.findRoom(room);
+        if (log.isEmpty()) {
+            return createEmptyResponse(room);
+        }
+
+        var messages = log.get().readFrom(lastId + 1, limit);
+        return createMessagesResponse(room, log.get(), lastId, messages);
+    }
+
+    /**
+     * Posts the messages of the body of a request to {@link #MESSAGES_BATCH_TARGET} to the {@code
+     * room} at once, they get consecutive ids and the same author and date
+     *
+     * @param httpRequest with the batch
+     * @param room to post to
+     * @return response with the number of posted messages
+     * @throws IllegalArgumentException if the request isn't a POST or its body isn't a batch
+     */
+    private HttpResponse postBatch(HttpRequest httpRequest, String room) {
+        if (httpRequest.getMethod() != HttpMethod.POST) {
+            throw new IllegalArgumentException(
+                    "Only POST is supported by '%s'".formatted(httpRequest.getTarget()));
+        }
+        if (httpRequest.body.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "POST request to '%s' should have a body".formatted(httpRequest.getTarget()));
+        }
+
+        var user = new User(httpRequest.getSocketName(), "");
+        var created = Instant.now();
+        var texts = parseBatch(httpRequest.body.get());
+        var messages = new ArrayList<ChatMessage>(texts.size());
+        for (var text : texts) {
+            messages.add(new ChatMessage(text, user, created));
+        }
+        if (!isWithinRateLimit(httpRequest, messages.size())) {
+            return new HttpResponse(HttpStatus.BUSY, RATE_LIMITED_MESSAGE);
+        }
+        chatRooms.postAll(room, messages);
+
+        return new HttpResponse(HttpStatus.OK, "Success: %s messages".formatted(messages.size()));
+    }
+
+    /**
+     * Takes the {@code messages} from the bucket of the socket of the {@code httpRequest}, a
+     * client posting faster than the {@link #rateLimiter} allows is shed with {@link
+     * HttpStatus#BUSY} before its messages cost an append
+     *
+     * @return {@code false} if the messages are over the limit, they mustn't be posted then
+     */
+    private boolean isWithinRateLimit(HttpRequest httpRequest, int messages) {
+        if (rateLimiter.isEmpty()
+                || rateLimiter.get().tryAcquire(httpRequest.getSocketName(), messages)) {
+            return true;
+        }
+
+        LOG.fine(() -> "%s | Rate limited".formatted(httpRequest.getSocketName()));
+        return false;
+    }
+
+    /**
+     * Finds the messages of the {@code room} with all the terms of the 'q' parameter, newest
+     * first, see {@link SearchIndex#search(CharSequence, long, int)}
+     *
+     * @param httpRequest with the 'q', 'before' and 'limit' parameters
+     * @param room to search in
+     * @return response with a page of the found messages, the next cursor is the 'before' of the
+     *     next page
+     * @throws IllegalArgumentException if the request isn't a GET, a parameter is incorrect or the
+     *     search is disabled
+     */
+    private HttpResponse search(HttpRequest httpRequest, String room) {
+        if (httpRequest.getMethod() != HttpMethod.GET) {
+            throw new IllegalArgumentException(
+                    "Only GET is supported by '%s'".formatted(httpRequest.getTarget()));
+        }
+
+        if (config.getSearchMaxBytes() == 0) {
+            throw new IllegalArgumentException("The search is disabled");
+        }
+        var params = httpRequest.getParameters();
+        if (params.isEmpty() || !params.get().containsKey("q")) {
+            throw new IllegalArgumentException(
+                    "GET request to '%s' should have the 'q' parameter"
+                            .formatted(httpRequest.getTarget()));
+        }
+
+        var limit = getLimitParam(httpRequest);
+        var before = getBeforeParam(httpRequest);
+        var index = chatRooms.getSearchIndex(room);
+        if (index.isEmpty()) {
+            return createEmptyResponse(room); // the room doesn't exist
+        }
+        // one more than the limit tells if there is a next page
+        var ids = index.get().search(params.get().get("q"), before, limit + 1);
+
+        var log = chatRooms.findRoom(room).get();
+        var messages = new ArrayList<ChatMessage>(Math.min(ids.length, limit));
+        for (int i = 0; i < ids.length && i < limit; i++) {
+            // skipping the messages deleted by the retention of the journal, before the search
+            // or while reading them
+            if (ids[i] >= log.getFirstId()) {
+                try {
+                    messages.add(log.get(ids[i]));
+                } catch (IndexOutOfBoundsException e) {
+                    LOG.finest(() -> "Skipped a deleted message: " + e.getMessage());
+                }
+            }
+        }
+        var nextCursor =
+                ids.length > limit ? OptionalLong.of(ids[limit - 1]) : OptionalLong.empty();
+
+        return new HttpResponse(HttpStatus.OK, room, messages, nextCursor);
+    }
+
+    /**
+     * Encodes {@code messages} as the body of a POST to {@link #MESSAGES_BATCH_TARGET}: each
+     * message as its length in characters, a {@code ':'} and its text, e.g. {@code 5:hello3:bye}
+     *
+     * @param messages to encode, each at least one character long
+     * @return encoded batch
+     * @throws IllegalArgumentException if there are no messages, more than {@link
+     *     #MAX_BATCH_MESSAGES} or an empty one
+     */
+    static char[] encodeBatch(List<char[]> messages) {
+        requireNonNull(messages);
+        if (messages.isEmpty() || messages.size() > MAX_BATCH_MESSAGES) {
+            throw new IllegalArgumentException(
+                    "A batch should have from 1 to %s messages: %s"
+                            .formatted(MAX_BATCH_MESSAGES, messages.size()));
+        }
+
+        var batch = new StringBuilder();
+        for (var message : messages) {
+            if (message.length == 0) {
+                throw new IllegalArgumentException("A message of a batch cannot be empty");
+            }
+            batch.append(message.length).append(':').append(message);
+        }
+
+        var chars = new char[batch.length()];
+        batch.getChars(0, chars.length, chars, 0);
+        return chars;
+    }
+
+    /**
+     * Splits the body of a POST to {@link #MESSAGES_BATCH_TARGET} into messages, see {@link
+     * #encodeBatch(List)}
+     *
+     * @param batch to split
+     * @return texts of the messages
+     * @throws IllegalArgumentException if the {@code batch} is malformed, or has more than {@link
+     *     #MAX_BATCH_MESSAGES} messages
+     */
+    static List<char[]> parseBatch(char[] batch) {
+        requireNonNull(batch);
+
+        var messages = new ArrayList<char[]>();
+        var i = 0;
+        while (i < batch.length) {
+            if (messages.size() == MAX_BATCH_MESSAGES) {
+                throw new IllegalArgumentException(
+                        "A batch cannot have more than %s messages".formatted(MAX_BATCH_MESSAGES));
+            }
+
+            var length = 0;
+            var lengthStart = i;
+            while (i < batch.length && batch[i] >= '0' && batch[i] <= '9' && i - lengthStart < 7) {
+                length = length * 10 + (batch[i++] - '0');
+            }
+            if (i == lengthStart || i == batch.length || batch[i] != ':' || length == 0) {
+                throw new IllegalArgumentException(
+                        "Expected a positive length and ':' at %s of the batch".formatted(i));
+            }
+            i++;
+
+            if (length > batch.length - i) {
+                throw new IllegalArgumentException(
+                        "The message at %s of the batch is shorter than %s".formatted(i, length));
+            }
+            messages.add(Arrays.copyOfRange(batch, i, i + length));
+            i += length;
+        }
+
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException("A batch should have at least one message");
+        }
+        return messages;
+    }
+
+    /**
+     * @param room the messages were read from
+     * @param log of the {@code room}
+     * @param lastId the messages were requested after
+     * @param messages read after {@code lastId}
+     * @return response with the {@code messages} and, if there are newer ones, the id of the last
+     *     one as the cursor of the next page
+     */
+    private static HttpResponse createMessagesResponse(
+            String room, ChatMessageLog log, long lastId, ArrayList<ChatMessage> messages) {
+        var pageLastId = messages.isEmpty() ? lastId : messages.get(messages.size() - 1).getId();
+        var nextCursor =
+                log.size() > pageLastId + 1 ? OptionalLong.of(pageLastId) : OptionalLong.empty();
+
+        return new HttpResponse(HttpStatus.OK, room, messages, nextCursor);
+    }
+
+    /**
+     * @return response of a page with no messages and no next one, of a room that doesn't exist
+     */
+    private static HttpResponse createEmptyResponse(String room) {
+        return new HttpResponse(
+                HttpStatus.OK, room, new ArrayList<ChatMessage>(), OptionalLong.empty());
+    }
+
+    /**
+     * @param target of a request
+     * @return the room of the {@code target}, {@link ChatRooms#DEFAULT_ROOM} if it isn't a {@link
+     *     #ROOM_TARGET}
+     */
+    private static String getRoom(String target) {
+        if (requestTargets.contains(target)) {
+            return ChatRooms.DEFAULT_ROOM;
+        }
+
+        var matcher = ROOM_TARGET.matcher(target);
+        return matcher.matches() ? matcher.group(1) : ChatRooms.DEFAULT_ROOM;
+    }
+
+    /**
+     * @param target of a request
+     * @return the {@code target} without the room, e.g. {@link #MESSAGES_TARGET} for {@code
+     *     /rooms/42/messages}
+     */
+    private static String getBaseTarget(String target) {
+        if (requestTargets.contains(target)) {
+            return target;
+        }
+
+        var matcher = ROOM_TARGET.matcher(target);
+        return matcher.matches() ? matcher.group(2) : target;
+    }
+
+    /**
+     * Retrieves the 'wait' parameter: for how many milliseconds a GET can wait for new messages
+     *
+     * @param request to retrieve the 'wait' parameter from
+     * @return value of the parameter, {@code 0} if it isn't present
+     * @throws IllegalArgumentException if the parameter isn't a number in the range [0, {@link
+     *     #MAX_WAIT_MILLIS}]
+     */
+    private int getWaitParam(HttpRequest request) {
+        requireNonNull(request);
+
+        var optParams = request.getParameters();
+        if (optParams.isEmpty() || !optParams.get().containsKey("wait")) {
+            return 0;
+        }
+
+        var waitString = optParams.get().get("wait");
+        if (!waitString.matches("\\d{1,5}")
+                || Integer.parseInt(waitString) > MAX_WAIT_MILLIS) {
+            throw new IllegalArgumentException(
+                    "Parameter: 'wait' should be a number from 0 to %s".formatted(MAX_WAIT_MILLIS));
+        }
+
+        return Integer.parseInt(waitString);
+    }
+
+    /**
+     * Retrieves the 'lastId' parameter: the cursor after which messages are returned, the id of the
+     * last message the client has, {@code -1} if it has none
+     *
+     * @param request to retrieve the 'lastId' parameter from
+     * @return value of the parameter, {@code -1} if it isn't present
+     * @throws IllegalArgumentException if the parameter isn't a number in the range [-1, {@link
+     *     ChatMessageLog#MAX_SIZE})
+     */
+    private long getLastIdParam(HttpRequest request) {
+        requireNonNull(request);
+
+        var optParams = request.getParameters();
+        if (optParams.isEmpty() || !optParams.get().containsKey("lastId")) {
+            return -1;
+        }
+
+        var lastIdString = optParams.get().get("lastId");
+        if (!lastIdString.matches("-1|\\d{1,18}")
+                || Long.parseLong(lastIdString) >= ChatMessageLog.MAX_SIZE) {
+            throw new IllegalArgumentException(
+                    "Parameter: 'lastId' should be a number from -1 to %s"
+                            .formatted(ChatMessageLog.MAX_SIZE - 1));
+        }
+
+        return Long.parseLong(lastIdString);
+    }
+
+    /**
+     * Retrieves the 'before' parameter: the cursor of {@link #SEARCH_TARGET} before which messages
+     * are returned, the smallest id of the previous page
+     *
+     * @param request to retrieve the 'before' parameter from
+     * @return value of the parameter, {@link Long#MAX_VALUE} if it isn't present
+     * @throws IllegalArgumentException if the parameter isn't a non negative number
+     */
+    private long getBeforeParam(HttpRequest request) {
+        requireNonNull(request);
+
+        var optParams = request.getParameters();
+        if (optParams.isEmpty() || !optParams.get().containsKey("before")) {
+            return Long.MAX_VALUE;
+        }
+
+        var beforeString = optParams.get().get("before");
+        if (!beforeString.matches("\\d{1,18}")) {
+            throw new IllegalArgumentException(
+                    "Parameter: 'before' should be a non negative number");
+        }
+
+        return Long.parseLong(beforeString);
+    }
+
+    /**
+     * Retrieves the 'limit' parameter: the most messages in a response, lowered to {@link
+     * Config#getMaxPageSize()}
+     *
+     * @param request to retrieve the 'limit' parameter from
+     * @return value of the parameter, {@link Config#getMaxPageSize()} if it isn't present or is
+     *     bigger
+     * @throws IllegalArgumentException if the parameter isn't a positive number
+     */
+    private int getLimitParam(HttpRequest request) {
+        requireNonNull(request);
+
+        var optParams = request.getParameters();
+        if (optParams.isEmpty() || !optParams.get().containsKey("limit")) {
+            return config.getMaxPageSize();
+        }
+
+        var limitString = optParams.get().get("limit");
+        if (!limitString.matches("\\d{1,9}") || Integer.parseInt(limitString) == 0) {
+            throw new IllegalArgumentException("Parameter: 'limit' should be a positive number");
+        }
+
+        return Math.min(Integer.parseInt(limitString), config.getMaxPageSize());
+    }
+
+    /**
+     * Writes the encoded {@code httpResponse} to the {@code out} without flushing it, so the
+     * responses to pipelined requests go out together
+     *
+     * @param out of a socket
+     * @throws IOException if the response couldn't be encoded or written
+     */
+    private void sendResponse(
+            OutputStream out, HttpResponse httpResponse, ResponseFormat responseFormat)
+            throws IOException {
+        requireNonNull(out);
+        requireNonNull(httpResponse);
+        requireNonNull(responseFormat);
+
+        try {
+            var serializeStart = System.nanoTime();
+            var response = encodeCached(httpResponse, responseFormat);
+            var sendStart = System.nanoTime();
+            metrics.getStage(Stage.SERIALIZE).record(sendStart - serializeStart);
+            metrics.countResponse(httpResponse.getStatus(), response.length);
+
+            out.write(response);
+            metrics.recordSince(Stage.SEND, sendStart);
+        } catch (IOException e) {
+            throw new IOException("Couldn't send a response: %s".formatted(httpResponse), e);
+        } catch (UncheckedIOException e) {
+            throw new IOException(
+                    "Couldn't send a response: %s".formatted(httpResponse), e.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link #sendResponse(OutputStream, HttpResponse, ResponseFormat)} but for a {@link
+     * NioEventLoop} connection
+     *
+     * @throws UncheckedIOException if the body couldn't be serialized
+     */
+    private void sendResponse(
+            Responder responder, HttpResponse httpResponse, ResponseFormat responseFormat) {
+        var serializeStart = System.nanoTime();
+        var response = encodeCached(httpResponse, responseFormat);
+        var sendStart = System.nanoTime();
+        metrics.getStage(Stage.SERIALIZE).record(sendStart - serializeStart);
+        metrics.countResponse(httpResponse.getStatus(), response.length);
+
+        responder.send(response);
+        metrics.recordSince(Stage.SEND, sendStart);
+    }
+
+    /**
+     * Same as {@link #encode(HttpResponse, ResponseFormat)} but takes a page of messages from the
+     * {@link #pageCache}, if there is one, when the page was encoded before
+     *
+     * @throws UncheckedIOException if the body couldn't be serialized
+     */
+    private byte[] encodeCached(HttpResponse httpResponse, ResponseFormat responseFormat) {
+        if (pageCache.isEmpty()
+                || httpResponse.getStatus() != HttpStatus.OK
+                || !(httpResponse.getBody() instanceof List<?> messages)
+                || messages.isEmpty()
+                || !(messages.get(0) instanceof ChatMessage first)
+                || !(messages.get(messages.size() - 1) instanceof ChatMessage last)
+                // only a page of consecutive ids is identified by its first and last ids
+                || last.getId() - first.getId() != messages.size() - 1) {
+            return encode(httpResponse, responseFormat);
+        }
+
+        return pageCache
+                .get()
+                .get(
+                        responseFormat,
+                        httpResponse.getRoom(),
+                        first.getId(),
+                        last.getId(),
+                        httpResponse.getNextCursor().orElse(-1),
+                        () -> encode(httpResponse, responseFormat));
+    }
+
+    /**
+     * Same as {@link #encodeResponse(HttpResponse, ResponseFormat)} but throws an unchecked
+     * exception
+     *
+     * @throws UncheckedIOException if the body couldn't be serialized
+     */
+    static byte[] encode(HttpResponse httpResponse, ResponseFormat responseFormat) {
+        try {
+            return encodeResponse(httpResponse, responseFormat);
+        } catch (IOException e) {
+            throw new UncheckedIOException(
+                    "Couldn't encode a response: %s".formatted(httpResponse), e);
+        }
+    }
+
+    /**
+     * Encodes {@code httpResponse} the way {@link Client} reads it. {@link ResponseFormat#BINARY}
+     * is used for the bodies {@link BinaryWireFormat} supports, everything else falls back to
+     * {@link ResponseFormat#SERIALIZED}: a fresh object stream with the status code followed by
+     * the body, a list body followed by the next cursor, {@code -1} if there is none
+     *
+     * @param httpResponse to encode
+     * @param responseFormat requested by the client
+     * @return encoded {@code httpResponse}
+     * @throws IOException if the body couldn't be serialized
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] encodeResponse(
+            HttpResponse httpResponse, ResponseFormat responseFormat) throws IOException {
+        requireNonNull(httpResponse);
+        requireNonNull(responseFormat);
+
+        if (responseFormat == ResponseFormat.BINARY) {
+            var statusCode = httpResponse.getStatus().statusCode;
+            if (httpResponse.getBody() instanceof String message) {
+                return BinaryWireFormat.encodeMessage(statusCode, message);
+            } else if (httpResponse.getBody() instanceof List<?> messages
+                    && messages.stream().allMatch(ChatMessage.class::isInstance)) {
+                return BinaryWireFormat.encodeMessages(
+                        statusCode,
+                        (List<ChatMessage>) messages,
+                        httpResponse.getNextCursor());
+            }
+        }
+
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new ObjectOutputStream(bytes)) {
+            out.writeInt(httpResponse.getStatus().statusCode);
+            out.writeObject(httpResponse.getBody());
+            if (httpResponse.getBody() instanceof List<?>) {
+                out.writeLong(httpResponse.getNextCursor().orElse(-1));
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Starts a server configured by {@link Config#fromSystemProperties()}, logging through an
+     * {@link AsyncLogHandler}:
+     *
+     * <pre>
+     * chat.server.logging.level               = INFO
+     * chat.server.logging.maxRecordsPerSecond = 1000 of each level below WARNING
+     * </pre>
+     */
+    public static void main(String[] args) throws InterruptedException {
+        AsyncLogHandler.installOnRoot(
+                Level.parse(System.getProperty("chat.server.logging.level", "INFO")),
+                LOG_QUEUE_CAPACITY,
+                Integer.getInteger("chat.server.logging.maxRecordsPerSecond", 1000));
+
+        try (var s = new Server(Config.fromSystemProperties())) {
+            s.start();
+            s.waitTillStop();
+        }
+    }
+
+    /**
+     * How connections are served:
+     *
+     * <ul>
+     *   <li>{@link #BLOCKING} - a thread from the bounded {@link AdaptiveThreadPool} per
+     *       connection, connections it has no room for get {@link HttpStatus#BUSY}
+     *   <li>{@link #VIRTUAL_THREADS} - a new virtual thread per connection, see {@link
+     *       #createVirtualThreadExecutor()}
+     *   <li>{@link #NIO} - connections are multiplexed over a few {@link NioEventLoop} threads
+     * </ul>
+     *
+     * <p>Pinning audit for {@link #VIRTUAL_THREADS}: a connection reads its requests straight into
+     * a {@link ByteBuffer} and writes through a {@link BufferedOutputStream} over a {@code
+     * DeadlineOutputStream}, which has no locks of its own. On the runtimes having virtual threads
+     * the {@link BufferedOutputStream} and the socket streams lock with j.u.c locks instead of
+     * monitors, so blocking reads and writes don't pin. The logs of the {@link ChatRooms} are read
+     * without locking, the {@link SearchIndex} locks with a {@link
+     * java.util.concurrent.locks.ReentrantReadWriteLock}, and the monitor of the {@link
+     * EncodedPageCache} guards only memory. The {@code synchronized} methods of the {@link Server}
+     * are only used to start and stop it. The one monitor held across file I/O is the one of the
+     * {@link ChatRooms} opening a room, which creates and maps its journal: the carrier is pinned
+     * for that, once per room.
+     */
+    public static enum ConnectionMode {
+        BLOCKING,
+        VIRTUAL_THREADS,
+        NIO;
+    }
+
+    /**
+     * What a request handler does when a bounded queue to a writer thread is full, i.e. the disk
+     * is slower than the clients:
+     *
+     * <ul>
+     *   <li>{@link #BLOCK} - waits for room for up to {@link Config#getQueueBlockTimeoutMillis()},
+     *       then the request gets {@link HttpStatus#BUSY}. A {@link ConnectionMode#NIO} handler
+     *       runs on the event loop thread, so it doesn't wait and it's the same as {@link #FAIL}
+     *   <li>{@link #FAIL} - the request gets {@link HttpStatus#BUSY} right away
+     *   <li>{@link #DROP_AUDIT} - a request whose audit record has no room is handled without it,
+     *       the record is dropped and counted, a post with no room is handled as {@link #BLOCK}
+     * </ul>
+     */
+    public static enum Backpressure {
+        BLOCK,
+        FAIL,
+        DROP_AUDIT;
+    }
+
+    /**
+     * How a response is encoded:
+     *
+     * <ul>
+     *   <li>{@link #SERIALIZED} - Java serialization, the default
+     *   <li>{@link #BINARY} - {@link BinaryWireFormat}, requested with the {@code Accept:binary}
+     *       header
+     * </ul>
+     */
+    static enum ResponseFormat {
+        SERIALIZED,
+        BINARY;
+
+        /**
+         * @param httpRequest to get the format from
+         * @return the format requested by the {@code httpRequest}
+         */
+        static ResponseFormat of(HttpRequest httpRequest) {
+            requireNonNull(httpRequest);
+
+            return httpRequest
+                            .getHeaders()
+                            .map(headers -> headers.get(BinaryWireFormat.ACCEPT_HEADER))
+                            .filter(BinaryWireFormat.BINARY::equals)
+                            .isPresent()
+                    ? BINARY
+                    : SERIALIZED;
+        }
+
+        /**
+         * @param parser with a parsed request
+         * @return the format requested by the request, without creating it
+         */
+        static ResponseFormat of(RequestParser parser) {
+            requireNonNull(parser);
+
+            return parser.hasHeader(BinaryWireFormat.ACCEPT_HEADER, BinaryWireFormat.BINARY)
+                    ? BINARY
+                    : SERIALIZED;
+        }
+    }
+
+    /**
+     * @Immutable
+     */
+    public static class Config {
+        private final int port;
+        private final ConnectionMode connectionMode;
+        private final int eventLoops;
+        private final Durability logDurability;
+        private final long logFlushIntervalMillis;
+        private final int logMaxBatchSize;
+        private final Path journalDirectory;
+        private final int journalSegmentSize;
+        private final int journalRetainedSegments;
+        private final int inMemoryMessages;
+        private final int poolMinThreads;
+        private final int poolMaxThreads;
+        private final int poolQueueCapacity;
+        private final long poolTargetQueueWaitMillis;
+        private final Path auditDirectory;
+        private final int auditInMemoryRequests;
+        private final int maxPageSize;
+        private final long pageCacheMaxBytes;
+        private final int shards;
+        private final int maxRooms;
+        private final long searchMaxBytes;
+        private final Optional<InetSocketAddress> leader;
+        private final long idleTimeoutMillis;
+        private final long requestTimeoutMillis;
+        private final long sendTimeoutMillis;
+        private final long maxPendingOutputBytes;
+        private final int rateLimitPostsPerSecond;
+        private final int rateLimitBurst;
+        private final int queueCapacity;
+        private final long queueMaxBytes;
+        private final Backpressure backpressure;
+        private final long queueBlockTimeoutMillis;
+
+        private Config(Builder builder) {
+            this.port = builder.port;
+            this.connectionMode = builder.connectionMode;
+            this.eventLoops = builder.eventLoops;
+            this.logDurability = builder.logDurability;
+            this.logFlushIntervalMillis = builder.logFlushIntervalMillis;
+            this.logMaxBatchSize = builder.logMaxBatchSize;
+            this.journalDirectory = builder.journalDirectory;
+            this.journalSegmentSize = builder.journalSegmentSize;
+            this.journalRetainedSegments = builder.journalRetainedSegments;
+            this.inMemoryMessages = builder.inMemoryMessages;
+            this.poolMinThreads = builder.poolMinThreads;
+            this.poolMaxThreads = builder.poolMaxThreads;
+            this.poolQueueCapacity = builder.poolQueueCapacity;
+            this.poolTargetQueueWaitMillis = builder.poolTargetQueueWaitMillis;
+            this.auditDirectory = builder.auditDirectory;
+            this.auditInMemoryRequests = builder.auditInMemoryRequests;
+            this.maxPageSize = builder.maxPageSize;
+            this.pageCacheMaxBytes = builder.pageCacheMaxBytes;
+            this.shards = builder.shards;
+            this.maxRooms = builder.maxRooms;
+            this.searchMaxBytes = builder.searchMaxBytes;
+            this.leader = builder.leader;
+            this.idleTimeoutMillis = builder.idleTimeoutMillis;
+            this.requestTimeoutMillis = builder.requestTimeoutMillis;
+            this.sendTimeoutMillis = builder.sendTimeoutMillis;
+            this.maxPendingOutputBytes = builder.maxPendingOutputBytes;
+            this.rateLimitPostsPerSecond = builder.rateLimitPostsPerSecond;
+            this.rateLimitBurst = builder.rateLimitBurst;
+            this.queueCapacity = builder.queueCapacity;
+            this.queueMaxBytes = builder.queueMaxBytes;
+            this.backpressure = builder.backpressure;
+            this.queueBlockTimeoutMillis = builder.queueBlockTimeoutMillis;
+        }
+
+        /**
+         * Reads the configuration from system properties, using defaults of the {@link Builder}
+         * for missing ones:
+         *
+         * <pre>
+         * chat.server.port                       = 8800
+         * chat.server.mode                       = BLOCKING | VIRTUAL_THREADS | NIO
+         * chat.server.eventLoops                 = number of available processors
+         * chat.server.log.durability             = FLUSH_PER_BATCH | FLUSH_INTERVAL | FSYNC_PER_BATCH
+         * chat.server.log.flushIntervalMillis    = 100
+         * chat.server.log.maxBatchSize           = 1024
+         * chat.server.journal.directory          = ./journal
+         * chat.server.journal.segmentSize        = 64MB in bytes
+         * chat.server.journal.retainedSegments   = 16
+         * chat.server.inMemoryMessages           = 65536
+         * chat.server.pool.minThreads            = 4
+         * chat.server.pool.maxThreads            = 64
+         * chat.server.pool.queueCapacity         = 16
+         * chat.server.pool.targetQueueWaitMillis = 50
+         * chat.server.audit.directory            = ./audit
+         * chat.server.audit.inMemoryRequests     = 4096
+         * chat.server.maxPageSize                = 1000
+         * chat.server.pageCache.maxBytes         = 16MB in bytes, 0 disables the cache
+         * chat.server.shards                     = number of available processors
+         * chat.server.maxRooms                   = 256
+         * chat.server.search.maxBytes            = 4MB in bytes a room, 0 disables the search
+         * chat.server.replication.leader         = host:port of the leader to follow, none
+         * chat.server.idleTimeoutMillis          = 60000
+         * chat.server.requestTimeoutMillis       = 10000
+         * chat.server.sendTimeoutMillis          = 10000
+         * chat.server.maxPendingOutputBytes      = 1MB in bytes
+         * chat.server.rateLimit.postsPerSecond   = 50, 0 disables the rate limit
+         * chat.server.rateLimit.burst            = 100
+         * chat.server.queue.capacity             = 65536
+         * chat.server.queue.maxBytes             = 16MB in bytes
+         * chat.server.queue.backpressure         = BLOCK | FAIL | DROP_AUDIT
+         * chat.server.queue.blockTimeoutMillis   = 100
+         * </pre>
+         *
+         * @return read configuration
+         * @throws IllegalArgumentException if a property has an incorrect value
+         */
+        public static Config fromSystemProperties() {
+            var builder = new Builder();
+            var defaults = builder.build();
+
+            builder.port(Integer.getInteger("chat.server.port", defaults.port));
+            builder.eventLoops(Integer.getInteger("chat.server.eventLoops", defaults.eventLoops));
+            builder.logFlushIntervalMillis(
+                    Long.getLong(
+                            "chat.server.log.flushIntervalMillis",
+                            defaults.logFlushIntervalMillis));
+            builder.logMaxBatchSize(
+                    Integer.getInteger("chat.server.log.maxBatchSize", defaults.logMaxBatchSize));
+            builder.journalDirectory(
+                    Path.of(
+                            System.getProperty(
+                                    "chat.server.journal.directory",
+                                    defaults.journalDirectory.toString())));
+            builder.journalSegmentSize(
+                    Integer.getInteger(
+                            "chat.server.journal.segmentSize", defaults.journalSegmentSize));
+            builder.journalRetainedSegments(
+                    Integer.getInteger(
+                            "chat.server.journal.retainedSegments",
+                            defaults.journalRetainedSegments));
+            builder.inMemoryMessages(
+                    Integer.getInteger("chat.server.inMemoryMessages", defaults.inMemoryMessages));
+            builder.poolMinThreads(
+                    Integer.getInteger("chat.server.pool.minThreads", defaults.poolMinThreads));
+            builder.poolMaxThreads(
+                    Integer.getInteger("chat.server.pool.maxThreads", defaults.poolMaxThreads));
+            builder.poolQueueCapacity(
+                    Integer.getInteger(
+                            "chat.server.pool.queueCapacity", defaults.poolQueueCapacity));
+            builder.poolTargetQueueWaitMillis(
+                    Long.getLong(
+                            "chat.server.pool.targetQueueWaitMillis",
+                            defaults.poolTargetQueueWaitMillis));
+            builder.auditDirectory(
+                    Path.of(
+                            System.getProperty(
+                                    "chat.server.audit.directory",
+                                    defaults.auditDirectory.toString())));
+            builder.auditInMemoryRequests(
+                    Integer.getInteger(
+                            "chat.server.audit.inMemoryRequests", defaults.auditInMemoryRequests));
+            builder.maxPageSize(
+                    Integer.getInteger("chat.server.maxPageSize", defaults.maxPageSize));
+            builder.pageCacheMaxBytes(
+                    Long.getLong("chat.server.pageCache.maxBytes", defaults.pageCacheMaxBytes));
+            builder.shards(Integer.getInteger("chat.server.shards", defaults.shards));
+            builder.maxRooms(Integer.getInteger("chat.server.maxRooms", defaults.maxRooms));
+            builder.searchMaxBytes(
+                    Long.getLong("chat.server.search.maxBytes", defaults.searchMaxBytes));
+
+            builder.idleTimeoutMillis(
+                    Long.getLong("chat.server.idleTimeoutMillis", defaults.idleTimeoutMillis));
+            builder.requestTimeoutMillis(
+                    Long.getLong(
+                            "chat.server.requestTimeoutMillis", defaults.requestTimeoutMillis));
+            builder.sendTimeoutMillis(
+                    Long.getLong("chat.server.sendTimeoutMillis", defaults.sendTimeoutMillis));
+            builder.maxPendingOutputBytes(
+                    Long.getLong(
+                            "chat.server.maxPendingOutputBytes", defaults.maxPendingOutputBytes));
+            builder.rateLimit(
+                    Integer.getInteger(
+                            "chat.server.rateLimit.postsPerSecond",
+                            defaults.rateLimitPostsPerSecond),
+                    Integer.getInteger("chat.server.rateLimit.burst", defaults.rateLimitBurst));
+            builder.queueCapacity(
+                    Integer.getInteger("chat.server.queue.capacity", defaults.queueCapacity));
+            builder.queueMaxBytes(
+                    Long.getLong("chat.server.queue.maxBytes", defaults.queueMaxBytes));
+            builder.queueBlockTimeoutMillis(
+                    Long.getLong(
+                            "chat.server.queue.blockTimeoutMillis",
+                            defaults.queueBlockTimeoutMillis));
+
+            var leader = System.getProperty("chat.server.replication.leader");
+            if (leader != null) {
+                var separator = leader.lastIndexOf(':');
+                if (separator < 1 || !leader.substring(separator + 1).matches("\\d{1,5}")) {
+                    throw new IllegalArgumentException(
+                            "Leader should be host:port: '%s'".formatted(leader));
+                }
+                builder.leader(
+                        leader.substring(0, separator),
+                        Integer.parseInt(leader.substring(separator + 1)));
+            }
+
+            var mode = System.getProperty("chat.server.mode");
+            if (mode != null) {
+                builder.connectionMode(ConnectionMode.valueOf(mode.toUpperCase()));
+            }
+
+            var backpressure = System.getProperty("chat.server.queue.backpressure");
+            if (backpressure != null) {
+                builder.backpressure(Backpressure.valueOf(backpressure.toUpperCase()));
+            }
+
+            var durability = System.getProperty("chat.server.log.durability");
+            if (durability != null) {
+                builder.logDurability(Durability.valueOf(durability.toUpperCase()));
+            }
+
+            return builder.build();
+        }
+
+        public static class Builder {
+            private int port = 8800;
+            private ConnectionMode connectionMode = ConnectionMode.BLOCKING;
+            private int eventLoops = Runtime.getRuntime().availableProcessors();
+            private Durability logDurability = Durability.FLUSH_PER_BATCH;
+            private long logFlushIntervalMillis = 100;
+            private int logMaxBatchSize = 1024;
+            private Path journalDirectory = Path.of("./journal");
+            private int journalSegmentSize = 64 * 1024 * 1024;
+            private int journalRetainedSegments = 16;
+            private int inMemoryMessages = 1 << 16;
+            private int poolMinThreads = 4;
+            private int poolMaxThreads = 64;
+            private int poolQueueCapacity = 16;
+            private long poolTargetQueueWaitMillis = 50;
+            private Path auditDirectory = Path.of("./audit");
+            private int auditInMemoryRequests = 4096;
+            private int maxPageSize = 1000;
+            private long pageCacheMaxBytes = 16 * 1024 * 1024;
+            private int shards = Runtime.getRuntime().availableProcessors();
+            private int maxRooms = 256;
+            private long searchMaxBytes = 4 * 1024 * 1024;
+            private Optional<InetSocketAddress> leader = Optional.empty();
+            private long idleTimeoutMillis = 60_000;
+            private long requestTimeoutMillis = 10_000;
+            private long sendTimeoutMillis = 10_000;
+            private long maxPendingOutputBytes = 1024 * 1024;
+            private int rateLimitPostsPerSecond = 50;
+            private int rateLimitBurst = 100;
+            private int queueCapacity = 1 << 16;
+            private long queueMaxBytes = 16 * 1024 * 1024;
+            private Backpressure backpressure = Backpressure.BLOCK;
+            private long queueBlockTimeoutMillis = 100;
+
+            /**
+             * @throws IllegalArgumentException if {@code port} isn't in the range [0, 65535]
+             */
+            public Builder port(int port) {
+                if (port < 0 || port > 0xFFFF) {
+                    throw new IllegalArgumentException("Incorrect port: %s".formatted(port));
+                }
+                this.port = port;
+                return this;
+            }
+
+            public Builder connectionMode(ConnectionMode connectionMode) {
+                this.connectionMode = requireNonNull(connectionMode);
+                return this;
+            }
+
+            /**
+             * @param eventLoops number of threads for the {@link ConnectionMode#NIO} mode
+             * @throws IllegalArgumentException if {@code eventLoops < 1}
+             */
+            public Builder eventLoops(int eventLoops) {
+                if (eventLoops < 1) {
+                    throw new IllegalArgumentException(
+                            "Event loops should be positive: %s".formatted(eventLoops));
+                }
+                this.eventLoops = eventLoops;
+                return this;
+            }
+
+            /**
+             * @param logDurability of chat.log and requests.log, see {@link GroupCommitWriter}
+             */
+            public Builder logDurability(Durability logDurability) {
+                this.logDurability = requireNonNull(logDurability);
+                return this;
+            }
+
+            /**
+             * @param logFlushIntervalMillis how often the logs are written with {@link
+             *     Durability#FLUSH_INTERVAL}
+             * @throws IllegalArgumentException if {@code logFlushIntervalMillis < 1}
+             */
+            public Builder logFlushIntervalMillis(long logFlushIntervalMillis) {
+                if (logFlushIntervalMillis < 1) {
+                    throw new IllegalArgumentException(
+                            "Log flush interval should be positive: %s"
+                                    .formatted(logFlushIntervalMillis));
+                }
+                this.logFlushIntervalMillis = logFlushIntervalMillis;
+                return this;
+            }
+
+            /**
+             * @param logMaxBatchSize the most entries written to a log at once
+             * @throws IllegalArgumentException if {@code logMaxBatchSize < 1}
+             */
+            public Builder logMaxBatchSize(int logMaxBatchSize) {
+                if (logMaxBatchSize < 1) {
+                    throw new IllegalArgumentException(
+                            "Log max batch size should be positive: %s".formatted(logMaxBatchSize));
+                }
+                this.logMaxBatchSize = logMaxBatchSize;
+                return this;
+            }
+
+            /**
+             * @param journalDirectory to keep the {@link MessageJournal} in
+             */
+            public Builder journalDirectory(Path journalDirectory) {
+                this.journalDirectory = requireNonNull(journalDirectory);
+                return this;
+            }
+
+            /**
+             * @param journalSegmentSize of a journal segment file in bytes
+             * @throws IllegalArgumentException if {@code journalSegmentSize <
+             *     MessageJournal.MIN_SEGMENT_SIZE}
+             */
+            public Builder journalSegmentSize(int journalSegmentSize) {
+                if (journalSegmentSize < MessageJournal.MIN_SEGMENT_SIZE) {
+                    throw new IllegalArgumentException(
+                            "Journal segment size should be at least %s: %s"
+                                    .formatted(
+                                            MessageJournal.MIN_SEGMENT_SIZE, journalSegmentSize));
+                }
+                this.journalSegmentSize = journalSegmentSize;
+                return this;
+            }
+
+            /**
+             * @param journalRetainedSegments the most journal segments kept, older ones are
+             *     deleted
+             * @throws IllegalArgumentException if {@code journalRetainedSegments < 2}
+             */
+            public Builder journalRetainedSegments(int journalRetainedSegments) {
+                if (journalRetainedSegments < 2) {
+                    throw new IllegalArgumentException(
+                            "At least 2 journal segments should be retained: %s"
+                                    .formatted(journalRetainedSegments));
+                }
+                this.journalRetainedSegments = journalRetainedSegments;
+                return this;
+            }
+
+            /**
+             * @param inMemoryMessages the number of the newest messages kept in memory, older
+             *     ones are read from the journal
+             * @throws IllegalArgumentException if {@code inMemoryMessages < 1}
+             */
+            public Builder inMemoryMessages(int inMemoryMessages) {
+                if (inMemoryMessages < 1) {
+                    throw new IllegalArgumentException(
+                            "In memory messages should be positive: %s"
+                                    .formatted(inMemoryMessages));
+                }
+                this.inMemoryMessages = inMemoryMessages;
+                return this;
+            }
+
+            /**
+             * @param poolMinThreads the least threads of the {@link ConnectionMode#BLOCKING}
+             *     connection pool
+             * @throws IllegalArgumentException if {@code poolMinThreads < 1}
+             */
+            public Builder poolMinThreads(int poolMinThreads) {
+                if (poolMinThreads < 1) {
+                    throw new IllegalArgumentException(
+                            "Pool min threads should be positive: %s".formatted(poolMinThreads));
+                }
+                this.poolMinThreads = poolMinThreads;
+                return this;
+            }
+
+            /**
+             * @param poolMaxThreads the most threads of the {@link ConnectionMode#BLOCKING}
+             *     connection pool, the most connections served at once
+             * @throws IllegalArgumentException if {@code poolMaxThreads < 1}
+             */
+            public Builder poolMaxThreads(int poolMaxThreads) {
+                if (poolMaxThreads < 1) {
+                    throw new IllegalArgumentException(
+                            "Pool max threads should be positive: %s".formatted(poolMaxThreads));
+                }
+                this.poolMaxThreads = poolMaxThreads;
+                return this;
+            }
+
+            /**
+             * @param poolQueueCapacity the most connections waiting for a thread, the following
+             *     ones are answered with {@link HttpStatus#BUSY}
+             * @throws IllegalArgumentException if {@code poolQueueCapacity < 0}
+             */
+            public Builder poolQueueCapacity(int poolQueueCapacity) {
+                if (poolQueueCapacity < 0) {
+                    throw new IllegalArgumentException(
+                            "Pool queue capacity cannot be negative: %s"
+                                    .formatted(poolQueueCapacity));
+                }
+                this.poolQueueCapacity = poolQueueCapacity;
+                return this;
+            }
+
+            /**
+             * @param poolTargetQueueWaitMillis the longest a connection should wait for a thread,
+             *     the pool grows when it waits longer
+             * @throws IllegalArgumentException if {@code poolTargetQueueWaitMillis < 1}
+             */
+            public Builder poolTargetQueueWaitMillis(long poolTargetQueueWaitMillis) {
+                if (poolTargetQueueWaitMillis < 1) {
+                    throw new IllegalArgumentException(
+                            "Pool target queue wait should be positive: %s"
+                                    .formatted(poolTargetQueueWaitMillis));
+                }
+                this.poolTargetQueueWaitMillis = poolTargetQueueWaitMillis;
+                return this;
+            }
+
+            /**
+             * @param auditDirectory to keep the {@link RequestAuditLog} in
+             */
+            public Builder auditDirectory(Path auditDirectory) {
+                this.auditDirectory = requireNonNull(auditDirectory);
+                return this;
+            }
+
+            /**
+             * @param auditInMemoryRequests the number of the newest requests kept in memory, older
+             *     ones are spilled to the {@link RequestAuditLog} file
+             * @throws IllegalArgumentException if {@code auditInMemoryRequests < 1}
+             */
+            public Builder auditInMemoryRequests(int auditInMemoryRequests) {
+                if (auditInMemoryRequests < 1) {
+                    throw new IllegalArgumentException(
+                            "Audit in memory requests should be positive: %s"
+                                    .formatted(auditInMemoryRequests));
+                }
+                this.auditInMemoryRequests = auditInMemoryRequests;
+                return this;
+            }
+
+            /**
+             * @param maxPageSize the most messages in a response, a bigger 'limit' parameter is
+             *     lowered to it
+             * @throws IllegalArgumentException if {@code maxPageSize < 1}
+             */
+            public Builder maxPageSize(int maxPageSize) {
+                if (maxPageSize < 1) {
+                    throw new IllegalArgumentException(
+                            "Max page size should be positive: %s".formatted(maxPageSize));
+                }
+                this.maxPageSize = maxPageSize;
+                return this;
+            }
+
+            /**
+             * @param pageCacheMaxBytes the most bytes of the {@link EncodedPageCache}, {@code 0}
+             *     disables it
+             * @throws IllegalArgumentException if {@code pageCacheMaxBytes < 0}
+             */
+            public Builder pageCacheMaxBytes(long pageCacheMaxBytes) {
+                if (pageCacheMaxBytes < 0) {
+                    throw new IllegalArgumentException(
+                            "Page cache max bytes cannot be negative: %s"
+                                    .formatted(pageCacheMaxBytes));
+                }
+                this.pageCacheMaxBytes = pageCacheMaxBytes;
+                return this;
+            }
+
+            /**
+             * @param shards number of the {@link ChatRooms} shards, each with its own writer thread
+             * @throws IllegalArgumentException if {@code shards < 1}
+             */
+            public Builder shards(int shards) {
+                if (shards < 1) {
+                    throw new IllegalArgumentException(
+                            "Shards should be positive: %s".formatted(shards));
+                }
+                this.shards = shards;
+                return this;
+            }
+
+            /**
+             * @param maxRooms the most {@link ChatRooms} open at once, including the {@link
+             *     ChatRooms#DEFAULT_ROOM}
+             * @throws IllegalArgumentException if {@code maxRooms < 1}
+             */
+            public Builder maxRooms(int maxRooms) {
+                if (maxRooms < 1) {
+                    throw new IllegalArgumentException(
+                            "Max rooms should be positive: %s".formatted(maxRooms));
+                }
+                this.maxRooms = maxRooms;
+                return this;
+            }
+
+            /**
+             * @param searchMaxBytes the most bytes of the {@link SearchIndex} of a room, {@code 0}
+             *     disables the search
+             * @throws IllegalArgumentException if {@code searchMaxBytes < 0}
+             */
+            public Builder searchMaxBytes(long searchMaxBytes) {
+                if (searchMaxBytes < 0) {
+                    throw new IllegalArgumentException(
+                            "Search max bytes cannot be negative: %s".formatted(searchMaxBytes));
+                }
+                this.searchMaxBytes = searchMaxBytes;
+                return this;
+            }
+
+            /**
+             * Makes the server a read-only follower replicating the rooms of the leader, see
+             * {@link ReplicationFollower}
+             *
+             * @param host of the leader server
+             * @param port of the leader server
+             * @throws IllegalArgumentException if {@code port} isn't in the range [1, 65535]
+             */
+            public Builder leader(String host, int port) {
+                requireNonNull(host);
+                if (port < 1 || port > 0xFFFF) {
+                    throw new IllegalArgumentException("Incorrect leader port: %s".formatted(port));
+                }
+                this.leader = Optional.of(new InetSocketAddress(host, port));
+                return this;
+            }
+
+            /**
+             * @param idleTimeoutMillis for how long a connection can wait for a request before
+             *     it's closed
+             * @throws IllegalArgumentException if {@code idleTimeoutMillis < 1}
+             */
+            public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+                if (idleTimeoutMillis < 1) {
                     throw new IllegalArgumentException(
-                            "POST request to '%s' should have a body"
-                                    .formatted(httpRequest.getTarget()));
+                            "Idle timeout millis should be positive: %s"
+                                    .formatted(idleTimeoutMillis));
                 }
-
-                yield new HttpResponse(HttpStatus.OK, "Success");
+                this.idleTimeoutMillis = idleTimeoutMillis;
+                return this;
             }
-            case GET -> {
-                var lastId = getLastIdParam(httpRequest);
-                // starting at this id we will return messages
-                // for now -1 would mean we need all of them
-                lastId++;
-
-                var messages = new LinkedList<ChatMessage>();
 
-                if(lastId >= chatMessagesDatabase.size()) {
-                    yield new HttpResponse(HttpStatus.OK, messages);
+            /**
+             * @param requestTimeoutMillis for how long a connection can take to send the rest of a
+             *     started request before it's closed, catches the half-open ones
+             * @throws IllegalArgumentException if {@code requestTimeoutMillis < 1}
+             */
+            public Builder requestTimeoutMillis(long requestTimeoutMillis) {
+                if (requestTimeoutMillis < 1) {
+                    throw new IllegalArgumentException(
+                            "Request timeout millis should be positive: %s"
+                                    .formatted(requestTimeoutMillis));
                 }
+                this.requestTimeoutMillis = requestTimeoutMillis;
+                return this;
+            }
 
-                synchronized (chatMessagesDatabase) {
-
-                    var listIter = chatMessagesDatabase.listIterator(lastId);
-
-                    while (listIter.hasNext()) {
-                        var chMessage = listIter.next();
-                        messages.add(chMessage);
-                    }
+            /**
+             * @param sendTimeoutMillis for how long a blocking connection can take to accept a
+             *     write of its responses before it's closed, catches the clients not reading them
+             * @throws IllegalArgumentException if {@code sendTimeoutMillis < 1}
+             */
+            public Builder sendTimeoutMillis(long sendTimeoutMillis) {
+                if (sendTimeoutMillis < 1) {
+                    throw new IllegalArgumentException(
+                            "Send timeout millis should be positive: %s"
+                                    .formatted(sendTimeoutMillis));
                 }
-
-                yield new HttpResponse(HttpStatus.OK, messages);
+                this.sendTimeoutMillis = sendTimeoutMillis;
+                return this;
             }
-        };
-    }
-
-    /**
-     * Retrieve an 's' parameter and parases it, returning it as a size;
-     *
-     * <p>If the parameter is not present {@code -1} is returned
-     *
-     * <p>If the parameter is not a digit, or has more digits than 3, it will be silently ignored
-     * and {@code -1} returned
-     *
-     * @param request to retrieve the 's' parameter from
-     * @return value under the 's' parameter that is more or equal to 1 and not bigger than 1000. if
-     *     the parameter is not present {@code -1} is returned.
-     * @thorws {@link IllegalArgumentException} if parameter is less than 1 or biggern than 1000
-     */
-    private int getLastIdParam(HttpRequest request) {
-        requireNonNull(request);
 
-        var lastId = -1;
-        var optParams = request.getParameters();
-        if (optParams.isPresent()) {
-            var sizeString = optParams.get().get("lastId");
-            if (sizeString != null && sizeString.matches("\\d{1,3}")) {
-                lastId = Integer.parseInt(sizeString);
-                if (lastId < 0 || lastId > 1000) {
+            /**
+             * @param maxPendingOutputBytes the most bytes of responses queued to a {@link
+             *     ConnectionMode#NIO} connection not reading them, it's closed when more are sent
+             * @throws IllegalArgumentException if {@code maxPendingOutputBytes < 1}
+             */
+            public Builder maxPendingOutputBytes(long maxPendingOutputBytes) {
+                if (maxPendingOutputBytes < 1) {
                     throw new IllegalArgumentException(
-                            "Parameter: 'lastId' cannot be smaller than 0 and bigger than 1000");
+                            "Max pending output bytes should be positive: %s"
+                                    .formatted(maxPendingOutputBytes));
                 }
+                this.maxPendingOutputBytes = maxPendingOutputBytes;
+                return this;
             }
-        }
-
-        assert lastId >= -1 && lastId <= 1000;
-        return lastId;
-    }
 
-    /**
-     *
-     *
-     * <pre>
-     *
-     * first line = request method + " " + requestTarget
-     * headerName = "[a-Z][a-Z_-]*"
-     * headerValue = "[a-Z][a-Z_-]*"
-     * header = headerName + : + headerValue
-     * headers = header + CRLF + header
-     *
-     * request = headers + CRLF + CRLF + body
-     * </pre>
-     *
-     * @param requestLine should have two paramenters: {@link HttpMethod} and {@link
-     *     HttpRequest#target}
-     * @param reader to read other data from. Will NEVER be closed.
-     * @return parced request
-     * @throws IOException if there are an issue with reading the {@code reader}
-     * @throws IllegalArgumentException if there no two parameters separated by a space in the
-     *     {@code startLine}
-     * @throws IllegalArgumentException if the {@code requestTarget} doesn't exist
-     */
-    private static HttpRequest parseRequest(
-            String socketName, String requestLine, BufferedReader reader) throws IOException {
-        requireNonNull(socketName, "Socket cannot be null");
-        requireNonNull(requestLine, "The startLine cannot be null");
-        requireNonNull(reader, "The reader cannot be null");
+            /**
+             * Limits the messages a client can post, see {@link RateLimiter}, the posts over the
+             * limit are answered with {@link HttpStatus#BUSY}
+             *
+             * @param postsPerSecond messages a client can post a second on average, {@code 0}
+             *     disables the limit
+             * @param burst the most messages a client can post at once, after not posting for
+             *     a while, a bigger batch is let in then but its messages over the burst are
+             *     charged against the next ones
+             * @throws IllegalArgumentException if {@code postsPerSecond < 0} or {@code burst < 1}
+             */
+            public Builder rateLimit(int postsPerSecond, int burst) {
+                if (postsPerSecond < 0) {
+                    throw new IllegalArgumentException(
+                            "Posts per second cannot be negative: %s".formatted(postsPerSecond));
+                }
+                if (burst < 1) {
+                    throw new IllegalArgumentException(
+                            "Rate limit burst should be positive: %s".formatted(burst));
+                }
+                this.rateLimitPostsPerSecond = postsPerSecond;
+                this.rateLimitBurst = burst;
+                return this;
+            }
 
-        var splitStartLine = requestLine.split("[ ]", 2);
+            /**
+             * @param queueCapacity the most items of the queue of the request log writer and of
+             *     the queue of every shard of the {@link ChatRooms}, rounded up to a power of two,
+             *     see {@link MpscRingBuffer}
+             * @throws IllegalArgumentException if {@code queueCapacity} isn't in the range [1,
+             *     2^30]
+             */
+            public Builder queueCapacity(int queueCapacity) {
+                if (queueCapacity < 1 || queueCapacity > 1 << 30) {
+                    throw new IllegalArgumentException(
+                            "Queue capacity should be from 1 to 2^30: %s"
+                                    .formatted(queueCapacity));
+                }
+                this.queueCapacity = queueCapacity;
+                return this;
+            }
 
-        if (splitStartLine.length != 2) {
-            throw new IllegalArgumentException(
-                    "Didn't find two space separated parameters. Http Method and Http Target"
-                            .formatted(requestLine));
-        }
-
-        var headersOrRequestBody = readData(reader);
-        LOG.finest(
-                """
-                Received Data: Socket: %s
-                '%s
-                %s'\
-                """
-                        .formatted(
-                                socketName,
-                                requestLine,
-                                headersOrRequestBody.length != 0
-                                        ? Arrays.toString(headersOrRequestBody)
-                                        : ""));
-        // throws exception if it isn't a correct method
-        var httpMethod = HttpMethod.valueOf(splitStartLine[0].toUpperCase());
-        var requestTargetAndParameters = splitStartLine[1].split("\\?", 2);
-        var requestTarget = validateRequestTarget(requestTargetAndParameters[0]);
-        var parameters =
-                requestTargetAndParameters.length > 1
-                        ? Optional.of(parseParameters(requestTargetAndParameters[1]))
-                        : Optional.<Map<String, String>>empty();
-
-        var headerAndBody = getHeadersOrBody(headersOrRequestBody);
-
-        var httpRequestBuilder = new HttpRequest.Builder(socketName, httpMethod, requestTarget);
-
-        if (headerAndBody.v1.isPresent()) {
-            httpRequestBuilder.headers(headerAndBody.v1.get());
-        } else if (headerAndBody.v2.isPresent()) {
-            httpRequestBuilder.body(headerAndBody.v2.get());
-        } else if (parameters.isPresent()) {
-            httpRequestBuilder.parameters(parameters.get());
-        }
-
-        return httpRequestBuilder.build();
-    }
-
-    public static Tuple<Optional<Map<String, String>>, Optional<char[]>> getHeadersOrBody(
-            char[] data) {
-        requireNonNull(data);
-
-        // headers and body are separated by "CRLFCRLF"
-        var headersLength = -1;
-        var bodyStartIndex = -1;
-
-        var crlfMatch = new boolean[4];
-        for (int i = 0; i < data.length; i++) {
-
-            if (data[i] == 13) { // is "CR"
-                // [!CR, !LF, !CR, !LF] || [CR, LF, !CR, !LF]
-                if (!crlfMatch[0] || (crlfMatch[1] && !crlfMatch[2])) {
-                    assert !crlfMatch[0] && !crlfMatch[1] && !crlfMatch[2] && !crlfMatch[3]
-                            || (crlfMatch[0] && crlfMatch[1] && !crlfMatch[2] && !crlfMatch[3]);
-
-                    crlfMatch[crlfMatch[1] ? 2 : 0] = true;
-                } else {
-                    crlfMatch = new boolean[4];
+            /**
+             * @param queueMaxBytes the most bytes of the bodies in the queue of the request log
+             *     writer and of the texts in the queue of every shard, a body bigger than that is
+             *     queued only to an empty queue, see {@link MpscRingBuffer}
+             * @throws IllegalArgumentException if {@code queueMaxBytes < 1}
+             */
+            public Builder queueMaxBytes(long queueMaxBytes) {
+                if (queueMaxBytes < 1) {
+                    throw new IllegalArgumentException(
+                            "Queue max bytes should be positive: %s".formatted(queueMaxBytes));
                 }
-            } else if (data[i] == 10) { // is "LF"
-                // [CR, !LF, !CR, !LF] || [CR, LF, CR, !LF]
-                if ((crlfMatch[0] && !crlfMatch[1]) || crlfMatch[2]) {
-                    assert (crlfMatch[0] && !crlfMatch[1] && !crlfMatch[2] && !crlfMatch[3])
-                            || (crlfMatch[0] && crlfMatch[1] && crlfMatch[2] && !crlfMatch[3]);
+                this.queueMaxBytes = queueMaxBytes;
+                return this;
+            }
 
-                    if (crlfMatch[2]) { // last LF, mark headers, body
-                        headersLength = i - 3 == 0 ? -1 : i - 3;
+            public Builder backpressure(Backpressure backpressure) {
+                this.backpressure = requireNonNull(backpressure);
+                return this;
+            }
 
-                        if (i + 1 < data.length) {
-                            bodyStartIndex = i + 1;
-                        }
+            /**
+             * @param queueBlockTimeoutMillis for how long a request handler waits for room in a
+             *     full queue with {@link Backpressure#BLOCK}
+             * @throws IllegalArgumentException if {@code queueBlockTimeoutMillis < 1}
+             */
+            public Builder queueBlockTimeoutMillis(long queueBlockTimeoutMillis) {
+                if (queueBlockTimeoutMillis < 1) {
+                    throw new IllegalArgumentException(
+                            "Queue block timeout millis should be positive: %s"
+                                    .formatted(queueBlockTimeoutMillis));
+                }
+                this.queueBlockTimeoutMillis = queueBlockTimeoutMillis;
+                return this;
+            }
 
-                        break;
-                    } else {
-                        crlfMatch[1] = true; // first LF
-                    }
-                } else {
-                    crlfMatch = new boolean[4];
+            /**
+             * @throws IllegalArgumentException if {@code poolMaxThreads < poolMinThreads}
+             */
+            public Config build() {
+                if (poolMaxThreads < poolMinThreads) {
+                    throw new IllegalArgumentException(
+                            "Pool max threads %s cannot be less than min threads %s"
+                                    .formatted(poolMaxThreads, poolMinThreads));
                 }
-            } else {
-                crlfMatch = new boolean[4];
+                return new Config(this);
             }
         }
 
-        assert headersLength == -1 || headersLength > 0;
-        assert bodyStartIndex >= -1;
-        assert headersLength <= data.length;
-        assert bodyStartIndex < data.length;
+        public int getPort() {
+            return port;
+        }
 
-        var headers =
-                headersLength != -1 ? convertHeaders(Arrays.copyOf(data, headersLength)) : null;
-        var body =
-                bodyStartIndex != -1 ? Arrays.copyOfRange(data, bodyStartIndex, data.length) : null;
+        public ConnectionMode getConnectionMode() {
+            return connectionMode;
+        }
 
-        return new Tuple<>(Optional.ofNullable(headers), Optional.ofNullable(body));
-    }
+        public int getEventLoops() {
+            return eventLoops;
+        }
 
-    public static class Tuple<V1, V2> {
-        public final V1 v1;
-        public final V2 v2;
+        public Durability getLogDurability() {
+            return logDurability;
+        }
 
-        public Tuple(V1 v1, V2 v2) {
-            this.v1 = requireNonNull(v1);
-            this.v2 = requireNonNull(v2);
+        public long getLogFlushIntervalMillis() {
+            return logFlushIntervalMillis;
         }
-    }
 
-    /**
-     * Parameters should have the followwing pattern [a-Z]+=[a-Z0-9]+&? Dublicated params will be
-     * silently ignored
-     *
-     * @param parameters
-     * @return
-     */
-    private static Map<String, String> parseParameters(String parameters) {
-        requireNonNull(parameters);
+        public int getLogMaxBatchSize() {
+            return logMaxBatchSize;
+        }
 
-        if (parameters.length() < 3) {
-            throw new IllegalArgumentException(
-                    "Length of parameters should be more than 2. Params: '%s'"
-                            .formatted(parameters));
+        public Path getJournalDirectory() {
+            return journalDirectory;
         }
 
-        var result = new HashMap<String, String>();
-        var params = parameters.toCharArray();
+        public int getJournalSegmentSize() {
+            return journalSegmentSize;
+        }
 
-        var isKey = true; // are we parsing a key of a parameter
-        var keyStartIndex = -1; // inclusive
-        var keyStopIndex = -1; // exclusive
+        public int getJournalRetainedSegments() {
+            return journalRetainedSegments;
+        }
 
-        var valueStartIndex = -1; // inclusive
-        var valueStopIndex = -1; // exclusive
-        for (int i = 0; i < params.length; i++) {
-            var ch = params[i];
+        public int getInMemoryMessages() {
+            return inMemoryMessages;
+        }
 
-            if (isKey) {
-                assert valueStartIndex == -1;
-                assert valueStopIndex == -1;
-                assert keyStopIndex == -1;
+        public int getPoolMinThreads() {
+            return poolMinThreads;
+        }
 
-                if (!Character.isLetter(ch) && ch != '=') {
-                    throw new IllegalArgumentException(
-                            "Paremeter's key contains not a letter: letter='%s'".formatted(ch));
-                }
+        public int getPoolMaxThreads() {
+            return poolMaxThreads;
+        }
 
-                if (keyStartIndex == -1) {
-                    if (ch == '=') {
-                        throw new IllegalArgumentException(
-                                "Parameter's key starts with '=' letter");
-                    }
+        public int getPoolQueueCapacity() {
+            return poolQueueCapacity;
+        }
 
-                    keyStartIndex = i;
-                } else if (ch == '=') {
-                    isKey = false;
-                    keyStopIndex = i;
-                }
-                continue;
-            } else {
-                assert keyStartIndex != -1;
-                assert keyStopIndex != -1;
-                assert valueStopIndex == -1;
+        public long getPoolTargetQueueWaitMillis() {
+            return poolTargetQueueWaitMillis;
+        }
 
-                if (!Character.isLetter(ch) && !Character.isDigit(ch) && ch != '-'  && ch != '&') {
-                    throw new IllegalArgumentException(
-                            "Paremeter's value contains not a letter or digit: letter='%s'"
-                                    .formatted(ch));
-                }
+        public Path getAuditDirectory() {
+            return auditDirectory;
+        }
 
-                if (valueStartIndex == -1) {
-                    if (ch == '&') {
-                        throw new IllegalArgumentException(
-                                "Parameter's value starts with '&' letter");
-                    }
-                    valueStartIndex = i;
-                }
+        public int getAuditInMemoryRequests() {
+            return auditInMemoryRequests;
+        }
 
-                if (ch == '&') {
-                    isKey = true;
-                    valueStopIndex = i;
-                } else if (i == params.length - 1) {
-                    valueStopIndex = i + 1;
-                } else {
-                    continue;
-                }
-            }
+        public int getMaxPageSize() {
+            return maxPageSize;
+        }
 
-            assert keyStartIndex >= 0;
-            assert keyStopIndex >= 1;
-            assert keyStartIndex < params.length - 2;
-            assert keyStopIndex < params.length - 1;
-            assert valueStartIndex >= 1;
-            assert valueStopIndex >= 2;
-            assert valueStartIndex < params.length;
-            assert valueStopIndex <= params.length;
+        public long getPageCacheMaxBytes() {
+            return pageCacheMaxBytes;
+        }
 
-            assert keyStopIndex - keyStartIndex >= 1;
-            assert valueStopIndex - valueStartIndex >= 1;
+        public int getShards() {
+            return shards;
+        }
 
-            var key = String.valueOf(params, keyStartIndex, keyStopIndex - keyStartIndex);
-            var value = String.valueOf(params, valueStartIndex, valueStopIndex - valueStartIndex);
+        public int getMaxRooms() {
+            return maxRooms;
+        }
 
-            keyStartIndex = -1;
-            keyStopIndex = -1;
-            valueStartIndex = -1;
-            valueStopIndex = -1;
+        public long getSearchMaxBytes() {
+            return searchMaxBytes;
+        }
 
-            result.putIfAbsent(key, value); // ignoring dublicated params
+        /**
+         * @return the leader the server follows, empty if it isn't a follower
+         */
+        public Optional<InetSocketAddress> getLeader() {
+            return leader;
         }
 
-        assert valueStopIndex == -1;
+        public long getIdleTimeoutMillis() {
+            return idleTimeoutMillis;
+        }
 
-        if (keyStartIndex != -1 || keyStopIndex != -1 || valueStartIndex != -1) {
-            throw new IllegalArgumentException(
-                    "Couldn't finish a parameter. Params: '%s'".formatted(Arrays.toString(params)));
+        public long getRequestTimeoutMillis() {
+            return requestTimeoutMillis;
         }
 
-        return result;
-    }
+        public long getSendTimeoutMillis() {
+            return sendTimeoutMillis;
+        }
 
-    /**
-     * Reads the data from {@code reader}. The {@code reader} will NEVER be closed after leaving the
-     * method.
-     *
-     * @param reader to read data from
-     * @return read data from {@code reader} into {@code char[]} array
-     * @throws IOException if there issues with reading from {@code reader}
-     */
-    private static char[] readData(BufferedReader reader) throws IOException {
-        requireNonNull(reader);
+        public long getMaxPendingOutputBytes() {
+            return maxPendingOutputBytes;
+        }
 
-        var buff = new char[1024];
-        var buffList = new LinkedList<char[]>();
-        buffList.add(new char[] {'\r', '\n'});
-        var totalSize = 2;
+        /**
+         * @return messages a client can post a second, {@code 0} if there is no limit
+         */
+        public int getRateLimitPostsPerSecond() {
+            return rateLimitPostsPerSecond;
+        }
 
-        while (reader.ready()) {
-            var length = reader.read(buff);
-            if (length == -1) {
-                break;
-            }
+        public int getRateLimitBurst() {
+            return rateLimitBurst;
+        }
 
-            buffList.add(Arrays.copyOf(buff, length));
-            totalSize = Math.addExact(totalSize, length);
+        public int getQueueCapacity() {
+            return queueCapacity;
         }
 
-        var data = new char[totalSize];
-        var dataWritePositionIndex = 0;
+        public long getQueueMaxBytes() {
+            return queueMaxBytes;
+        }
 
-        for (char[] b : buffList) {
-            System.arraycopy(b, 0, data, dataWritePositionIndex, b.length);
-            dataWritePositionIndex = Math.addExact(dataWritePositionIndex, b.length);
+        public Backpressure getBackpressure() {
+            return backpressure;
         }
 
-        assert totalSize == dataWritePositionIndex
-                : "The positon of last write isn't at the end of the array";
+        public long getQueueBlockTimeoutMillis() {
+            return queueBlockTimeoutMillis;
+        }
 
-        return data;
+        @Override
+        public String toString() {
+            return "Config [port="
+                    + port
+                    + ", connectionMode="
+                    + connectionMode
+                    + ", eventLoops="
+                    + eventLoops
+                    + ", logDurability="
+                    + logDurability
+                    + ", logFlushIntervalMillis="
+                    + logFlushIntervalMillis
+                    + ", logMaxBatchSize="
+                    + logMaxBatchSize
+                    + ", journalDirectory="
+                    + journalDirectory
+                    + ", journalSegmentSize="
+                    + journalSegmentSize
+                    + ", journalRetainedSegments="
+                    + journalRetainedSegments
+                    + ", inMemoryMessages="
+                    + inMemoryMessages
+                    + ", poolMinThreads="
+                    + poolMinThreads
+                    + ", poolMaxThreads="
+                    + poolMaxThreads
+                    + ", poolQueueCapacity="
+                    + poolQueueCapacity
+                    + ", poolTargetQueueWaitMillis="
+                    + poolTargetQueueWaitMillis
+                    + ", auditDirectory="
+                    + auditDirectory
+                    + ", auditInMemoryRequests="
+                    + auditInMemoryRequests
+                    + ", maxPageSize="
+                    + maxPageSize
+                    + ", pageCacheMaxBytes="
+                    + pageCacheMaxBytes
+                    + ", shards="
+                    + shards
+                    + ", maxRooms="
+                    + maxRooms
+                    + ", searchMaxBytes="
+                    + searchMaxBytes
+                    + ", leader="
+                    + leader
+                    + ", idleTimeoutMillis="
+                    + idleTimeoutMillis
+                    + ", requestTimeoutMillis="
+                    + requestTimeoutMillis
+                    + ", sendTimeoutMillis="
+                    + sendTimeoutMillis
+                    + ", maxPendingOutputBytes="
+                    + maxPendingOutputBytes
+                    + ", rateLimitPostsPerSecond="
+                    + rateLimitPostsPerSecond
+                    + ", rateLimitBurst="
+                    + rateLimitBurst
+                    + ", queueCapacity="
+                    + queueCapacity
+                    + ", queueMaxBytes="
+                    + queueMaxBytes
+                    + ", backpressure="
+                    + backpressure
+                    + ", queueBlockTimeoutMillis="
+                    + queueBlockTimeoutMillis
+                    + "]";
+        }
     }
 
     /**
+     * The text is kept as UTF-8 bytes, encoded once when the message is created and shared without
+     * copying by the copies made by {@link #withId(long)}, the {@link MessageJournal} and the
+     * encoders. The {@link BinaryWireFormat} encoding of the author and the text is cached on first
+     * use, so a message sent to many clients is encoded once.
      *
-     *
-     * <pre>
-     * headerName = "[a-Z][a-Z_-]*"
-     * headerValue = "[a-Z][a-Z_-]*"
-     * header = headerName + : + headerValue
-     * headers = header + CRLF + header
-     * </pre>
-     *
-     * <p>NO trailing CRLF or any characters after a header
-     *
-     * @param data to parse the headers from
-     * @return converted {@code data}, if {@code data.length == 0}, an empty map is returned
-     * @throws NullPointerException if {@code data} is null
-     * @throws IllegalArgumentException if there are less than 3 character for a header
-     * @throws IllegalArgumentException if there are 1 or 2 characters after a header that aren't
-     *     equal to "CRLF"
-     * @throws IllegalArgumentException if there is a trailing CRLF
-     * @throws IllegalArgumentException if the first letter of a headerName isn't "[a-Z]"
-     * @throws IllegalArgumentException if the other letter of a headerName isn't "[a-Z-_]"
-     * @throws IllegalArgumentException if the first letter of a headerValue isn't "[a-Z]"
-     * @throws IllegalArgumentException if the other letter of a headerValue isn't "[a-Z-_]"
-     * @throws IllegalArgumentException if the other letter of a headerValue isn't "[a-Z-_]"
-     * @throws IllegalArgumentException if the end of the header data stream was reached but the
-     *     header wasn't finished completely
-     * @throws IllegalArgumentException if the parsed header was already present
+     * @Immutable
      */
-    private static Map<String, String> convertHeaders(char[] data) {
-        requireNonNull(data);
-
-        var headers = new HashMap<String, String>();
-
-        for (int i = 0; i < data.length; i += 2) {
-            if (data.length - i < 3) {
-                throw new IllegalArgumentException("There are less than 3 characters for a header");
-            }
+    public static class ChatMessage implements Serializable {
 
-            i = convertHeader(data, i, headers);
+        /** UTF-8, never modified */
+        private final byte[] text;
 
-            if (i == data.length) {
-                break;
-            }
+        private final User user;
+        private final Instant created;
 
-            if (data.length - i <= 1) {
-                throw new IllegalArgumentException(
-                        "There are only 1 character after a header: '%s'".formatted(data[i]));
-            }
+        /**
+         * position in the {@link ChatMessageLog}, assigned when appended to it, {@code -1} before
+         * that
+         */
+        private final long id;
 
-            // not CRLF
-            if (data[i] != 10 && data[i + 1] != 13) {
-                throw new IllegalArgumentException(
-                        "There is an incorrect character after a header: '%s'".formatted(data[i]));
-            }
+        /** Of {@link BinaryWireFormat#encodeUserAndText(String, byte[])}, set on first use */
+        private transient volatile byte[] binaryEncoding;
 
-            if (i + 1 == data.length) {
-                throw new IllegalArgumentException("There is a trailing CRLF");
-            }
+        public ChatMessage(char[] message, User user) {
+            this(message, user, Instant.now());
         }
-        return headers;
-    }
-
-    /**
-     * Reads header data from the {@code data} at {@code startIndex} and untill "CR" or the end of
-     * the {@code data} and then adds the header to the {@code headers}
-     *
-     * <pre>
-     * headerName = "[a-Z][a-Z_-]*"
-     * headerValue = "[a-Z][a-Z_-]*"
-     * header = headerName + : + headerValue
-     * </pre>
-     *
-     * @param data to read header data from
-     * @param startIndex to start reading {@code data} at, should be non negative and {@code
-     *     data.length - startIndex >= 3}
-     * @param headers to store a header
-     * @return the last index stopped at plus + 1. It is guaranteed that the returned value will be
-     *     >= starIndex + 3
-     * @throws IllegalArgumentException if {@code startIndex < 0}
-     * @throws IllegalArgumentException if {@code data.length - startIndex < 3} }
-     * @throws IllegalArgumentException if the first letter of the headerName isn't "[a-Z]"
-     * @throws IllegalArgumentException if the other letter of the headerName isn't "[a-Z-_]"
-     * @throws IllegalArgumentException if the first letter of the headerValue isn't "[a-Z]"
-     * @throws IllegalArgumentException if the other letter of the headerValue isn't "[a-Z-_]"
-     * @throws IllegalArgumentException if the other letter of the headerValue isn't "[a-Z-_]"
-     * @throws IllegalArgumentException if the end of the {@code data} was reached but the header
-     *     wasn't finished completely
-     * @throws IllegalArgumentException if the parsed header was already present in the {@code
-     *     headers}
-     */
-    private static int convertHeader(char[] data, int startIndex, HashMap<String, String> headers) {
-        requireNonNull(data);
-        requireNonNull(headers);
 
-        if (startIndex < 0) {
-            throw new IllegalArgumentException("start index is negative: %s".formatted(startIndex));
+        /**
+         * Creates a not yet appended message, e.g. from the body of a parsed {@link HttpRequest}
+         */
+        private ChatMessage(char[] message, User user, Instant created) {
+            this(-1, encodeUtf8(message), user, created);
         }
 
-        if (data.length - startIndex < 3) {
-            throw new IllegalArgumentException(
-                    "The remaining amount of data to read is smaller than 3. i = %s, data.length = %s"
-                            .formatted(startIndex, data.length));
-        }
-
-        int stopIndex = startIndex;
-
-        // 1. Search for the start of a header name
-        // 2. Parse the header name and search for its end
-        // 3. Search for the start of a header value
-        // 4. Parse the header value and search for its end
-        var headerNameStartIndex = -1;
-        var headerNameEndIndex = -1;
-        var headerValueStartIndex = -1;
-        var headerValueEndIndex = -1;
-        for (int j = startIndex; j < data.length; j++, stopIndex = j) {
-            var ch = data[startIndex];
-
-            // 1. Search for header's name start character
-            if (headerNameStartIndex == -1) {
-                if (!Character.isLetter(ch)) {
-                    throw new IllegalArgumentException(
-                            "Incorrect character: '%s' in a first letter of the header name."
-                                            .formatted(ch)
-                                    + " Allowed 'a-zA-Z'");
-                }
-
-                headerNameStartIndex = startIndex;
-                continue;
-            }
-
-            assert headerNameStartIndex != -1;
-
-            // 2. Parse the header name and search for its end
-            if (headerNameEndIndex == -1) {
-                assert headerNameStartIndex < j;
-
-                // reached the end of the header name;
-                if (ch == ':') {
-                    headerNameEndIndex = startIndex - 1;
-                    continue;
-                }
-
-                if (!Character.isLetter(ch) && ch != '-' && ch != '_') {
-                    throw new IllegalArgumentException(
-                            "Incorrect character: '%s' in a header name. Allowed 'a-zA-Z-_'"
-                                    .formatted(ch));
-                }
-
-                continue;
-            }
-
-            assert headerNameEndIndex != -1;
-
-            // 3. Search for the start of a header value
-            if (headerValueStartIndex == -1) {
-                if (!Character.isLetter(ch)) {
-                    throw new IllegalArgumentException(
-                            "Incorrect character: '%s' in a first letter of the header value."
-                                    + " Allowed 'a-zA-Z'".formatted(ch));
-                }
-
-                headerValueStartIndex = startIndex;
-                continue;
-            }
-
-            assert headerValueStartIndex != -1;
-
-            // 4. Parse the header value and search for its end
-            if (headerValueEndIndex == -1) {
-                assert headerValueStartIndex < j;
-
-                // reached the end of the header value;
-                if (ch == 13) { // it's CR
-                    headerNameEndIndex = startIndex - 1;
-                    break;
-                } else if (startIndex == data.length - 1) { // it's the end of the data array
-                    headerNameEndIndex = startIndex;
-                    break; // we are exiting the loop anyway but it is more readable
-                }
-
-                if (!Character.isLetter(ch) && ch != '-' && ch != '_') {
-                    throw new IllegalArgumentException(
-                            "Incorrect character: '%s' in a header value. Allowed 'a-zA-Z-_'"
-                                    .formatted(ch));
-                }
-
-                continue;
-            }
+        /**
+         * Creates an already appended message
+         *
+         * @param id of the message
+         * @param message text
+         * @param user author
+         * @param created date
+         * @throws IllegalArgumentException if {@code id < 0}
+         */
+        ChatMessage(long id, char[] message, User user, Instant created) {
+            this(checkId(id), encodeUtf8(message), user, created);
         }
 
-        assert headerNameStartIndex != -1;
-
-        if (headerNameEndIndex == -1 || headerValueStartIndex == -1 || headerValueEndIndex == -1) {
-            throw new IllegalArgumentException(
-                    "Reached the end of header data stream but couldn't finish the header.");
+        private ChatMessage(long id, byte[] text, User user, Instant created) {
+            this.id = id;
+            this.text = requireNonNull(text);
+            this.user = requireNonNull(user);
+            this.created = requireNonNull(created);
         }
 
-        assert headerNameEndIndex - headerNameStartIndex >= 0;
-        assert headerValueEndIndex - headerValueEndIndex >= 0;
-        assert headerValueStartIndex - headerNameEndIndex == 2;
-
-        var headerName =
-                String.valueOf(
-                        data, headerNameStartIndex, headerNameEndIndex - headerNameStartIndex + 1);
-        var headerValue =
-                String.valueOf(
-                        data,
-                        headerValueStartIndex,
-                        headerValueEndIndex - headerValueStartIndex + 1);
-
-        if (headers.containsKey(headerName)) {
-            throw new IllegalArgumentException(
-                    "Header: %s already is present".formatted(headerName));
+        /**
+         * Creates an already appended message taking over the {@code text}, e.g. one read by the
+         * {@link MessageJournal} or decoded by {@link BinaryWireFormat}
+         *
+         * @param id of the message
+         * @param text UTF-8 bytes, isn't copied and shouldn't be modified afterwards
+         * @param user author
+         * @param created date
+         * @throws IllegalArgumentException if {@code id < 0}
+         */
+        static ChatMessage ofUtf8(long id, byte[] text, User user, Instant created) {
+            return new ChatMessage(checkId(id), text, user, created);
         }
 
-        headers.put(headerName, headerValue);
-
-        ++stopIndex;
-        assert stopIndex - startIndex >= 3;
-        assert startIndex <= data.length;
-
-        return startIndex;
-    }
-
-    /**
-     * @param requestTarget to check if exists in the set of {@link Server#requestTargets}
-     * @return passed {@code requestTarget}
-     * @throws NullPointerException if the {@code requestTarget} is {@code null}
-     * @throws IllegalArgumentException if the {@code requestTarget} doesn't exist
-     */
-    private static String validateRequestTarget(String requestTarget) {
-        requireNonNull(requestTarget, "The requestTarget cannot be null");
-        if (!requestTargets.contains(requestTarget)) {
-            throw new IllegalArgumentException(
-                    "The requestTarget doesn't exist: '%s'".formatted(requestTarget));
+        private static long checkId(long id) {
+            if (id < 0) {
+                throw new IllegalArgumentException("Id cannot be negative: %s".formatted(id));
+            }
+            return id;
         }
 
-        return requestTarget;
-    }
-
-    private void sendResponse(Socket socket, HttpResponse httpResponse) throws IOException {
-        requireNonNull(socket);
-        requireNonNull(httpResponse);
-
-        try {
-            var socketOut = new ObjectOutputStream(socket.getOutputStream());
-            socketOut.writeInt(httpResponse.getStatus().statusCode);
-            socketOut.writeObject(httpResponse.getBody());
-            socketOut.flush();
-        } catch (IOException e) {
-            throw new IOException("Couldn't send a response: %s".formatted(httpResponse), e);
+        private static byte[] encodeUtf8(char[] message) {
+            var encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(message));
+            return Arrays.copyOf(encoded.array(), encoded.limit());
         }
-    }
 
-    public static void main(String[] args) throws InterruptedException {
-        try (var s = new Server()) {
-            s.start();
-            s.waitTillStop();
+        /**
+         * @param id to assign
+         * @return a copy of this message with the {@code id}, sharing the text and the cached
+         *     encoding
+         */
+        ChatMessage withId(long id) {
+            var copy = new ChatMessage(checkId(id), text, user, created);
+            copy.binaryEncoding = binaryEncoding;
+            return copy;
         }
-    }
-
-    /**
-     * TODO performance? Copies message in the constructor and every time it is requested @Immutable
-     */
-    public static class ChatMessage implements Serializable {
-
-        private final char[] message;
-        private final User user;
-        private final Instant created = Instant.now();
-
-        /** equal to the number of instances of the class created */
-        private final int id;
 
-        private static int idCounter;
+        public long getId() {
+            return id;
+        }
 
-        public ChatMessage(char[] message, User user) {
-            this.id = idCounter++;
-            this.message = requireNonNull(message.clone());
-            this.user = requireNonNull(user);
+        /**
+         * @return the text decoded into a new array
+         */
+        public char[] getMessage() {
+            var decoded = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(text));
+            return Arrays.copyOf(decoded.array(), decoded.limit());
         }
 
-        public int getId() {
-            return id;
+        /**
+         * @return the UTF-8 text shared by all the users of the message, must not be modified
+         */
+        byte[] getUtf8Text() {
+            return text;
         }
 
-        public char[] getMessage() {
-            return message.clone();
+        /**
+         * @return {@link BinaryWireFormat#encodeUserAndText(String, byte[])} of this message,
+         *     shared, must not be modified
+         */
+        byte[] getBinaryEncoding() {
+            var encoding = binaryEncoding;
+            if (encoding == null) { // racing threads encode the same bytes
+                encoding = BinaryWireFormat.encodeUserAndText(user.getUsername(), text);
+                binaryEncoding = encoding;
+            }
+            return encoding;
         }
 
         public User getUser() {
@@ -1098,7 +3079,11 @@ public class Server implements AutoCloseable {
 
         @Override
         public String toString() {
-            return "ChatMessage [message=" + Arrays.toString(message) + ", user=" + user + "]";
+            return "ChatMessage [message="
+                    + new String(text, StandardCharsets.UTF_8)
+                    + ", user="
+                    + user
+                    + "]";
         }
     }
 
@@ -1151,25 +3136,44 @@ public class Server implements AutoCloseable {
             this.method = requireNonNull(method);
             this.target = requireNonNull(target);
 
+            // the maps and the body are owned by the request, the getters don't copy the maps
             this.headers =
                     headers == null
                             ? Optional.empty()
-                            : Optional.of(new HashMap<>(requireNonNull(headers)));
+                            : Optional.of(Collections.unmodifiableMap(headers));
             this.parameters =
                     parameters == null
                             ? Optional.empty()
-                            : Optional.of(new HashMap<>(requireNonNull(parameters)));
+                            : Optional.of(Collections.unmodifiableMap(parameters));
 
             if (body != null) {
                 if (body.length == 0) {
                     throw new IllegalArgumentException("The length of the body cannot be zero");
                 }
-                this.body = Optional.of(body.clone());
+                this.body = Optional.of(body);
             } else {
                 this.body = Optional.empty();
             }
         }
 
+        /**
+         * Creates a request taking over the maps and the body without copying them, for {@link
+         * RequestParser} that doesn't keep them
+         *
+         * @param headers {@code null} if there are none
+         * @param parameters {@code null} if there are none
+         * @param body {@code null} if there is none
+         */
+        static HttpRequest ofParsed(
+                String socketName,
+                HttpMethod method,
+                String target,
+                Map<String, String> headers,
+                Map<String, String> parameters,
+                char[] body) {
+            return new HttpRequest(socketName, method, target, headers, parameters, body);
+        }
+
         public static class Builder {
             private final String socketName;
             private final HttpMethod method;
@@ -1236,9 +3240,11 @@ public class Server implements AutoCloseable {
             }
 
             public HttpRequest build() {
-                var body = this.body.isPresent() ? this.body.get() : null;
-                var headers = this.headers.isPresent() ? this.headers.get() : null;
-                var parameters = this.parameters.isPresent() ? this.parameters.get() : null;
+                var body = this.body.isPresent() ? this.body.get().clone() : null;
+                var headers =
+                        this.headers.isPresent() ? new HashMap<>(this.headers.get()) : null;
+                var parameters =
+                        this.parameters.isPresent() ? new HashMap<>(this.parameters.get()) : null;
 
                 return new HttpRequest(socketName, method, target, headers, parameters, body);
             }
@@ -1256,14 +3262,18 @@ public class Server implements AutoCloseable {
             return target;
         }
 
+        /**
+         * @return unmodifiable headers
+         */
         public Optional<Map<String, String>> getHeaders() {
-            return headers.isPresent() ? Optional.of(new HashMap<>(headers.get())) : headers;
+            return headers;
         }
 
+        /**
+         * @return unmodifiable parameters
+         */
         public Optional<Map<String, String>> getParameters() {
-            return parameters.isPresent()
-                    ? Optional.of(new HashMap<>(parameters.get()))
-                    : parameters;
+            return parameters;
         }
 
         public Optional<char[]> getBody() {
@@ -1300,20 +3310,61 @@ public class Server implements AutoCloseable {
 
         private final HttpStatus status;
         private final Serializable body;
+        private final OptionalLong nextCursor;
+
+        /** The messages of the body were read from, isn't sent */
+        private final String room;
 
         public HttpResponse(HttpStatus status, String message) {
             this.status = requireNonNull(status);
             this.body = requireNonNull(message);
+            this.nextCursor = OptionalLong.empty();
+            this.room = ChatRooms.DEFAULT_ROOM;
         }
 
         public HttpResponse(HttpStatus status, Serializable body) {
             this.status = requireNonNull(status);
             this.body = requireNonNull(body);
+            this.nextCursor = OptionalLong.empty();
+            this.room = ChatRooms.DEFAULT_ROOM;
+        }
+
+        /**
+         * Creates a response with a page of messages of the {@link ChatRooms#DEFAULT_ROOM}
+         *
+         * @param messages of the page
+         * @param nextCursor the 'lastId' to request the next page with, empty if there are no more
+         *     messages
+         */
+        public HttpResponse(
+                HttpStatus status, ArrayList<ChatMessage> messages, OptionalLong nextCursor) {
+            this(status, ChatRooms.DEFAULT_ROOM, messages, nextCursor);
+        }
+
+        /**
+         * Creates a response with a page of messages of the {@code room}
+         *
+         * @param room the messages were read from
+         * @param messages of the page
+         * @param nextCursor the 'lastId' to request the next page with, empty if there are no more
+         *     messages
+         */
+        public HttpResponse(
+                HttpStatus status,
+                String room,
+                ArrayList<ChatMessage> messages,
+                OptionalLong nextCursor) {
+            this.status = requireNonNull(status);
+            this.room = requireNonNull(room);
+            this.body = requireNonNull(messages);
+            this.nextCursor = requireNonNull(nextCursor);
         }
 
         public static enum HttpStatus {
             OK(100),
-            BAD(500);
+            BAD(500),
+            /** The server is overloaded, the request wasn't handled */
+            BUSY(503);
 
             public final int statusCode;
 
@@ -1340,6 +3391,18 @@ public class Server implements AutoCloseable {
             return body;
         }
 
+        public OptionalLong getNextCursor() {
+            return nextCursor;
+        }
+
+        /**
+         * @return the room the messages of the body were read from, {@link
+         *     ChatRooms#DEFAULT_ROOM} if the body isn't a page of messages
+         */
+        public String getRoom() {
+            return room;
+        }
+
         @Override
         public String toString() {
             return "HttpResponse [status="
@@ -0,0 +1,192 @@
+package main.chat;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import main.chat.Server.HttpRequest.HttpMethod;
+import main.chat.Server.HttpResponse.HttpStatus;
+
+/**
+ * Counters and per {@link Stage} latency histograms of the requests served by a {@link Server},
+ * recorded without locking by the connection threads and read by the {@code /metrics} target.
+ *
+ * <p>Written as {@code name value} lines, a histogram as its {@link LatencyHistogram#summary()}.
+ *
+ * @ThreadSafe
+ */
+public class ServerMetrics {
+
+    /**
+     * Stages of serving a request:
+     *
+     * <ul>
+     *   <li>{@link #READ} - from the first received bytes of a request to the last ones, {@code 0}
+     *       if it came in one read
+     *   <li>{@link #PARSE} - parsing of the received bytes into a request
+     *   <li>{@link #HANDLE} - from the parsed request to its response, includes the wait of a long
+     *       polling GET
+     *   <li>{@link #SERIALIZE} - encoding of the response
+     *   <li>{@link #SEND} - writing of the encoded response to the buffer of the socket, or
+     *       queueing it for a {@link NioEventLoop} connection, the responses to pipelined requests
+     *       are flushed together afterwards
+     * </ul>
+     */
+    public static enum Stage {
+        READ,
+        PARSE,
+        HANDLE,
+        SERIALIZE,
+        SEND;
+    }
+
+    private final long startNanos = System.nanoTime();
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final Map<HttpMethod, LongAdder> requests = new EnumMap<>(HttpMethod.class);
+    private final Map<HttpStatus, LongAdder> responses = new EnumMap<>(HttpStatus.class);
+
+    /** Bytes of the parsed requests */
+    private final LongAdder bytesIn = new LongAdder();
+
+    /** Bytes of the encoded responses */
+    private final LongAdder bytesOut = new LongAdder();
+
+    /** Connections closed for not reading their responses in time */
+    private final LongAdder slowConsumers = new LongAdder();
+
+    /** Requests answered with {@link HttpStatus#BUSY} for a full queue */
+    private final LongAdder overloaded = new LongAdder();
+
+    /** Audit records a full queue had no room for */
+    private final LongAdder droppedAudits = new LongAdder();
+
+    public ServerMetrics() {
+        // filled up front, so the maps are only read afterwards
+        for (var stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+        for (var method : HttpMethod.values()) {
+            requests.put(method, new LongAdder());
+        }
+        for (var status : HttpStatus.values()) {
+            responses.put(status, new LongAdder());
+        }
+    }
+
+    /**
+     * @return latencies of the {@code stage} in nanoseconds
+     */
+    public LatencyHistogram getStage(Stage stage) {
+        return stages.get(requireNonNull(stage));
+    }
+
+    /**
+     * Records the time passed since {@code startNanos} as a latency of the {@code stage}
+     *
+     * @param startNanos taken from {@link System#nanoTime()}
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        getStage(stage).recordSince(startNanos);
+    }
+
+    /**
+     * @param method of a parsed request
+     * @param bytes of the request
+     */
+    public void countRequest(HttpMethod method, long bytes) {
+        requests.get(requireNonNull(method)).increment();
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @param status of an encoded response
+     * @param bytes of the encoded response
+     */
+    public void countResponse(HttpStatus status, long bytes) {
+        responses.get(requireNonNull(status)).increment();
+        bytesOut.add(bytes);
+    }
+
+    /** Counts a connection closed for not reading its responses in time */
+    public void countSlowConsumer() {
+        slowConsumers.increment();
+    }
+
+    /** Counts a request rejected for a full queue */
+    public void countOverloaded() {
+        overloaded.increment();
+    }
+
+    /** Counts an audit record dropped for a full queue */
+    public void countDroppedAudit() {
+        droppedAudits.increment();
+    }
+
+    public long getRequests(HttpMethod method) {
+        return requests.get(requireNonNull(method)).sum();
+    }
+
+    public long getResponses(HttpStatus status) {
+        return responses.get(requireNonNull(status)).sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    public long getOverloaded() {
+        return overloaded.sum();
+    }
+
+    public long getDroppedAudits() {
+        return droppedAudits.sum();
+    }
+
+    /**
+     * Appends the counters and the histograms, a {@code name value} line each
+     *
+     * @param out to append to
+     */
+    public void appendTo(StringBuilder out) {
+        requireNonNull(out);
+
+        appendLine(
+                out,
+                "uptime.seconds",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+        requests.forEach(
+                (method, count) ->
+                        appendLine(out, "requests." + method.name().toLowerCase(), count.sum()));
+        responses.forEach(
+                (status, count) ->
+                        appendLine(out, "responses." + status.name().toLowerCase(), count.sum()));
+        appendLine(out, "bytes.in", bytesIn.sum());
+        appendLine(out, "bytes.out", bytesOut.sum());
+        appendLine(out, "disconnected.slowConsumers", slowConsumers.sum());
+        appendLine(out, "rejected.overloaded", overloaded.sum());
+        appendLine(out, "dropped.audits", droppedAudits.sum());
+        stages.forEach(
+                (stage, histogram) ->
+                        appendLine(
+                                out, "stage." + stage.name().toLowerCase(), histogram.summary()));
+    }
+
+    /**
+     * Appends {@code name value} and a line separator
+     */
+    static void appendLine(StringBuilder out, String name, Object value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,135 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import main.chat.Server.ChatMessage;
+import main.chat.Server.User;
+import org.junit.jupiter.api.Test;
+
+class BinaryWireFormatTest {
+    private static final String LATIN = "Bad: \u00fcn\u00efc\u00f6d\u00e9";
+    private static final String CYRILLIC = "\u043f\u0440\u0438\u0432\u0435\u0442";
+
+    @Test
+    void roundTripsMessage() {
+        var frame = BinaryWireFormat.decode(BinaryWireFormat.encodeMessage(500, LATIN));
+
+        assertEquals(500, frame.getStatusCode());
+        assertEquals(Optional.of(LATIN), frame.getMessage());
+        assertEquals(Optional.empty(), frame.getMessages());
+        assertEquals(OptionalLong.empty(), frame.getNextCursor());
+    }
+
+    @Test
+    void roundTripsMessages() {
+        // big and repeated ids, created dates going back and forth, texts of any size
+        var messages =
+                List.of(
+                        message(0, Instant.EPOCH, "alice", ""),
+                        message(5, Instant.ofEpochMilli(1_700_000_000_000L), "bob", "hi"),
+                        message(5, Instant.ofEpochMilli(1_600_000_000_000L), "bob", CYRILLIC),
+                        message(
+                                Long.MAX_VALUE / 2,
+                                Instant.ofEpochMilli(1_700_000_000_001L),
+                                "\u00e8ve",
+                                "x".repeat(100_000)));
+
+        var frame =
+                BinaryWireFormat.decode(
+                        BinaryWireFormat.encodeMessages(100, messages, OptionalLong.of(0)));
+
+        assertEquals(100, frame.getStatusCode());
+        assertEquals(Optional.empty(), frame.getMessage());
+        assertEquals(OptionalLong.of(0), frame.getNextCursor());
+
+        var decoded = frame.getMessages().get();
+        assertEquals(messages.size(), decoded.size());
+        for (int i = 0; i < messages.size(); i++) {
+            var expected = messages.get(i);
+            var actual = decoded.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getCreatedDate(), actual.getCreatedDate());
+            assertEquals(expected.getUser().getUsername(), actual.getUser().getUsername());
+            assertEquals(
+                    new String(expected.getMessage()), new String(actual.getMessage()), "Text");
+        }
+    }
+
+    @Test
+    void roundTripsLastEmptyPage() {
+        var frame = BinaryWireFormat.decode(BinaryWireFormat.encodeMessages(100, List.of()));
+
+        assertEquals(Optional.of(List.of()), frame.getMessages());
+        assertEquals(OptionalLong.empty(), frame.getNextCursor());
+    }
+
+    @Test
+    void readsFramesFromStream() throws IOException {
+        var out = new ByteArrayOutputStream();
+        out.write(BinaryWireFormat.encodeMessage(100, "first"));
+        out.write(
+                BinaryWireFormat.encodeMessages(
+                        100, List.of(message(7, Instant.EPOCH, "bob", "second"))));
+        var in = new ByteArrayInputStream(out.toByteArray());
+
+        assertEquals(BinaryWireFormat.MAGIC, in.read());
+        assertEquals(Optional.of("first"), BinaryWireFormat.readFrame(in).getMessage());
+        assertEquals(BinaryWireFormat.MAGIC, in.read());
+        var messages = BinaryWireFormat.readFrame(in).getMessages().get();
+        assertEquals(7, messages.get(0).getId());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void rejectsTruncatedStream() {
+        var frame = BinaryWireFormat.encodeMessage(100, "truncated");
+        var in = new ByteArrayInputStream(frame, 1, frame.length - 2);
+
+        assertThrows(EOFException.class, () -> BinaryWireFormat.readFrame(in));
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        var frame = BinaryWireFormat.encodeMessage(100, "message");
+
+        var notBinary = frame.clone();
+        notBinary[0] = (byte) 0xAC;
+        assertThrows(IllegalArgumentException.class, () -> BinaryWireFormat.decode(notBinary));
+
+        var trailing = Arrays.copyOf(frame, frame.length + 1);
+        assertThrows(IllegalArgumentException.class, () -> BinaryWireFormat.decode(trailing));
+
+        var truncated = Arrays.copyOf(frame, frame.length - 1);
+        assertThrows(IllegalArgumentException.class, () -> BinaryWireFormat.decode(truncated));
+    }
+
+    @Test
+    void rejectsDecreasingIdsAndNegativeCursor() {
+        var messages =
+                List.of(
+                        message(2, Instant.EPOCH, "bob", "b"),
+                        message(1, Instant.EPOCH, "bob", "a"));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> BinaryWireFormat.encodeMessages(100, messages));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> BinaryWireFormat.encodeMessages(100, List.of(), OptionalLong.of(-1)));
+    }
+
+    private static ChatMessage message(long id, Instant created, String username, String text) {
+        return ChatMessage.ofUtf8(
+                id, text.getBytes(StandardCharsets.UTF_8), new User(username, ""), created);
+    }
+}
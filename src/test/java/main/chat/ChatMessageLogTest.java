@@ -0,0 +1,190 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import main.chat.Server.ChatMessage;
+import main.chat.Server.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChatMessageLogTest {
+    /** Messages in a chunk of the log */
+    private static final int CHUNK = 1024;
+
+    @TempDir Path directory;
+
+    @Test
+    void growsChunkDirectory() {
+        var log = new ChatMessageLog();
+        // the directory starts with 16 chunks, it's copied twice
+        var count = 40 * CHUNK + 1;
+        appendMessages(log, count);
+
+        assertEquals(count, log.size());
+        for (var id : new long[] {0, 16 * CHUNK - 1, 16 * CHUNK, 32 * CHUNK, count - 1}) {
+            assertEquals("text " + id, text(log.get(id)));
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> log.get(count));
+    }
+
+    @Test
+    void readsAcrossChunkBoundaries() {
+        var log = new ChatMessageLog();
+        appendMessages(log, 3 * CHUNK);
+
+        assertIds(CHUNK - 4, 8, log.readFrom(CHUNK - 4, 8));
+        assertIds(CHUNK - 1, 2 * CHUNK + 1, log.readFrom(CHUNK - 1, 2 * CHUNK + 1));
+        // the limit ends at the size
+        assertIds(2 * CHUNK + 10, CHUNK - 10, log.readFrom(2 * CHUNK + 10, 5 * CHUNK));
+        assertTrue(log.readFrom(3 * CHUNK).isEmpty());
+    }
+
+    @Test
+    void readsEvictedChunksFromJournal() throws IOException {
+        try (var log = new ChatMessageLog(openJournal(), 1)) {
+            var appended = appendMessages(log, 3 * CHUNK);
+
+            // the first chunk is dropped when the third one starts, the rest stays in memory
+            assertNotSame(appended.get(0), log.get(0));
+            assertEquals("text 0", text(log.get(0)));
+            assertSame(appended.get(CHUNK), log.get(CHUNK));
+
+            var messages = log.readFrom(CHUNK - 2, 4);
+            assertIds(CHUNK - 2, 4, messages);
+            assertEquals("text " + (CHUNK - 2), text(messages.get(0)));
+            assertSame(appended.get(CHUNK), messages.get(2));
+        }
+    }
+
+    @Test
+    void appendAllPublishesPrefixOnFailure() throws IOException {
+        try (var log = new ChatMessageLog(openJournal(), CHUNK)) {
+            var waiter = log.awaitNewerThan(-1);
+            // doesn't fit in a segment
+            var tooBig = message("x".repeat(MessageJournal.MIN_SEGMENT_SIZE + 1));
+
+            assertThrows(
+                    IllegalArgumentException.class,
+                    () -> log.appendAll(List.of(message("a"), message("b"), tooBig, message("c"))));
+
+            assertEquals(2, log.size());
+            assertEquals(List.of("a", "b"), texts(log.readFrom(0)));
+            assertTrue(waiter.isDone());
+
+            // the next message gets the id after the appended ones
+            assertEquals(2, log.append(message("d")).getId());
+        }
+    }
+
+    @Test
+    void wakesWaiterRacingWithAppend() throws Exception {
+        var log = new ChatMessageLog();
+        var count = 20_000;
+        var writer =
+                new Thread(
+                        () -> {
+                            for (int i = 0; i < count; i++) {
+                                log.append(message("text " + i));
+                                if (i % 64 == 0) {
+                                    Thread.yield();
+                                }
+                            }
+                        });
+        writer.start();
+
+        var lastId = -1L;
+        var waits = 0;
+        try {
+            while (lastId < count - 1) {
+                var appended = log.awaitNewerThan(lastId);
+                if (!appended.isDone()) {
+                    waits++;
+                }
+                try {
+                    appended.get(5, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    fail("Missed the append after %s, size: %s".formatted(lastId, log.size()));
+                }
+
+                var messages = log.readFrom(lastId + 1);
+                assertFalse(messages.isEmpty(), "Woken without a newer message");
+                lastId = messages.get(messages.size() - 1).getId();
+            }
+        } finally {
+            writer.join();
+        }
+
+        assertEquals(0, log.getWaiters(), "Waits: " + waits);
+    }
+
+    @Test
+    void unregistersWaitersGivingUp() throws InterruptedException {
+        var log = new ChatMessageLog();
+        log.awaitNewerThan(-1).complete(null);
+        log.awaitNewerThan(-1).cancel(false);
+        assertEquals(0, log.getWaiters());
+
+        for (int i = 0; i < 1000; i++) {
+            log.awaitNewerThan(-1).completeOnTimeout(null, 1, TimeUnit.MILLISECONDS);
+        }
+        // unregistered by the timer thread, right after the timeouts
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (log.getWaiters() > 0) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("Waiters left after the timeouts: %s".formatted(log.getWaiters()));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private MessageJournal openJournal() throws IOException {
+        return MessageJournal.open(directory, MessageJournal.MIN_SEGMENT_SIZE, Integer.MAX_VALUE);
+    }
+
+    private static List<ChatMessage> appendMessages(ChatMessageLog log, int count) {
+        var appended = new ArrayList<ChatMessage>(count);
+        for (int i = 0; i < count; i++) {
+            appended.add(log.append(message("text " + i)));
+        }
+        return appended;
+    }
+
+    /** Checks the {@code messages} have the {@code count} consecutive ids from {@code fromId} */
+    private static void assertIds(long fromId, int count, List<ChatMessage> messages) {
+        assertEquals(count, messages.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(fromId + i, messages.get(i).getId());
+            assertEquals("text " + (fromId + i), text(messages.get(i)));
+        }
+    }
+
+    private static ChatMessage message(String text) {
+        return ChatMessage.ofUtf8(
+                0,
+                text.getBytes(StandardCharsets.UTF_8),
+                new User("user", ""),
+                Instant.ofEpochMilli(1_000));
+    }
+
+    private static String text(ChatMessage message) {
+        return new String(message.getMessage());
+    }
+
+    private static List<String> texts(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessageLogTest::text).toList();
+    }
+}
@@ -0,0 +1,114 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class IdleReaperTest {
+
+    /** 5ms ticks on a wheel of 4 buckets, a deadline over 20ms away takes more rotations */
+    private final IdleReaper reaper = new IdleReaper(5, 4);
+
+    private Thread thread;
+
+    @BeforeEach
+    void startReaper() {
+        thread = new Thread(reaper, "reaper");
+        thread.start();
+    }
+
+    @AfterEach
+    void stopReaper() throws InterruptedException {
+        thread.interrupt();
+        thread.join();
+    }
+
+    @Test
+    void rejectsIncorrectWheel() {
+        assertThrows(IllegalArgumentException.class, () -> new IdleReaper(0, 4));
+        assertThrows(IllegalArgumentException.class, () -> new IdleReaper(5, 0));
+        assertThrows(IllegalArgumentException.class, () -> new IdleReaper(5, (1 << 20) + 1));
+    }
+
+    @Test
+    void expiresAfterDeadline() throws InterruptedException {
+        var expired = new CountDownLatch(1);
+        var handle = reaper.register(expired::countDown);
+        var start = System.nanoTime();
+        assertTrue(handle.expireAfter(30));
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertTrue(handle.isExpired());
+        assertFalse(handle.expireAfter(30));
+        assertFalse(handle.suspend());
+        assertEquals(1, reaper.getExpired());
+    }
+
+    @Test
+    void expiresDeadlineOverManyRotations() throws InterruptedException {
+        var expired = new CountDownLatch(1);
+        var handle = reaper.register(expired::countDown);
+        handle.expireAfter(100);
+
+        assertFalse(expired.await(50, TimeUnit.MILLISECONDS));
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void keepsActiveConnection() throws InterruptedException {
+        var expired = new CountDownLatch(1);
+        var handle = reaper.register(expired::countDown);
+        // active for 5 timeouts, each 20 times the pause between the requests
+        var start = System.nanoTime();
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1_000)) {
+            assertTrue(handle.expireAfter(200));
+            Thread.sleep(10);
+        }
+        assertFalse(handle.isExpired());
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void expiresEarlierDeadline() throws InterruptedException {
+        var expired = new CountDownLatch(1);
+        var handle = reaper.register(expired::countDown);
+        handle.expireAfter(TimeUnit.MINUTES.toMillis(1));
+        Thread.sleep(20); // scheduled by now
+
+        handle.expireAfter(10);
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void doesNotExpireSuspended() throws InterruptedException {
+        var expired = new CountDownLatch(1);
+        var handle = reaper.register(expired::countDown);
+        handle.expireAfter(20);
+        assertTrue(handle.suspend());
+
+        assertFalse(expired.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(handle.expireAfter(10));
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void doesNotExpireCancelled() throws InterruptedException {
+        var expired = new CountDownLatch(1);
+        var handle = reaper.register(expired::countDown);
+        handle.expireAfter(20);
+        handle.cancel();
+
+        assertTrue(handle.isExpired());
+        assertFalse(expired.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, reaper.getExpired());
+    }
+}
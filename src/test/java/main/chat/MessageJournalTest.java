@@ -0,0 +1,146 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import main.chat.Server.ChatMessage;
+import main.chat.Server.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageJournalTest {
+    private static final Path SEGMENT = Path.of("0000000000.seg");
+    private static final Path INDEX = Path.of("0000000000.idx");
+
+    /** Offsets of a record: length(int) crc32(int) id(long) */
+    private static final int LENGTH = 0;
+
+    private static final int ID = 8;
+
+    @TempDir Path directory;
+
+    @Test
+    void recoversAllRecordsAfterClose() throws IOException {
+        appendMessages(3);
+
+        try (var journal = open()) {
+            assertEquals(0, journal.getFirstId());
+            assertEquals(3, journal.getNextId());
+
+            var messages = new ArrayList<ChatMessage>();
+            journal.readRange(0, 3, messages);
+            assertEquals(List.of("text 0", "text 1", "text 2"), texts(messages));
+            assertEquals("user", messages.get(0).getUser().getUsername());
+        }
+    }
+
+    @Test
+    void dropsRecordWithoutLength() throws IOException {
+        appendMessages(3);
+        // a crash before the length, written last, reached the disk
+        writeInt(SEGMENT, recordOffset(2) + LENGTH, 0);
+
+        assertRecovered(2);
+    }
+
+    @Test
+    void dropsRecordFailingCrc() throws IOException {
+        appendMessages(3);
+        // a torn page in the middle of the last record
+        writeInt(SEGMENT, recordOffset(2) + ID + 8, 0xDEAD);
+
+        assertRecovered(2);
+    }
+
+    @Test
+    void dropsRecordWithLengthPastSegment() throws IOException {
+        appendMessages(3);
+        writeInt(SEGMENT, recordOffset(2) + LENGTH, Integer.MAX_VALUE);
+
+        assertRecovered(2);
+    }
+
+    @Test
+    void indexesRecordMissingFromIndex() throws IOException {
+        appendMessages(3);
+        // the record reached the disk, its index entry didn't
+        writeInt(INDEX, 2 * 4, 0);
+
+        assertRecovered(3);
+    }
+
+    @Test
+    void appendsAfterTornRecord() throws IOException {
+        appendMessages(3);
+        writeInt(SEGMENT, recordOffset(2) + ID + 8, 0xDEAD);
+
+        try (var journal = open()) {
+            journal.append(message(2, "again"));
+        }
+        try (var journal = open()) {
+            assertEquals(3, journal.getNextId());
+            assertEquals("again", new String(journal.read(2).getMessage()));
+        }
+    }
+
+    /** Checks the journal has {@code count} records and nothing after them */
+    private void assertRecovered(int count) throws IOException {
+        try (var journal = open()) {
+            assertEquals(count, journal.getNextId());
+
+            var messages = new ArrayList<ChatMessage>();
+            journal.readRange(0, count, messages);
+            for (int i = 0; i < count; i++) {
+                assertEquals("text " + i, new String(messages.get(i).getMessage()));
+            }
+            assertThrows(IndexOutOfBoundsException.class, () -> journal.read(count));
+        }
+    }
+
+    private MessageJournal open() throws IOException {
+        return MessageJournal.open(directory, MessageJournal.MIN_SEGMENT_SIZE, 2);
+    }
+
+    private void appendMessages(int count) throws IOException {
+        try (var journal = open()) {
+            for (int i = 0; i < count; i++) {
+                journal.append(message(i, "text " + i));
+            }
+        }
+    }
+
+    private int recordOffset(long id) throws IOException {
+        try (var index = FileChannel.open(directory.resolve(INDEX), StandardOpenOption.READ)) {
+            var offset = ByteBuffer.allocate(4);
+            index.read(offset, id * 4);
+            return offset.getInt(0);
+        }
+    }
+
+    private void writeInt(Path file, long position, int value) throws IOException {
+        try (var channel = FileChannel.open(directory.resolve(file), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, value), position);
+        }
+    }
+
+    private static ChatMessage message(long id, String text) {
+        return ChatMessage.ofUtf8(
+                id,
+                text.getBytes(StandardCharsets.UTF_8),
+                new User("user", ""),
+                Instant.ofEpochMilli(1_000));
+    }
+
+    private static List<String> texts(List<ChatMessage> messages) {
+        return messages.stream().map(message -> new String(message.getMessage())).toList();
+    }
+}
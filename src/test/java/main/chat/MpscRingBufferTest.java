@@ -0,0 +1,210 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class MpscRingBufferTest {
+
+    @Test
+    void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(2, new MpscRingBuffer<String>(1).getCapacity());
+        assertEquals(8, new MpscRingBuffer<String>(5).getCapacity());
+        assertEquals(8, new MpscRingBuffer<String>(8).getCapacity());
+        assertThrows(IllegalArgumentException.class, () -> new MpscRingBuffer<String>(0));
+        assertThrows(
+                IllegalArgumentException.class, () -> new MpscRingBuffer<String>((1 << 30) + 1));
+    }
+
+    @Test
+    void pollsInOrderAcrossLaps() {
+        var buffer = new MpscRingBuffer<Integer>(4);
+        var next = 0;
+        // every round leaves a different number of items behind, so the slots wrap around
+        for (int round = 0; round < 100; round++) {
+            var offered = round % 4 + 1;
+            for (int i = 0; i < offered; i++) {
+                assertTrue(buffer.offer(next + i));
+            }
+            for (int i = 0; i < offered; i++) {
+                assertEquals(Integer.valueOf(next + i), buffer.poll());
+            }
+            next += offered;
+            assertNull(buffer.poll());
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    void rejectsOfferWhenFull() {
+        var buffer = new MpscRingBuffer<String>(2);
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+        assertFalse(buffer.offer("c"));
+        assertEquals(2, buffer.size());
+        assertEquals(0, buffer.remainingCapacity());
+
+        assertEquals("a", buffer.peek());
+        assertEquals("a", buffer.poll());
+        assertTrue(buffer.offer("c"));
+        assertEquals("b", buffer.poll());
+        assertEquals("c", buffer.poll());
+    }
+
+    @Test
+    void offerTimesOutWhenStaysFull() throws InterruptedException {
+        var buffer = new MpscRingBuffer<String>(2);
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+
+        var start = System.nanoTime();
+        assertFalse(buffer.offer("c", 20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    void offerWaitsForRoom() throws InterruptedException {
+        var buffer = new MpscRingBuffer<String>(2);
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+
+        var consumer =
+                new Thread(
+                        () -> {
+                            sleep(20);
+                            buffer.poll();
+                        });
+        consumer.start();
+        assertTrue(buffer.offer("c", 5, TimeUnit.SECONDS));
+        consumer.join();
+        assertEquals("b", buffer.poll());
+        assertEquals("c", buffer.poll());
+    }
+
+    @Test
+    void takeIsUnparkedByProducer() throws InterruptedException {
+        var buffer = new MpscRingBuffer<String>(4);
+        var taken = new AtomicReference<String>();
+        var started = new CountDownLatch(1);
+        var consumer =
+                new Thread(
+                        () -> {
+                            started.countDown();
+                            try {
+                                taken.set(buffer.take());
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        });
+        consumer.start();
+        started.await();
+        sleep(20); // most likely parked by now
+
+        assertTrue(buffer.offer("a"));
+        consumer.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(consumer.isAlive());
+        assertEquals("a", taken.get());
+    }
+
+    @Test
+    void pollTimesOutWhenEmpty() throws InterruptedException {
+        var buffer = new MpscRingBuffer<String>(4);
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void drainsUpToMaxItems() {
+        var buffer = new MpscRingBuffer<Integer>(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i);
+        }
+
+        var drained = new ArrayList<Integer>();
+        assertEquals(3, buffer.drainTo(drained, 3));
+        assertEquals(List.of(0, 1, 2), drained);
+        assertEquals(2, buffer.drainTo(drained));
+        assertEquals(List.of(0, 1, 2, 3, 4), drained);
+        assertThrows(IllegalArgumentException.class, () -> buffer.drainTo(buffer));
+    }
+
+    @Test
+    void boundsWeight() {
+        var buffer = new MpscRingBuffer<String>(8, 10, String::length);
+        // an item heavier than the max weight fits an empty buffer only
+        assertTrue(buffer.offer("x".repeat(15)));
+        assertFalse(buffer.offer("x"));
+        assertEquals(15, buffer.getWeight());
+
+        buffer.poll();
+        assertTrue(buffer.offer("x".repeat(4)));
+        assertTrue(buffer.offer("x".repeat(6)));
+        assertFalse(buffer.offer("x"));
+        assertEquals(10, buffer.getWeight());
+
+        buffer.clear();
+        assertEquals(0, buffer.getWeight());
+    }
+
+    @Test
+    void publishesEveryItemOfManyProducersOnce() throws InterruptedException {
+        var producers = 4;
+        var perProducer = 50_000;
+        var buffer = new MpscRingBuffer<Integer>(64);
+
+        var threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            var first = p * perProducer;
+            threads.add(
+                    new Thread(
+                            () -> {
+                                try {
+                                    for (int i = first; i < first + perProducer; i++) {
+                                        buffer.put(i);
+                                    }
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }));
+        }
+        threads.forEach(Thread::start);
+
+        var received = new BitSet(producers * perProducer);
+        var lastOfProducer = new int[producers];
+        Arrays.fill(lastOfProducer, -1);
+        for (int n = 0; n < producers * perProducer; n++) {
+            var item = buffer.poll(5, TimeUnit.SECONDS);
+            assertTrue(item != null, "Timed out after %s items".formatted(n));
+            assertFalse(received.get(item), "Received twice: " + item);
+            received.set(item);
+
+            // the items of one producer keep its order
+            var producer = item / perProducer;
+            assertTrue(item > lastOfProducer[producer]);
+            lastOfProducer[producer] = item;
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * perProducer, received.cardinality());
+        assertTrue(buffer.isEmpty());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+    @Test
+    void rejectsIncorrectLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(2e9, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1, 1, 0));
+        assertThrows(
+                IllegalArgumentException.class, () -> new RateLimiter(1, 1, 1).tryAcquire("a", 0));
+    }
+
+    @Test
+    void letsBurstInThenRejects() {
+        var limiter = new RateLimiter(1, 100, 10);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire("a", 1), "Permit " + i);
+        }
+        assertFalse(limiter.tryAcquire("a", 1));
+        assertEquals(1, limiter.getRejected());
+    }
+
+    @Test
+    void refillsAtRate() throws InterruptedException {
+        var limiter = new RateLimiter(100, 1, 10);
+        assertTrue(limiter.tryAcquire("a", 1));
+        assertFalse(limiter.tryAcquire("a", 1));
+
+        Thread.sleep(50);
+        assertTrue(limiter.tryAcquire("a", 1));
+    }
+
+    @Test
+    void keepsBucketPerKey() {
+        var limiter = new RateLimiter(1, 2, 10);
+        assertTrue(limiter.tryAcquire("a", 2));
+        assertFalse(limiter.tryAcquire("a", 1));
+        assertTrue(limiter.tryAcquire("b", 2));
+    }
+
+    @Test
+    void chargesBatchOverBurstInFull() {
+        // 20ms a permit, a batch of 20 leaves the bucket 15 permits in debt for 300ms
+        var now = new AtomicLong();
+        var limiter = new RateLimiter(50, 5, 10, now::get);
+        assertTrue(limiter.tryAcquire("a", 20));
+        assertFalse(limiter.tryAcquire("a", 1));
+
+        now.set(TimeUnit.MILLISECONDS.toNanos(150));
+        assertFalse(limiter.tryAcquire("a", 1), "Should still be in debt");
+
+        // 300ms to pay the debt, 20ms more for the permit
+        now.set(TimeUnit.MILLISECONDS.toNanos(320) - 1);
+        assertFalse(limiter.tryAcquire("a", 1));
+        now.set(TimeUnit.MILLISECONDS.toNanos(320));
+        assertTrue(limiter.tryAcquire("a", 1));
+        assertFalse(limiter.tryAcquire("a", 1));
+    }
+
+    @Test
+    void letsBatchOverBurstInOnlyWithFullBucket() {
+        var limiter = new RateLimiter(1, 5, 10);
+        assertTrue(limiter.tryAcquire("a", 1));
+        assertFalse(limiter.tryAcquire("a", 20));
+        assertTrue(limiter.tryAcquire("b", 20));
+    }
+
+    @Test
+    void dropsFullBucketsOverMaxKeys() throws InterruptedException {
+        var limiter = new RateLimiter(1e9, 1, 2);
+        assertTrue(limiter.tryAcquire("a", 1));
+        assertTrue(limiter.tryAcquire("b", 1));
+        Thread.sleep(1);
+
+        assertTrue(limiter.tryAcquire("c", 1));
+        assertTrue(limiter.getStats().contains("keys=1"), limiter.getStats());
+    }
+}
@@ -0,0 +1,95 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import main.chat.BinaryWireFormat.Frame;
+import main.chat.Server.ChatMessage;
+import main.chat.Server.Config;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReplicationFollowerTest {
+    private static final String HOST = "localhost";
+
+    @TempDir Path directory;
+
+    @Test
+    void replicatesRoomCreatedOnLeader() throws Exception {
+        var leaderPort = findFreePort();
+        var followerPort = findFreePort();
+        var leader = new Server(configOf("leader", leaderPort).build());
+        var follower =
+                new Server(configOf("follower", followerPort).leader(HOST, leaderPort).build());
+        leader.start();
+        follower.start();
+        try {
+            var posted = request(leaderPort, "POST /rooms/r1/messages", "hello");
+            assertEquals(Server.HttpResponse.HttpStatus.OK.statusCode, posted.getStatusCode());
+
+            // the first read opens the room on the follower, which starts tailing it
+            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (true) {
+                var messages =
+                        request(followerPort, "GET /rooms/r1/messages?lastId=-1", "")
+                                .getMessages()
+                                .get();
+                if (!messages.isEmpty()) {
+                    assertEquals(List.of("hello"), texts(messages));
+                    break;
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    fail("The follower didn't replicate the room");
+                }
+                Thread.sleep(100);
+            }
+        } finally {
+            follower.close();
+            leader.close();
+        }
+    }
+
+    private Config.Builder configOf(String name, int port) {
+        return new Config.Builder()
+                .port(port)
+                .journalDirectory(directory.resolve(name).resolve("journal"))
+                .auditDirectory(directory.resolve(name).resolve("audit"));
+    }
+
+    /** Sends the request on a new connection and reads its binary response */
+    private static Frame request(int port, String requestLine, String body) throws IOException {
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        try (var socket = new Socket(HOST, port)) {
+            socket.setSoTimeout(5_000);
+            var out = socket.getOutputStream();
+            out.write(
+                    "%s\r\nAccept:binary\r\nContent-Length:%s\r\n\r\n"
+                            .formatted(requestLine, bytes.length)
+                            .getBytes(StandardCharsets.UTF_8));
+            out.write(bytes);
+            out.flush();
+
+            var in = new BufferedInputStream(socket.getInputStream());
+            assertEquals(BinaryWireFormat.MAGIC, in.read());
+            return BinaryWireFormat.readFrame(in);
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static List<String> texts(List<ChatMessage> messages) {
+        return messages.stream().map(message -> new String(message.getMessage())).toList();
+    }
+}
@@ -0,0 +1,211 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import main.chat.RequestAuditLog.Entry;
+import main.chat.Server.HttpRequest;
+import main.chat.Server.HttpRequest.HttpMethod;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RequestAuditLogTest {
+    private static final Path RECORDS = Path.of("requests.audit");
+    private static final Path INDEX = Path.of("requests.audit.idx");
+
+    /** Requests kept in memory, small so most of them are spilled */
+    private static final int IN_MEMORY = 4;
+
+    private static final String CYRILLIC = "\u043f\u0440\u0438\u0432\u0435\u0442";
+
+    @TempDir Path directory;
+
+    @Test
+    void roundTripsSpilledRequests() throws IOException {
+        // absent maps and body, empty maps, non-ASCII names and values
+        var requests =
+                List.of(
+                        new HttpRequest.Builder("a", HttpMethod.GET, "/messages").build(),
+                        new HttpRequest.Builder("b", HttpMethod.POST, "/rooms/r1/messages")
+                                .headers(Map.of("Accept", "binary", "Content-Length", "12"))
+                                .body(CYRILLIC.toCharArray())
+                                .build(),
+                        new HttpRequest.Builder("\u00e8ve", HttpMethod.GET, "/messages")
+                                .parameters(Map.of("lastId", "5", "n\u00e4me", CYRILLIC))
+                                .headers(Map.of())
+                                .build());
+
+        try (var log = open()) {
+            for (int i = 0; i < 3; i++) {
+                for (var request : requests) {
+                    log.append(request);
+                }
+            }
+            assertTrue(log.getSpilledCount() >= requests.size());
+
+            // the oldest request of each socket is in the file only
+            for (var request : requests) {
+                assertRequest(request, log.findBySocketName(request.getSocketName(), 3).get(0));
+            }
+        }
+
+        try (var log = open()) {
+            assertEquals(3 * requests.size(), log.getSize());
+            assertEquals(0, log.getInMemoryCount());
+            for (var request : requests) {
+                var found = log.findBySocketName(request.getSocketName(), 10);
+                assertEquals(3, found.size());
+                for (var entry : found) {
+                    assertRequest(request, entry);
+                }
+            }
+        }
+    }
+
+    @Test
+    void dropsTornRecord() throws IOException {
+        appendRequests(5);
+        // a crash in the middle of the last record
+        truncate(RECORDS, 1);
+
+        assertRecovered(4);
+    }
+
+    @Test
+    void dropsTornIndexEntry() throws IOException {
+        appendRequests(5);
+        // a crash in the middle of the last index entry
+        truncate(INDEX, 3);
+
+        assertRecovered(4);
+    }
+
+    @Test
+    void appendsAfterTornRecord() throws IOException {
+        appendRequests(5);
+        truncate(RECORDS, 1);
+
+        try (var log = open()) {
+            assertEquals(4, log.append(request("again")).getId());
+        }
+        try (var log = open()) {
+            assertEquals(5, log.getSize());
+            assertEquals(4, log.findBySocketName("again", 1).get(0).getId());
+            assertEquals(
+                    List.of(3L), ids(log.findBySocketName("socket 3", 10)), "Records before");
+        }
+    }
+
+    @Test
+    void findsByTimeInFileAndMemory() throws Exception {
+        var appended = new ArrayList<Entry>();
+        try (var log = open()) {
+            // several requests per millisecond, over more milliseconds than the read block
+            for (int i = 0; i < 2000; i++) {
+                appended.add(log.append(request("socket " + i)));
+                if (i % 5 == 0) {
+                    Thread.sleep(1);
+                }
+            }
+
+            assertFindsByTime(log, appended);
+        }
+
+        // all of them in the file
+        try (var log = open()) {
+            assertFindsByTime(log, appended);
+        }
+    }
+
+    /** Checks the whole range, the ranges around it and short ranges starting at many requests */
+    private static void assertFindsByTime(RequestAuditLog log, List<Entry> appended) {
+        var first = appended.get(0).getReceived();
+        var last = appended.get(appended.size() - 1).getReceived();
+        assertEquals(ids(appended), ids(log.findByTime(first, last.plusMillis(1), 10_000)));
+        assertEquals(List.of(), log.findByTime(last.plusMillis(1), last.plusSeconds(1), 10));
+        assertEquals(List.of(), log.findByTime(first.minusSeconds(1), first, 10));
+
+        for (var i = 0; i < appended.size(); i += 7) {
+            var from = appended.get(i).getReceived();
+            var to = from.plusMillis(3);
+            var expected =
+                    appended.stream()
+                            .filter(e -> !e.getReceived().isBefore(from))
+                            .filter(e -> e.getReceived().isBefore(to))
+                            .toList();
+            assertEquals(ids(expected), ids(log.findByTime(from, to, 10_000)), "From " + from);
+
+            var oldest = appended.stream().filter(e -> !e.getReceived().isBefore(from)).limit(2);
+            var limited = log.findByTime(from, last.plusMillis(1), 2);
+            assertEquals(ids(oldest.toList()), ids(limited), "Limited from " + from);
+        }
+    }
+
+    /** Checks the log has the {@code count} requests and the next one gets the id after them */
+    private void assertRecovered(int count) throws IOException {
+        try (var log = open()) {
+            assertEquals(count, log.getSize());
+            assertEquals(List.of(), log.findBySocketName("socket " + count, 10));
+
+            var all = log.findByTime(Instant.EPOCH, Instant.now().plusSeconds(60), 100);
+            assertEquals(count, all.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, all.get(i).getId());
+                assertRequest(request("socket " + i), all.get(i));
+            }
+
+            assertEquals(count, log.append(request("next")).getId());
+        }
+    }
+
+    private RequestAuditLog open() throws IOException {
+        return RequestAuditLog.open(directory, IN_MEMORY);
+    }
+
+    private void appendRequests(int count) throws IOException {
+        try (var log = open()) {
+            for (int i = 0; i < count; i++) {
+                log.append(request("socket " + i));
+            }
+        }
+    }
+
+    private void truncate(Path file, int bytes) throws IOException {
+        try (var channel = FileChannel.open(directory.resolve(file), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+
+    private static HttpRequest request(String socketName) {
+        return new HttpRequest.Builder(socketName, HttpMethod.POST, "/messages")
+                .parameters(Map.of("lastId", "-1"))
+                .body(("text of " + socketName).toCharArray())
+                .build();
+    }
+
+    private static void assertRequest(HttpRequest expected, Entry entry) {
+        var actual = entry.getRequest();
+        assertEquals(expected.getSocketName(), actual.getSocketName());
+        assertEquals(expected.getMethod(), actual.getMethod());
+        assertEquals(expected.getTarget(), actual.getTarget());
+        assertEquals(expected.getParameters(), actual.getParameters());
+        assertEquals(expected.getHeaders(), actual.getHeaders());
+        assertEquals(expected.getBody().isPresent(), actual.getBody().isPresent());
+        if (expected.getBody().isPresent()) {
+            assertArrayEquals(expected.getBody().get(), actual.getBody().get());
+        }
+    }
+
+    private static List<Long> ids(List<Entry> entries) {
+        return entries.stream().map(Entry::getId).toList();
+    }
+}
@@ -0,0 +1,160 @@
+package main.chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import main.chat.Server.HttpRequest.HttpMethod;
+import org.junit.jupiter.api.Test;
+
+class RequestParserTest {
+    private static final Set<String> TARGETS = Set.of("/messages", "/messages/stream");
+    private static final Pattern ROOM_TARGET = Pattern.compile("/rooms/[a-z]+/messages");
+
+    private final RequestParser parser = new RequestParser(TARGETS, ROOM_TARGET);
+
+    @Test
+    void parsesPipelinedRequests() {
+        var buffer =
+                bufferOf(
+                        "GET /messages?lastId=5\r\nContent-Length:0\r\n\r\n"
+                                + "POST /rooms/general/messages\r\nContent-Length:5\r\n\r\nhello"
+                                + "GET /messages/stream\r\n\r\n");
+
+        assertTrue(parser.parse(buffer, false));
+        var get = parser.toHttpRequest("socket");
+        assertEquals(HttpMethod.GET, get.getMethod());
+        assertEquals("/messages", get.getTarget());
+        assertEquals(Optional.of(Map.of("lastId", "5")), get.getParameters());
+        assertTrue(get.getBody().isEmpty());
+
+        assertTrue(parser.parse(buffer, false));
+        var post = parser.toHttpRequest("socket");
+        assertEquals(HttpMethod.POST, post.getMethod());
+        assertEquals("/rooms/general/messages", post.getTarget());
+        assertArrayEquals("hello".toCharArray(), post.getBody().get());
+
+        // without Content-Length the body ends once the input is drained
+        assertFalse(parser.parse(buffer, false));
+        assertTrue(parser.parse(buffer, true));
+        assertEquals("/messages/stream", parser.getTarget());
+        assertEquals(0, parser.getBodyLength());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void continuesRequestSplitAcrossReads() {
+        var text = "h\u00e9llo"; // 6 bytes
+        var request = "POST /messages\r\nAccept:binary\r\nContent-Length:6\r\n\r\n" + text;
+        var buffer = bufferOf(request);
+        var length = buffer.limit();
+
+        for (int read = 1; read < length; read++) {
+            buffer.limit(read);
+            assertFalse(parser.parse(buffer, false), "Complete after %s bytes".formatted(read));
+            assertEquals(0, buffer.position());
+        }
+        buffer.limit(length);
+        assertTrue(parser.parse(buffer, false));
+        assertTrue(parser.hasHeader("accept", "binary"));
+        assertArrayEquals(text.toCharArray(), parser.toHttpRequest("socket").getBody().get());
+    }
+
+    @Test
+    void continuesRequestMovedInBuffer() {
+        var request = "POST /messages\r\nContent-Length:5\r\n\r\nhello";
+        var split = request.indexOf("Content");
+
+        // the first read lands after a previous request, the buffer is compacted before the next
+        var first = bufferOf("xx" + request.substring(0, split));
+        first.position(2);
+        assertFalse(parser.parse(first, false));
+
+        var compacted = bufferOf(request);
+        assertTrue(parser.parse(compacted, false));
+        assertEquals(5, parser.getBodyLength());
+        assertEquals(request.length(), compacted.position());
+    }
+
+    @Test
+    void acceptsBodyOfMaxLength() {
+        var body = "a".repeat(RequestParser.MAX_BODY_LENGTH);
+        var buffer =
+                bufferOf(
+                        "POST /messages\r\nContent-Length:%s\r\n\r\n%s"
+                                .formatted(RequestParser.MAX_BODY_LENGTH, body));
+
+        assertTrue(parser.parse(buffer, false));
+        assertEquals(RequestParser.MAX_BODY_LENGTH, parser.getBodyLength());
+    }
+
+    @Test
+    void rejectsIncorrectContentLength() {
+        assertRejected(
+                "POST /messages\r\nContent-Length:%s\r\n\r\n"
+                        .formatted(RequestParser.MAX_BODY_LENGTH + 1));
+        assertRejected("POST /messages\r\nContent-Length:99999999999999999999\r\n\r\n");
+        assertRejected("POST /messages\r\nContent-Length:-1\r\n\r\n");
+        assertRejected("POST /messages\r\nContent-Length:five\r\n\r\n");
+    }
+
+    @Test
+    void rejectsBodyOverMaxLengthWithoutContentLength() {
+        var buffer =
+                bufferOf("POST /messages\r\n\r\n" + "a".repeat(RequestParser.MAX_BODY_LENGTH + 1));
+        assertFalse(parser.parse(buffer, false));
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(buffer, true));
+    }
+
+    @Test
+    void rejectsHeadOverMaxLength() {
+        var target = "a".repeat(RequestParser.MAX_HEAD_LENGTH);
+        assertRejected("GET /" + target);
+
+        var buffer = bufferOf("GET /messages\r\nAccept:" + target);
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(buffer, false));
+    }
+
+    @Test
+    void rejectsTooManyHeaders() {
+        var request = new StringBuilder("GET /messages\r\n");
+        for (int i = 0; i <= RequestParser.MAX_HEADERS; i++) {
+            request.append("X-").append((char) ('a' + i)).append(":1\r\n");
+        }
+        assertRejected(request.append("\r\n").toString());
+    }
+
+    @Test
+    void rejectsMalformedRequestLine() {
+        assertRejected("GET\r\n\r\n");
+        assertRejected("FETCH /messages\r\n\r\n");
+        assertRejected("GET /unknown\r\n\r\n");
+        assertRejected("GET /messages?lastId\r\n\r\n");
+        assertRejected("GET /messages\r\nAccept\r\n\r\n");
+    }
+
+    @Test
+    void parsesNextRequestAfterRejected() {
+        assertRejected("GET /unknown\r\n\r\n");
+
+        assertTrue(parser.parse(bufferOf("GET /messages\r\nContent-Length:0\r\n\r\n"), false));
+        assertEquals(HttpMethod.GET, parser.getMethod());
+    }
+
+    private void assertRejected(String request) {
+        var buffer = bufferOf(request);
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(buffer, true), request);
+    }
+
+    private static ByteBuffer bufferOf(String request) {
+        return ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8));
+    }
+}